@@ -2,7 +2,9 @@ package chuck;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -13,8 +15,14 @@ import java.util.List;
 import chuck.defines.Filepaths;
 import chuck.dmx.DMXDriver;
 import chuck.dmx.DefaultDMX;
+import chuck.dmx.TimedDMX;
 import chuck.lighting.FixtureManager;
 import chuck.lighting.FixtureProfile;
+import chuck.lighting.SceneManager;
+import chuck.log.EventLog;
+import chuck.replication.ReplicationNode;
+import chuck.threads.AudioThread;
+import chuck.threads.LatencyTracker;
 import chuck.threads.ServerAppThread;
 
 public class UserCLI {
@@ -22,15 +30,20 @@ public class UserCLI {
 	private DMXDriver dmx;
 
 	private FixtureManager profiles;
+	private SceneManager scenes;
 	private ServerAppThread app;
+	private ReplicationNode replication = null;
+	private AudioThread audioIn = null;
+	private LatencyTracker latency = new LatencyTracker();
 
 	public UserCLI() {
 		try {
 			// instantiate dmx driver
-			dmx = new DefaultDMX();
+			dmx = new TimedDMX(new DefaultDMX(), latency);
 			System.out.println("DMX Driver Initialized");
 			profiles = new FixtureManager(dmx, Filepaths.DEFAULT_SET);
 			System.out.println("default profile loaded");
+			scenes = new SceneManager(dmx.getDmx());
 		} catch (IOException ex) {
 			// fatal error if unable to instantiate driver
 			ex.printStackTrace();
@@ -38,19 +51,210 @@ public class UserCLI {
 		}
 	}
 
+	/**
+	 * Start the server and the command line. <br />
+	 * Options: -audio &lt;source&gt; reads audio for the audio party effect from a WAV
+	 * file or named pipe, or from stdin if source is "-" (the command line is not
+	 * started in that case, since stdin carries audio). <br />
+	 * -replicate &lt;port&gt; &lt;host:port,...&gt; keeps the output, scenes, and
+	 * fixture set in sync with the other servers listed (or a multicast group),
+	 * so one can take over if this one goes quiet; -standby &lt;rank&gt; starts
+	 * this server as a standby of that rank (lower ranks take over first)
+	 * instead of the active server. <br />
+	 * -log &lt;category=level,...&gt; sets the event log levels (categories input,
+	 * session, effect, network, server, or all; levels debug, info, warn, off),
+	 * and -console &lt;level&gt; the lowest level echoed here. The log is written
+	 * to Filepaths.EVENT_LOG_FILE.
+	 * 
+	 * @param args
+	 *            command line options
+	 */
 	public static void main(String[] args) {
 		UserCLI cli = new UserCLI();
+		String audioSource = null;
+		int replicationPort = -1;
+		String peers = null;
+		int standbyRank = -1;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-audio"))
+				audioSource = args[++i];
+			else if (args[i].equals("-replicate") && i + 2 < args.length) {
+				replicationPort = Integer.parseInt(args[++i]);
+				peers = args[++i];
+			} else if (args[i].equals("-standby"))
+				standbyRank = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-log")) {
+				for (String setting : args[++i].split(",")) {
+					String[] pair = setting.split("=");
+					if (pair.length != 2 || !setLogLevel(pair[0], pair[1]))
+						System.exit(-1);
+				}
+			} else if (args[i].equals("-console")) {
+				int level = EventLog.parseLevel(args[++i]);
+				if (level < 0) {
+					System.out.println("unknown level " + args[i]);
+					System.exit(-1);
+				}
+				EventLog.setConsoleLevel(level);
+			}
+		}
+		
+		try {
+			EventLog.start(Paths.get(Filepaths.EVENT_LOG_FILE));
+		} catch (IOException e) {
+			System.out.println("event log to console only (" + e.getMessage() + ")");
+		}
+
+		if (audioSource != null && !cli.startAudio(audioSource))
+			System.exit(-1);
+
+		if (peers != null && !cli.startReplication(replicationPort, peers, standbyRank))
+			System.exit(-1);
+
+		if ("-".equals(audioSource)) {
+			// stdin is audio, run the server without the command line
+			if (cli.replication == null || cli.replication.isActive())
+				cli.startServer();
+			try {
+				if (cli.replication != null)
+					cli.replication.join();
+				else
+					cli.app.join();
+			} catch (InterruptedException e) {
+				// exiting anyway
+			}
+			EventLog.stop();
+			System.exit(0);
+		}
 		cli.startCLI();
 	}
 
+	/**
+	 * Start (or restart) the server thread, handing it the audio input if there is
+	 * one.
+	 */
+	private void startServer() {
+		app = new ServerAppThread(dmx, profiles, scenes, latency);
+		if (audioIn != null)
+			app.setAudioAnalyzer(audioIn.getAnalyzer());
+		app.start();
+	}
+
+	/**
+	 * Stop the server thread and wait for it to finish.
+	 */
+	private void stopServer() {
+		app.stopServer();
+		try {
+			app.join();
+		} catch (InterruptedException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Whether there is a server thread and it is running (a standby has none
+	 * until it takes over).
+	 */
+	private boolean serverRunning() {
+		return app != null && app.isServerRunning();
+	}
+
+	/**
+	 * Start replicating to the other servers. The server is started when this
+	 * node takes over and stopped if it steps down to a standby.
+	 * 
+	 * @param port
+	 *            replication port to bind
+	 * @param peerList
+	 *            comma separated host:port of the other servers, or of a
+	 *            multicast group
+	 * @param standbyRank
+	 *            rank to stand by with, or -1 to start as the active server
+	 * @return true if replication started
+	 */
+	private boolean startReplication(int port, String peerList, int standbyRank) {
+		List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+		try {
+			for (String peer : peerList.split(",")) {
+				int colon = peer.lastIndexOf(':');
+				peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+			}
+			// the active server gets the last rank, so it takes over last if it rejoins and the others fail
+			boolean standby = standbyRank >= 0;
+			replication = new ReplicationNode(port, peers, standby ? standbyRank : 254, standby, dmx, profiles,
+					scenes);
+		} catch (IOException | IllegalArgumentException | StringIndexOutOfBoundsException ex) {
+			System.out.println("unable to start replication (" + ex.getMessage() + ")");
+			return false;
+		}
+		replication.setRoleListener((node, active) -> {
+			if (active && !serverRunning())
+				startServer();
+			else if (!active && serverRunning())
+				stopServer();
+		});
+		replication.start();
+		System.out.println(replication.getInfo());
+		return true;
+	}
+
+	/**
+	 * Open an audio source and start analyzing it, replacing any previous source.
+	 * 
+	 * @param source
+	 *            "-" for stdin, otherwise the path to a WAV file or named pipe
+	 * @return true if the source was opened
+	 */
+	private boolean startAudio(String source) {
+		AudioThread newAudio;
+		try {
+			newAudio = new AudioThread(source);
+		} catch (IOException ex) {
+			System.out.println("unable to open audio source " + source + " (" + ex.getMessage() + ")");
+			return false;
+		}
+		if (audioIn != null)
+			audioIn.redrum();
+		audioIn = newAudio;
+		audioIn.start();
+		if (app != null)
+			app.setAudioAnalyzer(audioIn.getAnalyzer());
+		System.out.println("Audio input from " + source + " at " + audioIn.getAnalyzer().getSampleRate() + " Hz");
+		return true;
+	}
+
+	/**
+	 * Set the level of an event log category, by name.
+	 * 
+	 * @param category
+	 *            category name, or "all"
+	 * @param level
+	 *            level name
+	 * @return true if both names were known
+	 */
+	private static boolean setLogLevel(String category, String level) {
+		int c = EventLog.parseCategory(category);
+		int l = EventLog.parseLevel(level);
+		if (c < -1 || l < 0) {
+			System.out.println("unknown log category or level: " + category + " " + level);
+			return false;
+		}
+		EventLog.setLevel(c, l);
+		return true;
+	}
+
 	public void startCLI() {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 		boolean quit = false;
 		String input = null;
 		String[] splitInput = null;
 
-		app = new ServerAppThread(dmx, profiles);
-		app.start();
+		// a standby's server is started when it takes over
+		if (replication == null || replication.isActive())
+			startServer();
 
 		printMainHelp();
 
@@ -64,14 +268,19 @@ public class UserCLI {
 				System.exit(-1);
 			}
 			if (splitInput[0].startsWith("q")) {
-				app.stopServer();
-				try {
-					app.join();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				if (replication != null)
+					replication.redrum();
+				if (app != null) {
+					app.stopServer();
+					try {
+						app.join();
+					} catch (InterruptedException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					}
 				}
 				System.out.println("Goodbye");
+				EventLog.stop();
 				try {
 					dmx.clearDMX();
 				} catch (IOException e) {
@@ -83,10 +292,10 @@ public class UserCLI {
 			} else if (splitInput[0].startsWith("c")) {
 				quit = true;
 				System.out.println("CLI stopping...");
-				if (app.isServerRunning())
+				if (serverRunning())
 					System.out.println("Server will continue to run");
 			} else if (splitInput[0].startsWith("p")) {
-				if (app.isServerRunning())
+				if (serverRunning())
 					System.out.println("stop server first");
 				else
 					managerCLI(reader);
@@ -97,27 +306,57 @@ public class UserCLI {
 				System.out.println("add in DMX veiwer");
 
 			} else if (splitInput[0].startsWith("s")) {
-				if (app.isServerRunning()) {
-					app.stopServer();
-					try {
-						app.join();
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-						System.exit(-1);
-					}
+				if (serverRunning()) {
+					stopServer();
 					System.out.println("Server Stopped");
+				} else if (replication != null && !replication.isActive()) {
+					System.out.println("standby, the server starts when this node takes over");
 				} else {
-					app = new ServerAppThread(dmx, profiles);
-					app.start();
+					startServer();
 				}
+			} else if (splitInput[0].startsWith("r")) {
+				if (replication != null)
+					System.out.println(replication.getInfo());
+				else
+					System.out.println("replication not started (-replicate <port> <host:port,...>)");
 			} else if (splitInput[0].startsWith("n")) {
-				if (app.isServerRunning()) {
-					System.out.println("Add network info");
+				if (serverRunning()) {
+					System.out.println(app.getNetworkInfo());
 				} else {
 					System.out.println("Server needs to be running");
 				}
 
+			} else if (splitInput[0].startsWith("l")) {
+				System.out.println(latency.toString());
+			} else if (splitInput[0].startsWith("u") || splitInput[0].startsWith("y")) {
+				if (!serverRunning()) {
+					System.out.println("Server needs to be running");
+				} else {
+					try {
+						System.out.println(splitInput[0].startsWith("u") ? app.undo() : app.redo());
+					} catch (IOException e) {
+						System.out.println("unable to " + (splitInput[0].startsWith("u") ? "undo" : "redo") + " ("
+								+ e.getMessage() + ")");
+					}
+				}
+			} else if (splitInput[0].startsWith("v")) {
+				if (splitInput.length == 3)
+					setLogLevel(splitInput[1], splitInput[2]);
+				else if (splitInput.length != 1)
+					System.out.println("v [<category|all> <level>]");
+				System.out.println(EventLog.getInfo());
+			} else if (splitInput[0].startsWith("a")) {
+				System.out.print("Audio source (WAV file or named pipe): ");
+				try {
+					String source = reader.readLine().trim();
+					if (source.equals("-"))
+						System.out.println("stdin is in use by the command line");
+					else if (!source.isEmpty())
+						startAudio(source);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					System.exit(-1);
+				}
 			} else if (input.startsWith("h")) {
 				printMainHelp();
 			} else {
@@ -186,6 +425,13 @@ public class UserCLI {
 
 			} else if (input.startsWith("p")) {
 				System.out.println(profiles.toString());
+			} else if (splitInput[0].startsWith("m")) {
+				try {
+					positionProfileInSetCLI(reader);
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
 			} else if (input.startsWith("h")) {
 				printManagerHelp();
 			} else {
@@ -256,6 +502,49 @@ public class UserCLI {
 		return new FixtureProfile(dmx, name, address, channels.toArray(new String[channels.size()]));
 	}
 
+	/**
+	 * Prompt user for a fixture and its position in the rig, used by the pixel
+	 * mapped party effects.
+	 * 
+	 * @throws IOException
+	 *             if unable to access writer/reader
+	 */
+	private void positionProfileInSetCLI(BufferedReader reader) throws IOException {
+		String input;
+		int choice;
+		float[] position = new float[2];
+
+		int numLights = profiles.getLightCount();
+
+		if (numLights == 0) {
+			System.out.println("Nothing to Position");
+			return;
+		}
+
+		for (int i = 0; i < numLights; i++) {
+			profiles.getPosition(i, position);
+			System.out.printf("%4d: %s (%.2f, %.2f)%s\n", i, profiles.getLight(i).getFixtureName(), position[0],
+					position[1], profiles.getLight(i).hasPosition() ? "" : " default");
+		}
+
+		System.out.println("Choose Light to Position [0:" + (numLights - 1) + "]");
+		System.out.print("Position> ");
+		input = reader.readLine().toLowerCase();
+		if (input.equals("q") || input.equals(""))
+			return;
+
+		try {
+			choice = Integer.parseInt(input);
+			System.out.print("x y within [0:1]> ");
+			String[] coords = reader.readLine().trim().split("\\s+");
+			profiles.getLight(choice).setPosition(Float.parseFloat(coords[0]), Float.parseFloat(coords[1]));
+		} catch (NumberFormatException | IndexOutOfBoundsException ex) {
+			System.out.println("invalid input");
+		} catch (IllegalArgumentException ex) {
+			System.out.println("bad argument: " + ex.getMessage());
+		}
+	}
+
 	/**
 	 * Prompt a user to delete a fixture from the set.
 	 * 
@@ -397,8 +686,11 @@ public class UserCLI {
 			return;
 		}
 
-		// create the new profile set manager
-		profiles = new FixtureManager(dmx, listOfFiles.get(choice).getFileName().toString());
+		// replace the fixtures in place, the server and replication keep this manager
+		Path setFile = listOfFiles.get(choice);
+		try (InputStream in = Files.newInputStream(setFile)) {
+			profiles.replaceSet(FixtureManager.readSet(in, dmx));
+		}
 	}
 
 	private void printMainHelp() {
@@ -406,9 +698,15 @@ public class UserCLI {
 		System.out.println("\tp: profile manager");
 		System.out.println("\tz: print current set");
 		System.out.println("\td: dmx viewer");
-		if (app.isServerRunning()) {
+		System.out.println("\ta: audio input");
+		System.out.println("\tl: latency (packet to dmx write)");
+		System.out.println("\tv: event log levels (v <category|all> <level> to set)");
+		if (replication != null)
+			System.out.println("\tr: replication info");
+		if (serverRunning()) {
 			System.out.println("\ts: stop server");
 			System.out.println("\tn: network info");
+			System.out.println("\tu: undo (dmx and scenes), y: redo");
 		} else
 			System.out.println("\ts: start server");
 		System.out.println("\th: help");
@@ -423,6 +721,7 @@ public class UserCLI {
 		System.out.println("\ts: save set");
 		System.out.println("\tl: load set");
 		System.out.println("\tp: print current set");
+		System.out.println("\tm: move profile (pixel map position)");
 		System.out.println("\th: help");
 		System.out.println("\tq: quit/back");
 	}
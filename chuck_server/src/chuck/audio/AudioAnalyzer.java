@@ -0,0 +1,254 @@
+package chuck.audio;
+
+/**
+ * Streaming audio analysis for light effects. <br />
+ * Samples are collected into overlapping frames; each frame is windowed and
+ * transformed, then reduced to bass, mid and treble energy and to spectral flux
+ * (the increase in magnitude since the previous frame). An onset is reported
+ * when the flux rises above a running average of recent flux values, and a beat
+ * when the same happens in the bass band. <br />
+ * All buffers are allocated up front, so processing does not create garbage.
+ * Results are published through volatile fields and can be read from any
+ * thread; process() must only be called from one thread.
+ */
+public class AudioAnalyzer {
+
+	public static final int FFT_SIZE = 1024;
+	private static final int HOP_SIZE = FFT_SIZE / 2;
+
+	/**
+	 * Band edges in Hz
+	 */
+	private static final float BASS_MAX = 250;
+	private static final float MID_MAX = 4000;
+	private static final float TREBLE_MAX = 16000;
+
+	/**
+	 * Number of frames of flux averaged for the onset threshold (about half a
+	 * second at 44.1 kHz)
+	 */
+	private static final int FLUX_HISTORY = 43;
+	/**
+	 * Flux must exceed the running average by this factor to count as an onset
+	 */
+	private static final float ONSET_SENSITIVITY = 1.5f;
+	/**
+	 * Minimum time between beats in seconds (limits detection to 240 bpm)
+	 */
+	private static final float MIN_BEAT_INTERVAL = 0.25f;
+
+	/**
+	 * Per-frame decay of the band peak trackers used to normalize the levels, and
+	 * of the levels themselves (fast attack, slower release)
+	 */
+	private static final float PEAK_DECAY = 0.999f;
+	private static final float LEVEL_RELEASE = 0.85f;
+
+	private final int sampleRate;
+	private final FFT fft = new FFT(FFT_SIZE);
+	private final float[] window = new float[FFT_SIZE];
+
+	/**
+	 * Last FFT_SIZE samples, oldest at history[historyPos]
+	 */
+	private final float[] history = new float[FFT_SIZE];
+	private int historyPos = 0;
+	private int hopFill = 0;
+
+	private final float[] re = new float[FFT_SIZE];
+	private final float[] im = new float[FFT_SIZE];
+	private final float[] lastMagnitude = new float[FFT_SIZE / 2];
+
+	private final int bassEnd, midEnd, trebleEnd;
+
+	private final float[] flux = new float[FLUX_HISTORY];
+	private final float[] bassFlux = new float[FLUX_HISTORY];
+	private int fluxPos = 0;
+
+	private float bassPeak = 1e-6f, midPeak = 1e-6f, treblePeak = 1e-6f;
+	private long samplesProcessed = 0;
+	private volatile long lastBeatSample = Long.MIN_VALUE / 2;
+
+	private volatile float bass, mid, treble;
+	private volatile long onsetCount = 0;
+	private volatile long beatCount = 0;
+
+	/**
+	 * Constructor. Prepare to analyze audio at the specified sample rate.
+	 *
+	 * @param sampleRate
+	 *            sample rate of the audio in Hz
+	 */
+	public AudioAnalyzer(int sampleRate) {
+		if (sampleRate <= 0)
+			throw new IllegalArgumentException("sample rate must be positive");
+		this.sampleRate = sampleRate;
+
+		// hann window
+		for (int i = 0; i < FFT_SIZE; i++)
+			window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+
+		float binWidth = (float) sampleRate / FFT_SIZE;
+		bassEnd = Math.max(2, Math.min(FFT_SIZE / 2, Math.round(BASS_MAX / binWidth)));
+		midEnd = Math.max(bassEnd + 1, Math.min(FFT_SIZE / 2, Math.round(MID_MAX / binWidth)));
+		trebleEnd = Math.max(midEnd + 1, Math.min(FFT_SIZE / 2, Math.round(TREBLE_MAX / binWidth)));
+	}
+
+	/**
+	 * Add samples to the analysis. Runs one analysis frame for every HOP_SIZE
+	 * samples received.
+	 *
+	 * @param samples
+	 *            mono samples within [-1:1]
+	 * @param offset
+	 *            index of first sample
+	 * @param count
+	 *            number of samples
+	 */
+	public void process(float[] samples, int offset, int count) {
+		for (int i = 0; i < count; i++) {
+			history[historyPos] = samples[offset + i];
+			if (++historyPos == FFT_SIZE)
+				historyPos = 0;
+			samplesProcessed++;
+			if (++hopFill == HOP_SIZE) {
+				hopFill = 0;
+				analyzeFrame();
+			}
+		}
+	}
+
+	private void analyzeFrame() {
+		// unroll the history ring into the transform buffers, windowed
+		for (int i = 0; i < FFT_SIZE; i++) {
+			int h = historyPos + i;
+			if (h >= FFT_SIZE)
+				h -= FFT_SIZE;
+			re[i] = history[h] * window[i];
+			im[i] = 0;
+		}
+		fft.transform(re, im);
+
+		float bassEnergy = 0, midEnergy = 0, trebleEnergy = 0;
+		float totalFlux = 0, lowFlux = 0;
+		for (int k = 1; k < trebleEnd; k++) {
+			float m = (float) Math.sqrt(re[k] * re[k] + im[k] * im[k]);
+
+			float rise = m - lastMagnitude[k];
+			if (rise > 0) {
+				totalFlux += rise;
+				if (k < bassEnd)
+					lowFlux += rise;
+			}
+			lastMagnitude[k] = m;
+
+			float energy = m * m;
+			if (k < bassEnd)
+				bassEnergy += energy;
+			else if (k < midEnd)
+				midEnergy += energy;
+			else
+				trebleEnergy += energy;
+		}
+
+		// normalize against slowly decaying peaks so levels use the full range
+		bassPeak = Math.max(bassEnergy, bassPeak * PEAK_DECAY);
+		midPeak = Math.max(midEnergy, midPeak * PEAK_DECAY);
+		treblePeak = Math.max(trebleEnergy, treblePeak * PEAK_DECAY);
+		bass = Math.max(bassEnergy / bassPeak, bass * LEVEL_RELEASE);
+		mid = Math.max(midEnergy / midPeak, mid * LEVEL_RELEASE);
+		treble = Math.max(trebleEnergy / treblePeak, treble * LEVEL_RELEASE);
+
+		// compare flux against the average of the previous frames
+		float fluxAverage = 0, bassFluxAverage = 0;
+		for (int i = 0; i < FLUX_HISTORY; i++) {
+			fluxAverage += flux[i];
+			bassFluxAverage += bassFlux[i];
+		}
+		fluxAverage /= FLUX_HISTORY;
+		bassFluxAverage /= FLUX_HISTORY;
+
+		if (totalFlux > fluxAverage * ONSET_SENSITIVITY && totalFlux > 1e-3f)
+			onsetCount++;
+		if (lowFlux > bassFluxAverage * ONSET_SENSITIVITY && lowFlux > 1e-3f
+				&& samplesProcessed - lastBeatSample >= MIN_BEAT_INTERVAL * sampleRate) {
+			lastBeatSample = samplesProcessed;
+			beatCount++;
+		}
+
+		flux[fluxPos] = totalFlux;
+		bassFlux[fluxPos] = lowFlux;
+		if (++fluxPos == FLUX_HISTORY)
+			fluxPos = 0;
+	}
+
+	/**
+	 * Get the bass level (up to 250 Hz).
+	 *
+	 * @return level within [0:1], relative to the recent peak
+	 */
+	public float getBass() {
+		return bass;
+	}
+
+	/**
+	 * Get the mid level (250 Hz to 4 kHz).
+	 *
+	 * @return level within [0:1], relative to the recent peak
+	 */
+	public float getMid() {
+		return mid;
+	}
+
+	/**
+	 * Get the treble level (4 kHz to 16 kHz).
+	 *
+	 * @return level within [0:1], relative to the recent peak
+	 */
+	public float getTreble() {
+		return treble;
+	}
+
+	/**
+	 * Get the number of onsets detected so far. Effects compare this with the
+	 * count they saw last frame.
+	 *
+	 * @return onset count
+	 */
+	public long getOnsetCount() {
+		return onsetCount;
+	}
+
+	/**
+	 * Get the number of beats detected so far. Effects compare this with the count
+	 * they saw last frame.
+	 *
+	 * @return beat count
+	 */
+	public long getBeatCount() {
+		return beatCount;
+	}
+
+	/**
+	 * Get the stream time of the last beat.
+	 *
+	 * @return seconds from the start of the stream, or a negative number if no
+	 *         beat has been detected
+	 */
+	public double getLastBeatTime() {
+		return beatCount == 0 ? -1 : (double) lastBeatSample / sampleRate;
+	}
+
+	/**
+	 * Get the amount of audio processed so far.
+	 *
+	 * @return seconds of audio
+	 */
+	public double getStreamTime() {
+		return (double) samplesProcessed / sampleRate;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+}
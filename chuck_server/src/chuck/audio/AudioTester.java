@@ -0,0 +1,58 @@
+package chuck.audio;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import chuck.defines.LightingDefines;
+
+/**
+ * Test program to check the audio analysis offline. Runs a WAV file through the
+ * analyzer as fast as possible and prints the band levels, detected beats and
+ * how much faster than real time the analysis ran.
+ */
+public class AudioTester {
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("usage: java chuck.audio.AudioTester file.wav");
+			System.exit(-1);
+		}
+
+		try {
+			PcmReader reader = new PcmReader(new BufferedInputStream(Files.newInputStream(Paths.get(args[0]))),
+					LightingDefines.AUDIO_RAW_SAMPLE_RATE, LightingDefines.AUDIO_RAW_CHANNELS);
+			AudioAnalyzer analyzer = new AudioAnalyzer(reader.getSampleRate());
+			System.out.printf("%s: %d Hz, %d channel(s)\n", args[0], reader.getSampleRate(), reader.getChannels());
+
+			float[] samples = new float[256];
+			long beats = 0;
+			double nextReport = 0;
+			long start = System.nanoTime();
+			int count;
+			while ((count = reader.read(samples, 0, samples.length)) >= 0) {
+				analyzer.process(samples, 0, count);
+
+				if (analyzer.getBeatCount() != beats) {
+					beats = analyzer.getBeatCount();
+					System.out.printf("%8.3fs beat %d\n", analyzer.getLastBeatTime(), beats);
+				}
+				if (analyzer.getStreamTime() >= nextReport) {
+					System.out.printf("%8.3fs bass %.2f mid %.2f treble %.2f onsets %d\n", analyzer.getStreamTime(),
+							analyzer.getBass(), analyzer.getMid(), analyzer.getTreble(), analyzer.getOnsetCount());
+					nextReport += 1;
+				}
+			}
+			reader.close();
+
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%.1fs of audio, %d beats, %d onsets, analyzed in %.3fs (%.0fx real time)\n",
+					analyzer.getStreamTime(), analyzer.getBeatCount(), analyzer.getOnsetCount(), elapsed,
+					analyzer.getStreamTime() / elapsed);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
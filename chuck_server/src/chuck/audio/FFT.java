@@ -0,0 +1,86 @@
+package chuck.audio;
+
+/**
+ * In-place radix-2 fast Fourier transform of a fixed size. The twiddle factors
+ * and bit reversal table are computed once, so transforms do not allocate.
+ */
+public class FFT {
+
+	private final int size;
+	private final float[] cos;
+	private final float[] sin;
+	private final int[] reverse;
+
+	/**
+	 * Constructor. Precompute tables for transforms of the specified size.
+	 *
+	 * @param size
+	 *            number of points, must be a power of two (at least 2)
+	 */
+	public FFT(int size) {
+		if (size < 2 || Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException("fft size must be a power of two");
+
+		this.size = size;
+		cos = new float[size / 2];
+		sin = new float[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			cos[i] = (float) Math.cos(-2 * Math.PI * i / size);
+			sin[i] = (float) Math.sin(-2 * Math.PI * i / size);
+		}
+
+		reverse = new int[size];
+		int bits = Integer.numberOfTrailingZeros(size);
+		for (int i = 0; i < size; i++)
+			reverse[i] = Integer.reverse(i) >>> (32 - bits);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Transform the signal in place.
+	 *
+	 * @param re
+	 *            real parts (input signal, output spectrum); size elements
+	 * @param im
+	 *            imaginary parts; size elements
+	 */
+	public void transform(float[] re, float[] im) {
+		if (re.length < size || im.length < size)
+			throw new IllegalArgumentException("arrays must hold at least " + size + " values");
+
+		// reorder into bit reversed positions
+		for (int i = 0; i < size; i++) {
+			int j = reverse[i];
+			if (j > i) {
+				float t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+
+		// butterflies
+		for (int half = 1; half < size; half <<= 1) {
+			int step = size / (half << 1);
+			for (int start = 0; start < size; start += half << 1) {
+				for (int k = 0; k < half; k++) {
+					float wr = cos[k * step];
+					float wi = sin[k * step];
+					int a = start + k;
+					int b = a + half;
+					float tr = re[b] * wr - im[b] * wi;
+					float ti = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package chuck.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads signed little-endian PCM from a stream (stdin, a named pipe, or a WAV
+ * file) and mixes it down to mono float samples within [-1:1]. <br />
+ * A RIFF/WAVE header at the start of the stream is parsed for the format; raw
+ * streams use the format given to the constructor. The read buffer is
+ * allocated once, so reading does not create garbage.
+ */
+public class PcmReader {
+
+	private static final int BUFFER_FRAMES = 1024;
+
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+	/**
+	 * KSDATAFORMAT_SUBTYPE_PCM as stored in a file
+	 */
+	private static final byte[] PCM_SUBFORMAT = { 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00,
+			0x00, (byte) 0xaa, 0x00, 0x38, (byte) 0x9b, 0x71 };
+	/**
+	 * Longest fmt chunk read (the extensible format is 40 bytes)
+	 */
+	private static final int MAX_FMT_LENGTH = 256;
+	private static final int MAX_CHANNELS = 32;
+
+	private InputStream in;
+	private int sampleRate;
+	private int channels;
+	private int bytesPerSample;
+
+	/**
+	 * Bytes left in the WAV data chunk, or -1 for a raw stream of unknown length
+	 */
+	private long remaining = -1;
+
+	private byte[] buffer;
+	private int buffered = 0;
+
+	/**
+	 * Constructor. Open a stream holding either a WAV file or raw PCM.
+	 *
+	 * @param in
+	 *            source of audio data
+	 * @param rawSampleRate
+	 *            sample rate to assume if the stream has no WAV header
+	 * @param rawChannels
+	 *            channel count to assume if the stream has no WAV header
+	 * @throws IOException
+	 *             if unable to read the stream, or the WAV header is malformed or
+	 *             its format unsupported
+	 */
+	public PcmReader(InputStream in, int rawSampleRate, int rawChannels) throws IOException {
+		this.in = in;
+		this.sampleRate = rawSampleRate;
+		this.channels = rawChannels;
+		this.bytesPerSample = 2;
+
+		byte[] riff = new byte[12];
+		int header = readFully(riff, 0, riff.length);
+		if (header == 12 && tag(riff, 0, "RIFF") && tag(riff, 8, "WAVE")) {
+			parseWavHeader();
+			buffered = 0;
+		} else {
+			// raw pcm; keep what we read as audio
+			buffered = header;
+		}
+
+		buffer = new byte[BUFFER_FRAMES * channels * bytesPerSample];
+		if (buffered > 0)
+			System.arraycopy(riff, 0, buffer, 0, buffered);
+	}
+
+	/**
+	 * Read chunks up to the data chunk, taking the format from the fmt chunk.
+	 */
+	private void parseWavHeader() throws IOException {
+		byte[] chunk = new byte[8];
+		boolean haveFormat = false;
+		while (true) {
+			if (readFully(chunk, 0, 8) != 8)
+				throw new IOException("wav file has no data chunk");
+			long length = le32(chunk, 4) & 0xffffffffL;
+
+			if (tag(chunk, 0, "fmt ")) {
+				if (length < 16 || length > MAX_FMT_LENGTH)
+					throw new IOException("bad wav fmt chunk length " + length);
+				byte[] fmt = new byte[(int) length];
+				if (readFully(fmt, 0, fmt.length) != fmt.length)
+					throw new IOException("truncated wav fmt chunk");
+				int format = le16(fmt, 0);
+				channels = le16(fmt, 2);
+				sampleRate = le32(fmt, 4);
+				int bits = le16(fmt, 14);
+				if (format == WAVE_FORMAT_EXTENSIBLE) {
+					if (length < 40 || !isPcmSubFormat(fmt, 24))
+						throw new IOException("only pcm wav files are supported (extensible format is not pcm)");
+				} else if (format != WAVE_FORMAT_PCM) {
+					throw new IOException("only pcm wav files are supported (format " + format + ")");
+				}
+				if (bits != 8 && bits != 16)
+					throw new IOException("only 8 and 16 bit wav files are supported (" + bits + " bits)");
+				if (channels < 1 || channels > MAX_CHANNELS)
+					throw new IOException("unsupported wav channel count " + channels);
+				if (sampleRate <= 0)
+					throw new IOException("bad wav sample rate " + sampleRate);
+				bytesPerSample = bits / 8;
+				haveFormat = true;
+				// chunks are padded to an even length
+				skipFully(length & 1);
+			} else if (tag(chunk, 0, "data")) {
+				if (!haveFormat)
+					throw new IOException("wav data chunk before fmt chunk");
+				remaining = length;
+				return;
+			} else {
+				skipFully(length + (length & 1));
+			}
+		}
+	}
+
+	/**
+	 * Check a WAVE_FORMAT_EXTENSIBLE sub-format GUID for
+	 * KSDATAFORMAT_SUBTYPE_PCM.
+	 */
+	private static boolean isPcmSubFormat(byte[] fmt, int offset) {
+		for (int i = 0; i < PCM_SUBFORMAT.length; i++) {
+			if (fmt[offset + i] != PCM_SUBFORMAT[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read mono samples, blocking until at least one is available.
+	 *
+	 * @param samples
+	 *            destination for samples within [-1:1]
+	 * @param offset
+	 *            first index to write
+	 * @param max
+	 *            maximum number of samples to read
+	 * @return number of samples read, or -1 at the end of the stream
+	 * @throws IOException
+	 *             if unable to read the stream
+	 */
+	public int read(float[] samples, int offset, int max) throws IOException {
+		int frameBytes = channels * bytesPerSample;
+
+		// fill the buffer until it holds at least one whole frame
+		while (buffered < frameBytes) {
+			int want = buffer.length - buffered;
+			if (remaining >= 0)
+				want = (int) Math.min(want, remaining);
+			if (want == 0)
+				return -1;
+			int n = in.read(buffer, buffered, want);
+			if (n < 0)
+				return -1;
+			buffered += n;
+			if (remaining >= 0)
+				remaining -= n;
+		}
+
+		int frames = Math.min(max, buffered / frameBytes);
+		int pos = 0;
+		for (int f = 0; f < frames; f++) {
+			float sum = 0;
+			for (int c = 0; c < channels; c++) {
+				if (bytesPerSample == 2) {
+					sum += (short) ((buffer[pos] & 0xff) | (buffer[pos + 1] << 8)) / 32768f;
+				} else {
+					// 8 bit wav is unsigned
+					sum += ((buffer[pos] & 0xff) - 128) / 128f;
+				}
+				pos += bytesPerSample;
+			}
+			samples[offset + f] = sum / channels;
+		}
+
+		// keep any partial frame for the next read
+		buffered -= pos;
+		if (buffered > 0)
+			System.arraycopy(buffer, pos, buffer, 0, buffered);
+		return frames;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readFully(byte[] dest, int offset, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int n = in.read(dest, offset + total, length - total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	private void skipFully(long length) throws IOException {
+		while (length > 0) {
+			if (in.read() < 0)
+				throw new IOException("unexpected end of wav file");
+			length--;
+			length -= in.skip(length);
+		}
+	}
+
+	private static boolean tag(byte[] b, int offset, String tag) {
+		for (int i = 0; i < 4; i++) {
+			if (b[offset + i] != tag.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static int le16(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+	}
+
+	private static int le32(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16
+				| (b[offset + 3] & 0xff) << 24;
+	}
+}
@@ -0,0 +1,139 @@
+package chuck.audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import chuck.defines.LightingDefines;
+
+/**
+ * Feeds PcmReader well formed, malformed, and truncated WAV headers and checks
+ * that each is either read with the right format or rejected with an
+ * IOException (never another exception, and never a huge allocation from a
+ * length read out of the file).
+ */
+public class WavHeaderTester {
+
+	private static final byte[] PCM_GUID = { 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00,
+			(byte) 0xaa, 0x00, 0x38, (byte) 0x9b, 0x71 };
+	private static final byte[] FLOAT_GUID = { 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00,
+			(byte) 0xaa, 0x00, 0x38, (byte) 0x9b, 0x71 };
+
+	public static void main(String[] args) {
+		boolean pass = true;
+
+		pass &= check("pcm", wav(fmt(1, 2, 48000, 16, 16), 16), true);
+		pass &= check("extensible pcm", wav(extensible(PCM_GUID), 16), true);
+		pass &= check("odd fmt length with pad byte", wav(fmt(1, 1, 22050, 8, 17), 16), true);
+
+		pass &= check("extensible float", wav(extensible(FLOAT_GUID), 16), false);
+		pass &= check("extensible without sub-format", wav(fmt(0xfffe, 2, 48000, 16, 18), 16), false);
+		pass &= check("float format", wav(fmt(3, 2, 48000, 32, 16), 16), false);
+		pass &= check("fmt chunk of 12 bytes", wav(fmt(1, 2, 48000, 16, 12), 16), false);
+		pass &= check("fmt chunk of 4 GB", wav(fmt(1, 2, 48000, 16, 0xffffffffL), 16), false);
+		pass &= check("fmt chunk of 2 GB", wav(fmt(1, 2, 48000, 16, 0x7fffffff), 16), false);
+		pass &= check("no channels", wav(fmt(1, 0, 48000, 16, 16), 16), false);
+		pass &= check("65535 channels", wav(fmt(1, 0xffff, 48000, 16, 16), 16), false);
+		pass &= check("24 bit", wav(fmt(1, 2, 48000, 24, 16), 16), false);
+
+		byte[] good = wav(fmt(1, 2, 48000, 16, 16), 16);
+		pass &= check("cut in the fmt chunk", cut(good, 12 + 8 + 10), false);
+		pass &= check("cut before the data chunk", cut(good, 12 + 8 + 16), false);
+		pass &= check("cut at the pad byte", cut(wav(fmt(1, 1, 22050, 8, 17), 16), 12 + 8 + 17), false);
+		pass &= check("cut in a skipped chunk", cut(withList(good), 12 + 8 + 4), false);
+		pass &= check("data before fmt", dataFirst(), false);
+
+		System.out.println(pass ? "PASS" : "FAIL");
+		System.exit(pass ? 0 : 1);
+	}
+
+	/**
+	 * Open a file and compare the outcome with the expected one: read with the
+	 * format it declares, or rejected with an IOException.
+	 */
+	private static boolean check(String what, byte[] file, boolean valid) {
+		String outcome;
+		boolean ok;
+		try {
+			PcmReader reader = new PcmReader(new ByteArrayInputStream(file), LightingDefines.AUDIO_RAW_SAMPLE_RATE,
+					LightingDefines.AUDIO_RAW_CHANNELS);
+			float[] samples = new float[64];
+			int count = reader.read(samples, 0, samples.length);
+			outcome = reader.getSampleRate() + " Hz, " + reader.getChannels() + " channel(s), " + count + " samples";
+			ok = valid && count > 0;
+		} catch (IOException e) {
+			outcome = e.getMessage();
+			ok = !valid;
+		} catch (RuntimeException | OutOfMemoryError e) {
+			outcome = e.toString();
+			ok = false;
+		}
+		System.out.println((ok ? "ok   " : "FAIL ") + what + ": " + outcome);
+		return ok;
+	}
+
+	/**
+	 * A fmt chunk with its length field set to length; the body holds the
+	 * basic 16 bytes, zero padded or cut to the length if that is at most 64.
+	 */
+	private static byte[] fmt(int format, int channels, int rate, int bits, long length) {
+		int body = length <= 64 ? (int) length : 16;
+		ByteBuffer chunk = ByteBuffer.allocate(8 + Math.max(body, 16)).order(ByteOrder.LITTLE_ENDIAN);
+		chunk.put("fmt ".getBytes()).putInt((int) length);
+		chunk.putShort((short) format).putShort((short) channels).putInt(rate);
+		chunk.putInt(rate * channels * bits / 8).putShort((short) (channels * bits / 8)).putShort((short) bits);
+		byte[] bytes = new byte[8 + body];
+		System.arraycopy(chunk.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * A 40 byte WAVE_FORMAT_EXTENSIBLE fmt chunk with the given sub-format.
+	 */
+	private static byte[] extensible(byte[] guid) {
+		byte[] chunk = fmt(0xfffe, 2, 48000, 16, 40);
+		ByteBuffer extra = ByteBuffer.wrap(chunk, 8 + 16, 24).order(ByteOrder.LITTLE_ENDIAN);
+		extra.putShort((short) 22).putShort((short) 16).putInt(3).put(guid);
+		return chunk;
+	}
+
+	/**
+	 * A RIFF file of a fmt chunk (padded to an even length) and a data chunk of
+	 * dataLength bytes of silence.
+	 */
+	private static byte[] wav(byte[] fmt, int dataLength) {
+		int pad = fmt.length & 1;
+		ByteBuffer file = ByteBuffer.allocate(12 + fmt.length + pad + 8 + dataLength).order(ByteOrder.LITTLE_ENDIAN);
+		file.put("RIFF".getBytes()).putInt(file.capacity() - 8).put("WAVE".getBytes());
+		file.put(fmt);
+		if (pad != 0)
+			file.put((byte) 0);
+		file.put("data".getBytes()).putInt(dataLength);
+		return file.array();
+	}
+
+	/**
+	 * The file with a LIST chunk of 100 bytes inserted before the fmt chunk.
+	 */
+	private static byte[] withList(byte[] wav) {
+		ByteBuffer file = ByteBuffer.allocate(wav.length + 108).order(ByteOrder.LITTLE_ENDIAN);
+		file.put(wav, 0, 12).put("LIST".getBytes()).putInt(100).put(new byte[100]);
+		file.put(wav, 12, wav.length - 12);
+		return file.array();
+	}
+
+	private static byte[] dataFirst() {
+		ByteBuffer file = ByteBuffer.allocate(12 + 8 + 16 + 24).order(ByteOrder.LITTLE_ENDIAN);
+		file.put("RIFF".getBytes()).putInt(file.capacity() - 8).put("WAVE".getBytes());
+		file.put("data".getBytes()).putInt(16).put(new byte[16]);
+		file.put(fmt(1, 2, 48000, 16, 16));
+		return file.array();
+	}
+
+	private static byte[] cut(byte[] file, int length) {
+		byte[] cut = new byte[length];
+		System.arraycopy(file, 0, cut, 0, length);
+		return cut;
+	}
+}
@@ -16,7 +16,46 @@ public class Connection {
 	public static final byte POLL_PACKET_ID = (byte) 0x87;
 	public static final byte POLL_REPLY_PACKET_ID = (byte) 0x1E;
 	
+	/**
+	 * Mode byte of a poll asking the server for its packet counters (answered
+	 * with a poll reply to the sending port, never sent in heartbeats)
+	 */
+	public static final byte STATS_QUERY_MODE = (byte) 0x7F;
+	
 	public static final int HEARTBEAT_INTERVAL = 3000;
+	public static final int HEARTBEAT_RETRY_INTERVAL = 500;
+	public static final int HEARTBEAT_LOST_INTERVAL = 10000;
+	public static final int HEARTBEAT_REPLY_TIMEOUT = 400;
+	public static final int HEARTBEAT_MAX_MISSES = 3;
+	/**
+	 * Packets read from a socket per wake-up before the event loop moves on to the other socket and the ticks
+	 */
+	public static final int READ_BATCH = 64;
+	public static final int SENSOR_CONFLATION_ENTRIES = 8;
+	public static final int HTTP_PORT = 8080;
+	public static final int HTTP_STREAM_INTERVAL = 40;
+	/**
+	 * Events a stream client may fall behind by before it is dropped (one second at HTTP_STREAM_INTERVAL)
+	 */
+	public static final int HTTP_STREAM_BACKLOG = 25;
+	public static final int OSC_PORT = 8000;
+	public static final int OSC_FADER_ENTRIES = 32;
+	
+	public static final int REPLICATION_PORT = 6460;
+	/**
+	 * ms between frame deltas (empty ones double as the active server's heartbeat)
+	 */
+	public static final int REPLICATION_INTERVAL = 5;
+	public static final int REPLICATION_SNAPSHOT_INTERVAL = 250;
+	/**
+	 * ms of silence from the active server before the first standby takes over;
+	 * each further rank waits REPLICATION_FAILOVER_STAGGER longer (enough to
+	 * hear the lower rank's first frame), so ranks 0 and 1 take over within
+	 * one 22.7 ms DMX frame
+	 */
+	public static final int REPLICATION_FAILOVER_TIMEOUT = 15;
+	public static final int REPLICATION_FAILOVER_STAGGER = 5;
+	public static final int REPLICATION_CHUNK_SIZE = 1024;
 
 	public static final byte HARD_RESET_COMMAND = (byte) 0x99;
 	public static final byte SOFT_RESET_COMMAND = (byte) 0x39;
@@ -39,4 +78,6 @@ public class Connection {
 	public static final byte KONAMI = (byte) 0x31;
 	public static final byte REV_KONAMI = (byte) 0x32;
 	public static final byte SEMI_KONAMI = (byte) 0x33;
+	public static final byte UNDO = (byte) 0x34;
+	public static final byte REDO = (byte) 0x35;
 }
@@ -13,5 +13,14 @@ public class Filepaths {
 	public static final String SET_DIR = "./files/sets/";
 	
 	public static final String DEFAULT_SET = "default.set";
+	
+	// the patch as it stands, saved by the persister whenever it changes
+	public static final String AUTOSAVE_SET = "autosave.set";
+	
+	public static final String PALETTE_FILE = "./files/palettes";
+	
+	public static final String LATENCY_FILE = "./files/latency.csv";
+	
+	public static final String EVENT_LOG_FILE = "./files/events.log";
 
 }
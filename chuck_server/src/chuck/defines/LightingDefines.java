@@ -7,6 +7,14 @@ public class LightingDefines {
 	public static final int MAX_CHASE_DELAY = 10000;
 	public static final int MIN_CHASE_DELAY = 30;
 	public static final int CHASE_STEP = 10;
+	/**
+	 * Beats each chase scene is held for when following a tapped tempo
+	 */
+	public static final double[] CHASE_BEAT_DIVISIONS = {4, 2, 1, 0.5, 0.25};
+	public static final int CHASE_DEFAULT_DIVISION = 2;
+
+	public static final int TAP_TIMEOUT = 2000;
+	public static final int TAP_HISTORY = 4;
 
 	public static final int HIGHLIGHT_VISUAL_DELAY = 30;
 	public static final int HIGHLIGHT_DIMMER_STEP = 5;
@@ -17,11 +25,53 @@ public class LightingDefines {
 	
 	public static final int PRESET_VISUAL_DELAY = 400;
 	public static final int RAINBOW_VISUAL_DELAY = 25;
+	public static final int RAINBOW_PHASE_SPREAD = 25;
+	public static final int RAINBOW_BEATS = 8;
 	public static final int DMX_VISUAL_DELAY = HIGHLIGHT_VISUAL_DELAY;
 
+	public static final int AUDIO_VISUAL_DELAY = 23;
+	public static final int AUDIO_DIMMER_FLOOR = 20;
+	public static final int AUDIO_RAW_SAMPLE_RATE = 44100;
+	public static final int AUDIO_RAW_CHANNELS = 1;
+
+	public static final int CUE_FRAME_DELAY = 23;
+	public static final int CUE_DEFAULT_FADE = 3000;
+	public static final int CUE_MAX_FADES = 16;
+
+	// undo history limits (a step is usually a few dozen ints)
+	public static final int HISTORY_MAX_STEPS = 4096;
+	public static final int HISTORY_MAX_INTS = 64 * 1024;
+
+	// decoded scenes kept by the scene store (sparse, usually a few hundred bytes)
+	public static final int SCENE_CACHE_SIZE = 64;
+
+	// scene list changes kept for streaming to standby servers (further behind, the whole list is sent)
+	public static final int SCENE_CHANGE_LOG = 256;
+
+	// ms the persister waits after a change for more before writing
+	public static final int PERSIST_DELAY = 250;
+
+	// most ms the persister waits before retrying a failed write (doubling from PERSIST_DELAY)
+	public static final int PERSIST_MAX_BACKOFF = 10000;
+
+	public static final int PIXEL_FRAME_DELAY = 23;
+	public static final int PIXEL_PARALLEL_THRESHOLD = 128;
+
+	// gyro magnitude -> dimmer curves, linearly interpolated between points
+	public static final int[] PARTY_GYRO_IN = {0, 300, 350, 400, 600, 670, 900, 950, 1000, 1100, 1400, 1700, 2000};
+	public static final int[] PARTY_GYRO_OUT = {0, 10, 30, 45, 90, 100, 120, 175, 200, 225, 240, 250, 255};
+	public static final int[] SCARY_GYRO_IN = {0, 300, 320, 340, 360, 370, 390, 410, 420, 450, 460, 465, 477};
+	public static final int[] SCARY_GYRO_OUT = {247, 230, 220, 200, 170, 130, 110, 100, 70, 50, 33, 20, 3};
+	public static final float GYRO_ATTACK = 0.7f;
+	public static final float GYRO_RELEASE = 0.3f;
+	public static final int GYRO_RESYNC_GAP = 500;
+
 	public static final String[] EXA_DEFAULT_CHANNELS = {"dimmer", "red", "green", "blue", "amber", "white", "uv", "strobe", "auto", "auto_speed", "color_wheel", "unknown"};
 	public static final String[] ZOOM_DEFAULT_CHANNELS = {"dimmer", "red", "green", "blue", "amber", "white", "strobe", "zoom", "preset", "unknown1", "unknown2"};
 	public static final String[] SNAKEYE_DEFAULT_CHANNELS = {"pan", "tilt", "infinite_tilt", "pan_tilt_speed", "red", "green", "blue", "white", "strobe", "dimmer", "led_program", "program_speed", "color_macros", "auto_program"};
 	
+	// channels a palette records: color, intensity, and position
+	public static final String[] PALETTE_CHANNELS = {"red", "green", "blue", "amber", "white", "uv", "dimmer", "pan", "tilt", "zoom"};
+	// colors of the palettes there are before any is recorded
 	public static final Color[] PRESETS = {Color.WHITE, Color.RED, Color.YELLOW, Color.GREEN, Color.CYAN, Color.BLUE, Color.MAGENTA, Color.BLACK};
 }
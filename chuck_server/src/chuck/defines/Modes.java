@@ -16,4 +16,10 @@ public class Modes {
 	public static final byte PRESET = 6;
 	public static final byte PARTY = 7;
 	public static final byte SCARY = 8;
+	public static final byte CUE = 9;
+
+	/**
+	 * Number of modes (one more than the largest)
+	 */
+	public static final int COUNT = 10;
 }
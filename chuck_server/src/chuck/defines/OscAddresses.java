@@ -0,0 +1,45 @@
+package chuck.defines;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * OSC addresses the server answers to, as ASCII bytes so incoming addresses can
+ * be matched in place. Levels are floats within [0:1] (as faders send them) or
+ * ints within [0:255]; buttons act on press (no argument, or a non-zero one)
+ * and ignore the release.
+ * <ul>
+ * <li>/chuck/scene/next, /chuck/scene/prev - step the scene list</li>
+ * <li>/chuck/scene/recall i - write scene i (-1 for the current scene)</li>
+ * <li>/chuck/chase/start [i], /chuck/chase/stop, /chuck/chase/tap - chase, with
+ * an optional ms per scene</li>
+ * <li>/chuck/chase/speed f - chase speed fader, 0 slowest to 1 fastest</li>
+ * <li>/chuck/select i... - select fixtures by index (no arguments to
+ * release)</li>
+ * <li>/chuck/color r g b - color of the selected fixtures</li>
+ * <li>/chuck/dimmer level - dimmer of the selected fixtures</li>
+ * <li>/chuck/channel/N level - dmx address N</li>
+ * </ul>
+ */
+public class OscAddresses {
+	public static final byte[] SCENE_NEXT = ascii("/chuck/scene/next");
+	public static final byte[] SCENE_PREV = ascii("/chuck/scene/prev");
+	public static final byte[] SCENE_RECALL = ascii("/chuck/scene/recall");
+	public static final byte[] CHASE_START = ascii("/chuck/chase/start");
+	public static final byte[] CHASE_STOP = ascii("/chuck/chase/stop");
+	public static final byte[] CHASE_TAP = ascii("/chuck/chase/tap");
+	public static final byte[] CHASE_SPEED = ascii("/chuck/chase/speed");
+	public static final byte[] SELECT = ascii("/chuck/select");
+	public static final byte[] COLOR = ascii("/chuck/color");
+	public static final byte[] DIMMER = ascii("/chuck/dimmer");
+	public static final byte[] CHANNEL = ascii("/chuck/channel/");
+
+	/**
+	 * Continuous controls: only the newest message per address matters, so
+	 * older ones waiting to be handled are conflated away. Matched as prefixes.
+	 */
+	public static final byte[][] FADERS = { CHASE_SPEED, COLOR, DIMMER, CHANNEL };
+
+	private static byte[] ascii(String address) {
+		return address.getBytes(StandardCharsets.US_ASCII);
+	}
+}
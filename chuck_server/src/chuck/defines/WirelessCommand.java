@@ -1,86 +1,209 @@
 package chuck.defines;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
-@SuppressWarnings("unused")
+/**
+ * Flyweight view of a packet from the wireless controller. Fields are read in
+ * place from a little-endian buffer, so decoding allocates nothing and one
+ * command object can be reused for every packet. <br />
+ * Packet layout: ID (8 bytes), packet type, mode, then for data packets the data
+ * type followed by the user action (byte 11), joystick x and y (int32 at 12 and
+ * 16), or gyro (int32 at 20); for poll replies the battery level (float at 10),
+ * error code, message length, and the message text starting at byte 20.
+ */
 public class WirelessCommand {
-	private byte[] receiveData;
-	private byte packetType;
-	private byte mode;
+	/**
+	 * Largest packet a reusable command can hold
+	 */
+	public static final int MAX_PACKET_SIZE = 1024;
+
+	static final int HEADER_SIZE = 10;
+	static final int PACKET_TYPE = 8;
+	static final int MODE = 9;
+	static final int DATA_TYPE = 10;
+	static final int USER_ACTION = 11;
+	static final int JOYSTICK_X = 12;
+	static final int JOYSTICK_Y = 16;
+	static final int GYRO = 20;
+	static final int BATTERY = 10;
+	static final int ERROR_CODE = 14;
+	static final int MESSAGE_LENGTH = 15;
+	static final int MESSAGE = 20;
+
+	private final ByteBuffer receiveData;
+	private long receiveTime;
 	private boolean parsed = false;
-	
+
+	/**
+	 * Whether the packet came in on the OSC port rather than from a wireless controller
+	 */
+	private boolean osc = false;
+
 	//general
 	private InetAddress sender_ip;
-	
-	//Poll Reply Packet Specific
-	private float batteryLevel;
-	private byte errorCode;
-	private byte messageLength;
-	private String message;
-	
-	//Data Packet Specific
-	private byte dataType;
-	private byte userActionData; //LRUD, Buttons
-	private int joystickData[];
-	private int gyroData;
-	
-	
+	private int sender_port;
+
 	public WirelessCommand(byte[] rawData, InetAddress sender_ip) {
-		receiveData = rawData.clone();
+		receiveData = ByteBuffer.wrap(rawData.clone()).order(ByteOrder.LITTLE_ENDIAN);
 		this.sender_ip = sender_ip;
 	}
 
+	/**
+	 * Constructor for a reusable command slot. Receive into receiveBuffer() (or
+	 * call load()) before parsing.
+	 */
+	public WirelessCommand() {
+		receiveData = ByteBuffer.allocateDirect(MAX_PACKET_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Get this command's buffer, cleared so a channel can receive straight into
+	 * it. Call received() once the packet is in.
+	 *
+	 * @return empty buffer of MAX_PACKET_SIZE bytes
+	 */
+	public ByteBuffer receiveBuffer() {
+		receiveData.clear();
+		return receiveData;
+	}
+
+	/**
+	 * Mark the packet received into receiveBuffer() as the current packet,
+	 * discarding the previous parse.
+	 *
+	 * @param sender_ip
+	 *            address of the sender
+	 * @param receiveTime
+	 *            System.nanoTime() at which the packet was received
+	 */
+	public void received(InetAddress sender_ip, long receiveTime) {
+		received(sender_ip, 0, receiveTime);
+	}
+
+	/**
+	 * Mark the packet received into receiveBuffer() as the current packet,
+	 * discarding the previous parse.
+	 *
+	 * @param sender_ip
+	 *            address of the sender
+	 * @param sender_port
+	 *            UDP port the sender sent from
+	 * @param receiveTime
+	 *            System.nanoTime() at which the packet was received
+	 */
+	public void received(InetAddress sender_ip, int sender_port, long receiveTime) {
+		receiveData.flip();
+		this.sender_ip = sender_ip;
+		this.sender_port = sender_port;
+		this.receiveTime = receiveTime;
+		parsed = false;
+		osc = false;
+	}
+
+	/**
+	 * Mark the packet received into receiveBuffer() as the current packet, an
+	 * OSC packet rather than one in the wireless controller protocol.
+	 *
+	 * @param sender_ip
+	 *            address of the sender
+	 * @param sender_port
+	 *            UDP port the sender sent from
+	 * @param receiveTime
+	 *            System.nanoTime() at which the packet was received
+	 */
+	public void receivedOsc(InetAddress sender_ip, int sender_port, long receiveTime) {
+		received(sender_ip, sender_port, receiveTime);
+		osc = true;
+	}
+
+	/**
+	 * Whether the packet is OSC (see receivedOsc). OSC packets never parse as
+	 * wireless commands.
+	 *
+	 * @return true for an OSC packet
+	 */
+	public boolean isOsc() {
+		return osc;
+	}
+
+	/**
+	 * Get the received packet for decoding by another reader. The buffer runs
+	 * from 0 to the packet length and must not be modified.
+	 *
+	 * @return packet buffer
+	 */
+	public ByteBuffer getPacket() {
+		return receiveData;
+	}
+
+	/**
+	 * Copy the start of the packet out (for keeping a sensor sample or fader
+	 * message).
+	 *
+	 * @param sample
+	 *            array receiving the packet bytes
+	 * @return number of bytes copied
+	 */
+	public int copyTo(byte[] sample) {
+		int length = Math.min(receiveData.limit(), sample.length);
+		for (int i = 0; i < length; i++)
+			sample[i] = receiveData.get(i);
+		return length;
+	}
+
+	/**
+	 * Refill this command by copying a packet out of another buffer (truncated to
+	 * MAX_PACKET_SIZE), discarding the previous packet.
+	 *
+	 * @param packet
+	 *            buffer positioned at the start of the packet
+	 * @param sender_ip
+	 *            address of the sender
+	 * @param receiveTime
+	 *            System.nanoTime() at which the packet was received
+	 */
+	public void load(ByteBuffer packet, InetAddress sender_ip, long receiveTime) {
+		ByteBuffer target = receiveBuffer();
+		int limit = packet.limit();
+		packet.limit(packet.position() + Math.min(packet.remaining(), target.remaining()));
+		target.put(packet);
+		packet.limit(limit);
+		received(sender_ip, receiveTime);
+	}
+
 	/*
-	 * populate variables based on byte data
-	 * 
+	 * check the header and that the packet is long enough for its type
+	 *
 	 * @returns true if the command is already parsed, or if the parsing completed successfully
 	 *          false if the command could not be parsed
 	 */
 	public boolean parse() {
 		if (parsed)
 			return true;
-		if (!verifyPacket())
+		if (osc || !verifyPacket())
 			return false;
-		
-		packetType = receiveData[8];
-		mode = receiveData[9];
-		
-		//System.out.println(Arrays.toString(receiveData));
-		
-		switch(packetType){
+
+		int length = receiveData.limit();
+		switch(getPacketType()){
 		case Connection.DATA_PACKET_ID:
-			dataType = receiveData[10];
-			switch(dataType)
+			if (length <= DATA_TYPE)
+				return parsed = false;
+			switch(receiveData.get(DATA_TYPE))
 			{
 			case Connection.USER_ACTION_DATA:
-				userActionData = receiveData[11];
-				break;
+				return parsed = length > USER_ACTION;
 			case Connection.JOYSTIC_DATA:
-				
-				joystickData = new int[2];
-				joystickData[0] = (receiveData[15] & 0xFF) << 24 | 
-									(receiveData[14] & 0xFF) << 16 |
-									(receiveData[13] & 0xFF) << 8 |
-									(receiveData[12] & 0xFF); //X
-				joystickData[1] = (receiveData[19] & 0xFF) << 24 | 
-									(receiveData[18] & 0xFF) << 16 |
-									(receiveData[17] & 0xFF) << 8 |
-									(receiveData[16] & 0xFF); //Y
-				break;
+				return parsed = length >= JOYSTICK_Y + 4;
 			case Connection.GYRO_DATA:
-
-				gyroData = (receiveData[23] & 0xFF) << 24 | 
-									(receiveData[22] & 0xFF) << 16 |
-									(receiveData[21] & 0xFF) << 8 |
-									(receiveData[20] & 0xFF); //Y
-
-				break;
+				return parsed = length >= GYRO + 4;
 			default:
 				return parsed = false; //not a valid input packet
 			}
-			break;
 		case Connection.POLL_REPLY_PACKET_ID:
-			break;
+			return parsed = length >= MESSAGE;
 		case Connection.POLL_PACKET_ID:
 			break;
 		default:
@@ -89,41 +212,86 @@ public class WirelessCommand {
 
 		return parsed = true;
 	}
-	
+
 	public byte getPacketType() {
-		return this.packetType;
+		return receiveData.get(PACKET_TYPE);
 	}
-	
+
+	public byte getMode() {
+		return receiveData.get(MODE);
+	}
+
 	public byte getDataType(){
-		return this.dataType;
+		if (getPacketType() != Connection.DATA_PACKET_ID)
+			return 0;
+		return receiveData.get(DATA_TYPE);
 	}
-	
+
+	//returns 0 if not a user action packet
 	public byte getUserActionData(){
-		return this.userActionData;
+		if (getDataType() != Connection.USER_ACTION_DATA)
+			return 0;
+		return receiveData.get(USER_ACTION);
+	}
+
+	//returns 0 if not a joystick packet
+	public int getJoystickX(){
+		if (getDataType() != Connection.JOYSTIC_DATA)
+			return 0;
+		return receiveData.getInt(JOYSTICK_X);
 	}
-	
-	//returns null on error
-	public int[] getJoystickData(){
-		return joystickData;
+
+	//returns 0 if not a joystick packet
+	public int getJoystickY(){
+		if (getDataType() != Connection.JOYSTIC_DATA)
+			return 0;
+		return receiveData.getInt(JOYSTICK_Y);
 	}
-	
-	//returns null on error
+
+	//returns 0 if not a gyro packet
 	public int getGyroData(){
-		return gyroData;
+		if (getDataType() != Connection.GYRO_DATA)
+			return 0;
+		return receiveData.getInt(GYRO);
+	}
+
+	//poll reply only
+	public float getBatteryLevel() {
+		return receiveData.getFloat(BATTERY);
+	}
+
+	//poll reply only
+	public byte getErrorCode() {
+		return receiveData.get(ERROR_CODE);
+	}
+
+	/**
+	 * Decode the message of a poll reply. Allocates; not for the hot path.
+	 *
+	 * @return message text (truncated to what was received)
+	 */
+	public String getMessage() {
+		int length = Math.min(receiveData.get(MESSAGE_LENGTH) & 0xFF, Math.max(0, receiveData.limit() - MESSAGE));
+		byte[] text = new byte[length];
+		for (int i = 0; i < length; i++)
+			text[i] = receiveData.get(MESSAGE + i);
+		return new String(text, StandardCharsets.US_ASCII);
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("command type:");
-		sb.append(String.format("%02x", packetType));
-		
+		sb.append(String.format("%02x", getPacketType()));
+
 		return sb.toString();
 	}
-	
+
 	private boolean verifyPacket() {
+		if (receiveData.limit() < HEADER_SIZE)
+			return false;
 		for (int i = 0; i < Connection.ID.length; i++) {
-		if(receiveData[i] != Connection.ID[i]){
-			return false; 
+		if(receiveData.get(i) != Connection.ID[i]){
+			return false;
 			}
 		}
 
@@ -133,4 +301,22 @@ public class WirelessCommand {
 	public InetAddress getSender_ip() {
 		return sender_ip;
 	}
+
+	/**
+	 * UDP port the packet was sent from (where replies go).
+	 *
+	 * @return sender port, or 0 if unknown
+	 */
+	public int getSender_port() {
+		return sender_port;
+	}
+
+	/**
+	 * Time the packet was taken off the socket.
+	 *
+	 * @return System.nanoTime() at receipt, or 0 if not received by the server
+	 */
+	public long getReceiveTime() {
+		return receiveTime;
+	}
 }
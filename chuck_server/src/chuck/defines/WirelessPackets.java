@@ -0,0 +1,140 @@
+package chuck.defines;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds packets in the wireless controller protocol, the counterpart of
+ * WirelessCommand's parsing. Each method fills the given buffer (at least
+ * WirelessCommand.MAX_PACKET_SIZE bytes for poll replies, 24 otherwise) and
+ * flips it ready to send, so one buffer can be reused for every packet.
+ */
+public class WirelessPackets {
+
+	/**
+	 * Bytes in a data packet (header through the gyro field)
+	 */
+	public static final int DATA_PACKET_SIZE = WirelessCommand.GYRO + 4;
+
+	private WirelessPackets() {
+	}
+
+	/**
+	 * Button press.
+	 *
+	 * @param packet
+	 *            buffer to fill
+	 * @param mode
+	 *            mode the controller believes the server is in
+	 * @param action
+	 *            Connection.UP, B1, KONAMI, ...
+	 * @return packet, flipped for sending
+	 */
+	public static ByteBuffer userAction(ByteBuffer packet, byte mode, byte action) {
+		data(packet, mode, Connection.USER_ACTION_DATA);
+		packet.put(WirelessCommand.USER_ACTION, action);
+		return packet;
+	}
+
+	/**
+	 * Joystick position.
+	 *
+	 * @param packet
+	 *            buffer to fill
+	 * @param mode
+	 *            mode the controller believes the server is in
+	 * @param x
+	 *            joystick x
+	 * @param y
+	 *            joystick y
+	 * @return packet, flipped for sending
+	 */
+	public static ByteBuffer joystick(ByteBuffer packet, byte mode, int x, int y) {
+		data(packet, mode, Connection.JOYSTIC_DATA);
+		packet.putInt(WirelessCommand.JOYSTICK_X, x);
+		packet.putInt(WirelessCommand.JOYSTICK_Y, y);
+		return packet;
+	}
+
+	/**
+	 * Gyro reading.
+	 *
+	 * @param packet
+	 *            buffer to fill
+	 * @param mode
+	 *            mode the controller believes the server is in
+	 * @param gyro
+	 *            gyro value
+	 * @return packet, flipped for sending
+	 */
+	public static ByteBuffer gyro(ByteBuffer packet, byte mode, int gyro) {
+		data(packet, mode, Connection.GYRO_DATA);
+		packet.putInt(WirelessCommand.GYRO, gyro);
+		return packet;
+	}
+
+	/**
+	 * Poll (heartbeat).
+	 *
+	 * @param packet
+	 *            buffer to fill
+	 * @param mode
+	 *            state of the sender, or Connection.STATS_QUERY_MODE
+	 * @return packet, flipped for sending
+	 */
+	public static ByteBuffer poll(ByteBuffer packet, byte mode) {
+		header(packet, Connection.POLL_PACKET_ID, mode);
+		packet.limit(WirelessCommand.HEADER_SIZE);
+		return packet;
+	}
+
+	/**
+	 * Reply to a poll.
+	 *
+	 * @param packet
+	 *            buffer to fill
+	 * @param mode
+	 *            mode of the sender
+	 * @param battery
+	 *            battery level
+	 * @param errorCode
+	 *            error code, 0 for none
+	 * @param message
+	 *            text (ASCII, truncated to 255 characters and the buffer size)
+	 * @return packet, flipped for sending
+	 */
+	public static ByteBuffer pollReply(ByteBuffer packet, byte mode, float battery, byte errorCode, String message) {
+		header(packet, Connection.POLL_REPLY_PACKET_ID, mode);
+		byte[] text = message.getBytes(StandardCharsets.US_ASCII);
+		int length = Math.min(Math.min(text.length, 255), packet.capacity() - WirelessCommand.MESSAGE);
+		packet.putFloat(WirelessCommand.BATTERY, battery);
+		packet.put(WirelessCommand.ERROR_CODE, errorCode);
+		packet.put(WirelessCommand.MESSAGE_LENGTH, (byte) length);
+		for (int i = 0; i < length; i++)
+			packet.put(WirelessCommand.MESSAGE + i, text[i]);
+		packet.limit(WirelessCommand.MESSAGE + length);
+		return packet;
+	}
+
+	private static void data(ByteBuffer packet, byte mode, byte dataType) {
+		header(packet, Connection.DATA_PACKET_ID, mode);
+		packet.put(WirelessCommand.DATA_TYPE, dataType);
+		packet.limit(DATA_PACKET_SIZE);
+	}
+
+	/**
+	 * Clear the packet and write the ID, packet type, and mode. Fields are put at
+	 * absolute offsets, so the position stays at 0.
+	 */
+	private static void header(ByteBuffer packet, byte type, byte mode) {
+		packet.order(ByteOrder.LITTLE_ENDIAN);
+		packet.clear();
+		for (int i = 0; i < packet.capacity() && i < DATA_PACKET_SIZE; i++)
+			packet.put(i, (byte) 0);
+		for (int i = 0; i < Connection.ID.length; i++)
+			packet.put(i, Connection.ID[i]);
+		packet.put(WirelessCommand.PACKET_TYPE, type);
+		packet.put(WirelessCommand.MODE, mode);
+	}
+}
@@ -0,0 +1,195 @@
+package chuck.dmx;
+
+import java.io.IOException;
+
+/**
+ * Working copy of the 512 dmx channels that effects render into before handing
+ * them to the driver in a single commit. <br />
+ * Only channels that were set since the last commit, and differ from the
+ * driver's values at commit time, are written, grouped into runs of up to four
+ * adjacent addresses (the most the dmx module accepts in one register write).
+ * The comparison is made against the driver when committing rather than the
+ * values loaded, so a channel another writer changed meanwhile is still set
+ * back. Channels that were not set are never rewritten, so a frame can be
+ * committed alongside other writers without clobbering their values. <br />
+ * Not thread safe; each rendering thread should own its frame.
+ */
+public class DMXFrame {
+
+	/**
+	 * Maximum number of values the driver accepts in one write.
+	 */
+	private static final int MAX_RUN = 4;
+
+	private final DMXDriver dmx;
+
+	/**
+	 * Frame values; vals[x] = dmx value at address x (vals[0] unused)
+	 */
+	private final int[] vals = new int[513];
+
+	/**
+	 * Flags for addresses changed since the last commit
+	 */
+	private final boolean[] dirty = new boolean[513];
+
+	/**
+	 * Preallocated value arrays for each possible run length, so committing does
+	 * not allocate varargs arrays.
+	 */
+	private final int[][] runs = { new int[1], new int[2], new int[3], new int[4] };
+
+	private int dirtyCount = 0;
+
+	/**
+	 * Constructor. Creates a frame for the driver, seeded with the driver's current
+	 * values.
+	 *
+	 * @param dmx
+	 *            driver that commits are written to
+	 */
+	public DMXFrame(DMXDriver dmx) {
+		if (dmx == null)
+			throw new IllegalArgumentException("no null dmxdrivers");
+		this.dmx = dmx;
+		load(dmx.getDmx());
+	}
+
+	/**
+	 * Get the value currently held in the frame at the specified address.
+	 *
+	 * @param address
+	 *            dmx address to fetch, must be within [1:512]
+	 * @return frame value at address
+	 */
+	public int get(int address) {
+		if (address <= 0 || address > 512)
+			throw new IllegalArgumentException("DMX address must be within [1:512]");
+		return vals[address];
+	}
+
+	/**
+	 * Set the value at an address. The driver is not written until commit() is
+	 * called, and then only if the driver holds a different value.
+	 *
+	 * @param address
+	 *            dmx address to change, must be within [1:512]
+	 * @param value
+	 *            new value, must be within [0:255]
+	 */
+	public void set(int address, int value) {
+		if (address <= 0 || address > 512)
+			throw new IllegalArgumentException("DMX address must be within [1:512]");
+		if (value < 0 || value > 255)
+			throw new IllegalArgumentException("DMX values must be within [0:255]");
+
+		vals[address] = value;
+		if (!dirty[address]) {
+			dirty[address] = true;
+			dirtyCount++;
+		}
+	}
+
+	/**
+	 * Set every address (e.g., to a whole scene). Only the addresses that differ
+	 * from the driver are written on commit.
+	 *
+	 * @param values
+	 *            513 element dmx array (values[0] ignored)
+	 */
+	public void setAll(int[] values) {
+		if (values.length != 513)
+			throw new IllegalArgumentException("values array must be 513 elements long");
+
+		for (int address = 1; address <= 512; address++)
+			set(address, values[address]);
+	}
+
+	/**
+	 * Replace the frame contents without marking anything for writing (e.g., after
+	 * another writer changed the driver directly).
+	 *
+	 * @param values
+	 *            513 element dmx array (values[0] ignored)
+	 */
+	public void load(int[] values) {
+		if (values.length != 513)
+			throw new IllegalArgumentException("values array must be 513 elements long");
+
+		System.arraycopy(values, 1, vals, 1, 512);
+		for (int i = 1; i <= 512; i++)
+			dirty[i] = false;
+		dirtyCount = 0;
+	}
+
+	/**
+	 * Whether or not any address has been set since the last commit.
+	 *
+	 * @return true if the next commit may write the driver
+	 */
+	public boolean isDirty() {
+		return dirtyCount != 0;
+	}
+
+	/**
+	 * Whether or not an address has been set since the last commit.
+	 *
+	 * @param address
+	 *            dmx address to check, must be within [1:512]
+	 * @return true if the next commit may write the address
+	 */
+	public boolean isDirty(int address) {
+		if (address <= 0 || address > 512)
+			throw new IllegalArgumentException("DMX address must be within [1:512]");
+		return dirty[address];
+	}
+
+	/**
+	 * Write the addresses set since the last commit that differ from the
+	 * driver, packing adjacent addresses into four-value writes.
+	 *
+	 * @return number of driver writes performed
+	 * @throws IOException
+	 *             if unable to write the driver
+	 */
+	public int commit() throws IOException {
+		if (dirtyCount == 0)
+			return 0;
+
+		// compare with the driver now, another writer may have changed it since load
+		for (int address = 1; address <= 512; address++) {
+			if (dirty[address] && dmx.getDMX(address) == vals[address]) {
+				dirty[address] = false;
+				dirtyCount--;
+			}
+		}
+		if (dirtyCount == 0)
+			return 0;
+
+		int writes = 0;
+		int address = 1;
+		while (address <= 512) {
+			if (!dirty[address]) {
+				address++;
+				continue;
+			}
+
+			// extend the run over adjacent dirty addresses (at most four)
+			int length = 1;
+			while (length < MAX_RUN && address + length <= 512 && dirty[address + length])
+				length++;
+
+			int[] run = runs[length - 1];
+			for (int i = 0; i < length; i++) {
+				run[i] = vals[address + i];
+				dirty[address + i] = false;
+			}
+			dmx.setDMX(address, run);
+			writes++;
+			address += length;
+		}
+
+		dirtyCount = 0;
+		return writes;
+	}
+}
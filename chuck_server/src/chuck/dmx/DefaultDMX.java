@@ -85,7 +85,7 @@ public class DefaultDMX implements DMXDriver {
 	 * @see chuck.drivers.DMXDriver#setDMX(int, int[])
 	 */
 	@Override
-	public void setDMX(int address, int... values) throws IOException {
+	public synchronized void setDMX(int address, int... values) throws IOException {
 		if (address <= 0 || address > 512)
 			throw new IllegalArgumentException("DMX address must be within [1:512]");
 		if (values.length == 0)
@@ -0,0 +1,70 @@
+package chuck.dmx;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Driver keeping the universe in memory only, for running servers without the
+ * DMX hardware (several instances on one machine, benchmarks, testers).
+ * Validates its arguments like DefaultDMX and counts the writes.
+ */
+public class MemoryDMX implements DMXDriver {
+
+	private final int[] dmxShadow = new int[513];
+	private volatile long writes = 0;
+
+	@Override
+	public int getDMX(int address) {
+		if (address <= 0 || address > 512)
+			throw new IllegalArgumentException("DMX address must be within [1:512]");
+		return dmxShadow[address];
+	}
+
+	@Override
+	public synchronized int[] getDmx() {
+		return dmxShadow.clone();
+	}
+
+	@Override
+	public synchronized void setDMX(int address, int... values) throws IOException {
+		if (address <= 0 || address > 512)
+			throw new IllegalArgumentException("DMX address must be within [1:512]");
+		if (values.length == 0)
+			throw new IllegalArgumentException("Must supply at least one value.");
+		if (values.length > 4)
+			throw new IllegalArgumentException("Must supply at most four values.");
+		if (Arrays.stream(values).anyMatch(val -> val < 0 || val > 255))
+			throw new IllegalArgumentException("DMX values must be within [0:255]");
+
+		for (int i = 0; i < values.length && address + i <= 512; i++)
+			dmxShadow[address + i] = values[i];
+		writes++;
+	}
+
+	@Override
+	public void setDMX(int[] values) throws IOException {
+		if (values.length != 513) {
+			throw new IllegalArgumentException("values array must be 513 elements long");
+		}
+
+		for (int i = 1; i < 512; i = i + 4) {
+			setDMX(i, values[i], values[i + 1], values[i + 2], values[i + 3]);
+		}
+	}
+
+	@Override
+	public void clearDMX() throws IOException {
+		for (int i = 1; i < 512; i = i + 4) {
+			setDMX(i, 0, 0, 0, 0);
+		}
+	}
+
+	/**
+	 * Number of setDMX(int, int...) calls so far.
+	 *
+	 * @return write count
+	 */
+	public long getWrites() {
+		return writes;
+	}
+}
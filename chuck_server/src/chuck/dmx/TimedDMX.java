@@ -0,0 +1,67 @@
+package chuck.dmx;
+
+import java.io.IOException;
+
+import chuck.threads.LatencyTracker;
+
+/**
+ * Driver wrapper that reports each write to a latency tracker, so the time from
+ * a controller packet to the DMX write it caused can be measured. Reads and
+ * writes are passed straight through to the wrapped driver.
+ */
+public class TimedDMX implements DMXDriver {
+
+	private final DMXDriver driver;
+	private final LatencyTracker tracker;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param driver
+	 *            driver doing the actual writes
+	 * @param tracker
+	 *            tracker receiving the write times
+	 */
+	public TimedDMX(DMXDriver driver, LatencyTracker tracker) {
+		this.driver = driver;
+		this.tracker = tracker;
+	}
+
+	@Override
+	public int getDMX(int address) {
+		return driver.getDMX(address);
+	}
+
+	@Override
+	public int[] getDmx() {
+		return driver.getDmx();
+	}
+
+	@Override
+	public void setDMX(int address, int... values) throws IOException {
+		LatencyTracker.Context context = tracker.context();
+		context.writeStarted();
+		driver.setDMX(address, values);
+		context.writeFinished();
+	}
+
+	@Override
+	public void setDMX(int[] values) throws IOException {
+		LatencyTracker.Context context = tracker.context();
+		context.writeStarted();
+		driver.setDMX(values);
+		context.writeFinished();
+	}
+
+	@Override
+	public void clearDMX() throws IOException {
+		LatencyTracker.Context context = tracker.context();
+		context.writeStarted();
+		driver.clearDMX();
+		context.writeFinished();
+	}
+
+	public LatencyTracker getTracker() {
+		return tracker;
+	}
+}
@@ -0,0 +1,291 @@
+package chuck.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import chuck.dmx.DMXDriver;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.SceneManager;
+import chuck.threads.DirectSession;
+import chuck.threads.EventLoop;
+
+/**
+ * HTTP control API, so the rig can be run from a browser or script alongside
+ * the wireless controllers. <br />
+ * The web side is a DirectSession: it selects fixtures through the same claims
+ * the controller sessions use, and its writes leave fixtures held by a
+ * controller alone. Requests are handled one at a time on a single thread,
+ * and each hands its work on the session over to the server's event loop (where
+ * the controllers' writes happen), replying once the loop has run it.
+ * <p>
+ * Endpoints (parameters in the query string, responses in plain text):
+ * <ul>
+ * <li>GET /api/status - scene, selection, chase, and stream counters</li>
+ * <li>GET /api/dmx - the 512 channel values, comma separated</li>
+ * <li>POST /api/scene/recall?index=N - write a saved scene</li>
+ * <li>POST /api/select?fixtures=0,2,5 - claim fixtures (empty to release)</li>
+ * <li>POST /api/channel?address=A&amp;value=V - write one address</li>
+ * <li>POST /api/selected/channel?channel=C&amp;value=V - write a channel of every
+ * selected fixture</li>
+ * <li>POST /api/chase/start?delay=MS, /api/chase/stop, /api/chase/tap</li>
+ * <li>GET /stream - server-sent events of the changed DMX blocks (see
+ * DMXStream)</li>
+ * </ul>
+ */
+public class ControlServer {
+
+	private DMXDriver dmx;
+	private DirectSession session;
+	private EventLoop loop;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private DMXStream stream;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dmx
+	 *            dmx driver
+	 * @param profiles
+	 *            fixture set (and its claims)
+	 * @param sceneManager
+	 *            saved scenes
+	 * @param loop
+	 *            event loop the web session runs on
+	 */
+	public ControlServer(DMXDriver dmx, FixtureManager profiles, SceneManager sceneManager, EventLoop loop) {
+		this.dmx = dmx;
+		this.loop = loop;
+		session = new DirectSession("web control", dmx, profiles, sceneManager, loop);
+	}
+
+	/**
+	 * Bind the port and start serving requests and the DMX stream.
+	 *
+	 * @param port
+	 *            tcp port to listen on
+	 * @throws IOException
+	 *             if unable to bind the port
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		executor = Executors.newSingleThreadExecutor();
+		server.setExecutor(executor);
+
+		server.createContext("/", this::index);
+		server.createContext("/stream", exchange -> {
+			if (!"GET".equals(exchange.getRequestMethod()))
+				reply(exchange, 405, "GET only");
+			else
+				stream.addClient(exchange);
+		});
+		server.createContext("/api/status",
+				get(exchange -> reply(exchange, 200, loop.call(session::getStatus) + '\n' + stream.getInfo())));
+		server.createContext("/api/dmx", get(this::frame));
+		server.createContext("/api/scene/recall", post(this::recall));
+		server.createContext("/api/select", post(this::select));
+		server.createContext("/api/channel", post(this::channel));
+		server.createContext("/api/selected/channel", post(this::selectedChannel));
+		server.createContext("/api/chase/start", post(this::startChase));
+		server.createContext("/api/chase/stop", post(exchange -> {
+			loop.call(() -> {
+				session.stopChase();
+				return null;
+			});
+			reply(exchange, 200, "chase stopped");
+		}));
+		server.createContext("/api/chase/tap",
+				post(exchange -> reply(exchange, 200, String.format("%.1f bpm", loop.call(session::tap)))));
+
+		stream = new DMXStream(dmx);
+		stream.start();
+		server.start();
+	}
+
+	/**
+	 * Stop serving, end the streams and the chase, and release the web side's
+	 * claims. Call on the event loop (or once it has stopped).
+	 */
+	public void stop() {
+		if (server == null)
+			return;
+		server.stop(0);
+		executor.shutdown();
+		stream.redrum();
+		try {
+			stream.join();
+		} catch (InterruptedException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		session.close();
+		server = null;
+	}
+
+	private void index(HttpExchange exchange) throws IOException {
+		if (!"/".equals(exchange.getRequestURI().getPath())) {
+			reply(exchange, 404, "not found");
+			return;
+		}
+		String page = "<!DOCTYPE html><html><head><title>Chuck Light</title></head><body>"
+				+ "<pre id=\"dmx\"></pre><script>\n" + "var dmx = new Array(513).fill(0);\n"
+				+ "new EventSource('/stream').onmessage = function(e) {\n"
+				+ "  e.data.split(';').forEach(function(b) {\n" + "    var p = b.split(':'), first = p[0] * "
+				+ DMXStream.BLOCK_SIZE + " + 1;\n"
+				+ "    for (var i = 0; i < p[1].length / 2; i++) dmx[first + i] = parseInt(p[1].substr(2 * i, 2), 16);\n"
+				+ "  });\n" + "  var s = '';\n"
+				+ "  for (var a = 1; a <= 512; a++) s += ('  ' + dmx[a]).slice(-3) + (a % 16 ? ' ' : '\\n');\n"
+				+ "  document.getElementById('dmx').textContent = s;\n" + "};\n</script></body></html>";
+		exchange.getResponseHeaders().set("Content-Type", "text/html");
+		reply(exchange, 200, page);
+	}
+
+	private void frame(HttpExchange exchange) throws IOException {
+		int[] vals = dmx.getDmx();
+		StringBuilder sb = new StringBuilder();
+		for (int address = 1; address < vals.length; address++) {
+			if (address > 1)
+				sb.append(',');
+			sb.append(vals[address]);
+		}
+		reply(exchange, 200, sb.toString());
+	}
+
+	/**
+	 * Write a saved scene, leaving fixtures held by controllers as they are.
+	 * Index -1 writes the current scene.
+	 */
+	private void recall(HttpExchange exchange) throws IOException {
+		int index = intParam(exchange, "index");
+		loop.call(() -> {
+			session.recallScene(index);
+			return null;
+		});
+		reply(exchange, 200, "scene " + index);
+	}
+
+	/**
+	 * Replace the web selection. Fixtures held by a controller are skipped.
+	 */
+	private void select(HttpExchange exchange) throws IOException {
+		String list = params(exchange).getOrDefault("fixtures", "");
+		String[] items = list.isEmpty() ? new String[0] : list.split(",");
+		int[] indices = new int[items.length];
+		for (int i = 0; i < items.length; i++)
+			indices[i] = Integer.parseInt(items[i].trim());
+		String result = loop.call(() -> {
+			ArrayList<Integer> refused = session.select(indices);
+			return "selected " + session.getSelected() + (refused.isEmpty() ? "" : ", held elsewhere " + refused);
+		});
+		reply(exchange, 200, result);
+	}
+
+	private void channel(HttpExchange exchange) throws IOException {
+		int address = intParam(exchange, "address");
+		int value = intParam(exchange, "value");
+		Object owner = loop.call(() -> session.setChannel(address, value));
+		if (owner != null)
+			reply(exchange, 409, "address " + address + " is held by " + owner);
+		else
+			reply(exchange, 200, address + "=" + value);
+	}
+
+	private void selectedChannel(HttpExchange exchange) throws IOException {
+		int channel = intParam(exchange, "channel");
+		int value = intParam(exchange, "value");
+		if (value < 0 || value > 255)
+			throw new IllegalArgumentException("value within [0:255]");
+		int written = loop.call(() -> session.setSelectedChannel(channel, value));
+		reply(exchange, 200, "channel " + channel + "=" + value + " on " + written + " fixtures");
+	}
+
+	private void startChase(HttpExchange exchange) throws IOException {
+		String delayParam = params(exchange).get("delay");
+		int requested = delayParam == null ? 100 : Integer.parseInt(delayParam);
+		int delay = loop.call(() -> session.startChase(requested));
+		reply(exchange, 200, "chase every " + delay + " ms");
+	}
+
+	/**
+	 * Wrap a handler to accept only one method, and to answer bad parameters
+	 * with 400 and driver failures with 500.
+	 */
+	private static HttpHandler only(String method, HttpHandler handler) {
+		return exchange -> {
+			try {
+				if (!method.equals(exchange.getRequestMethod()))
+					reply(exchange, 405, method + " only");
+				else
+					handler.handle(exchange);
+			} catch (IllegalArgumentException ex) {
+				reply(exchange, 400, String.valueOf(ex.getMessage()));
+			} catch (IOException ex) {
+				reply(exchange, 500, String.valueOf(ex.getMessage()));
+			}
+		};
+	}
+
+	private static HttpHandler get(HttpHandler handler) {
+		return only("GET", handler);
+	}
+
+	private static HttpHandler post(HttpHandler handler) {
+		return only("POST", handler);
+	}
+
+	private static HashMap<String, String> params(HttpExchange exchange) {
+		HashMap<String, String> params = new HashMap<String, String>();
+		URI uri = exchange.getRequestURI();
+		String query = uri.getQuery();
+		if (query == null)
+			return params;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(pair.substring(0, eq), pair.substring(eq + 1));
+			else if (!pair.isEmpty())
+				params.put(pair, "");
+		}
+		return params;
+	}
+
+	private static int intParam(HttpExchange exchange, String name) {
+		String value = params(exchange).get(name);
+		if (value == null)
+			throw new IllegalArgumentException("missing " + name);
+		return Integer.parseInt(value);
+	}
+
+	private static void reply(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		if (!exchange.getResponseHeaders().containsKey("Content-Type"))
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Describe the web side: selection and stream counters. Call on the event
+	 * loop.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		return "http selected " + session.getSelected().size() + ", "
+				+ (stream == null ? "not streaming" : stream.getInfo());
+	}
+}
@@ -0,0 +1,264 @@
+package chuck.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import chuck.defines.Connection;
+import chuck.dmx.DMXDriver;
+
+/**
+ * Pushes the DMX universe to browsers as server-sent events. <br />
+ * Each frame the universe is compared with the last one sent, block by block,
+ * and only the changed blocks go out. The event is encoded once and the same
+ * bytes are queued to every client, so monitoring costs one diff per frame
+ * however many clients there are. A client gets the whole universe when it
+ * joins, then deltas.
+ * <p>
+ * Only the stream thread encodes. New clients are handed to it and get their
+ * full frame from it, and each client has its own writer thread, so a slow
+ * browser never holds up the others: a client more than HTTP_STREAM_BACKLOG
+ * events behind is dropped (its EventSource reconnects and starts over from a
+ * full frame).
+ * <p>
+ * Events are "data: &lt;block&gt;:&lt;hex&gt;[;&lt;block&gt;:&lt;hex&gt;...]",
+ * where block n covers addresses 32n+1 to 32n+32 and hex is two digits per
+ * channel.
+ */
+public class DMXStream extends Thread {
+
+	/**
+	 * Channels per block
+	 */
+	public static final int BLOCK_SIZE = 32;
+	private static final int BLOCKS = 512 / BLOCK_SIZE;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * One browser: the events queued for it and the thread writing them out.
+	 */
+	private class Client extends Thread {
+		private final OutputStream out;
+		private final ArrayBlockingQueue<byte[]> pending = new ArrayBlockingQueue<byte[]>(
+				Connection.HTTP_STREAM_BACKLOG);
+		private volatile boolean dropped = false;
+
+		private Client(OutputStream out) {
+			this.out = out;
+			setDaemon(true);
+		}
+
+		/**
+		 * Queue an event without waiting.
+		 *
+		 * @return false if the client is too far behind to take it
+		 */
+		private boolean send(byte[] event) {
+			return pending.offer(event);
+		}
+
+		/**
+		 * Stop writing and close the connection once any write in progress
+		 * returns.
+		 */
+		private void drop() {
+			dropped = true;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!dropped) {
+					byte[] event = pending.take();
+					out.write(event);
+					out.flush();
+				}
+			} catch (IOException | InterruptedException ex) {
+				// client went away, or was dropped
+			} finally {
+				clients.remove(this);
+				close(out);
+			}
+		}
+	}
+
+	private DMXDriver dmx;
+	private CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+	private ConcurrentLinkedQueue<Client> joining = new ConcurrentLinkedQueue<Client>();
+	private volatile boolean running = false;
+
+	private int[] sent = new int[513];
+	private byte[] event = new byte[64 + BLOCKS * (4 + 2 * BLOCK_SIZE)];
+	private long sequence = 0;
+	private final int fullFrameLength;
+
+	private volatile long frames = 0;
+	private volatile long bytesSent = 0;
+	private volatile long fullFrameBytes = 0;
+	private volatile long droppedClients = 0;
+
+	public DMXStream(DMXDriver dmx) {
+		this.dmx = dmx;
+		fullFrameLength = encode(sent, null, -1);
+		setDaemon(true);
+	}
+
+	/**
+	 * Start streaming to a client. The stream thread sends it the whole
+	 * universe on its next frame; the exchange stays open until the client goes
+	 * away, falls behind, or the stream stops.
+	 *
+	 * @param exchange
+	 *            GET request for the stream
+	 * @throws IOException
+	 *             if the client is already gone
+	 */
+	public void addClient(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		joining.add(new Client(exchange.getResponseBody()));
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Every HTTP_STREAM_INTERVAL, queue the blocks that changed since the last
+	 * frame to every client, then the whole frame to each client that joined
+	 * since. Stops when redrum is called.
+	 *
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		running = true;
+		Client joiner;
+		while (running) {
+			int[] frame = dmx.getDmx();
+			if (!clients.isEmpty()) {
+				int length = encode(frame, sent, sequence);
+				if (length > 0) {
+					sequence++;
+					frames++;
+					byte[] delta = Arrays.copyOf(event, length);
+					for (Client client : clients)
+						queue(client, delta, length);
+				}
+			}
+
+			while ((joiner = joining.poll()) != null) {
+				int length = encode(frame, null, -1);
+				clients.add(joiner);
+				joiner.start();
+				queue(joiner, Arrays.copyOf(event, length), length);
+			}
+			System.arraycopy(frame, 0, sent, 0, frame.length);
+
+			LockSupport.parkNanos(Connection.HTTP_STREAM_INTERVAL * 1000000L);
+		}
+
+		while ((joiner = joining.poll()) != null)
+			close(joiner.out);
+		for (Client client : clients)
+			client.drop();
+		clients.clear();
+	}
+
+	/**
+	 * Queue an event to a client, dropping the client if it is too far behind.
+	 */
+	private void queue(Client client, byte[] event, int length) {
+		if (client.send(event)) {
+			bytesSent += length;
+			fullFrameBytes += fullFrameLength;
+		} else {
+			clients.remove(client);
+			client.drop();
+			droppedClients++;
+		}
+	}
+
+	/**
+	 * Encode the blocks of frame that differ from previous (every block if
+	 * previous is null) into the event buffer. Only called on the stream thread
+	 * (and from the constructor).
+	 *
+	 * @return event length, or 0 if nothing changed
+	 */
+	private int encode(int[] frame, int[] previous, long id) {
+		int length = 0;
+		if (id >= 0)
+			length = put("id: " + id + "\n", length);
+		length = put("data: ", length);
+		int header = length;
+
+		for (int block = 0; block < BLOCKS; block++) {
+			int first = 1 + block * BLOCK_SIZE;
+			if (previous != null && !changed(frame, previous, first))
+				continue;
+			if (length > header)
+				event[length++] = ';';
+			length = put(Integer.toString(block), length);
+			event[length++] = ':';
+			for (int address = first; address < first + BLOCK_SIZE; address++) {
+				event[length++] = HEX[(frame[address] >> 4) & 0xf];
+				event[length++] = HEX[frame[address] & 0xf];
+			}
+		}
+		if (length == header)
+			return 0;
+		event[length++] = '\n';
+		event[length++] = '\n';
+		return length;
+	}
+
+	private static boolean changed(int[] frame, int[] previous, int first) {
+		for (int address = first; address < first + BLOCK_SIZE; address++) {
+			if (frame[address] != previous[address])
+				return true;
+		}
+		return false;
+	}
+
+	private int put(String text, int offset) {
+		for (int i = 0; i < text.length(); i++)
+			event[offset + i] = (byte) text.charAt(i);
+		return offset + text.length();
+	}
+
+	private static void close(OutputStream out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	public void redrum() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Describe the stream: clients, frames sent, the bytes sent compared to
+	 * sending the whole universe every frame, and clients dropped for falling
+	 * behind.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		return String.format("stream clients %d, frames %d, sent %d bytes (%d as full frames), %d slow clients dropped",
+				clients.size(), frames, bytesSent, fullFrameBytes, droppedClients);
+	}
+}
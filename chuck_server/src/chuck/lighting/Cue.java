@@ -0,0 +1,151 @@
+package chuck.lighting;
+
+import chuck.defines.LightingDefines;
+
+/**
+ * One step in a cue stack: a set of channel levels plus the timing used to fade
+ * to them.
+ *
+ * Channels without a level in this cue are left at UNSET. A tracking cue leaves
+ * those channels wherever the earlier cues put them; a non-tracking cue fades
+ * them out.
+ */
+public class Cue {
+
+	/**
+	 * Level of a channel that this cue does not hold.
+	 */
+	public static final int UNSET = -1;
+
+	/**
+	 * levels[x] = level for dmx address x, or UNSET (levels[0] unused)
+	 */
+	private int[] levels;
+
+	private int upFade;
+	private int downFade;
+	private int delay;
+	private int follow;
+	private boolean tracking;
+
+	/**
+	 * Constructor. Create a tracking cue with the default fade times and no
+	 * auto-follow.
+	 *
+	 * @param levels
+	 *            513 element array of levels within [0:255] or UNSET
+	 */
+	public Cue(int[] levels) {
+		this(levels, LightingDefines.CUE_DEFAULT_FADE, LightingDefines.CUE_DEFAULT_FADE, 0, -1, true);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param levels
+	 *            513 element array of levels within [0:255] or UNSET
+	 * @param upFade
+	 *            time in ms for rising channels to reach their level
+	 * @param downFade
+	 *            time in ms for falling channels to reach their level
+	 * @param delay
+	 *            time in ms between GO and the start of the fade
+	 * @param follow
+	 *            time in ms after GO at which the next cue is started
+	 *            automatically, or -1 to wait for the next GO
+	 * @param tracking
+	 *            true if channels without a level hold their previous value,
+	 *            false if they fade out
+	 */
+	public Cue(int[] levels, int upFade, int downFade, int delay, int follow, boolean tracking) {
+		if (levels.length != 513)
+			throw new IllegalArgumentException("levels array must be 513 elements long");
+		for (int i = 1; i < levels.length; i++) {
+			if (levels[i] != UNSET && (levels[i] < 0 || levels[i] > 255))
+				throw new IllegalArgumentException("cue levels must be within [0:255] or UNSET");
+		}
+		if (upFade < 0 || downFade < 0 || delay < 0)
+			throw new IllegalArgumentException("fade and delay times cannot be negative");
+
+		this.levels = levels.clone();
+		this.upFade = upFade;
+		this.downFade = downFade;
+		this.delay = delay;
+		this.follow = follow;
+		this.tracking = tracking;
+	}
+
+	/**
+	 * Create a tracking cue that holds only the channels in which the scene
+	 * differs from the previous scene.
+	 *
+	 * @param scene
+	 *            scene holding the cue's look
+	 * @param previous
+	 *            scene before this one in the stack, or null for the first cue
+	 * @return new cue with default timing
+	 */
+	public static Cue fromScene(Scene scene, Scene previous) {
+		int[] target = scene.getDmxVals();
+		int[] before = previous == null ? null : previous.getDmxVals();
+		int[] levels = new int[513];
+		for (int i = 1; i < levels.length; i++) {
+			if (before == null || before[i] != target[i])
+				levels[i] = target[i];
+			else
+				levels[i] = UNSET;
+		}
+		return new Cue(levels);
+	}
+
+	/**
+	 * Get the level of one channel.
+	 *
+	 * @param address
+	 *            dmx address within [1:512]
+	 * @return level within [0:255], or UNSET if this cue does not hold the channel
+	 */
+	public int getLevel(int address) {
+		return levels[address];
+	}
+
+	public int getUpFade() {
+		return upFade;
+	}
+
+	public void setUpFade(int upFade) {
+		this.upFade = upFade;
+	}
+
+	public int getDownFade() {
+		return downFade;
+	}
+
+	public void setDownFade(int downFade) {
+		this.downFade = downFade;
+	}
+
+	public int getDelay() {
+		return delay;
+	}
+
+	public void setDelay(int delay) {
+		this.delay = delay;
+	}
+
+	public int getFollow() {
+		return follow;
+	}
+
+	public void setFollow(int follow) {
+		this.follow = follow;
+	}
+
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	public void setTracking(boolean tracking) {
+		this.tracking = tracking;
+	}
+}
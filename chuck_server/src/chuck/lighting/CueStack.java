@@ -0,0 +1,269 @@
+package chuck.lighting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXFrame;
+
+/**
+ * Ordered list of cues plus the fade engine that plays them back.
+ *
+ * Each GO precomputes, for the channels the new cue moves, the starting value
+ * and the distance to travel. Every output frame then evaluates all running
+ * fades in a single pass with no per-channel timers. When fades overlap, the
+ * most recent GO owns a channel (latest takes precedence) and older fades stop
+ * writing it.
+ *
+ * Not thread safe; GO requests from other threads should be passed to the
+ * thread that renders the stack.
+ */
+public class CueStack {
+
+	/**
+	 * Fixed point scale for fade progress
+	 */
+	private static final int ONE = 1 << 16;
+
+	private List<Cue> cues;
+	private int currentIndex = -1;
+
+	/**
+	 * Running fades, oldest first. Slots are reused; nothing is allocated per GO.
+	 */
+	private Fade[] fades;
+	private int fadeCount = 0;
+	private int nextFadeId = 1;
+
+	/**
+	 * owner[x] = id of the fade currently allowed to write address x
+	 */
+	private int[] owner = new int[513];
+
+	/**
+	 * Time (ms) of the pending auto-follow GO, or -1 if none
+	 */
+	private long followAt = -1;
+
+	/**
+	 * Constructor. Create a stack from a list of cues.
+	 *
+	 * @param cues
+	 *            cues in playback order
+	 */
+	public CueStack(List<Cue> cues) {
+		this.cues = new ArrayList<Cue>(cues);
+		fades = new Fade[LightingDefines.CUE_MAX_FADES];
+		for (int i = 0; i < fades.length; i++)
+			fades[i] = new Fade();
+	}
+
+	/**
+	 * Create a stack of tracking cues from a list of scenes, one cue per scene.
+	 *
+	 * @param scenes
+	 *            scenes in playback order
+	 * @return new cue stack
+	 */
+	public static CueStack fromScenes(List<Scene> scenes) {
+		List<Cue> cues = new ArrayList<Cue>();
+		Scene previous = null;
+		for (Scene scene : scenes) {
+			cues.add(Cue.fromScene(scene, previous));
+			previous = scene;
+		}
+		return new CueStack(cues);
+	}
+
+	/**
+	 * Start the next cue in the list. Does nothing at the end of the list.
+	 *
+	 * @param now
+	 *            current time in ms
+	 * @param frame
+	 *            frame holding the current output (fades start from its values)
+	 */
+	public void go(long now, DMXFrame frame) {
+		if (currentIndex + 1 >= cues.size())
+			return;
+		start(++currentIndex, now, frame);
+	}
+
+	/**
+	 * Start the previous cue in the list, using its fade times. Does nothing on the
+	 * first cue.
+	 *
+	 * @param now
+	 *            current time in ms
+	 * @param frame
+	 *            frame holding the current output (fades start from its values)
+	 */
+	public void back(long now, DMXFrame frame) {
+		if (currentIndex <= 0)
+			return;
+		start(--currentIndex, now, frame);
+	}
+
+	/**
+	 * Evaluate every running fade into the frame, retire the finished ones and
+	 * fire a pending auto-follow.
+	 *
+	 * @param now
+	 *            current time in ms
+	 * @param frame
+	 *            frame to render the output into
+	 */
+	public void render(long now, DMXFrame frame) {
+		if (followAt >= 0 && now >= followAt) {
+			followAt = -1;
+			go(now, frame);
+		}
+
+		int live = 0;
+		for (int f = 0; f < fadeCount; f++) {
+			Fade fade = fades[f];
+			int upProgress = progress(now, fade.start, fade.upFade);
+			int downProgress = progress(now, fade.start, fade.downFade);
+
+			for (int i = 0; i < fade.count; i++) {
+				int address = fade.channels[i];
+				if (owner[address] != fade.id)
+					continue;
+				int delta = fade.delta[i];
+				int p = delta > 0 ? upProgress : downProgress;
+				frame.set(address, fade.from[i] + (int) (((long) delta * p) >> 16));
+			}
+
+			if (now < fade.end) {
+				// keep running fades packed at the front, in start order
+				fades[f] = fades[live];
+				fades[live++] = fade;
+			}
+		}
+		fadeCount = live;
+	}
+
+	/**
+	 * Precompute the fade to a cue and add it to the running fades.
+	 */
+	private void start(int index, long now, DMXFrame frame) {
+		Cue cue = cues.get(index);
+
+		if (fadeCount == fades.length) {
+			// out of slots; the oldest fade is dropped (its channels will be
+			// reclaimed by the new fade or left where they are)
+			Fade oldest = fades[0];
+			System.arraycopy(fades, 1, fades, 0, fadeCount - 1);
+			fades[--fadeCount] = oldest;
+		}
+
+		Fade fade = fades[fadeCount];
+		fade.id = nextFadeId++;
+		fade.start = now + cue.getDelay();
+		fade.upFade = cue.getUpFade();
+		fade.downFade = cue.getDownFade();
+		fade.end = fade.start + Math.max(fade.upFade, fade.downFade);
+		fade.count = 0;
+
+		for (int address = 1; address <= 512; address++) {
+			int target = targetLevel(index, address);
+			if (target == Cue.UNSET)
+				continue;
+
+			int from = frame.get(address);
+			// skip channels already at their level, unless an older fade is still
+			// moving them
+			if (target == from && !isFading(owner[address]))
+				continue;
+
+			fade.channels[fade.count] = address;
+			fade.from[fade.count] = from;
+			fade.delta[fade.count] = target - from;
+			fade.count++;
+			owner[address] = fade.id;
+		}
+		fadeCount++;
+
+		followAt = cue.getFollow() >= 0 ? now + cue.getFollow() : -1;
+	}
+
+	/**
+	 * Level a channel should reach when the cue at index is live. Tracking cues
+	 * inherit channels they do not hold from the earlier cues.
+	 *
+	 * @return level, or UNSET if the channel should be left alone
+	 */
+	private int targetLevel(int index, int address) {
+		Cue cue = cues.get(index);
+		int level = cue.getLevel(address);
+		if (level != Cue.UNSET)
+			return level;
+		if (!cue.isTracking())
+			return 0;
+
+		for (int i = index - 1; i >= 0; i--) {
+			level = cues.get(i).getLevel(address);
+			if (level != Cue.UNSET)
+				return level;
+			if (!cues.get(i).isTracking())
+				return 0;
+		}
+		return Cue.UNSET;
+	}
+
+	private boolean isFading(int fadeId) {
+		for (int f = 0; f < fadeCount; f++) {
+			if (fades[f].id == fadeId)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fixed point progress of a fade, clamped to [0:ONE]
+	 */
+	private static int progress(long now, long start, int duration) {
+		if (now <= start)
+			return duration == 0 && now == start ? ONE : 0;
+		if (duration == 0 || now >= start + duration)
+			return ONE;
+		return (int) (((now - start) << 16) / duration);
+	}
+
+	/**
+	 * Get the index of the live cue.
+	 *
+	 * @return index into the cue list, or -1 before the first GO
+	 */
+	public int getCurrentIndex() {
+		return currentIndex;
+	}
+
+	public int getCueCount() {
+		return cues.size();
+	}
+
+	/**
+	 * Whether or not any fade is still running.
+	 *
+	 * @return true if the next render may change the output
+	 */
+	public boolean isFading() {
+		return fadeCount != 0 || followAt >= 0;
+	}
+
+	/**
+	 * Precomputed fade from the output at GO to one cue's levels.
+	 */
+	private static class Fade {
+		int id;
+		long start;
+		long end;
+		int upFade;
+		int downFade;
+		int count;
+		int[] channels = new int[512];
+		int[] from = new int[512];
+		int[] delta = new int[512];
+	}
+}
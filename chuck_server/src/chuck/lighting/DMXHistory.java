@@ -0,0 +1,342 @@
+package chuck.lighting;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+
+/**
+ * Bounded undo/redo history of the DMX frame and the scene list. <br />
+ * Each step is what changed between two commits: the frame as a sparse delta
+ * (one int per changed address holding the address, old value, and new value),
+ * plus at most one scene added or deleted (stored as its non-zero addresses).
+ * A typical step is a few dozen ints rather than a 513 int frame, so thousands
+ * of steps fit in LightingDefines.HISTORY_MAX_INTS. The oldest steps are
+ * dropped once either limit is reached. <br />
+ * Sessions touch the addresses they are about to write and commit after each
+ * button handled in idle mode, so a step is one operator action (recalling a
+ * scene, saving or deleting one, or whatever was built in the editing modes
+ * since the last commit). Only touched addresses are diffed, from their value
+ * when first touched, so effects writing the driver meanwhile (chases, fades,
+ * audio) are never recorded as steps. Only used from the event loop.
+ */
+public class DMXHistory {
+
+	private static final int NO_SCENE = 0;
+	private static final int SCENE_ADDED = 1;
+	private static final int SCENE_DELETED = 2;
+
+	/**
+	 * Ints counted per step on top of its arrays
+	 */
+	private static final int STEP_OVERHEAD = 8;
+
+	private static class Step {
+		/**
+		 * Changed addresses, as address << 16 | old << 8 | new
+		 */
+		int[] frame;
+		int sceneOp = NO_SCENE;
+		int sceneIndex;
+		/**
+		 * Non-zero addresses of the scene, as address << 8 | value
+		 */
+		int[] scene;
+
+		int size() {
+			return STEP_OVERHEAD + frame.length + (scene == null ? 0 : scene.length);
+		}
+	}
+
+	private DMXDriver dmx;
+	private FixtureManager profiles;
+	private SceneManager sceneManager;
+
+	private ArrayDeque<Step> undo = new ArrayDeque<Step>();
+	private ArrayDeque<Step> redo = new ArrayDeque<Step>();
+	private int ints = 0;
+	private int maxSteps;
+	private int maxInts;
+
+	/**
+	 * Addresses touched since the last commit, and their values when first
+	 * touched
+	 */
+	private BitSet touched = new BitSet(513);
+	private int[] before = new int[513];
+	private DMXFrame frame;
+	private int pendingOp = NO_SCENE;
+	private int pendingIndex;
+	private int[] pendingScene;
+
+	private long committed = 0;
+	private long evicted = 0;
+
+	/**
+	 * Constructor, with the limits from LightingDefines. The current frame is
+	 * the starting point.
+	 *
+	 * @param dmx
+	 *            dmx driver
+	 * @param profiles
+	 *            fixture set (undo leaves fixtures held by other sessions alone)
+	 * @param sceneManager
+	 *            scene list
+	 */
+	public DMXHistory(DMXDriver dmx, FixtureManager profiles, SceneManager sceneManager) {
+		this(dmx, profiles, sceneManager, LightingDefines.HISTORY_MAX_STEPS, LightingDefines.HISTORY_MAX_INTS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dmx
+	 *            dmx driver
+	 * @param profiles
+	 *            fixture set (undo leaves fixtures held by other sessions alone)
+	 * @param sceneManager
+	 *            scene list
+	 * @param maxSteps
+	 *            most steps kept
+	 * @param maxInts
+	 *            most ints kept over all steps
+	 */
+	public DMXHistory(DMXDriver dmx, FixtureManager profiles, SceneManager sceneManager, int maxSteps, int maxInts) {
+		this.dmx = dmx;
+		this.profiles = profiles;
+		this.sceneManager = sceneManager;
+		this.maxSteps = maxSteps;
+		this.maxInts = maxInts;
+		this.frame = new DMXFrame(dmx);
+	}
+
+	/**
+	 * Note an address about to be written by an operator action, recorded with
+	 * the next commit.
+	 *
+	 * @param address
+	 *            dmx address, within [1:512]
+	 */
+	public void touch(int address) {
+		if (!touched.get(address))
+			touch(address, dmx.getDmx());
+	}
+
+	/**
+	 * Note a fixture's channels about to be written by an operator action,
+	 * recorded with the next commit.
+	 *
+	 * @param light
+	 *            fixture about to be written
+	 */
+	public void touch(FixtureProfile light) {
+		int[] live = dmx.getDmx();
+		for (int i = 0; i < light.getNumChannels(); i++)
+			touch(light.getAddress() + i, live);
+	}
+
+	/**
+	 * Note the addresses a frame is about to commit, recorded with the next
+	 * commit. Call before committing the frame.
+	 *
+	 * @param changes
+	 *            frame about to be committed
+	 */
+	public void touch(DMXFrame changes) {
+		if (!changes.isDirty())
+			return;
+		int[] live = dmx.getDmx();
+		for (int address = 1; address <= 512; address++) {
+			if (changes.isDirty(address))
+				touch(address, live);
+		}
+	}
+
+	private void touch(int address, int[] live) {
+		if (address < 1 || address > 512 || touched.get(address))
+			return;
+		touched.set(address);
+		before[address] = live[address];
+	}
+
+	/**
+	 * Note a scene appended to the list, recorded with the next commit.
+	 *
+	 * @param index
+	 *            index the scene was added at
+	 * @param vals
+	 *            513 element scene
+	 */
+	public void sceneAdded(int index, int[] vals) {
+		pendingOp = SCENE_ADDED;
+		pendingIndex = index;
+		pendingScene = packScene(vals);
+	}
+
+	/**
+	 * Note a scene deleted from the list, recorded with the next commit.
+	 *
+	 * @param index
+	 *            index the scene was deleted from
+	 * @param vals
+	 *            513 element scene
+	 */
+	public void sceneDeleted(int index, int[] vals) {
+		pendingOp = SCENE_DELETED;
+		pendingIndex = index;
+		pendingScene = packScene(vals);
+	}
+
+	/**
+	 * Record what the touched addresses and the scene list changed since the
+	 * last commit as one step, if anything did. Clears the redo steps.
+	 *
+	 * @return true if a step was recorded
+	 */
+	public boolean commit() {
+		int[] live = dmx.getDmx();
+		int changed = 0;
+		for (int address = touched.nextSetBit(1); address >= 0; address = touched.nextSetBit(address + 1)) {
+			if (live[address] != before[address])
+				changed++;
+		}
+		if (changed == 0 && pendingOp == NO_SCENE) {
+			touched.clear();
+			return false;
+		}
+
+		Step step = new Step();
+		step.frame = new int[changed];
+		int i = 0;
+		for (int address = touched.nextSetBit(1); address >= 0; address = touched.nextSetBit(address + 1)) {
+			if (live[address] != before[address])
+				step.frame[i++] = address << 16 | before[address] << 8 | live[address];
+		}
+		touched.clear();
+		step.sceneOp = pendingOp;
+		step.sceneIndex = pendingIndex;
+		step.scene = pendingScene;
+		pendingOp = NO_SCENE;
+		pendingScene = null;
+
+		for (Step dropped : redo)
+			ints -= dropped.size();
+		redo.clear();
+
+		undo.addLast(step);
+		ints += step.size();
+		committed++;
+		while (undo.size() > maxSteps || (ints > maxInts && undo.size() > 1)) {
+			ints -= undo.pollFirst().size();
+			evicted++;
+		}
+		return true;
+	}
+
+	/**
+	 * Undo the last step (after committing anything not yet committed).
+	 *
+	 * @param owner
+	 *            session undoing, whose fixtures may be written (null to leave
+	 *            every held fixture alone)
+	 * @return true if there was a step to undo
+	 * @throws IOException
+	 *             if unable to write the dmx driver
+	 */
+	public boolean undo(Object owner) throws IOException {
+		commit();
+		Step step = undo.pollLast();
+		if (step == null)
+			return false;
+		apply(step, false, owner);
+		redo.addLast(step);
+		return true;
+	}
+
+	/**
+	 * Redo the last undone step. Anything touched and changed since the undo is
+	 * committed first, which clears the redo steps.
+	 *
+	 * @param owner
+	 *            session redoing, whose fixtures may be written (null to leave
+	 *            every held fixture alone)
+	 * @return true if there was a step to redo
+	 * @throws IOException
+	 *             if unable to write the dmx driver
+	 */
+	public boolean redo(Object owner) throws IOException {
+		commit();
+		Step step = redo.pollLast();
+		if (step == null)
+			return false;
+		apply(step, true, owner);
+		undo.addLast(step);
+		return true;
+	}
+
+	private void apply(Step step, boolean forward, Object owner) throws IOException {
+		if (step.sceneOp != NO_SCENE) {
+			boolean insert = (step.sceneOp == SCENE_ADDED) == forward;
+			if (insert)
+				sceneManager.insertScene(step.sceneIndex, unpackScene(step.scene));
+			else
+				sceneManager.deleteScene(step.sceneIndex);
+		}
+
+		if (step.frame.length > 0) {
+			// write only the step's addresses, leaving fixtures held by others alone
+			int[] live = dmx.getDmx();
+			int[] vals = live.clone();
+			for (int change : step.frame)
+				vals[change >>> 16] = forward ? change & 0xff : (change >>> 8) & 0xff;
+			profiles.keepClaimed(vals, live, owner);
+			frame.load(live);
+			for (int change : step.frame)
+				frame.set(change >>> 16, vals[change >>> 16]);
+			frame.commit();
+		}
+	}
+
+	private static int[] packScene(int[] vals) {
+		int count = 0;
+		for (int address = 1; address < vals.length; address++) {
+			if (vals[address] != 0)
+				count++;
+		}
+		int[] packed = new int[count];
+		int i = 0;
+		for (int address = 1; address < vals.length; address++) {
+			if (vals[address] != 0)
+				packed[i++] = address << 8 | vals[address];
+		}
+		return packed;
+	}
+
+	private static int[] unpackScene(int[] packed) {
+		int[] vals = new int[513];
+		for (int entry : packed)
+			vals[entry >>> 8] = entry & 0xff;
+		return vals;
+	}
+
+	public int getUndoCount() {
+		return undo.size();
+	}
+
+	public int getRedoCount() {
+		return redo.size();
+	}
+
+	/**
+	 * Describe the history: steps to undo and redo, and their size.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		return "history: " + undo.size() + " to undo, " + redo.size() + " to redo, " + ints * 4 / 1024 + " KB of "
+				+ maxInts * 4 / 1024 + " KB, " + committed + " committed, " + evicted + " dropped";
+	}
+}
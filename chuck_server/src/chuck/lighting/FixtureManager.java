@@ -1,12 +1,22 @@
 package chuck.lighting;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import chuck.defines.*;
@@ -32,6 +42,21 @@ public class FixtureManager {
 	 */
 	private CopyOnWriteArrayList<FixtureProfile> set;
 
+	/**
+	 * Which controller session holds each claimed fixture. Guarded by this.
+	 */
+	private IdentityHashMap<FixtureProfile, Object> claims = new IdentityHashMap<FixtureProfile, Object>();
+
+	/**
+	 * Incremented whenever fixtures are added, removed, or replaced.
+	 */
+	private volatile int version = 0;
+
+	/**
+	 * Told about changes to the set, or null
+	 */
+	private volatile Persister persister;
+
 	/**
 	 * Constructor. Create an empty profile set.
 	 * 
@@ -65,25 +90,93 @@ public class FixtureManager {
 		if (!setFile.getParent().equals(set_dir))
 			throw new IllegalArgumentException("path traversal detected");
 
+		try (InputStream in = Files.newInputStream(setFile)) {
+			set.addAll(readSet(in, dmx));
+		}
+		// sort the fixture set (by address)
+		Collections.sort(set);
+	}
+
+	/**
+	 * Read a fixture set in the set file format (fixture count, then the
+	 * fixtures).
+	 * 
+	 * @param in
+	 *            stream positioned at the start of a set
+	 * @param dmx
+	 *            reference to dmx driver, given to each fixture
+	 * @return fixtures in the order they were written
+	 * @throws IOException
+	 *             if unable to read the stream, or it holds something other
+	 *             than fixtures
+	 */
+	public static List<FixtureProfile> readSet(InputStream in, DMXDriver dmx) throws IOException {
 		// get an object stream for reading file
-		ObjectInputStream ins = new ObjectInputStream(Files.newInputStream(setFile));
+		ObjectInputStream ins = new ObjectInputStream(in);
 		// get the number of fixtures in the set
 		int numFixtures = ins.readInt();
 		// read and add each fixture to set
+		List<FixtureProfile> fixtures = new ArrayList<FixtureProfile>(numFixtures);
 		FixtureProfile currFixture;
 		for (int i = 0; i < numFixtures; i++) {
 			try {
 				// read the fixture object
 				currFixture = (FixtureProfile) ins.readObject();
 				currFixture.setDMXDriver(dmx);
-				set.add(currFixture);
+				fixtures.add(currFixture);
 			} catch (ClassCastException | ClassNotFoundException ex) {
 				// error reading fixtures from file
 				throw new IOException("read non-fixture object from file (" + ex.getMessage() + ")");
 			}
 		}
-		// sort the fixture set (by address)
-		Collections.sort(set);
+		return fixtures;
+	}
+
+	/**
+	 * Write this manager's set in the set file format.
+	 * 
+	 * @param out
+	 *            stream to write to (flushed, not closed)
+	 * @throws IOException
+	 *             if unable to write the stream
+	 */
+	public void writeSet(OutputStream out) throws IOException {
+		// take one copy so the count matches the fixtures written
+		List<FixtureProfile> fixtures = new ArrayList<FixtureProfile>(set);
+		ObjectOutputStream stream = new ObjectOutputStream(out);
+		// write the number of fixtures
+		stream.writeInt(fixtures.size());
+		// write each fixture
+		for (FixtureProfile f : fixtures) {
+			stream.writeObject(f);
+		}
+		stream.flush();
+	}
+
+	/**
+	 * Replace every fixture in the set (e.g., when loading a set file or taking
+	 * one over from another server). Claims on the old fixtures are dropped.
+	 * 
+	 * @param fixtures
+	 *            new fixtures
+	 */
+	public synchronized void replaceSet(List<FixtureProfile> fixtures) {
+		List<FixtureProfile> sorted = new ArrayList<FixtureProfile>(fixtures);
+		Collections.sort(sorted);
+		claims.clear();
+		set.clear();
+		set.addAll(sorted);
+		changed();
+	}
+
+	/**
+	 * Get the set's version, which changes whenever fixtures are added, removed,
+	 * or replaced.
+	 * 
+	 * @return set version
+	 */
+	public int getVersion() {
+		return version;
 	}
 
 	/**
@@ -99,6 +192,7 @@ public class FixtureManager {
 		set.add(newFixture);
 		// sort the fixture set (by address)
 		Collections.sort(set);
+		changed();
 	}
 
 	/**
@@ -113,10 +207,30 @@ public class FixtureManager {
 		// remove the light at that index
 		set.remove(fixtureIndex);
 		// no need to resort if just removing
+		changed();
+	}
+
+	private void changed() {
+		version++;
+		Persister current = persister;
+		if (current != null)
+			current.request();
 	}
 
 	/**
-	 * Save this fixture manager's set to a file in the set directory.
+	 * Set the persister told about changes to the set.
+	 * 
+	 * @param persister
+	 *            persister, or null
+	 */
+	public void setPersister(Persister persister) {
+		this.persister = persister;
+	}
+
+	/**
+	 * Save this fixture manager's set to a file in the set directory. The set
+	 * is written to a temporary file first and renamed over the old one, so
+	 * the file is never left half written.
 	 * 
 	 * @param filename
 	 *            name of set file
@@ -134,19 +248,14 @@ public class FixtureManager {
 			throw new IllegalArgumentException("path traversal detected");
 		}
 
-		// delete the old version
-		Files.deleteIfExists(setFile);
-		// create a new empty file
-		Files.createFile(setFile);
-		// get the output stream
-		ObjectOutputStream stream = new ObjectOutputStream(Files.newOutputStream(setFile));
-		// write the number of fixtures
-		stream.writeInt(set.size());
-		// write each fixture
-		for (FixtureProfile f : set) {
-			stream.writeObject(f);
+		// write the set beside the old version, then replace it
+		Path temp = setFile.resolveSibling(setFile.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeSet(Channels.newOutputStream(channel));
+			channel.force(true);
 		}
-
+		Files.move(temp, setFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 	}
 
 	/**
@@ -169,6 +278,153 @@ public class FixtureManager {
 		return set.get(index);
 	}
 
+	/**
+	 * Get the position of a fixture for pixel mapping. Fixtures that have not been
+	 * placed are spread evenly along the horizontal center line in address order.
+	 * 
+	 * @param index
+	 *            zero-based index into address-sorted list of fixtures
+	 * @param position
+	 *            two element array receiving x and y within [0:1]
+	 */
+	public void getPosition(int index, float[] position) {
+		FixtureProfile light = set.get(index);
+		if (light.hasPosition()) {
+			position[0] = light.getX();
+			position[1] = light.getY();
+		} else {
+			int count = set.size();
+			position[0] = count > 1 ? (float) index / (count - 1) : 0.5f;
+			position[1] = 0.5f;
+		}
+	}
+
+	/**
+	 * Claim a fixture for one controller, so other controllers leave it alone
+	 * while it is being selected or worked on.
+	 * 
+	 * @param index
+	 *            zero-based index into address-sorted list of fixtures
+	 * @param owner
+	 *            claiming controller session
+	 * @return true if the owner now holds the fixture, false if another owner
+	 *         already does
+	 */
+	public synchronized boolean claim(int index, Object owner) {
+		FixtureProfile light = set.get(index);
+		Object current = claims.get(light);
+		if (current != null && current != owner)
+			return false;
+		claims.put(light, owner);
+		return true;
+	}
+
+	/**
+	 * Release one fixture, if the owner holds it.
+	 * 
+	 * @param index
+	 *            zero-based index into address-sorted list of fixtures
+	 * @param owner
+	 *            releasing controller session
+	 */
+	public synchronized void release(int index, Object owner) {
+		FixtureProfile light = set.get(index);
+		if (claims.get(light) == owner)
+			claims.remove(light);
+	}
+
+	/**
+	 * Release every fixture held by an owner.
+	 * 
+	 * @param owner
+	 *            releasing controller session
+	 */
+	public synchronized void releaseAll(Object owner) {
+		Iterator<Object> owners = claims.values().iterator();
+		while (owners.hasNext()) {
+			if (owners.next() == owner)
+				owners.remove();
+		}
+	}
+
+	/**
+	 * Check whether an owner holds a fixture.
+	 * 
+	 * @param index
+	 *            zero-based index into address-sorted list of fixtures
+	 * @param owner
+	 *            controller session
+	 * @return true if the fixture is claimed by that owner
+	 */
+	public synchronized boolean isClaimedBy(int index, Object owner) {
+		return claims.get(set.get(index)) == owner;
+	}
+
+	/**
+	 * Check whether a fixture is held by someone other than an owner.
+	 * 
+	 * @param index
+	 *            zero-based index into address-sorted list of fixtures
+	 * @param owner
+	 *            controller session asking
+	 * @return true if the fixture is claimed by a different owner
+	 */
+	public synchronized boolean isClaimedByOther(int index, Object owner) {
+		Object current = claims.get(set.get(index));
+		return current != null && current != owner;
+	}
+
+	/**
+	 * Check whether anyone other than an owner holds fixtures.
+	 * 
+	 * @param owner
+	 *            controller session asking
+	 * @return true if some fixture is claimed by a different owner
+	 */
+	public synchronized boolean hasClaimsOtherThan(Object owner) {
+		for (Object current : claims.values()) {
+			if (current != owner)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the live values of the fixtures held by other owners over a frame, so
+	 * writing the frame leaves those fixtures as they are.
+	 * 
+	 * @param vals
+	 *            513 element frame to write (modified in place)
+	 * @param live
+	 *            513 element frame currently on the rig
+	 * @param owner
+	 *            controller session writing the frame
+	 */
+	public synchronized void keepClaimed(int[] vals, int[] live, Object owner) {
+		for (FixtureProfile light : claims.keySet()) {
+			if (claims.get(light) == owner)
+				continue;
+			int end = Math.min(light.getAddress() + light.getNumChannels(), vals.length);
+			for (int address = light.getAddress(); address < end; address++)
+				vals[address] = live[address];
+		}
+	}
+
+	/**
+	 * Find who holds the fixture covering a DMX address.
+	 * 
+	 * @param address
+	 *            dmx address within [1:512]
+	 * @return owner of the claimed fixture at that address, or null if none
+	 */
+	public synchronized Object getClaimOwner(int address) {
+		for (FixtureProfile light : claims.keySet()) {
+			if (address >= light.getAddress() && address < light.getAddress() + light.getNumChannels())
+				return claims.get(light);
+		}
+		return null;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("Current Profile Set:\n");
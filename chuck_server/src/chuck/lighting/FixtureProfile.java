@@ -1,6 +1,7 @@
 package chuck.lighting;
 
 import java.awt.Color;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
@@ -9,6 +10,7 @@ import java.util.Map;
 import java.util.stream.Collectors;
 
 import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
 
 /**
  * Chuck Lighting Profile Class
@@ -33,6 +35,12 @@ public class FixtureProfile implements Comparable<FixtureProfile>, Serializable
 
 	private boolean isSelected = false;
 
+	/**
+	 * Position of this fixture in the rig, in the unit square (NaN if not placed)
+	 */
+	private float posX = Float.NaN;
+	private float posY = Float.NaN;
+
 	/**
 	 * Map channel name (e.g., red) to channel offset. Address of red dmx value is
 	 * getAddress() + getOffset("red")
@@ -44,6 +52,17 @@ public class FixtureProfile implements Comparable<FixtureProfile>, Serializable
 	 */
 	private transient int[] dmxVals;
 
+	/**
+	 * Cached offsets of the red, green, blue, and dimmer channels (-1 if the
+	 * fixture does not have that channel). Avoids map lookups when rendering.
+	 */
+	private transient int redOffs, greenOffs, blueOffs, dimmerOffs;
+
+	/**
+	 * Channel names in order, which is what makes fixtures the same type
+	 */
+	private transient String type;
+
 	/**
 	 * Constructor. Create this fixture profile with a reference to the dmx driver,
 	 * name, initial address, and channel settings. The channels array is a list of
@@ -103,6 +122,7 @@ public class FixtureProfile implements Comparable<FixtureProfile>, Serializable
 
 		// instantiate dmx mirror
 		dmxVals = new int[channels.length];
+		cacheOffsets();
 	}
 
 	/**
@@ -129,6 +149,10 @@ public class FixtureProfile implements Comparable<FixtureProfile>, Serializable
 		for (String channelName : channelNames) {
 			stream.writeObject(channelName);
 		}
+		// position is written last so sets saved before fixtures had positions
+		// still load
+		stream.writeFloat(posX);
+		stream.writeFloat(posY);
 	}
 
 	private void readObject(java.io.ObjectInputStream stream) throws IOException, ClassNotFoundException {
@@ -173,8 +197,52 @@ public class FixtureProfile implements Comparable<FixtureProfile>, Serializable
 		if (numChannels + address > 513)
 			throw new IOException("fixture deserialization tries to put channel outside of 512 bytes");
 
+		// get position, if the set file has one
+		try {
+			posX = stream.readFloat();
+			posY = stream.readFloat();
+		} catch (EOFException ex) {
+			posX = Float.NaN;
+			posY = Float.NaN;
+		}
+
 		// create dmx shadow array
 		dmxVals = new int[channelMap.size()];
+		cacheOffsets();
+	}
+
+	/**
+	 * Look up the offsets of the channels used when rendering into a frame.
+	 */
+	private void cacheOffsets() {
+		redOffs = channelMap.getOrDefault("red", -1);
+		greenOffs = channelMap.getOrDefault("green", -1);
+		blueOffs = channelMap.getOrDefault("blue", -1);
+		dimmerOffs = channelMap.getOrDefault("dimmer", -1);
+		type = channelMap.entrySet().stream().sorted(Map.Entry.comparingByValue()).map(Map.Entry::getKey)
+				.collect(Collectors.joining(","));
+	}
+
+	/**
+	 * Get this fixture's type: its channel names in order, comma separated.
+	 * Fixtures with the same channels in the same order are the same type.
+	 * 
+	 * @return fixture type
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Get the offset of a channel from this fixture's address.
+	 * 
+	 * @param channelName
+	 *            name of the channel (e.g., red)
+	 * @return zero-based channel offset, or -1 if the fixture has no such
+	 *         channel
+	 */
+	public int getChannelOffset(String channelName) {
+		return channelMap.getOrDefault(channelName, -1);
 	}
 
 	/**
@@ -228,6 +296,49 @@ public class FixtureProfile implements Comparable<FixtureProfile>, Serializable
 		return channelMap.size();
 	}
 
+	/**
+	 * Whether or not this fixture has been given a position in the rig.
+	 * 
+	 * @return true if getX and getY hold a position
+	 */
+	public boolean hasPosition() {
+		return !Float.isNaN(posX) && !Float.isNaN(posY);
+	}
+
+	/**
+	 * Horizontal position of this fixture in the rig.
+	 * 
+	 * @return x within [0:1], or NaN if the fixture has not been placed
+	 */
+	public float getX() {
+		return posX;
+	}
+
+	/**
+	 * Vertical position of this fixture in the rig.
+	 * 
+	 * @return y within [0:1], or NaN if the fixture has not been placed
+	 */
+	public float getY() {
+		return posY;
+	}
+
+	/**
+	 * Place this fixture in the rig. Positions are in the unit square; the pixel
+	 * mapper samples effects at these coordinates.
+	 * 
+	 * @param x
+	 *            horizontal position within [0:1]
+	 * @param y
+	 *            vertical position within [0:1]
+	 */
+	public void setPosition(float x, float y) {
+		if (!(x >= 0 && x <= 1 && y >= 0 && y <= 1))
+			throw new IllegalArgumentException("position must be within [0:1]");
+		posX = x;
+		posY = y;
+	}
+
 	public int getDefaultColorOffest() {
 		return defaultColorOffs;
 	}
@@ -347,6 +458,87 @@ public class FixtureProfile implements Comparable<FixtureProfile>, Serializable
 		dmxDriver.setDMX(address + channelMap.get("dimmer"), dimmerVal);
 	}
 
+	/**
+	 * Render a packed rgb color (0xRRGGBB) into a frame instead of writing the
+	 * driver directly. Updates this fixture's shadow values; the driver is written
+	 * when the frame is committed.
+	 * 
+	 * @param frame
+	 *            frame to render into
+	 * @param rgb
+	 *            packed color, red in bits 16-23, green in 8-15, blue in 0-7
+	 * @throws UnsupportedOperationException
+	 *             if this fixture does not have red, green, and blue channels
+	 */
+	public void renderColor(DMXFrame frame, int rgb) {
+		if (redOffs < 0 || greenOffs < 0 || blueOffs < 0)
+			throw new UnsupportedOperationException("cannot set color on fixture without rgb channels");
+
+		dmxVals[redOffs] = (rgb >> 16) & 0xff;
+		dmxVals[greenOffs] = (rgb >> 8) & 0xff;
+		dmxVals[blueOffs] = rgb & 0xff;
+
+		frame.set(address + redOffs, dmxVals[redOffs]);
+		frame.set(address + greenOffs, dmxVals[greenOffs]);
+		frame.set(address + blueOffs, dmxVals[blueOffs]);
+	}
+
+	/**
+	 * Render the dimmer value into a frame instead of writing the driver directly.
+	 * 
+	 * @param frame
+	 *            frame to render into
+	 * @param dimmerVal
+	 *            fixture's new dimmer value in dmx (must be within [0:255])
+	 */
+	public void renderDimmer(DMXFrame frame, int dimmerVal) {
+		if (dimmerOffs < 0)
+			throw new UnsupportedOperationException("cannot set dimmer on fixture without dimmer channel");
+		if (dimmerVal < 0 || dimmerVal > 255)
+			throw new IllegalArgumentException("dimmer value must be within [0:255]");
+
+		dmxVals[dimmerOffs] = dimmerVal;
+		frame.set(address + dimmerOffs, dimmerVal);
+	}
+
+	/**
+	 * Render one channel into a frame instead of writing the driver directly.
+	 * 
+	 * @param frame
+	 *            frame to render into
+	 * @param channel
+	 *            zero-based channel offset
+	 * @param value
+	 *            new value, must be within [0:255]
+	 */
+	public void renderChannel(DMXFrame frame, int channel, int value) {
+		if (channel < 0 || channel >= dmxVals.length)
+			throw new IllegalArgumentException("channel must be between [0:numChannels]");
+		if (value < 0 || value > 255)
+			throw new IllegalArgumentException("value must be within [0:255]");
+
+		dmxVals[channel] = value;
+		frame.set(address + channel, value);
+	}
+
+	/**
+	 * Whether or not this fixture has red, green, and blue channels.
+	 * 
+	 * @return true if renderColor can be used on this fixture
+	 */
+	public boolean hasRGB() {
+		return redOffs >= 0 && greenOffs >= 0 && blueOffs >= 0;
+	}
+
+	/**
+	 * Whether or not this fixture has a dimmer channel.
+	 * 
+	 * @return true if renderDimmer can be used on this fixture
+	 */
+	public boolean hasDimmer() {
+		return dimmerOffs >= 0;
+	}
+
 	/**
 	 * Set the value of one of this fixtures channels. Channel is zero-indexed.
 	 * 
@@ -0,0 +1,164 @@
+package chuck.lighting;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+
+/**
+ * Turns gyro packets from the controller into lights for the PARTY and SCARY
+ * modes. <br />
+ * The gyro magnitude is mapped to a dimmer level through a lookup table built
+ * by interpolating between the points of a curve, then smoothed with separate
+ * attack and release rates so the lights jump up quickly but do not flicker
+ * when the controller settles. All fixtures are rendered into one frame and
+ * committed together; nothing is allocated per packet.
+ */
+public class GyroEffect {
+
+	/**
+	 * Color value that gives each fixture a new random color on every packet
+	 */
+	public static final int RANDOM_COLOR = -1;
+
+	private static final ThreadLocal<SplittableRandom> RANDOM = new ThreadLocal<SplittableRandom>() {
+		@Override
+		protected SplittableRandom initialValue() {
+			return new SplittableRandom();
+		}
+	};
+
+	private FixtureManager profiles;
+	private DMXDriver dmx;
+	private DMXFrame frame;
+	private int[] curve;
+	private int color;
+	private float attack;
+	private float release;
+
+	private float level;
+	private long lastUpdate = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param profiles
+	 *            fixtures to drive
+	 * @param dmx
+	 *            driver to commit to
+	 * @param curveIn
+	 *            gyro magnitudes of the curve points, ascending
+	 * @param curveOut
+	 *            dimmer values within [0:255] at each curve point
+	 * @param color
+	 *            packed 0xRRGGBB color for every fixture, or RANDOM_COLOR
+	 * @param attack
+	 *            smoothing rate within (0:1] used while the level rises
+	 * @param release
+	 *            smoothing rate within (0:1] used while the level falls
+	 */
+	public GyroEffect(FixtureManager profiles, DMXDriver dmx, int[] curveIn, int[] curveOut, int color, float attack,
+			float release) {
+		if (curveIn.length == 0 || curveIn.length != curveOut.length)
+			throw new IllegalArgumentException("curve needs matching, non-empty input and output points");
+		if (!(attack > 0 && attack <= 1 && release > 0 && release <= 1))
+			throw new IllegalArgumentException("smoothing rates must be within (0:1]");
+
+		this.profiles = profiles;
+		this.dmx = dmx;
+		this.frame = new DMXFrame(dmx);
+		this.curve = buildCurve(curveIn, curveOut);
+		this.color = color;
+		this.attack = attack;
+		this.release = release;
+	}
+
+	/**
+	 * Interpolate the curve points into a table with one entry per gyro magnitude
+	 * up to the last point. Magnitudes past the last point use its value.
+	 */
+	private static int[] buildCurve(int[] in, int[] out) {
+		int last = in[in.length - 1];
+		if (in[0] < 0)
+			throw new IllegalArgumentException("curve inputs must be positive");
+
+		int[] table = new int[last + 1];
+		int point = 0;
+		for (int g = 0; g <= last; g++) {
+			while (point < in.length - 1 && g >= in[point + 1])
+				point++;
+
+			if (g <= in[0]) {
+				table[g] = out[0];
+			} else if (point == in.length - 1) {
+				table[g] = out[point];
+			} else {
+				int span = in[point + 1] - in[point];
+				if (span <= 0)
+					throw new IllegalArgumentException("curve inputs must be ascending");
+				table[g] = out[point] + (out[point + 1] - out[point]) * (g - in[point]) / span;
+			}
+
+			if (table[g] < 0 || table[g] > 255)
+				throw new IllegalArgumentException("curve outputs must be within [0:255]");
+		}
+		return table;
+	}
+
+	/**
+	 * Get the unsmoothed dimmer value for a gyro reading.
+	 *
+	 * @param gyro
+	 *            gyro reading from the controller
+	 * @return dimmer value within [0:255]
+	 */
+	public int map(int gyro) {
+		if (gyro < 0)
+			gyro = gyro == Integer.MIN_VALUE ? Integer.MAX_VALUE : -gyro;
+		return curve[Math.min(gyro, curve.length - 1)];
+	}
+
+	/**
+	 * Render one gyro packet to all fixtures and commit it.
+	 *
+	 * @param gyro
+	 *            gyro reading from the controller
+	 * @throws IOException
+	 *             if unable to write the driver
+	 */
+	public void update(int gyro) throws IOException {
+		int target = map(gyro);
+
+		long now = System.currentTimeMillis();
+		if (now - lastUpdate > LightingDefines.GYRO_RESYNC_GAP) {
+			// the effect was idle and others may have written the driver since
+			frame.load(dmx.getDmx());
+			level = target;
+		} else {
+			level += (target > level ? attack : release) * (target - level);
+		}
+		lastUpdate = now;
+
+		int dimmer = Math.round(level);
+		SplittableRandom random = RANDOM.get();
+		for (int i = 0; i < profiles.getLightCount(); i++) {
+			FixtureProfile light = profiles.getLight(i);
+			if (light.hasDimmer())
+				light.renderDimmer(frame, dimmer);
+			if (light.hasRGB())
+				light.renderColor(frame, color == RANDOM_COLOR ? random.nextInt(1 << 24) : color);
+		}
+		frame.commit();
+	}
+
+	/**
+	 * Current smoothed dimmer level.
+	 *
+	 * @return dimmer value within [0:255]
+	 */
+	public int getLevel() {
+		return Math.round(level);
+	}
+}
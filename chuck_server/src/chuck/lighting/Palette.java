@@ -0,0 +1,217 @@
+package chuck.lighting;
+
+import java.awt.Color;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXFrame;
+
+/**
+ * Named look (color, intensity, and position values) stored per fixture type
+ * rather than per address, so it applies to any selection and its size depends
+ * on the types of fixture in the rig, not on how many are patched. <br />
+ * Each type the palette was recorded from has its values by channel offset.
+ * A fixture of a type the palette has no values for gets the palette's values
+ * by channel name (red, dimmer, pan, ...), taken from the recorded types, so
+ * a palette recorded on one type of fixture still works on the others.
+ */
+public class Palette {
+
+	/**
+	 * Marks a channel the palette leaves alone
+	 */
+	private static final int UNSET = -1;
+
+	private String name;
+
+	/**
+	 * Values by fixture type, one per channel (UNSET if not recorded)
+	 */
+	private LinkedHashMap<String, int[]> types = new LinkedHashMap<String, int[]>();
+
+	/**
+	 * Values by channel name, for types not recorded
+	 */
+	private LinkedHashMap<String, Integer> channels = new LinkedHashMap<String, Integer>();
+
+	/**
+	 * Values worked out by name for types not recorded, by type
+	 */
+	private HashMap<String, int[]> resolved = new HashMap<String, int[]>();
+
+	/**
+	 * Constructor. Create an empty palette.
+	 *
+	 * @param name
+	 *            palette name
+	 */
+	public Palette(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Create a palette holding just a color (red, green, and blue).
+	 *
+	 * @param name
+	 *            palette name
+	 * @param color
+	 *            color of the palette
+	 * @return new palette
+	 */
+	public static Palette ofColor(String name, Color color) {
+		Palette palette = new Palette(name);
+		palette.channels.put("red", color.getRed());
+		palette.channels.put("green", color.getGreen());
+		palette.channels.put("blue", color.getBlue());
+		return palette;
+	}
+
+	/**
+	 * Record the palette channels (LightingDefines.PALETTE_CHANNELS) of a
+	 * selection, one fixture of each type.
+	 *
+	 * @param name
+	 *            palette name
+	 * @param lights
+	 *            fixtures to record
+	 * @param live
+	 *            513 element dmx frame to read the fixtures' values from
+	 * @return new palette
+	 */
+	public static Palette record(String name, List<FixtureProfile> lights, int[] live) {
+		Palette palette = new Palette(name);
+		for (FixtureProfile light : lights) {
+			if (palette.types.containsKey(light.getType()))
+				continue;
+			int[] values = new int[light.getNumChannels()];
+			Arrays.fill(values, UNSET);
+			for (String channel : LightingDefines.PALETTE_CHANNELS) {
+				int offset = light.getChannelOffset(channel);
+				if (offset >= 0)
+					values[offset] = live[light.getAddress() + offset];
+			}
+			palette.putType(light.getType(), values);
+		}
+		return palette;
+	}
+
+	private void putType(String type, int[] values) {
+		types.put(type, values);
+		String[] names = type.split(",");
+		for (int i = 0; i < values.length && i < names.length; i++) {
+			if (values[i] != UNSET && !channels.containsKey(names[i]))
+				channels.put(names[i], values[i]);
+		}
+		resolved.clear();
+	}
+
+	/**
+	 * Render the palette into a frame for each fixture of a selection. Nothing is
+	 * written until the frame is committed.
+	 *
+	 * @param lights
+	 *            fixtures to apply the palette to
+	 * @param frame
+	 *            frame to render into
+	 */
+	public void render(List<FixtureProfile> lights, DMXFrame frame) {
+		for (FixtureProfile light : lights) {
+			int[] values = valuesFor(light);
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != UNSET)
+					light.renderChannel(frame, i, values[i]);
+			}
+		}
+	}
+
+	private int[] valuesFor(FixtureProfile light) {
+		int[] values = types.get(light.getType());
+		if (values != null)
+			return values;
+		values = resolved.get(light.getType());
+		if (values == null) {
+			values = new int[light.getNumChannels()];
+			Arrays.fill(values, UNSET);
+			for (Map.Entry<String, Integer> channel : channels.entrySet()) {
+				int offset = light.getChannelOffset(channel.getKey());
+				if (offset >= 0)
+					values[offset] = channel.getValue();
+			}
+			resolved.put(light.getType(), values);
+		}
+		return values;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the number of fixture types the palette has values for.
+	 *
+	 * @return recorded types
+	 */
+	public int getTypeCount() {
+		return types.size();
+	}
+
+	/**
+	 * Write the palette: name, the channels by name, then each type and its
+	 * values.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @throws IOException
+	 *             if unable to write the stream
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeUTF(name);
+		out.writeShort(channels.size());
+		for (Map.Entry<String, Integer> channel : channels.entrySet()) {
+			out.writeUTF(channel.getKey());
+			out.writeByte(channel.getValue());
+		}
+		out.writeShort(types.size());
+		for (Map.Entry<String, int[]> type : types.entrySet()) {
+			out.writeUTF(type.getKey());
+			out.writeShort(type.getValue().length);
+			for (int value : type.getValue())
+				out.writeShort(value);
+		}
+	}
+
+	/**
+	 * Read a palette written by write.
+	 *
+	 * @param in
+	 *            stream positioned at a palette
+	 * @return palette read
+	 * @throws IOException
+	 *             if unable to read the stream
+	 */
+	public static Palette read(DataInputStream in) throws IOException {
+		Palette palette = new Palette(in.readUTF());
+		int channelCount = in.readUnsignedShort();
+		for (int i = 0; i < channelCount; i++)
+			palette.channels.put(in.readUTF(), in.readUnsignedByte());
+		int typeCount = in.readUnsignedShort();
+		for (int i = 0; i < typeCount; i++) {
+			String type = in.readUTF();
+			int[] values = new int[in.readUnsignedShort()];
+			for (int j = 0; j < values.length; j++) {
+				values[j] = in.readShort();
+				if (values[j] < UNSET || values[j] > 255)
+					throw new IOException("palette " + palette.name + " has value " + values[j]);
+			}
+			palette.types.put(type, values);
+		}
+		return palette;
+	}
+}
@@ -0,0 +1,187 @@
+package chuck.lighting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import chuck.defines.Filepaths;
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXFrame;
+
+/**
+ * List of palettes, applied to selections in PRESET mode. Starts with one
+ * color palette per LightingDefines.PRESETS entry until a palette file has
+ * been saved. <br />
+ * Applying a palette renders every selected fixture into a frame and commits
+ * it once, so a large selection is one batch of driver writes. Recorded
+ * palettes are saved by the Persister, not on the command thread.
+ */
+public class PaletteManager {
+
+	private static final int MAGIC = 0x4348504c;
+	private static final int VERSION = 1;
+
+	private final Path file;
+
+	/**
+	 * Palettes in order. Thread safe for saving while palettes are recorded.
+	 */
+	private CopyOnWriteArrayList<Palette> palettes = new CopyOnWriteArrayList<Palette>();
+
+	/**
+	 * Incremented whenever palettes are added.
+	 */
+	private volatile int version = 0;
+	private volatile Persister persister;
+
+	private long applied = 0;
+	private long lightsApplied = 0;
+	private long writes = 0;
+
+	/**
+	 * Constructor. Load the palettes from Filepaths.PALETTE_FILE.
+	 *
+	 * @throws IOException
+	 *             if unable to read the palette file
+	 */
+	public PaletteManager() throws IOException {
+		this(Paths.get(Filepaths.PALETTE_FILE));
+	}
+
+	/**
+	 * Constructor. Load the palettes from a palette file, or start with the
+	 * preset colors if there is none.
+	 *
+	 * @param file
+	 *            palette file to load from and save to
+	 * @throws IOException
+	 *             if unable to read the palette file, or it is not one
+	 */
+	public PaletteManager(Path file) throws IOException {
+		this.file = file;
+		if (!Files.isRegularFile(file)) {
+			for (int i = 0; i < LightingDefines.PRESETS.length; i++)
+				palettes.add(Palette.ofColor("preset " + (i + 1), LightingDefines.PRESETS[i]));
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(file + " is not a palette file");
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+				palettes.add(Palette.read(in));
+		}
+	}
+
+	/**
+	 * Save the palettes, to a temporary file renamed over the old one.
+	 *
+	 * @throws IOException
+	 *             if unable to write the file
+	 */
+	public void save() throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			Palette[] list = palettes.toArray(new Palette[0]);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(list.length);
+			for (Palette palette : list)
+				palette.write(out);
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Add a palette at the end of the list.
+	 *
+	 * @param palette
+	 *            palette to add
+	 * @return index of the palette
+	 */
+	public int addPalette(Palette palette) {
+		palettes.add(palette);
+		version++;
+		Persister current = persister;
+		if (current != null)
+			current.request();
+		return palettes.size() - 1;
+	}
+
+	/**
+	 * Apply a palette to a selection in one commit.
+	 *
+	 * @param index
+	 *            index of the palette
+	 * @param lights
+	 *            fixtures to apply it to
+	 * @param frame
+	 *            frame of the driver, loaded with its current values
+	 * @return driver writes performed
+	 * @throws IOException
+	 *             if unable to write the driver
+	 */
+	public int apply(int index, List<FixtureProfile> lights, DMXFrame frame) throws IOException {
+		palettes.get(index).render(lights, frame);
+		int written = frame.commit();
+		applied++;
+		lightsApplied += lights.size();
+		writes += written;
+		return written;
+	}
+
+	public Palette getPalette(int index) {
+		return palettes.get(index);
+	}
+
+	public int getPaletteCount() {
+		return palettes.size();
+	}
+
+	/**
+	 * Get the palette list's version, which changes whenever palettes are added.
+	 *
+	 * @return palette list version
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Set the persister told about new palettes.
+	 *
+	 * @param persister
+	 *            persister, or null
+	 */
+	public void setPersister(Persister persister) {
+		this.persister = persister;
+	}
+
+	/**
+	 * Describe the palettes: how many, and the fixtures and driver writes per
+	 * application.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		return "palettes: " + palettes.size() + ", " + applied + " applied to " + lightsApplied + " fixtures in "
+				+ writes + " writes";
+	}
+}
@@ -0,0 +1,84 @@
+package chuck.lighting;
+
+import java.awt.Color;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.dmx.MemoryDMX;
+
+/**
+ * Loads, saves, and applies palettes through PaletteManager against an
+ * in-memory driver: a missing file gives the preset colors, an empty palette
+ * file gives no palettes (which PRESET mode has to cope with), and a recorded
+ * palette survives a save and reload and applies to a selection.
+ */
+public class PaletteTester {
+
+	public static void main(String[] args) throws IOException {
+		boolean pass = true;
+		Path dir = Files.createTempDirectory("palettes");
+		Path file = dir.resolve("palettes");
+
+		DMXDriver dmx = new MemoryDMX();
+		ArrayList<FixtureProfile> lights = new ArrayList<FixtureProfile>();
+		for (int i = 0; i < 4; i++)
+			lights.add(new FixtureProfile(dmx, "par" + i, 1 + i * 4, new String[] { "red", "green", "blue", "dimmer" }));
+
+		PaletteManager missing = new PaletteManager(file);
+		pass &= check("missing file", missing.getPaletteCount() == LightingDefines.PRESETS.length, missing.getInfo());
+
+		// header and a count of 0, e.g. a hand edited file
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+			out.writeInt(0x4348504c);
+			out.writeInt(1);
+			out.writeInt(0);
+		}
+		PaletteManager empty = new PaletteManager(file);
+		pass &= check("empty file", empty.getPaletteCount() == 0, empty.getInfo());
+
+		boolean threw = false;
+		try {
+			empty.apply(0, lights, new DMXFrame(dmx));
+		} catch (IndexOutOfBoundsException e) {
+			threw = true;
+		}
+		pass &= check("apply on an empty list throws", threw, "callers check getPaletteCount() first");
+
+		dmx.setDMX(1, 10, 20, 30, 255);
+		Palette recorded = Palette.record("recorded", lights.subList(0, 1), dmx.getDmx());
+		pass &= check("record into an empty list", empty.addPalette(recorded) == 0, empty.getInfo());
+		empty.save();
+
+		PaletteManager reloaded = new PaletteManager(file);
+		DMXFrame frame = new DMXFrame(dmx);
+		frame.load(dmx.getDmx());
+		int writes = reloaded.apply(0, lights, frame);
+		boolean applied = reloaded.getPaletteCount() == 1;
+		for (FixtureProfile light : lights) {
+			int first = light.getAddress();
+			applied &= dmx.getDMX(first) == 10 && dmx.getDMX(first + 1) == 20 && dmx.getDMX(first + 2) == 30
+					&& dmx.getDMX(first + 3) == 255;
+		}
+		pass &= check("reload and apply", applied, reloaded.getInfo() + ", " + writes + " writes");
+
+		reloaded.addPalette(Palette.ofColor("blue", Color.BLUE));
+		reloaded.save();
+		pass &= check("save and reload two", new PaletteManager(file).getPaletteCount() == 2, "");
+
+		Files.delete(file);
+		Files.delete(dir);
+		System.out.println(pass ? "PASS" : "FAIL");
+		System.exit(pass ? 0 : 1);
+	}
+
+	private static boolean check(String what, boolean ok, String detail) {
+		System.out.println((ok ? "ok   " : "FAIL ") + what + ": " + detail);
+		return ok;
+	}
+}
@@ -0,0 +1,265 @@
+package chuck.lighting;
+
+import java.io.IOException;
+
+import chuck.defines.Filepaths;
+import chuck.defines.LightingDefines;
+
+/**
+ * Writes the scene list, fixture patch, and palettes behind the command
+ * thread. <br />
+ * A change only asks for a write; the persister waits
+ * LightingDefines.PERSIST_DELAY ms so a burst of changes is written together,
+ * then flushes the scene manager (store and journal, synced) and, if the patch
+ * changed, saves it to Filepaths.AUTOSAVE_SET in the set directory (a
+ * temporary file renamed over the old one), and likewise the palettes if any
+ * were recorded. No manager is locked while writing, so the command thread
+ * never waits for the disk. <br />
+ * Each of the three is saved on its own, so one failing does not hold up the
+ * others. After a failure the write is retried, waiting twice as long after
+ * each failure in a row, up to LightingDefines.PERSIST_MAX_BACKOFF.
+ */
+public class Persister extends Thread {
+
+	private SceneManager sceneManager;
+	private FixtureManager profiles;
+	private PaletteManager palettes;
+	private long delay;
+
+	/**
+	 * Guarded by this
+	 */
+	private boolean requested = false;
+	private long requests = 0;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Guarded by flushLock
+	 */
+	private final Object flushLock = new Object();
+	private int savedPatchVersion;
+	private int savedPaletteVersion;
+	private long flushes = 0;
+	private long patchesSaved = 0;
+	private long palettesSaved = 0;
+	private long failures = 0;
+	private long lastFlushNanos = 0;
+
+	/**
+	 * Constructor, with LightingDefines.PERSIST_DELAY. The managers tell this
+	 * persister about their changes until it is stopped.
+	 *
+	 * @param sceneManager
+	 *            scene list to write
+	 * @param profiles
+	 *            fixture patch to save
+	 * @param palettes
+	 *            palettes to save
+	 */
+	public Persister(SceneManager sceneManager, FixtureManager profiles, PaletteManager palettes) {
+		this(sceneManager, profiles, palettes, LightingDefines.PERSIST_DELAY);
+	}
+
+	/**
+	 * Constructor. The managers tell this persister about their changes until
+	 * it is stopped.
+	 *
+	 * @param sceneManager
+	 *            scene list to write
+	 * @param profiles
+	 *            fixture patch to save
+	 * @param palettes
+	 *            palettes to save
+	 * @param delay
+	 *            ms to wait after a change for more before writing
+	 */
+	public Persister(SceneManager sceneManager, FixtureManager profiles, PaletteManager palettes, long delay) {
+		super("persister");
+		setDaemon(true);
+		this.sceneManager = sceneManager;
+		this.profiles = profiles;
+		this.palettes = palettes;
+		this.delay = delay;
+		savedPatchVersion = profiles.getVersion();
+		savedPaletteVersion = palettes.getVersion();
+		sceneManager.setPersister(this);
+		profiles.setPersister(this);
+		palettes.setPersister(this);
+	}
+
+	/**
+	 * Ask for the changes to be written. Never blocks on the disk.
+	 */
+	public synchronized void request() {
+		requests++;
+		if (!requested) {
+			requested = true;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		long backoff = 0;
+		while (running) {
+			synchronized (this) {
+				while (!requested && running) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// checked by the loop
+					}
+				}
+			}
+			if (!running)
+				break;
+
+			// let the rest of a burst arrive, or the disk recover
+			pause(backoff > 0 ? backoff : delay);
+			synchronized (this) {
+				requested = false;
+			}
+			if (flush()) {
+				backoff = 0;
+			} else {
+				// retry what is still unwritten
+				backoff = Math.min(Math.max(delay, backoff * 2), LightingDefines.PERSIST_MAX_BACKOFF);
+				synchronized (this) {
+					requested = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait, returning early only if the persister is stopped (not on new
+	 * requests, which are written together after the wait).
+	 */
+	private synchronized void pause(long ms) {
+		long until = System.nanoTime() + ms * 1000000L;
+		while (running) {
+			long left = (until - System.nanoTime()) / 1000000L;
+			if (left <= 0)
+				return;
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				// write now
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write everything changed so far, now. The scenes, patch, and palettes are
+	 * each written even if another fails.
+	 *
+	 * @return true if everything was written
+	 */
+	public boolean flush() {
+		synchronized (flushLock) {
+			long start = System.nanoTime();
+			boolean written = true;
+			try {
+				sceneManager.flush();
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				written = false;
+			}
+
+			int patchVersion = profiles.getVersion();
+			if (patchVersion != savedPatchVersion) {
+				try {
+					profiles.saveSetFile(Filepaths.AUTOSAVE_SET);
+					savedPatchVersion = patchVersion;
+					patchesSaved++;
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+					written = false;
+				}
+			}
+
+			int paletteVersion = palettes.getVersion();
+			if (paletteVersion != savedPaletteVersion) {
+				try {
+					palettes.save();
+					savedPaletteVersion = paletteVersion;
+					palettesSaved++;
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+					written = false;
+				}
+			}
+
+			if (written)
+				flushes++;
+			else
+				failures++;
+			lastFlushNanos = System.nanoTime() - start;
+			return written;
+		}
+	}
+
+	/**
+	 * Stop the persister, writing whatever is still pending. The managers stop
+	 * telling it about changes.
+	 */
+	public void redrum() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			// not interrupted, that would close the files it is writing
+			join();
+		} catch (InterruptedException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		sceneManager.setPersister(null);
+		profiles.setPersister(null);
+		palettes.setPersister(null);
+		flush();
+	}
+
+	/**
+	 * Get the number of changes waiting to be written.
+	 *
+	 * @return scene changes pending, plus one each if the patch or palettes are
+	 *         unsaved
+	 */
+	public int getPendingCount() {
+		int pending = sceneManager.getPendingCount();
+		synchronized (flushLock) {
+			if (profiles.getVersion() != savedPatchVersion)
+				pending++;
+			if (palettes.getVersion() != savedPaletteVersion)
+				pending++;
+		}
+		return pending;
+	}
+
+	/**
+	 * Describe the persister: requests, flushes they were coalesced into,
+	 * changes written and pending, and failures.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		long asked;
+		synchronized (this) {
+			asked = requests;
+		}
+		int pending = getPendingCount();
+		synchronized (flushLock) {
+			return "persister: " + asked + " requests in " + flushes + " flushes, " + sceneManager.getFlushedCount()
+					+ " scene changes, " + patchesSaved + " patches and " + palettesSaved + " palette lists written, "
+					+ pending + " pending, "
+					+ failures + " failures, last flush " + lastFlushNanos / 1000 + " us";
+		}
+	}
+}
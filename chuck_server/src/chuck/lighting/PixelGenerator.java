@@ -0,0 +1,39 @@
+package chuck.lighting;
+
+/**
+ * Procedural effect sampled at fixture positions by the pixel mapper. <br />
+ * Generators work on a range of a structure-of-arrays buffer, so one call
+ * renders many fixtures and ranges can be rendered in parallel. Implementations
+ * must not keep state between calls that depends on the range.
+ */
+public interface PixelGenerator {
+
+	/**
+	 * Render the fixtures in [from:to).
+	 *
+	 * @param x
+	 *            fixture x positions within [0:1]
+	 * @param y
+	 *            fixture y positions within [0:1]
+	 * @param from
+	 *            first index to render
+	 * @param to
+	 *            one past the last index to render
+	 * @param time
+	 *            effect time in seconds
+	 * @param red
+	 *            receives red values within [0:255]
+	 * @param green
+	 *            receives green values within [0:255]
+	 * @param blue
+	 *            receives blue values within [0:255]
+	 */
+	public void render(float[] x, float[] y, int from, int to, float time, int[] red, int[] green, int[] blue);
+
+	/**
+	 * Name of this generator (for printing).
+	 *
+	 * @return generator name
+	 */
+	public String getName();
+}
@@ -0,0 +1,170 @@
+package chuck.lighting;
+
+/**
+ * Built-in procedural effects for the pixel mapper. Angles are in turns (one
+ * turn is a full cycle) and sines come from a lookup table, which keeps the
+ * per-fixture cost low on the SoC.
+ */
+public class PixelGenerators {
+
+	private static final int SINE_SIZE = 1024;
+	private static final float[] SINE = new float[SINE_SIZE];
+
+	static {
+		for (int i = 0; i < SINE_SIZE; i++)
+			SINE[i] = (float) Math.sin(2 * Math.PI * i / SINE_SIZE);
+	}
+
+	/**
+	 * Overlapping sine fields scrolling at different speeds, mapped to hue.
+	 */
+	public static final PixelGenerator PLASMA = new PixelGenerator() {
+		@Override
+		public void render(float[] x, float[] y, int from, int to, float time, int[] red, int[] green, int[] blue) {
+			// center of the circular component wanders around the rig
+			float cx = 0.5f + 0.4f * sin(time * 0.07f);
+			float cy = 0.5f + 0.4f * sin(time * 0.05f + 0.25f);
+			for (int i = from; i < to; i++) {
+				float dx = x[i] - cx, dy = y[i] - cy;
+				float v = sin(x[i] * 1.5f + time * 0.2f) + sin(y[i] * 1.2f - time * 0.15f)
+						+ sin((x[i] + y[i]) * 0.8f + time * 0.1f) + sin((float) Math.sqrt(dx * dx + dy * dy) * 2f);
+				hsv(i, v * 0.125f + 0.5f, 1f, red, green, blue);
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "plasma";
+		}
+	};
+
+	/**
+	 * Bands of light rolling across the rig from left to right, slowly changing
+	 * color.
+	 */
+	public static final PixelGenerator WAVES = new PixelGenerator() {
+		@Override
+		public void render(float[] x, float[] y, int from, int to, float time, int[] red, int[] green, int[] blue) {
+			float hue = time * 0.02f;
+			for (int i = from; i < to; i++) {
+				float wave = 0.5f + 0.5f * sin(x[i] * 2f + y[i] * 0.5f - time * 0.5f);
+				hsv(i, hue, wave * wave, red, green, blue);
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "waves";
+		}
+	};
+
+	/**
+	 * A beam sweeping around the center of the rig like a radar, colored by
+	 * distance from the center.
+	 */
+	public static final PixelGenerator RADIAL_SWEEP = new PixelGenerator() {
+		@Override
+		public void render(float[] x, float[] y, int from, int to, float time, int[] red, int[] green, int[] blue) {
+			float sweep = time * 0.5f;
+			sweep -= (float) Math.floor(sweep);
+			for (int i = from; i < to; i++) {
+				float dx = x[i] - 0.5f, dy = y[i] - 0.5f;
+				float angle = (float) (Math.atan2(dy, dx) / (2 * Math.PI));
+				// distance behind the beam, in turns
+				float behind = sweep - angle;
+				behind -= (float) Math.floor(behind);
+				float value = Math.max(0f, 1f - behind * 3f);
+				hsv(i, (float) Math.sqrt(dx * dx + dy * dy), value, red, green, blue);
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "radial sweep";
+		}
+	};
+
+	/**
+	 * Diagonal rainbow gradient scrolling across the rig.
+	 */
+	public static final PixelGenerator GRADIENT = new PixelGenerator() {
+		@Override
+		public void render(float[] x, float[] y, int from, int to, float time, int[] red, int[] green, int[] blue) {
+			float offset = time * 0.05f;
+			for (int i = from; i < to; i++)
+				hsv(i, (x[i] + y[i]) * 0.5f + offset, 1f, red, green, blue);
+		}
+
+		@Override
+		public String getName() {
+			return "gradient";
+		}
+	};
+
+	/**
+	 * All built-in generators, in the order the controller cycles through them.
+	 */
+	public static final PixelGenerator[] ALL = { PLASMA, WAVES, RADIAL_SWEEP, GRADIENT };
+
+	/**
+	 * Table sine of an angle in turns.
+	 *
+	 * @param turns
+	 *            angle (1 = full circle), any value
+	 * @return sine within [-1:1]
+	 */
+	public static float sin(float turns) {
+		return SINE[(int) (turns * SINE_SIZE) & (SINE_SIZE - 1)];
+	}
+
+	/**
+	 * Convert a fully saturated hue and value into rgb, storing it at index i.
+	 *
+	 * @param hue
+	 *            hue in turns, any value (wraps)
+	 * @param value
+	 *            brightness within [0:1]
+	 */
+	public static void hsv(int i, float hue, float value, int[] red, int[] green, int[] blue) {
+		hue -= (float) Math.floor(hue);
+		float h = hue * 6f;
+		int sector = (int) h;
+		float f = h - sector;
+		int v = (int) (value * 255f);
+		int rising = (int) (value * f * 255f);
+		int falling = v - rising;
+
+		switch (sector) {
+		case 0:
+			red[i] = v;
+			green[i] = rising;
+			blue[i] = 0;
+			break;
+		case 1:
+			red[i] = falling;
+			green[i] = v;
+			blue[i] = 0;
+			break;
+		case 2:
+			red[i] = 0;
+			green[i] = v;
+			blue[i] = rising;
+			break;
+		case 3:
+			red[i] = 0;
+			green[i] = falling;
+			blue[i] = v;
+			break;
+		case 4:
+			red[i] = rising;
+			green[i] = 0;
+			blue[i] = v;
+			break;
+		default:
+			red[i] = v;
+			green[i] = 0;
+			blue[i] = falling;
+			break;
+		}
+	}
+}
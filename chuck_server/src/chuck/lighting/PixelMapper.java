@@ -0,0 +1,166 @@
+package chuck.lighting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXFrame;
+
+/**
+ * Samples a pixel generator at the position of every RGB fixture in the rig.
+ * <br />
+ * Positions and colors are kept as structure-of-arrays buffers so generators
+ * run tight loops over primitive arrays. Rigs with at least
+ * LightingDefines.PIXEL_PARALLEL_THRESHOLD fixtures are rendered in slices on
+ * the common fork/join pool when the host has more than one core; the slice
+ * tasks are created once and reused every frame.
+ */
+public class PixelMapper {
+
+	private FixtureProfile[] lights;
+	private float[] x;
+	private float[] y;
+	private int[] red;
+	private int[] green;
+	private int[] blue;
+
+	private ForkJoinPool pool;
+	private Frame frameTask;
+
+	/**
+	 * Constructor. Snapshots the RGB fixtures of the set and their positions.
+	 *
+	 * @param profiles
+	 *            fixtures in the rig
+	 */
+	public PixelMapper(FixtureManager profiles) {
+		List<FixtureProfile> rgb = new ArrayList<FixtureProfile>();
+		List<float[]> positions = new ArrayList<float[]>();
+		for (int i = 0; i < profiles.getLightCount(); i++) {
+			if (profiles.getLight(i).hasRGB()) {
+				float[] position = new float[2];
+				profiles.getPosition(i, position);
+				rgb.add(profiles.getLight(i));
+				positions.add(position);
+			}
+		}
+
+		int count = rgb.size();
+		lights = rgb.toArray(new FixtureProfile[count]);
+		x = new float[count];
+		y = new float[count];
+		red = new int[count];
+		green = new int[count];
+		blue = new int[count];
+		for (int i = 0; i < count; i++) {
+			x[i] = positions.get(i)[0];
+			y[i] = positions.get(i)[1];
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (count >= LightingDefines.PIXEL_PARALLEL_THRESHOLD && cores > 1) {
+			pool = ForkJoinPool.commonPool();
+			int slices = Math.min(cores, pool.getParallelism() + 1);
+			Slice[] tasks = new Slice[slices];
+			for (int i = 0; i < slices; i++)
+				tasks[i] = new Slice(count * i / slices, count * (i + 1) / slices);
+			frameTask = new Frame(tasks);
+		}
+	}
+
+	/**
+	 * Render a generator into the color buffers.
+	 *
+	 * @param generator
+	 *            effect to sample
+	 * @param time
+	 *            effect time in seconds
+	 */
+	public void render(PixelGenerator generator, float time) {
+		if (frameTask == null) {
+			generator.render(x, y, 0, lights.length, time, red, green, blue);
+			return;
+		}
+
+		frameTask.reinitialize();
+		frameTask.generator = generator;
+		frameTask.time = time;
+		pool.invoke(frameTask);
+	}
+
+	/**
+	 * Write the color buffers into a frame.
+	 *
+	 * @param frame
+	 *            frame to render into (not committed)
+	 */
+	public void write(DMXFrame frame) {
+		for (int i = 0; i < lights.length; i++)
+			lights[i].renderColor(frame, (red[i] << 16) | (green[i] << 8) | blue[i]);
+	}
+
+	/**
+	 * Number of fixtures being mapped.
+	 *
+	 * @return count of RGB fixtures
+	 */
+	public int getLightCount() {
+		return lights.length;
+	}
+
+	/**
+	 * Whether or not frames are rendered on the fork/join pool.
+	 *
+	 * @return true if rendering in parallel
+	 */
+	public boolean isParallel() {
+		return frameTask != null;
+	}
+
+	/**
+	 * Renders all slices of one frame.
+	 */
+	@SuppressWarnings("serial")
+	private class Frame extends RecursiveAction {
+		private Slice[] slices;
+		private PixelGenerator generator;
+		private float time;
+
+		private Frame(Slice[] slices) {
+			this.slices = slices;
+		}
+
+		@Override
+		protected void compute() {
+			for (Slice slice : slices) {
+				slice.reinitialize();
+				slice.generator = generator;
+				slice.time = time;
+			}
+			invokeAll(slices);
+		}
+	}
+
+	/**
+	 * Renders a fixed range of fixtures.
+	 */
+	@SuppressWarnings("serial")
+	private class Slice extends RecursiveAction {
+		private int from;
+		private int to;
+		private PixelGenerator generator;
+		private float time;
+
+		private Slice(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			generator.render(x, y, from, to, time, red, green, blue);
+		}
+	}
+}
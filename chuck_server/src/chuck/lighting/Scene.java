@@ -2,17 +2,94 @@ package chuck.lighting;
 
 public class Scene {
 	
-	private int[] dmxVals;
+	/**
+	 * Values held in memory, or null while they are only in the store. Shared
+	 * with the thread writing the store, so fields are volatile and a scene is
+	 * given its slot before its values are dropped.
+	 */
+	private volatile SceneRuns runs;
+	
+	private volatile SceneStore store;
+	private volatile int slot = -1;
 	
 	public Scene(int[] dmxVals){
-		this.dmxVals = dmxVals.clone();
+		this.runs = SceneRuns.of(dmxVals);
+	}
+	
+	/**
+	 * Constructor for a scene kept in a SceneStore. Its values are only decoded
+	 * when first asked for.
+	 * 
+	 * @param store
+	 *            store holding the scene
+	 * @param slot
+	 *            slot of the scene in the store
+	 */
+	public Scene(SceneStore store, int slot){
+		this.store = store;
+		this.slot = slot;
 	}
 	
+	/**
+	 * Get the scene's values as a new 513 element frame.
+	 */
 	public int[] getDmxVals(){
-		return this.dmxVals;
+		return getRuns().toFrame();
 	}
 	
+	/**
+	 * Get the scene's sparse values (from the store's cache for a stored scene).
+	 */
+	public SceneRuns getRuns(){
+		SceneRuns held = runs;
+		if (held == null)
+			return store.runs(slot);
+		return held;
+	}
+	
+	/**
+	 * Set the values of a scene that is only in memory (the current scene).
+	 */
 	public void setDmxVals(int[] dmxVals){
-		this.dmxVals = dmxVals.clone();
+		this.runs = SceneRuns.of(dmxVals);
+	}
+	
+	/**
+	 * Note the scene has been written to a store slot, dropping its values
+	 * from memory.
+	 * 
+	 * @param store
+	 *            store holding the scene
+	 * @param slot
+	 *            slot of the scene in the store
+	 */
+	public void attach(SceneStore store, int slot){
+		this.store = store;
+		this.slot = slot;
+		this.runs = null;
+	}
+	
+	/**
+	 * Keep the scene's values in memory (e.g., before its slot is freed).
+	 */
+	public void keep(){
+		this.runs = getRuns();
+	}
+	
+	/**
+	 * Get the scene's slot in its store.
+	 * 
+	 * @return slot, or -1 if the scene has not been written to a store
+	 */
+	public int getSlot(){
+		return slot;
+	}
+	
+	/**
+	 * Whether the scene's values are held in memory rather than read from its
+	 * store.
+	 */
+	public boolean isInMemory(){
+		return runs != null;
 	}
 }
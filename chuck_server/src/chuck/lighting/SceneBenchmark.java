@@ -0,0 +1,94 @@
+package chuck.lighting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import chuck.dmx.DMXFrame;
+import chuck.dmx.MemoryDMX;
+
+/**
+ * Measures the memory of a scene library held as SceneRuns against full
+ * frames, and the driver writes of recalling scenes as a diff against a full
+ * frame write. <br />
+ * The library is made of scenes lighting a few four channel fixtures in one
+ * of a few looks, about as saved from the controllers, with some scenes saved
+ * twice. <br />
+ * Usage: SceneBenchmark [-scenes n] [-fixtures n] [-recalls n]
+ */
+public class SceneBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int sceneCount = 1000;
+		int fixtures = 24;
+		int recalls = 10000;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-scenes"))
+				sceneCount = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-fixtures"))
+				fixtures = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-recalls"))
+				recalls = Integer.parseInt(args[++i]);
+		}
+
+		Random random = new Random(1);
+		int[][] looks = new int[8][];
+		for (int i = 0; i < looks.length; i++)
+			looks[i] = new int[] { random.nextInt(256), random.nextInt(256), random.nextInt(256), 255 };
+
+		ArrayList<int[]> frames = new ArrayList<int[]>();
+		for (int i = 0; i < sceneCount; i++) {
+			if (i > 0 && random.nextInt(10) == 0) {
+				// saved again without changes
+				frames.add(frames.get(random.nextInt(frames.size())).clone());
+				continue;
+			}
+			int[] vals = new int[513];
+			int lit = 1 + random.nextInt(6);
+			for (int j = 0; j < lit; j++) {
+				int address = 1 + 4 * random.nextInt(fixtures);
+				System.arraycopy(looks[random.nextInt(looks.length)], 0, vals, address, 4);
+			}
+			frames.add(vals);
+		}
+
+		ArrayList<SceneRuns> scenes = new ArrayList<SceneRuns>();
+		long channels = 0;
+		long runs = 0;
+		for (int[] vals : frames) {
+			SceneRuns scene = SceneRuns.of(vals);
+			scenes.add(scene);
+			channels += scene.getChannelCount();
+			runs += scene.getRunCount();
+		}
+		long full = (long) sceneCount * SceneRuns.FRAME_BYTES;
+		long sparse = SceneRuns.getFootprint(scenes);
+		long alone = 0;
+		for (SceneRuns scene : scenes)
+			alone += scene.getFootprint();
+		System.out.printf("%d scenes: %.1f runs and %.1f channels per scene\n", sceneCount,
+				(double) runs / sceneCount, (double) channels / sceneCount);
+		System.out.printf("full frames:      %8d bytes (%d per scene)\n", full, full / sceneCount);
+		System.out.printf("runs:             %8d bytes (%d per scene)\n", alone, alone / sceneCount);
+		System.out.printf("runs, shared:     %8d bytes (%d per scene)\n", sparse, sparse / sceneCount);
+
+		MemoryDMX dmx = new MemoryDMX();
+		long start = dmx.getWrites();
+		for (int i = 0; i < recalls; i++)
+			dmx.setDMX(frames.get(random.nextInt(sceneCount)));
+		long fullWrites = dmx.getWrites() - start;
+
+		DMXFrame frame = new DMXFrame(dmx);
+		int[] vals = new int[513];
+		start = dmx.getWrites();
+		for (int i = 0; i < recalls; i++) {
+			scenes.get(random.nextInt(sceneCount)).writeTo(vals);
+			frame.load(dmx.getDmx());
+			frame.setAll(vals);
+			frame.commit();
+		}
+		long diffWrites = dmx.getWrites() - start;
+		System.out.printf("recall, full frame: %.1f writes\n", (double) fullWrites / recalls);
+		System.out.printf("recall, diff:       %.1f writes\n", (double) diffWrites / recalls);
+	}
+}
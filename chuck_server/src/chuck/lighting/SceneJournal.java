@@ -0,0 +1,453 @@
+package chuck.lighting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of the scene list. <br />
+ * Every change is one small record appended to the file (add, insert, replace,
+ * delete, or clear), and the list is rebuilt at startup by replaying them. The
+ * scenes themselves are in a SceneStore, so a record is only its length, type,
+ * index, the store slot of the scene, and a CRC32 of the rest; replay stops at
+ * the first record that is cut short or fails its CRC (a write torn by a
+ * crash) and truncates the file there, so at most the last change is lost.
+ * <br />
+ * Once the journal holds many more records than scenes, it is compacted in the
+ * background: a snapshot (one add per scene) is written to a temporary file,
+ * the records appended meanwhile are copied after it, and the temporary file
+ * replaces the journal in one atomic move. <br />
+ * Version 1 journals, whose records carried the scene values, are moved into
+ * the store and rewritten as version 2 when opened.
+ */
+public class SceneJournal {
+
+	private static final int MAGIC = 0x43485348;
+	private static final int VERSION = 2;
+	private static final int VALUES_VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+
+	private static final byte ADD = 1;
+	private static final byte INSERT = 2;
+	private static final byte REPLACE = 3;
+	private static final byte DELETE = 4;
+	private static final byte CLEAR = 5;
+
+	/**
+	 * length, type, index, slot, crc
+	 */
+	private static final int RECORD_SIZE = 4 + 1 + 4 + 4 + 4;
+
+	/**
+	 * Largest version 1 record: length, type, index, count, 512 address/value
+	 * pairs, crc
+	 */
+	private static final int MAX_VALUES_RECORD = 4 + 1 + 4 + 2 + 512 * 3 + 4;
+
+	/**
+	 * Records allowed beyond two per scene before compacting
+	 */
+	private static final int COMPACT_SLACK = 64;
+
+	private final Path file;
+	private FileChannel channel;
+	private ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	private CRC32 crc = new CRC32();
+	private long records = 0;
+	private long appended = 0;
+	private long compactions = 0;
+	private long truncated = 0;
+
+	/**
+	 * Records appended while a compaction runs, copied into the compacted file
+	 */
+	private ArrayList<byte[]> sinceSnapshot = null;
+
+	/**
+	 * Constructor. Nothing is read until open.
+	 *
+	 * @param file
+	 *            journal file
+	 */
+	public SceneJournal(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replay the journal (creating it if there is none), truncating a torn
+	 * record at the end, and open it for appending. The slots of the list are
+	 * marked used in the store.
+	 *
+	 * @param store
+	 *            store holding the scenes
+	 * @return store slot of each scene, in list order
+	 * @throws IOException
+	 *             if unable to read or create the journal, or it is not a
+	 *             scene journal
+	 */
+	public synchronized ArrayList<Integer> open(SceneStore store) throws IOException {
+		ArrayList<Integer> slots = new ArrayList<Integer>();
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		if (channel.size() < HEADER_SIZE) {
+			channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			writeFully(channel, header);
+			return slots;
+		}
+
+		ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+		while (data.hasRemaining() && channel.read(data) >= 0)
+			;
+		data.flip();
+		int version = data.getInt() == MAGIC ? data.getInt() : -1;
+		if (version != VERSION && version != VALUES_VERSION) {
+			channel.close();
+			throw new IOException(file + " is not a scene journal");
+		}
+		int minLength = version == VERSION ? RECORD_SIZE - 8 : 7;
+		int maxRecord = version == VERSION ? RECORD_SIZE : MAX_VALUES_RECORD;
+
+		int good = data.position();
+		while (data.remaining() >= 4) {
+			int length = data.getInt();
+			if (length < minLength || length + 4 > data.remaining() || length + 8 > maxRecord)
+				break;
+			int start = data.position();
+			crc.reset();
+			crc.update(data.array(), start, length);
+			data.position(start + length);
+			if ((int) crc.getValue() != data.getInt())
+				break;
+
+			data.position(start);
+			if (version == VERSION)
+				replay(data, slots);
+			else
+				replayValues(data, slots, store);
+			data.position(start + length + 4);
+			good = data.position();
+			records++;
+		}
+
+		if (version == VALUES_VERSION) {
+			// every scene is in the store now, rewrite the journal as slots
+			store.force();
+			channel.close();
+			channel = null;
+			writeSnapshot(slots, false);
+			return slots;
+		}
+
+		if (good < channel.size()) {
+			// torn write at the end, drop it
+			truncated += channel.size() - good;
+			channel.truncate(good);
+		}
+		channel.position(good);
+		for (int slot : slots)
+			store.markUsed(slot);
+		return slots;
+	}
+
+	private static void replay(ByteBuffer data, ArrayList<Integer> slots) {
+		byte type = data.get();
+		int index = data.getInt();
+		int slot = data.getInt();
+		apply(type, index, slot, slots);
+	}
+
+	/**
+	 * Apply a record to the list, returning the slot it drops from the list
+	 * (or -1).
+	 */
+	private static int apply(byte type, int index, int slot, ArrayList<Integer> slots) {
+		switch (type) {
+		case ADD:
+			slots.add(slot);
+			break;
+		case INSERT:
+			slots.add(Math.max(0, Math.min(index, slots.size())), slot);
+			break;
+		case REPLACE:
+			if (index >= 0 && index < slots.size())
+				return slots.set(index, slot);
+			return slot;
+		case DELETE:
+			if (index >= 0 && index < slots.size())
+				return slots.remove(index);
+			break;
+		case CLEAR:
+			slots.clear();
+			break;
+		}
+		return -1;
+	}
+
+	/**
+	 * Replay a version 1 record, moving its scene into the store.
+	 */
+	private static void replayValues(ByteBuffer data, ArrayList<Integer> slots, SceneStore store)
+			throws IOException {
+		byte type = data.get();
+		int index = data.getInt();
+		int[] vals = new int[513];
+		int count = data.getShort() & 0xffff;
+		for (int i = 0; i < count; i++) {
+			int address = data.getShort() & 0xffff;
+			int value = data.get() & 0xff;
+			if (address >= 1 && address <= 512)
+				vals[address] = value;
+		}
+
+		if (type == CLEAR) {
+			for (int slot : slots)
+				store.free(slot);
+		}
+		int slot = type == ADD || type == INSERT || type == REPLACE ? store.allocate(vals) : -1;
+		int dropped = apply(type, index, slot, slots);
+		if (dropped >= 0)
+			store.free(dropped);
+	}
+
+	/**
+	 * Append a scene added at the end of the list.
+	 *
+	 * @param slot
+	 *            store slot of the scene
+	 * @throws IOException
+	 *             if unable to write the journal
+	 */
+	public synchronized void add(int slot) throws IOException {
+		append(ADD, 0, slot);
+	}
+
+	/**
+	 * Append a scene inserted into the list.
+	 *
+	 * @param index
+	 *            index inserted at
+	 * @param slot
+	 *            store slot of the scene
+	 * @throws IOException
+	 *             if unable to write the journal
+	 */
+	public synchronized void insert(int index, int slot) throws IOException {
+		append(INSERT, index, slot);
+	}
+
+	/**
+	 * Append a scene replaced in place.
+	 *
+	 * @param index
+	 *            index of the scene
+	 * @param slot
+	 *            store slot of the new scene
+	 * @throws IOException
+	 *             if unable to write the journal
+	 */
+	public synchronized void replace(int index, int slot) throws IOException {
+		append(REPLACE, index, slot);
+	}
+
+	/**
+	 * Append a scene deleted from the list.
+	 *
+	 * @param index
+	 *            index of the scene
+	 * @throws IOException
+	 *             if unable to write the journal
+	 */
+	public synchronized void delete(int index) throws IOException {
+		append(DELETE, index, -1);
+	}
+
+	/**
+	 * Append the list being emptied (followed by adds when it is replaced).
+	 *
+	 * @throws IOException
+	 *             if unable to write the journal
+	 */
+	public synchronized void clear() throws IOException {
+		append(CLEAR, 0, -1);
+	}
+
+	private void append(byte type, int index, int slot) throws IOException {
+		if (channel == null)
+			throw new IOException("scene journal not open");
+		encode(record, crc, type, index, slot);
+		long start = channel.position();
+		try {
+			writeFully(channel, record);
+		} catch (IOException e) {
+			// drop a partly written record, so a retried append follows the last good one
+			try {
+				channel.truncate(start);
+				channel.position(start);
+			} catch (IOException e2) {
+				// TODO Auto-generated catch block
+				e2.printStackTrace();
+			}
+			throw e;
+		}
+		if (sinceSnapshot != null)
+			sinceSnapshot.add(Arrays.copyOf(record.array(), record.limit()));
+		records++;
+		appended++;
+	}
+
+	private static void encode(ByteBuffer record, CRC32 crc, byte type, int index, int slot) {
+		record.clear();
+		record.putInt(RECORD_SIZE - 8);
+		record.put(type).putInt(index).putInt(slot);
+		crc.reset();
+		crc.update(record.array(), 4, RECORD_SIZE - 8);
+		record.putInt((int) crc.getValue());
+		record.flip();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+		while (data.hasRemaining())
+			channel.write(data);
+	}
+
+	/**
+	 * Make sure the appended records are on disk.
+	 *
+	 * @throws IOException
+	 *             if unable to sync the journal
+	 */
+	public synchronized void force() throws IOException {
+		if (channel != null)
+			channel.force(false);
+	}
+
+	/**
+	 * Whether the journal has grown enough past the list to be worth
+	 * compacting.
+	 *
+	 * @param sceneCount
+	 *            scenes in the list now
+	 * @return true if compact should be called
+	 */
+	public synchronized boolean needsCompaction(int sceneCount) {
+		return sinceSnapshot == null && records > 2L * sceneCount + COMPACT_SLACK;
+	}
+
+	/**
+	 * Rewrite the journal as a snapshot of the list, on a background thread.
+	 * Changes appended meanwhile are kept. Does nothing if a compaction is
+	 * running already.
+	 *
+	 * @param slots
+	 *            store slot of each scene as of the last record appended (not
+	 *            modified afterwards)
+	 */
+	public synchronized void compact(List<Integer> slots) {
+		if (sinceSnapshot != null || channel == null)
+			return;
+		sinceSnapshot = new ArrayList<byte[]>();
+		Thread compactor = new Thread(() -> {
+			try {
+				writeSnapshot(slots, true);
+			} catch (IOException e) {
+				// the journal is still whole, try again on a later change
+				e.printStackTrace();
+			} finally {
+				synchronized (this) {
+					sinceSnapshot = null;
+				}
+			}
+		}, "scene journal compaction");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Write a snapshot of the list (and the records appended since) over the
+	 * journal, reopening it for appending. Called on the compaction thread, or
+	 * with the journal closed while opening it.
+	 */
+	private void writeSnapshot(List<Integer> slots, boolean background) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".compact");
+		ByteBuffer snapshotRecord = ByteBuffer.allocate(RECORD_SIZE);
+		CRC32 snapshotCrc = new CRC32();
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			writeFully(out, header);
+			for (int slot : slots) {
+				encode(snapshotRecord, snapshotCrc, ADD, 0, slot);
+				writeFully(out, snapshotRecord);
+			}
+
+			synchronized (this) {
+				if (background && channel == null) {
+					// closed meanwhile, leave the journal as it is
+					Files.deleteIfExists(temp);
+					return;
+				}
+				int since = 0;
+				if (sinceSnapshot != null) {
+					for (byte[] appendedRecord : sinceSnapshot)
+						writeFully(out, ByteBuffer.wrap(appendedRecord));
+					since = sinceSnapshot.size();
+				}
+				out.force(true);
+				long position = out.position();
+				records = slots.size() + since;
+				if (channel != null)
+					channel.close();
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel.position(position);
+				compactions++;
+			}
+		} catch (IOException e) {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e1) {
+				// left for the next compaction to overwrite
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Close the journal (it can be opened again).
+	 *
+	 * @throws IOException
+	 *             if unable to close the file
+	 */
+	public synchronized void close() throws IOException {
+		if (channel != null)
+			channel.close();
+		channel = null;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Describe the journal: records, appends, compactions, and bytes dropped
+	 * from a torn end.
+	 *
+	 * @return one line summary
+	 */
+	public synchronized String getInfo() {
+		return "scene journal " + file.getFileName() + ": " + records + " records, " + appended + " appended, "
+				+ compactions + " compactions" + (truncated > 0 ? ", " + truncated + " torn bytes dropped" : "");
+	}
+}
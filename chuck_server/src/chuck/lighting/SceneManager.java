@@ -1,67 +1,317 @@
 package chuck.lighting;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import chuck.defines.Filepaths;
+import chuck.defines.LightingDefines;
 
+/**
+ * Scene list and the current (unsaved) scene. Shared by every controller
+ * session, so all public methods are synchronized. <br />
+ * The scenes are kept in a memory-mapped SceneStore next to the journal, one
+ * fixed size record each, and the list is a SceneJournal of store slots: each
+ * change writes the scene to a free slot and appends one small record, and the
+ * list is replayed from the journal at startup without reading any scene. A
+ * scene's values are decoded from the store when it is first recalled. A scene
+ * file in the old CSV format (one line of 513 values per scene) is migrated
+ * once, and kept renamed with a ".migrated" suffix. <br />
+ * Changes are made to the list in memory and queued; they are written to the
+ * store and journal by flush, called behind the command thread by a Persister
+ * (or by updateSceneFile).
+ */
 public class SceneManager {
 	
 	private static final String DEFAULT_SCENE = "default";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String STORE_SUFFIX = ".store";
+	private static final String MIGRATED_SUFFIX = ".migrated";
 	
 	private ArrayList<Scene> scenes;
 	private Scene currentScene;
 	
-	private Path scene;
+	private SceneJournal journal;
+	private SceneStore store;
+	private volatile Persister persister;
+	
+	/**
+	 * A change in the list: queued to be written to the store and journal, and
+	 * kept for a while to be streamed to standby servers.
+	 */
+	public static final class Change {
+		public static final byte ADD = 1;
+		public static final byte INSERT = 2;
+		public static final byte REPLACE = 3;
+		public static final byte DELETE = 4;
+		public static final byte CLEAR = 5;
+		
+		final byte op;
+		final int index;
+		/**
+		 * Scene added or replacing another, or null
+		 */
+		final Scene scene;
+		/**
+		 * List version once the change was made
+		 */
+		final int version;
+		
+		Change(byte op, int index, Scene scene, int version) {
+			this.op = op;
+			this.index = index;
+			this.scene = scene;
+			this.version = version;
+		}
+		
+		public byte getOp() {
+			return op;
+		}
+		
+		public int getIndex() {
+			return index;
+		}
+		
+		/**
+		 * Get the scene added or replacing another.
+		 * 
+		 * @return scene values, or null for a delete or clear
+		 */
+		public SceneRuns getRuns() {
+			return scene == null ? null : scene.getRuns();
+		}
+		
+		public int getVersion() {
+			return version;
+		}
+	}
+	
+	/**
+	 * Changes since the last flush, in order. Guarded by this.
+	 */
+	private ArrayList<Change> pending = new ArrayList<Change>();
+	
+	/**
+	 * The last LightingDefines.SCENE_CHANGE_LOG changes, oldest first. Guarded
+	 * by this.
+	 */
+	private ArrayDeque<Change> recent = new ArrayDeque<Change>();
+	
+	/**
+	 * The list as written to the journal. Guarded by flushLock, which is held
+	 * while writing so the list's lock never is.
+	 */
+	private ArrayList<Scene> written = new ArrayList<Scene>();
+	private final Object flushLock = new Object();
+	private long flushed = 0;
 	
 	private int currentIndex;
 	
+	private long recalls = 0;
+	private long recallWrites = 0;
+	
+	/**
+	 * Incremented whenever scenes are added, deleted, or replaced.
+	 */
+	private volatile int version = 0;
+	
 	public SceneManager(int[] dmxVals) throws IOException {
-		scene = Paths.get(Filepaths.SCENE_DIR, DEFAULT_SCENE);
-		Files.createDirectories(scene.getParent());
+		this(dmxVals, Paths.get(Filepaths.SCENE_DIR, DEFAULT_SCENE + JOURNAL_SUFFIX),
+				Paths.get(Filepaths.SCENE_DIR, DEFAULT_SCENE));
+	}
+	
+	/**
+	 * Constructor. Load the scene list from a scene journal and the store next
+	 * to it, creating them if there are none.
+	 * 
+	 * @param dmxVals
+	 *            values of the current scene
+	 * @param journalFile
+	 *            scene journal to load from and append to
+	 * @throws IOException
+	 *             if unable to create or read the journal or store
+	 */
+	public SceneManager(int[] dmxVals, Path journalFile) throws IOException {
+		this(dmxVals, journalFile, null);
+	}
+	
+	/**
+	 * Constructor. Load the scene list from a scene journal and the store next
+	 * to it, first migrating an old CSV scene file if there is no journal yet.
+	 * 
+	 * @param dmxVals
+	 *            values of the current scene
+	 * @param journalFile
+	 *            scene journal to load from and append to
+	 * @param csvFile
+	 *            old CSV scene file, or null
+	 * @throws IOException
+	 *             if unable to create or read the journal or store, or read the
+	 *             CSV file
+	 */
+	public SceneManager(int[] dmxVals, Path journalFile, Path csvFile) throws IOException {
+		Files.createDirectories(journalFile.toAbsolutePath().getParent());
 		
 		scenes = new ArrayList<Scene>();
 		currentIndex = -1;
 		currentScene = new Scene(dmxVals);
 		
-		try {
-			Files.createFile(scene);
-		} catch (FileAlreadyExistsException ex) {
-			parseSceneFile();
+		boolean migrate = csvFile != null && !Files.exists(journalFile) && Files.isRegularFile(csvFile);
+		store = new SceneStore(storeFile(journalFile));
+		journal = new SceneJournal(journalFile);
+		for (int slot : journal.open(store)) {
+			Scene scene = new Scene(store, slot);
+			scenes.add(scene);
+			written.add(scene);
 		}
+		
+		if (migrate) {
+			// each scene parsed is appended to the new journal
+			parseSceneFile(csvFile);
+			updateSceneFile();
+			Files.move(csvFile, csvFile.resolveSibling(csvFile.getFileName() + MIGRATED_SUFFIX),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	private static Path storeFile(Path journalFile) {
+		String name = journalFile.getFileName().toString();
+		if (name.endsWith(JOURNAL_SUFFIX))
+			name = name.substring(0, name.length() - JOURNAL_SUFFIX.length());
+		return journalFile.resolveSibling(name + STORE_SUFFIX);
 	}
 	
+	/**
+	 * Write the pending changes now (for callers other than the command
+	 * thread, e.g., at startup or when taking scenes over from another
+	 * server).
+	 * 
+	 * @throws IOException
+	 *             if unable to write or sync the store or journal
+	 */
 	public void updateSceneFile() throws IOException {
-		String line = "";
-		Files.deleteIfExists(scene);
-		try (BufferedWriter writer = Files.newBufferedWriter(scene)) {
-			for (Scene scene : scenes) {
-				for(int i = 0; i < 513; i++) {
-					if(i != 512){
-						line += scene.getDmxVals()[i] + ",";
-					} else { 
-						line += scene.getDmxVals()[i] + "\n";
-					}
+		flush();
+	}
+	
+	/**
+	 * Write the changes made since the last flush into the store and journal,
+	 * and sync them. Every changed scene is written to the store and synced
+	 * before any journal record is appended, so the journal never refers to a
+	 * scene not written yet. Slots the journal no longer refers to are freed
+	 * once the journal is synced, and the
+	 * journal is compacted once it has grown well past the list. <br />
+	 * The list itself is never locked while writing, so the command thread
+	 * carries on with it meanwhile. Changes that could not be written are kept
+	 * for the next flush.
+	 * 
+	 * @throws IOException
+	 *             if unable to write or sync the store or journal
+	 */
+	public void flush() throws IOException {
+		synchronized (flushLock) {
+			ArrayList<Change> changes;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				changes = pending;
+				pending = new ArrayList<Change>();
+			}
+			
+			int done = 0;
+			int[] slots = new int[changes.size()];
+			Arrays.fill(slots, -1);
+			try {
+				for (int i = 0; i < slots.length; i++) {
+					Scene scene = changes.get(i).scene;
+					if (scene != null)
+						slots[i] = store.allocate(scene.getDmxVals());
 				}
-				writer.write(line);
-				line = "";
+				store.force();
+				for (Change change : changes) {
+					write(change, slots[done]);
+					done++;
+				}
+				journal.force();
+				store.freeReleased();
+			} catch (IOException e) {
+				// the journal never referred to these, the retry allocates again
+				for (int i = done; i < slots.length; i++)
+					store.free(slots[i]);
+				synchronized (this) {
+					changes.subList(0, done).clear();
+					changes.addAll(pending);
+					pending = changes;
+				}
+				throw e;
+			} finally {
+				flushed += done;
 			}
-		} catch (IOException e) {
-			// failed to write, try to cleanup
-			Files.delete(scene);
-			throw e;
+			
+			if (journal.needsCompaction(written.size())) {
+				ArrayList<Integer> snapshot = new ArrayList<Integer>(written.size());
+				for (Scene scene : written)
+					snapshot.add(scene.getSlot());
+				journal.compact(snapshot);
+			}
+		}
+	}
+	
+	/**
+	 * Append one change to the journal, keeping written in step with it. The
+	 * change's scene is already in the store at slot. Guarded by flushLock.
+	 */
+	private void write(Change change, int slot) throws IOException {
+		switch (change.op) {
+		case Change.ADD:
+			journal.add(slot);
+			written.add(change.scene);
+			break;
+		case Change.INSERT:
+			journal.insert(change.index, slot);
+			written.add(change.index, change.scene);
+			break;
+		case Change.REPLACE:
+			journal.replace(change.index, slot);
+			release(written.set(change.index, change.scene));
+			break;
+		case Change.DELETE:
+			journal.delete(change.index);
+			release(written.remove(change.index));
+			break;
+		case Change.CLEAR:
+			journal.clear();
+			for (Scene scene : written)
+				release(scene);
+			written.clear();
+			break;
 		}
+		
+		if (change.scene != null)
+			change.scene.attach(store, slot);
 	}
 	
-	private void parseSceneFile() throws IOException {
+	/**
+	 * Release a scene's slot once it has left the list. Its values are kept in
+	 * memory, as players may still hold the scene after the slot is reused.
+	 */
+	private void release(Scene scene) {
+		int slot = scene.getSlot();
+		if (slot >= 0) {
+			scene.keep();
+			store.release(slot);
+		}
+	}
+	
+	private void parseSceneFile(Path csvFile) throws IOException {
 		String line;
-		try (BufferedReader br = Files.newBufferedReader(scene)) {
+		try (BufferedReader br = Files.newBufferedReader(csvFile)) {
 			while ((line = br.readLine()) != null) {
 				// use comma as separator
 				String[] dmxLine = line.split(",");
@@ -75,30 +325,177 @@ public class SceneManager {
 		}
 	}
 	
-	public void addScene(int[] dmxVals){
-		scenes.add(new Scene(dmxVals));
+	/**
+	 * Queue a change in the list to be written, count the version, and tell
+	 * the persister. Guarded by this.
+	 */
+	private void changed(byte op, int index, Scene scene) {
+		Change change = new Change(op, index, scene, ++version);
+		pending.add(change);
+		recent.addLast(change);
+		if (recent.size() > LightingDefines.SCENE_CHANGE_LOG)
+			recent.removeFirst();
+		Persister current = persister;
+		if (current != null)
+			current.request();
+	}
+	
+	/**
+	 * Set the persister told about changes, which writes them behind the
+	 * command thread. Without one, changes wait for updateSceneFile.
+	 * 
+	 * @param persister
+	 *            persister, or null
+	 */
+	public void setPersister(Persister persister) {
+		this.persister = persister;
+	}
+	
+	/**
+	 * Get the number of changes not yet written.
+	 * 
+	 * @return pending changes
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
 	}
 	
-	public void addScene(Scene scene){
+	/**
+	 * Get the number of changes written so far.
+	 * 
+	 * @return changes flushed
+	 */
+	public long getFlushedCount() {
+		synchronized (flushLock) {
+			return flushed;
+		}
+	}
+	
+	public synchronized void addScene(int[] dmxVals){
+		Scene scene = new Scene(dmxVals);
 		scenes.add(scene);
+		changed(Change.ADD, 0, scene);
+	}
+	
+	public synchronized void addScene(Scene scene){
+		addScene(scene.getDmxVals());
 	}
 	
-	public void deleteScene() {
+	/**
+	 * Overwrite a scene in the list.
+	 * 
+	 * @param index
+	 *            index of the scene
+	 * @param dmxVals
+	 *            513 element scene
+	 */
+	public synchronized void replaceScene(int index, int[] dmxVals){
+		if(index >= scenes.size() || index < 0){
+			return;
+		}
+		
+		Scene scene = new Scene(dmxVals);
+		scenes.set(index, scene);
+		changed(Change.REPLACE, index, scene);
+	}
+	
+	/**
+	 * Put a scene back into the list (e.g., undoing its deletion).
+	 * 
+	 * @param index
+	 *            index to insert at, clamped to the list
+	 * @param dmxVals
+	 *            513 element scene
+	 */
+	public synchronized void insertScene(int index, int[] dmxVals){
+		index = Math.max(0, Math.min(index, scenes.size()));
+		Scene scene = new Scene(dmxVals);
+		scenes.add(index, scene);
+		currentIndex = -1;
+		changed(Change.INSERT, index, scene);
+	}
+	
+	public synchronized void deleteScene() {
 		if(getCurrentIndex() != -1){
-			scenes.remove(currentIndex);
+			deleteScene(currentIndex);
 			currentIndex = -1;
 		}
 	}
 	
-	public void deleteScene(int index){
+	public synchronized void deleteScene(int index){
 		if(index >= scenes.size() || index < 0){
 			return;
 		}
 		
 		scenes.remove(index);
+		changed(Change.DELETE, index, null);
 	}
 	
-	public Scene getNextScene(){
+	/**
+	 * Replace the whole scene list (e.g., when taking it over from another
+	 * server). The current scene is kept, the position in the list is reset.
+	 * 
+	 * @param dmxVals
+	 *            513 element value arrays, one per scene
+	 */
+	public synchronized void replaceScenes(List<int[]> dmxVals){
+		scenes = new ArrayList<Scene>(dmxVals.size());
+		changed(Change.CLEAR, 0, null);
+		for (int[] vals : dmxVals) {
+			Scene scene = new Scene(vals);
+			scenes.add(scene);
+			changed(Change.ADD, 0, scene);
+		}
+		currentIndex = -1;
+	}
+	
+	/**
+	 * Get the changes made after a version, oldest first (e.g., to stream them
+	 * to standby servers).
+	 * 
+	 * @param since
+	 *            list version the caller has
+	 * @return the changes, empty if there are none, or null if some are no
+	 *         longer kept
+	 */
+	public synchronized List<Change> getChangesSince(int since) {
+		ArrayList<Change> changes = new ArrayList<Change>();
+		if (since == version)
+			return changes;
+		if (recent.isEmpty() || recent.peekFirst().version > since + 1 || since > version)
+			return null;
+		for (Change change : recent) {
+			if (change.version > since)
+				changes.add(change);
+		}
+		return changes;
+	}
+	
+	/**
+	 * Get every scene in the list along with the list's version, as one
+	 * consistent snapshot.
+	 * 
+	 * @param runs
+	 *            list the scenes' values are added to, in order
+	 * @return list version the scenes are from
+	 */
+	public synchronized int getSceneRuns(List<SceneRuns> runs) {
+		for (Scene scene : scenes)
+			runs.add(scene.getRuns());
+		return version;
+	}
+	
+	/**
+	 * Get the scene list's version, which changes whenever scenes are added,
+	 * deleted, or replaced.
+	 * 
+	 * @return scene list version
+	 */
+	public int getVersion(){
+		return version;
+	}
+	
+	public synchronized Scene getNextScene(){
 		if(++currentIndex >= scenes.size() || scenes.size() == 0){
 			
 			currentIndex = -1;
@@ -109,7 +506,7 @@ public class SceneManager {
 		
 	}
 	
-	public Scene getLastScene(){
+	public synchronized Scene getLastScene(){
 		if(currentIndex == -1 && scenes.size() != 0)
 		{
 			currentIndex = scenes.size() - 1;
@@ -125,27 +522,79 @@ public class SceneManager {
 		
 	}
 	
-	public void setCurrentScene(int[] dmxVals){
+	public synchronized void setCurrentScene(int[] dmxVals){
 		currentIndex = -1;
 		currentScene.setDmxVals(dmxVals);
 	}
 	
-	public Scene getCurrentScene(){
+	public synchronized Scene getCurrentScene(){
 		return currentScene;
 	}
 	
-	public int getCurrentIndex(){
+	public synchronized int getCurrentIndex(){
 		
 		return currentIndex;
 		
 	}
 	
-	public ArrayList<Scene> getSceneArray(){
-		return this.scenes;
+	/**
+	 * Get a snapshot of the scene list. Several controllers can add and delete
+	 * scenes, so players get a copy rather than the live list.
+	 */
+	public synchronized ArrayList<Scene> getSceneArray(){
+		return new ArrayList<Scene>(this.scenes);
 	}
 	
-	public int getSceneCount(){
+	public synchronized int getSceneCount(){
 		return this.scenes.size();
 	}
 	
+	/**
+	 * Describe the scene journal.
+	 * 
+	 * @return one line summary
+	 */
+	public String getJournalInfo(){
+		return journal.getInfo();
+	}
+	
+	/**
+	 * Count a scene written out by a session.
+	 * 
+	 * @param writes
+	 *            driver writes it took
+	 */
+	public synchronized void recalled(int writes){
+		recalls++;
+		recallWrites += writes;
+	}
+	
+	/**
+	 * Describe the scenes: how many, the memory of those held in memory (the
+	 * rest are in the store), and the driver writes per recall.
+	 * 
+	 * @return one line summary
+	 */
+	public synchronized String getSceneInfo(){
+		ArrayList<SceneRuns> held = new ArrayList<SceneRuns>();
+		held.add(currentScene.getRuns());
+		for (Scene scene : scenes) {
+			if (scene.isInMemory())
+				held.add(scene.getRuns());
+		}
+		return "scenes: " + scenes.size() + " in list, " + held.size() + " in memory in "
+				+ SceneRuns.getFootprint(held) + " bytes (" + held.size() * SceneRuns.FRAME_BYTES
+				+ " as frames), " + recalls + " recalls, "
+				+ (recalls == 0 ? 0 : recallWrites / recalls) + " writes per recall (128 for a full frame)";
+	}
+	
+	/**
+	 * Describe the scene store.
+	 * 
+	 * @return one line summary
+	 */
+	public String getStoreInfo(){
+		return store.getInfo();
+	}
+	
 }
@@ -0,0 +1,271 @@
+package chuck.lighting;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Sparse, immutable scene: only the runs of non-zero channels, each its start
+ * address and values. A scene lighting a few fixtures is a few runs of a few
+ * bytes rather than a 513 int frame (about 2 KB). <br />
+ * Scenes and runs are interned by content, so identical scenes share one copy,
+ * as do identical runs in different scenes (a fixture at the same look in
+ * several scenes). Interned copies are dropped once no scene uses them.
+ */
+public final class SceneRuns {
+
+	private static final Interner<SceneRuns> SCENES = Interners.newWeakInterner();
+	private static final Interner<Run> RUNS = Interners.newWeakInterner();
+
+	/**
+	 * Zero channels a run bridges rather than ending (a new run costs more
+	 * than the few bytes saved)
+	 */
+	private static final int MAX_GAP = 4;
+
+	/**
+	 * Rough heap sizes for getFootprint: object header, and array header
+	 */
+	private static final int OBJECT_BYTES = 16;
+	private static final int ARRAY_BYTES = 16;
+
+	/**
+	 * Heap size of a full 513 int frame, for comparison
+	 */
+	public static final int FRAME_BYTES = ARRAY_BYTES + 513 * 4;
+
+	public static final SceneRuns EMPTY = SCENES.intern(new SceneRuns(new Run[0]));
+
+	private static final class Run {
+		final int address;
+		final byte[] values;
+		final int hash;
+
+		Run(int address, byte[] values) {
+			this.address = address;
+			this.values = values;
+			this.hash = 31 * address + Arrays.hashCode(values);
+		}
+
+		int footprint() {
+			return OBJECT_BYTES + 16 + align(ARRAY_BYTES + values.length);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Run))
+				return false;
+			Run other = (Run) o;
+			return address == other.address && hash == other.hash && Arrays.equals(values, other.values);
+		}
+	}
+
+	private final Run[] runs;
+	private final int hash;
+
+	private SceneRuns(Run[] runs) {
+		this.runs = runs;
+		this.hash = Arrays.hashCode(runs);
+	}
+
+	/**
+	 * Encode a scene, returning the shared copy if an identical scene exists.
+	 *
+	 * @param vals
+	 *            513 element scene (vals[0] ignored)
+	 * @return interned sparse scene
+	 */
+	public static SceneRuns of(int[] vals) {
+		int last = Math.min(vals.length - 1, 512);
+		Run[] found = new Run[16];
+		int count = 0;
+		int address = 1;
+		while (address <= last) {
+			if (vals[address] == 0) {
+				address++;
+				continue;
+			}
+			// extend over non-zero channels and short gaps between them
+			int end = address;
+			for (int next = address + 1; next <= last && next - end <= MAX_GAP + 1; next++) {
+				if (vals[next] != 0)
+					end = next;
+			}
+			byte[] values = new byte[end - address + 1];
+			for (int i = 0; i < values.length; i++)
+				values[i] = (byte) vals[address + i];
+			if (count == found.length)
+				found = Arrays.copyOf(found, count * 2);
+			found[count++] = RUNS.intern(new Run(address, values));
+			address = end + 1;
+		}
+		return SCENES.intern(new SceneRuns(Arrays.copyOf(found, count)));
+	}
+
+	/**
+	 * Write the scene into a frame, zeroing the channels it does not use.
+	 *
+	 * @param vals
+	 *            513 element frame to fill (vals[0] left alone)
+	 */
+	public void writeTo(int[] vals) {
+		int address = 1;
+		for (Run run : runs) {
+			while (address < run.address)
+				vals[address++] = 0;
+			for (byte value : run.values)
+				vals[address++] = value & 0xff;
+		}
+		while (address <= 512)
+			vals[address++] = 0;
+	}
+
+	/**
+	 * Decode the scene into a new frame.
+	 *
+	 * @return 513 element frame
+	 */
+	public int[] toFrame() {
+		int[] vals = new int[513];
+		writeTo(vals);
+		return vals;
+	}
+
+	/**
+	 * Get the size of the scene as written by write.
+	 *
+	 * @return bytes
+	 */
+	public int getEncodedSize() {
+		int bytes = 2;
+		for (Run run : runs)
+			bytes += 4 + run.values.length;
+		return bytes;
+	}
+
+	/**
+	 * Write the scene: the number of runs, then each run's address, length,
+	 * and values.
+	 *
+	 * @param out
+	 *            buffer with getEncodedSize bytes left
+	 */
+	public void write(ByteBuffer out) {
+		out.putShort((short) runs.length);
+		for (Run run : runs) {
+			out.putShort((short) run.address);
+			out.putShort((short) run.values.length);
+			out.put(run.values);
+		}
+	}
+
+	/**
+	 * Read a scene written by write.
+	 *
+	 * @param in
+	 *            buffer positioned at a scene
+	 * @return interned scene, or null if the buffer does not hold a whole,
+	 *         valid scene
+	 */
+	public static SceneRuns read(ByteBuffer in) {
+		if (in.remaining() < 2)
+			return null;
+		int count = in.getShort() & 0xffff;
+		int[] vals = new int[513];
+		for (int i = 0; i < count; i++) {
+			if (in.remaining() < 4)
+				return null;
+			int address = in.getShort() & 0xffff;
+			int length = in.getShort() & 0xffff;
+			if (address < 1 || length > 513 - address || length > in.remaining())
+				return null;
+			for (int j = 0; j < length; j++)
+				vals[address + j] = in.get() & 0xff;
+		}
+		return of(vals);
+	}
+
+	public int getRunCount() {
+		return runs.length;
+	}
+
+	/**
+	 * Get the number of channels held in runs (the non-zero ones and the
+	 * short gaps between them).
+	 *
+	 * @return channels stored
+	 */
+	public int getChannelCount() {
+		int channels = 0;
+		for (Run run : runs)
+			channels += run.values.length;
+		return channels;
+	}
+
+	/**
+	 * Estimate this scene's heap size on its own, counting its runs.
+	 *
+	 * @return bytes
+	 */
+	public int getFootprint() {
+		return getFootprint(Collections.singleton(this));
+	}
+
+	/**
+	 * Estimate the heap size of a set of scenes, counting each shared scene
+	 * and run once.
+	 *
+	 * @param scenes
+	 *            scenes to count
+	 * @return bytes
+	 */
+	public static int getFootprint(Collection<SceneRuns> scenes) {
+		Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		int bytes = 0;
+		for (SceneRuns scene : scenes) {
+			if (scene == null || !seen.add(scene))
+				continue;
+			bytes += OBJECT_BYTES + 8 + align(ARRAY_BYTES + 4 * scene.runs.length);
+			for (Run run : scene.runs) {
+				if (seen.add(run))
+					bytes += run.footprint();
+			}
+		}
+		return bytes;
+	}
+
+	private static int align(int bytes) {
+		return (bytes + 7) & ~7;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof SceneRuns))
+			return false;
+		SceneRuns other = (SceneRuns) o;
+		// runs are interned, so equal runs are the same object
+		if (hash != other.hash || runs.length != other.runs.length)
+			return false;
+		for (int i = 0; i < runs.length; i++) {
+			if (runs[i] != other.runs[i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,223 @@
+package chuck.lighting;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import chuck.defines.LightingDefines;
+
+/**
+ * Memory-mapped file of scene bodies, one 512 byte record (the value of each
+ * address) per slot. The scene list itself is the SceneJournal, which refers to
+ * scenes by slot; nothing here is read at startup, so loading a library costs
+ * the same whatever its size. <br />
+ * A scene is decoded (into SceneRuns) only when it is recalled, and the last
+ * few decoded scenes are kept in an LRU cache. <br />
+ * A slot is never overwritten while the list refers to it: a changed scene is
+ * written to a free slot, and the old one is released, becoming free only once
+ * the journal record dropping it has been forced to disk.
+ */
+public class SceneStore {
+
+	private static final int RECORD_SIZE = 512;
+	private static final int INITIAL_SLOTS = 64;
+
+	private final Path file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int capacity = 0;
+	private BitSet used = new BitSet();
+	private BitSet released = new BitSet();
+
+	private LinkedHashMap<Integer, SceneRuns> cache;
+	private int[] decoded = new int[513];
+	private long hits = 0;
+	private long decodes = 0;
+
+	/**
+	 * Constructor. Map the store, creating it if there is none.
+	 *
+	 * @param file
+	 *            store file
+	 * @throws IOException
+	 *             if unable to open or map the file
+	 */
+	public SceneStore(Path file) throws IOException {
+		this(file, LightingDefines.SCENE_CACHE_SIZE);
+	}
+
+	/**
+	 * Constructor. Map the store, creating it if there is none.
+	 *
+	 * @param file
+	 *            store file
+	 * @param cacheSize
+	 *            decoded scenes to keep
+	 * @throws IOException
+	 *             if unable to open or map the file
+	 */
+	public SceneStore(Path file, int cacheSize) throws IOException {
+		this.file = file;
+		cache = new LinkedHashMap<Integer, SceneRuns>(cacheSize * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, SceneRuns> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		remap((int) Math.max(INITIAL_SLOTS, channel.size() / RECORD_SIZE));
+	}
+
+	private void remap(int slots) throws IOException {
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * RECORD_SIZE);
+		capacity = slots;
+	}
+
+	/**
+	 * Mark a slot the list refers to (while replaying the journal).
+	 *
+	 * @param slot
+	 *            slot in use
+	 */
+	public synchronized void markUsed(int slot) {
+		used.set(slot);
+	}
+
+	/**
+	 * Whether a slot is within the store.
+	 *
+	 * @param slot
+	 *            slot to check
+	 * @return true if it has a record
+	 */
+	public synchronized boolean contains(int slot) {
+		return slot >= 0 && slot < capacity;
+	}
+
+	/**
+	 * Write a scene into a free slot, growing the file if there is none.
+	 *
+	 * @param vals
+	 *            513 element scene
+	 * @return slot written
+	 * @throws IOException
+	 *             if unable to grow the file
+	 */
+	public synchronized int allocate(int[] vals) throws IOException {
+		int slot = used.nextClearBit(0);
+		if (slot >= capacity)
+			remap(Math.max(capacity * 2, slot + 1));
+		int base = slot * RECORD_SIZE;
+		for (int address = 1; address <= RECORD_SIZE; address++)
+			map.put(base + address - 1, address < vals.length ? (byte) vals[address] : 0);
+		used.set(slot);
+		cache.remove(slot);
+		return slot;
+	}
+
+	/**
+	 * Free a slot the list no longer refers to.
+	 *
+	 * @param slot
+	 *            slot to free
+	 */
+	public synchronized void free(int slot) {
+		if (slot < 0)
+			return;
+		used.clear(slot);
+		cache.remove(slot);
+	}
+
+	/**
+	 * Release a slot the list no longer refers to, to be freed by the next
+	 * freeReleased.
+	 *
+	 * @param slot
+	 *            slot to release
+	 */
+	public synchronized void release(int slot) {
+		if (slot >= 0)
+			released.set(slot);
+	}
+
+	/**
+	 * Free the released slots, once the journal has been forced.
+	 */
+	public synchronized void freeReleased() {
+		for (int slot = released.nextSetBit(0); slot >= 0; slot = released.nextSetBit(slot + 1))
+			free(slot);
+		released.clear();
+	}
+
+	/**
+	 * Get a slot's scene, decoding it if it is not cached.
+	 *
+	 * @param slot
+	 *            slot in use
+	 * @return sparse scene
+	 */
+	public synchronized SceneRuns runs(int slot) {
+		SceneRuns runs = cache.get(slot);
+		if (runs != null) {
+			hits++;
+			return runs;
+		}
+		if (slot >= 0 && slot < capacity) {
+			int base = slot * RECORD_SIZE;
+			for (int address = 1; address <= RECORD_SIZE; address++)
+				decoded[address] = map.get(base + address - 1) & 0xff;
+			runs = SceneRuns.of(decoded);
+		} else
+			runs = SceneRuns.EMPTY;
+		decodes++;
+		cache.put(slot, runs);
+		return runs;
+	}
+
+	/**
+	 * Write the mapped records out to the file. Scenes can be read meanwhile,
+	 * only the thread writing the store may call this.
+	 */
+	public void force() {
+		MappedByteBuffer current;
+		synchronized (this) {
+			current = map;
+		}
+		current.force();
+	}
+
+	/**
+	 * Close the store.
+	 *
+	 * @throws IOException
+	 *             if unable to close the file
+	 */
+	public synchronized void close() throws IOException {
+		map.force();
+		channel.close();
+		cache.clear();
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Describe the store: slots used, file size, and the cache's size and hits.
+	 *
+	 * @return one line summary
+	 */
+	public synchronized String getInfo() {
+		return "scene store " + file.getFileName() + ": " + used.cardinality() + " of " + capacity + " slots ("
+				+ (long) capacity * RECORD_SIZE / 1024 + " KB), cache " + cache.size() + " scenes in "
+				+ SceneRuns.getFootprint(cache.values()) + " bytes, " + hits + " hits, " + decodes + " decodes";
+	}
+}
@@ -0,0 +1,186 @@
+package chuck.lighting;
+
+import chuck.defines.LightingDefines;
+
+/**
+ * Beat clock derived from taps on the controller. <br />
+ * The beat period is the average of the most recent tap intervals; a tap that is
+ * far off the current average (or comes after a long pause) starts a new tempo.
+ * Every tap also re-anchors the beat, so the clock stays in phase with the
+ * person tapping. <br />
+ * Effects read the beat position from the clock with System.nanoTime() rather
+ * than counting their own sleeps, so they cannot drift from each other. Taps
+ * come from the command thread; the clock can be read from any thread.
+ */
+public class TempoClock {
+
+	private static final long NANOS_PER_MS = 1000000L;
+	private static final long NANOS_PER_MINUTE = 60000L * NANOS_PER_MS;
+
+	/**
+	 * Tap intervals that differ from the average by more than this fraction start
+	 * a new tempo.
+	 */
+	private static final double TAP_TOLERANCE = 0.25;
+
+	private long[] intervals = new long[LightingDefines.TAP_HISTORY];
+	private int intervalCount = 0;
+	private int nextInterval = 0;
+	private long lastTap;
+	/**
+	 * Whether lastTap holds a tap (nanoTime has no value meaning "never")
+	 */
+	private boolean tapped = false;
+
+	/**
+	 * Current tempo; replaced as a whole so readers never see a period from one
+	 * tempo with the anchor of another. Null until a tempo has been tapped or set.
+	 */
+	private volatile Timing timing = null;
+
+	/**
+	 * Register a tap at the specified time.
+	 *
+	 * @param now
+	 *            time of the tap from System.nanoTime()
+	 */
+	public synchronized void tap(long now) {
+		long interval = now - lastTap;
+		boolean first = !tapped;
+		lastTap = now;
+		tapped = true;
+
+		if (first || interval <= 0 || interval > LightingDefines.TAP_TIMEOUT * NANOS_PER_MS) {
+			// first tap after a pause; wait for the next to measure the tempo
+			intervalCount = 0;
+			return;
+		}
+
+		if (intervalCount > 0) {
+			long average = averageInterval();
+			if (Math.abs(interval - average) > average * TAP_TOLERANCE)
+				// tempo changed; drop the old intervals
+				intervalCount = 0;
+		}
+		if (intervalCount == 0)
+			nextInterval = 0;
+
+		intervals[nextInterval] = interval;
+		nextInterval = (nextInterval + 1) % intervals.length;
+		if (intervalCount < intervals.length)
+			intervalCount++;
+
+		// the tap lands on a beat
+		timing = new Timing(averageInterval(), now);
+	}
+
+	private long averageInterval() {
+		long sum = 0;
+		for (int i = 0; i < intervalCount; i++)
+			sum += intervals[i];
+		return sum / intervalCount;
+	}
+
+	/**
+	 * Set the tempo directly, with a beat at the specified time.
+	 *
+	 * @param bpm
+	 *            beats per minute, must be positive
+	 * @param now
+	 *            time of a beat from System.nanoTime()
+	 */
+	public synchronized void setBpm(double bpm, long now) {
+		if (bpm <= 0)
+			throw new IllegalArgumentException("bpm must be positive");
+		intervalCount = 0;
+		timing = new Timing((long) (NANOS_PER_MINUTE / bpm), now);
+	}
+
+	/**
+	 * Forget the tempo; effects go back to their own timing.
+	 */
+	public synchronized void clear() {
+		intervalCount = 0;
+		tapped = false;
+		timing = null;
+	}
+
+	/**
+	 * Whether or not a tempo has been tapped or set.
+	 *
+	 * @return true if beat positions are available
+	 */
+	public boolean isRunning() {
+		return timing != null;
+	}
+
+	/**
+	 * Get the current tempo.
+	 *
+	 * @return beats per minute, or 0 if no tempo is set
+	 */
+	public double getBpm() {
+		Timing t = timing;
+		return t == null ? 0 : (double) NANOS_PER_MINUTE / t.period;
+	}
+
+	/**
+	 * Get the position in beats since the anchor beat.
+	 *
+	 * @param now
+	 *            time from System.nanoTime()
+	 * @return beat position (the integer part counts beats, the fraction is the
+	 *         phase within the beat); 0 if no tempo is set
+	 */
+	public double beats(long now) {
+		Timing t = timing;
+		if (t == null)
+			return 0;
+		return (double) (now - t.anchor) / t.period;
+	}
+
+	/**
+	 * Get the index of the current step when stepping every beatsPerStep beats
+	 * (e.g., 0.5 for eighth notes, 2 for every other beat).
+	 *
+	 * @param now
+	 *            time from System.nanoTime()
+	 * @param beatsPerStep
+	 *            length of one step in beats, must be positive
+	 * @return step index (may be negative just after a re-anchoring tap)
+	 */
+	public long step(long now, double beatsPerStep) {
+		return (long) Math.floor(beats(now) / beatsPerStep);
+	}
+
+	/**
+	 * Get the time remaining until the next step boundary.
+	 *
+	 * @param now
+	 *            time from System.nanoTime()
+	 * @param beatsPerStep
+	 *            length of one step in beats, must be positive
+	 * @return nanoseconds until the next step starts; 0 if no tempo is set
+	 */
+	public long nanosUntilStep(long now, double beatsPerStep) {
+		Timing t = timing;
+		if (t == null)
+			return 0;
+		double stepNanos = t.period * beatsPerStep;
+		double position = (now - t.anchor) / stepNanos;
+		return (long) ((Math.floor(position) + 1 - position) * stepNanos) + 1;
+	}
+
+	/**
+	 * Beat period and the time of one beat.
+	 */
+	private static class Timing {
+		final long period;
+		final long anchor;
+
+		Timing(long period, long anchor) {
+			this.period = period;
+			this.anchor = anchor;
+		}
+	}
+}
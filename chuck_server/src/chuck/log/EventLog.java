@@ -0,0 +1,537 @@
+package chuck.log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import chuck.defines.Connection;
+import chuck.lighting.PixelGenerators;
+
+/**
+ * Structured event log for the packet path. <br />
+ * An event is a code from the table below, the sender's address, and two
+ * numbers; logging one claims a slot in a preallocated ring and stores four
+ * longs, so it costs nanoseconds and never blocks or allocates. A drainer
+ * thread writes the records to a binary file (decoded to text by
+ * EventLogDecoder) and echoes those at or above the console level to
+ * System.out, off the packet path. If the ring is full the event is dropped and
+ * counted, rather than holding up the packet. <br />
+ * Each event belongs to a category with its own level; events below their
+ * category's level are not recorded at all.
+ * <p>
+ * File format (big-endian): a header of magic, version, wall clock ms and
+ * System.nanoTime at start, then 32 byte records of nanoTime, event code
+ * (upper 32 bits) and IPv4 sender (lower 32 bits), and the two numbers.
+ */
+public class EventLog {
+
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int OFF = 3;
+	static final String[] LEVELS = { "debug", "info", "warn", "off" };
+
+	public static final int INPUT = 0;
+	public static final int SESSION = 1;
+	public static final int EFFECT = 2;
+	public static final int NETWORK = 3;
+	public static final int SERVER = 4;
+	static final String[] CATEGORIES = { "input", "session", "effect", "network", "server" };
+
+	/** button press (a: button code) */
+	public static final int BUTTON = 0;
+	/** joystick sample (a: x, b: y) */
+	public static final int JOYSTICK = 1;
+	/** gyro range seen in party mode (a: min, b: max) */
+	public static final int GYRO_RANGE = 2;
+	/** scene recalled (a: scene index) */
+	public static final int SCENE = 3;
+	/** session in a state with no handler (a: state) */
+	public static final int STATE_OUT_OF_BOUNDS = 4;
+	/** data the current state doesn't take (a: data type, b: state) */
+	public static final int UNEXPECTED_DATA = 5;
+	/** party effect changed (a: effect index) */
+	public static final int PARTY_EFFECT = 6;
+	/** chase not started (a: scene count) */
+	public static final int CHASE_TOO_FEW_SCENES = 7;
+	/** poll received by a session */
+	public static final int POLL = 8;
+	/** unknown packet type (a: packet type) */
+	public static final int UNKNOWN_PACKET = 9;
+	/** packet that did not parse */
+	public static final int INVALID_PACKET = 10;
+	/** new controller session */
+	public static final int NEW_SESSION = 11;
+	/** controller stopped answering polls */
+	public static final int DISCONNECTED = 12;
+	/** controller answering again */
+	public static final int RECONNECTED = 13;
+	/** controller reported an error code (a: code) */
+	public static final int ERROR_CODE = 14;
+	/** heartbeat to send after the server stopped */
+	public static final int HEARTBEAT_STOPPED = 15;
+	/** events dropped because the ring was full (a: dropped so far) */
+	public static final int LOG_DROPPED = 16;
+	/** step undone (a: steps left to undo, b: 0 if there was nothing to undo) */
+	public static final int UNDO = 17;
+	/** step redone (a: steps left to redo, b: 0 if there was nothing to redo) */
+	public static final int REDO = 18;
+	/** palette applied to the selection (a: palette index, b: driver writes) */
+	public static final int PALETTE = 19;
+	/** palette recorded from the selection (a: palette index, b: fixture types) */
+	public static final int PALETTE_RECORDED = 20;
+	/** replication node took over as active (a: epoch, b: microseconds of silence before) */
+	public static final int REPLICATION_ACTIVE = 21;
+	/** replication node stepped down for another active node (a: epoch, b: rank of the active node) */
+	public static final int REPLICATION_STANDBY = 22;
+
+	private static final int[] CATEGORY_OF = { INPUT, INPUT, INPUT, SESSION, SESSION, SESSION, EFFECT, EFFECT,
+			NETWORK, NETWORK, NETWORK, NETWORK, NETWORK, NETWORK, NETWORK, NETWORK, SERVER, SESSION, SESSION, SESSION, SESSION,
+			SERVER, SERVER };
+	private static final int[] LEVEL_OF = { DEBUG, DEBUG, DEBUG, INFO, WARN, WARN, INFO, WARN, DEBUG, WARN, WARN,
+			INFO, INFO, INFO, WARN, WARN, WARN, INFO, INFO, INFO, INFO, WARN, WARN };
+
+	/**
+	 * Records in the ring (power of two)
+	 */
+	private static final int RING_SIZE = 1 << 14;
+	private static final int MASK = RING_SIZE - 1;
+	static final int RECORD_SIZE = 32;
+	static final int MAGIC = 0x43484c47;
+	static final int VERSION = 1;
+
+	private static final long[] ring = new long[RING_SIZE * 4];
+
+	/**
+	 * Sequence + 1 of the record in each slot once it is written
+	 */
+	private static final AtomicLongArray published = new AtomicLongArray(RING_SIZE);
+	private static final AtomicLong claimed = new AtomicLong();
+	private static volatile long drained = 0;
+	private static final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Level per category, replaced (not changed) when a level is set
+	 */
+	private static volatile int[] levels = { DEBUG, DEBUG, DEBUG, DEBUG, DEBUG };
+	private static volatile int consoleLevel = INFO;
+
+	private static Drainer drainer = null;
+
+	private EventLog() {
+	}
+
+	/**
+	 * Log an event with no numbers.
+	 *
+	 * @param event
+	 *            event code
+	 * @param from
+	 *            sender, or null
+	 */
+	public static void log(int event, InetAddress from) {
+		log(event, from, 0, 0);
+	}
+
+	/**
+	 * Log an event with one number.
+	 *
+	 * @param event
+	 *            event code
+	 * @param from
+	 *            sender, or null
+	 * @param a
+	 *            first number
+	 */
+	public static void log(int event, InetAddress from, long a) {
+		log(event, from, a, 0);
+	}
+
+	/**
+	 * Log an event, unless its category's level is above the event's. Safe
+	 * from any thread.
+	 *
+	 * @param event
+	 *            event code
+	 * @param from
+	 *            sender, or null
+	 * @param a
+	 *            first number
+	 * @param b
+	 *            second number
+	 */
+	public static void log(int event, InetAddress from, long a, long b) {
+		if (LEVEL_OF[event] < levels[CATEGORY_OF[event]])
+			return;
+		// an IPv4 address hashes to its own 32 bits, without copying them out
+		append(event, from == null ? 0 : from.hashCode(), a, b);
+	}
+
+	private static void append(int event, int ip, long a, long b) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - drained >= RING_SIZE) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+
+		int slot = (int) (seq & MASK);
+		int base = slot * 4;
+		ring[base] = System.nanoTime();
+		ring[base + 1] = ((long) event << 32) | (ip & 0xffffffffL);
+		ring[base + 2] = a;
+		ring[base + 3] = b;
+		published.lazySet(slot, seq + 1);
+	}
+
+	/**
+	 * Start draining the ring into a file (truncated first), and echoing to the
+	 * console. If the file can't be opened the events still go to the console.
+	 *
+	 * @param file
+	 *            log file, or null for the console only
+	 * @throws IOException
+	 *             if unable to open the file (the console echo is started
+	 *             anyway)
+	 */
+	public static synchronized void start(Path file) throws IOException {
+		if (drainer != null)
+			return;
+		FileChannel out = null;
+		IOException failed = null;
+		if (file != null) {
+			try {
+				out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (IOException ex) {
+				failed = ex;
+			}
+		}
+		drainer = new Drainer(out);
+		drainer.start();
+		if (failed != null)
+			throw failed;
+	}
+
+	/**
+	 * Drain what is left, then stop the drainer and close the file.
+	 */
+	public static synchronized void stop() {
+		if (drainer == null)
+			return;
+		drainer.redrum();
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		drainer = null;
+	}
+
+	/**
+	 * Set the level of a category: its events below the level are not recorded.
+	 *
+	 * @param category
+	 *            category, or -1 for all
+	 * @param level
+	 *            DEBUG, INFO, WARN, or OFF
+	 */
+	public static synchronized void setLevel(int category, int level) {
+		int[] next = levels.clone();
+		for (int i = 0; i < next.length; i++) {
+			if (category < 0 || category == i)
+				next[i] = level;
+		}
+		levels = next;
+	}
+
+	/**
+	 * Set the lowest level echoed to the console (recorded events below it only
+	 * go to the file).
+	 *
+	 * @param level
+	 *            DEBUG, INFO, WARN, or OFF
+	 */
+	public static void setConsoleLevel(int level) {
+		consoleLevel = level;
+	}
+
+	/**
+	 * Look up a level by name.
+	 *
+	 * @param name
+	 *            debug, info, warn, or off
+	 * @return level, or -1 if unknown
+	 */
+	public static int parseLevel(String name) {
+		return indexOf(LEVELS, name);
+	}
+
+	/**
+	 * Look up a category by name.
+	 *
+	 * @param name
+	 *            input, session, effect, network, or server ("all" gives -1)
+	 * @return category, -1 for all, or -2 if unknown
+	 */
+	public static int parseCategory(String name) {
+		if (name.equalsIgnoreCase("all"))
+			return -1;
+		int category = indexOf(CATEGORIES, name);
+		return category < 0 ? -2 : category;
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(name))
+				return i;
+		}
+		return -1;
+	}
+
+	static int categoryOf(int event) {
+		return event >= 0 && event < CATEGORY_OF.length ? CATEGORY_OF[event] : SERVER;
+	}
+
+	static int levelOf(int event) {
+		return event >= 0 && event < LEVEL_OF.length ? LEVEL_OF[event] : WARN;
+	}
+
+	/**
+	 * Text for an event (without time or sender).
+	 */
+	static String describe(int event, long a, long b) {
+		switch (event) {
+		case BUTTON:
+			return buttonName((byte) a);
+		case JOYSTICK:
+			return "[" + a + ", " + b + "]";
+		case GYRO_RANGE:
+			return "gyro range " + a + " " + b;
+		case SCENE:
+			return "scene " + a;
+		case STATE_OUT_OF_BOUNDS:
+			return "State out of bounds! (" + a + ")";
+		case UNEXPECTED_DATA:
+			return "Panic: data type " + a + " in state " + b;
+		case PARTY_EFFECT:
+			if (a == 0)
+				return "Party effect: gyro";
+			if (a == 1)
+				return "Party effect: audio";
+			if (a - 2 < PixelGenerators.ALL.length)
+				return "Party effect: " + PixelGenerators.ALL[(int) a - 2].getName();
+			return "Party effect: " + a;
+		case CHASE_TOO_FEW_SCENES:
+			return "Can't play a chase with " + a + " scenes";
+		case POLL:
+			return "Poll";
+		case UNKNOWN_PACKET:
+			return "Unknown packet type " + a;
+		case INVALID_PACKET:
+			return "Received invalid packet";
+		case NEW_SESSION:
+			return "New controller session";
+		case DISCONNECTED:
+			return "Controller disconnected";
+		case RECONNECTED:
+			return "Controller reconnected";
+		case ERROR_CODE:
+			return "Controller error code " + a;
+		case HEARTBEAT_STOPPED:
+			return "Server not Running";
+		case LOG_DROPPED:
+			return "event log full, " + a + " events dropped so far";
+		case UNDO:
+			return b == 0 ? "nothing to undo" : "undo, " + a + " steps left";
+		case REDO:
+			return b == 0 ? "nothing to redo" : "redo, " + a + " steps left";
+		case PALETTE:
+			return "palette " + a + ", " + b + " writes";
+		case PALETTE_RECORDED:
+			return "palette " + a + " recorded from " + b + " fixture types";
+		case REPLICATION_ACTIVE:
+			return String.format("Replication: active (epoch %d) after %.1f ms of silence", a, b / 1000.0);
+		case REPLICATION_STANDBY:
+			return "Replication: standing by for rank " + b + " (epoch " + a + ")";
+		default:
+			return "event " + event + " (" + a + ", " + b + ")";
+		}
+	}
+
+	private static String buttonName(byte button) {
+		switch (button) {
+		case Connection.UP:
+			return "up";
+		case Connection.DOWN:
+			return "down";
+		case Connection.LEFT:
+			return "left";
+		case Connection.RIGHT:
+			return "right";
+		case Connection.B1:
+			return "b1";
+		case Connection.B2:
+			return "b2";
+		case Connection.PS2:
+			return "ps2";
+		case Connection.PS2_LONG:
+			return "ps2 long";
+		case Connection.B12:
+			return "b12";
+		case Connection.KONAMI:
+			return "ko";
+		case Connection.REV_KONAMI:
+			return "rko";
+		default:
+			return "button " + button;
+		}
+	}
+
+	/**
+	 * Dotted quad of a sender stored in a record.
+	 */
+	static String address(int ip) {
+		return (ip >>> 24) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+	}
+
+	/**
+	 * Describe the log: levels, console level, and counters.
+	 *
+	 * @return multi-line summary
+	 */
+	public static String getInfo() {
+		StringBuilder sb = new StringBuilder();
+		int[] current = levels;
+		for (int i = 0; i < CATEGORIES.length; i++)
+			sb.append(CATEGORIES[i]).append('=').append(LEVELS[current[i]]).append(' ');
+		sb.append("console=").append(LEVELS[consoleLevel]).append('\n');
+		sb.append("events logged ").append(claimed.get()).append(", waiting ").append(claimed.get() - drained)
+				.append('/').append(RING_SIZE).append(", dropped ").append(dropped.get());
+		sb.append(drainer == null ? ", not draining" : drainer.getInfo());
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the ring to the file and the console.
+	 */
+	private static class Drainer extends Thread {
+		private static final long IDLE_PARK = 1000000L;
+
+		private FileChannel out;
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 2048);
+		private volatile boolean running = true;
+		private long reportedDrops = 0;
+		private long written = 0;
+
+		private Drainer(FileChannel out) {
+			super("event log");
+			setDaemon(true);
+			this.out = out;
+			if (out != null) {
+				buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				if (drain() > 0)
+					continue;
+				flush();
+				if (!running)
+					break;
+				LockSupport.parkNanos(IDLE_PARK);
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Take up to a buffer full of records off the ring.
+		 *
+		 * @return number of records taken
+		 */
+		private int drain() {
+			int count = 0;
+			while (buffer.remaining() >= 2 * RECORD_SIZE) {
+				long seq = drained;
+				int slot = (int) (seq & MASK);
+				if (published.get(slot) != seq + 1)
+					break;
+				int base = slot * 4;
+				long time = ring[base];
+				long header = ring[base + 1];
+				long a = ring[base + 2];
+				long b = ring[base + 3];
+				// the slot is free to reuse once the record is copied out
+				drained = seq + 1;
+				record(time, header, a, b);
+				count++;
+			}
+
+			long drops = dropped.get();
+			if (drops != reportedDrops) {
+				reportedDrops = drops;
+				record(System.nanoTime(), (long) LOG_DROPPED << 32, drops, 0);
+			}
+			return count;
+		}
+
+		private void record(long time, long header, long a, long b) {
+			if (out != null)
+				buffer.putLong(time).putLong(header).putLong(a).putLong(b);
+			written++;
+
+			int event = (int) (header >>> 32);
+			if (levelOf(event) >= consoleLevel) {
+				int ip = (int) header;
+				System.out.println(ip == 0 ? describe(event, a, b) : address(ip) + ": " + describe(event, a, b));
+			}
+		}
+
+		private void flush() {
+			if (out == null || buffer.position() == 0)
+				return;
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining())
+					out.write(buffer);
+			} catch (IOException e) {
+				// keep echoing to the console without the file
+				e.printStackTrace();
+				try {
+					out.close();
+				} catch (IOException e1) {
+					// closing anyway
+				}
+				out = null;
+			}
+			buffer.clear();
+		}
+
+		private void redrum() {
+			running = false;
+			LockSupport.unpark(this);
+		}
+
+		private String getInfo() {
+			return ", drained " + written + (out == null ? " (console only)" : " to file");
+		}
+	}
+}
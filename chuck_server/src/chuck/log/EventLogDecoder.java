@@ -0,0 +1,85 @@
+package chuck.log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import chuck.defines.Filepaths;
+
+/**
+ * Prints a binary event log (see EventLog) as text, one line per event: wall
+ * clock time to the microsecond, level, category, sender, and the event. <br />
+ * Usage: EventLogDecoder [-level debug|info|warn] [file], the file defaulting
+ * to Filepaths.EVENT_LOG_FILE and the level to debug (everything).
+ */
+public class EventLogDecoder {
+
+	public static void main(String[] args) {
+		String file = Filepaths.EVENT_LOG_FILE;
+		int minLevel = EventLog.DEBUG;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-level") && i + 1 < args.length) {
+				minLevel = EventLog.parseLevel(args[++i]);
+				if (minLevel < 0) {
+					System.out.println("unknown level " + args[i]);
+					System.exit(-1);
+				}
+			} else
+				file = args[i];
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(file))))) {
+			if (in.readInt() != EventLog.MAGIC) {
+				System.out.println(file + " is not an event log");
+				System.exit(-1);
+			}
+			int version = in.readInt();
+			if (version != EventLog.VERSION) {
+				System.out.println(file + " is version " + version + ", expected " + EventLog.VERSION);
+				System.exit(-1);
+			}
+			long startMillis = in.readLong();
+			long startNanos = in.readLong();
+
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+			long count = 0;
+			while (true) {
+				long time;
+				try {
+					time = in.readLong();
+				} catch (EOFException ex) {
+					break;
+				}
+				long header = in.readLong();
+				long a = in.readLong();
+				long b = in.readLong();
+
+				int event = (int) (header >>> 32);
+				int level = EventLog.levelOf(event);
+				if (level < minLevel)
+					continue;
+				count++;
+
+				long sinceStart = time - startNanos;
+				long wallMicros = startMillis * 1000 + Math.floorDiv(sinceStart, 1000L);
+				String when = format.format(new Date(Math.floorDiv(wallMicros, 1000L)))
+						+ String.format("%03d", Math.floorMod(wallMicros, 1000L));
+				int ip = (int) header;
+				System.out.printf("%s %-5s %-8s %-15s %s\n", when, EventLog.LEVELS[level],
+						EventLog.CATEGORIES[EventLog.categoryOf(event)], ip == 0 ? "-" : EventLog.address(ip),
+						EventLog.describe(event, a, b));
+			}
+			System.out.println(count + " events");
+		} catch (EOFException ex) {
+			System.out.println(file + " ends in the middle of a record");
+		} catch (IOException ex) {
+			System.out.println("unable to read " + file + " (" + ex.getMessage() + ")");
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package chuck.osc;
+
+import java.net.InetAddress;
+
+import chuck.defines.OscAddresses;
+import chuck.defines.WirelessCommand;
+
+/**
+ * Keeps only the newest fader message per OSC address, so a tablet streaming
+ * fader moves can't keep the event loop busy on stale positions. Works like
+ * SensorConflator: while the loop drains the OSC socket, each single-message
+ * fader packet is stored in its address's entry and marked pending, and the
+ * pending entries are handled before the next packet that isn't a fader
+ * message. <br />
+ * Bundles are never conflated, their messages are meant to be applied
+ * together and in order. <br />
+ * Only used on the event loop.
+ */
+public class OscConflator {
+
+	/**
+	 * Largest fader message kept (a four argument message with a 32 character
+	 * address fits)
+	 */
+	private static final int SAMPLE_SIZE = 64;
+
+	private static class Entry {
+		private final byte[] address = new byte[SAMPLE_SIZE];
+		private int addressLength;
+		private InetAddress sender;
+		private int senderPort;
+
+		private final byte[] sample = new byte[SAMPLE_SIZE];
+		private int length;
+		private long receiveTime;
+
+		/**
+		 * Whether the entry holds a sample not yet handled
+		 */
+		private boolean pending = false;
+	}
+
+	private final Entry[] entries;
+	private int used = 0;
+
+	private final OscReader reader = new OscReader();
+
+	private volatile long samples = 0;
+	private volatile long conflated = 0;
+	private volatile long unmatched = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxEntries
+	 *            number of fader addresses to track; faders beyond that are
+	 *            passed through unconflated
+	 */
+	public OscConflator(int maxEntries) {
+		entries = new Entry[maxEntries];
+		for (int i = 0; i < maxEntries; i++)
+			entries[i] = new Entry();
+	}
+
+	/**
+	 * If the packet is a single fader message, store it as the newest
+	 * for its address.
+	 *
+	 * @param command
+	 *            command holding a received OSC packet
+	 * @return entry index, or -1 if the packet is not conflated (pass it
+	 *         through)
+	 */
+	public int update(WirelessCommand command) {
+		if (!reader.reset(command.getPacket()) || reader.isBundle() || !reader.next() || !isFader(reader))
+			return -1;
+		if (reader.getMessageLength() > SAMPLE_SIZE) {
+			unmatched++;
+			return -1;
+		}
+		int index = find(reader);
+		if (index < 0) {
+			unmatched++;
+			return -1;
+		}
+
+		Entry entry = entries[index];
+		entry.length = command.copyTo(entry.sample);
+		entry.receiveTime = command.getReceiveTime();
+		entry.sender = command.getSender_ip();
+		entry.senderPort = command.getSender_port();
+
+		samples++;
+		return index;
+	}
+
+	/**
+	 * Whether the reader's current message is a continuous control.
+	 *
+	 * @param reader
+	 *            reader positioned on a message
+	 * @return true if its address is one of OscAddresses.FADERS
+	 */
+	public static boolean isFader(OscReader reader) {
+		for (byte[] prefix : OscAddresses.FADERS) {
+			if (reader.addressStartsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Mark an entry as holding a message to handle.
+	 *
+	 * @param index
+	 *            entry returned by update
+	 * @return true if the entry should be collected later, false if it was
+	 *         pending already (the older message was conflated)
+	 */
+	public boolean markPending(int index) {
+		Entry entry = entries[index];
+		if (entry.pending) {
+			conflated++;
+			return false;
+		}
+		entry.pending = true;
+		return true;
+	}
+
+	/**
+	 * Load the newest message of a pending entry into a command, and clear the
+	 * entry's pending mark.
+	 *
+	 * @param index
+	 *            entry marked pending
+	 * @param command
+	 *            command to load the message into
+	 */
+	public void collect(int index, WirelessCommand command) {
+		Entry entry = entries[index];
+		entry.pending = false;
+		command.receiveBuffer().put(entry.sample, 0, entry.length);
+		command.receivedOsc(entry.sender, entry.senderPort, entry.receiveTime);
+	}
+
+	/**
+	 * Find or claim the entry for the reader's address.
+	 */
+	private int find(OscReader reader) {
+		for (int i = 0; i < used; i++) {
+			if (reader.addressEquals(entries[i].address, entries[i].addressLength))
+				return i;
+		}
+		if (used == entries.length)
+			return -1;
+
+		int length = reader.copyAddress(entries[used].address);
+		if (length < 0)
+			return -1;
+		entries[used].addressLength = length;
+		return used++;
+	}
+
+	/**
+	 * Number of fader messages stored.
+	 *
+	 * @return message count
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Number of fader messages replaced by a newer one before being handled.
+	 *
+	 * @return conflated message count
+	 */
+	public long getConflated() {
+		return conflated;
+	}
+
+	/**
+	 * Number of fader messages passed through because the table was full.
+	 *
+	 * @return unconflated message count
+	 */
+	public long getUnmatched() {
+		return unmatched;
+	}
+}
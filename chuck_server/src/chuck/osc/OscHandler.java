@@ -0,0 +1,135 @@
+package chuck.osc;
+
+import java.io.IOException;
+
+import chuck.defines.LightingDefines;
+import chuck.defines.OscAddresses;
+import chuck.defines.WirelessCommand;
+import chuck.threads.DirectSession;
+import chuck.threads.LatencyTracker;
+
+/**
+ * Carries out the OSC packets the event loop reads from the OSC port. The
+ * messages (see OscAddresses) are carried out through one DirectSession shared
+ * by all OSC senders, so OSC selections are claimed like a controller's. <br />
+ * Only called from the event loop.
+ */
+public class OscHandler {
+
+	private OscReader reader = new OscReader();
+	private DirectSession session;
+	private LatencyTracker latency;
+
+	private volatile long messages = 0;
+	private volatile long ignored = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param session
+	 *            session carrying out the messages
+	 * @param latency
+	 *            tracker timing each packet and its driver writes
+	 */
+	public OscHandler(DirectSession session, LatencyTracker latency) {
+		this.session = session;
+		this.latency = latency;
+	}
+
+	/**
+	 * Carry out each message of a packet (or bundle), in order.
+	 *
+	 * @param command
+	 *            command holding a received OSC packet
+	 */
+	public void handle(WirelessCommand command) {
+		if (!reader.reset(command.getPacket())) {
+			ignored++;
+			return;
+		}
+
+		latency.begin(command);
+		while (reader.next())
+			handle(reader);
+		latency.end();
+	}
+
+	/**
+	 * Carry out the message the reader is on.
+	 */
+	private void handle(OscReader message) {
+		messages++;
+		try {
+			if (message.addressStartsWith(OscAddresses.CHANNEL)) {
+				int address = message.addressNumber(OscAddresses.CHANNEL.length);
+				if (address < 1 || address > 512 || message.getArgCount() < 1)
+					ignored++;
+				else
+					session.setChannel(address, message.getLevel(0));
+			} else if (message.addressEquals(OscAddresses.DIMMER)) {
+				session.setSelectedDimmer(message.getLevel(0));
+			} else if (message.addressEquals(OscAddresses.COLOR) && message.getArgCount() >= 3) {
+				session.setSelectedColor(message.getLevel(0) << 16 | message.getLevel(1) << 8 | message.getLevel(2));
+			} else if (message.addressEquals(OscAddresses.CHASE_SPEED)) {
+				// exponential, so the fader has as much travel for fast chases as for slow ones
+				float speed = Math.max(0f, Math.min(1f, message.getFloat(0)));
+				session.setChaseDelay((int) Math.round(LightingDefines.MAX_CHASE_DELAY
+						* Math.pow((double) LightingDefines.MIN_CHASE_DELAY / LightingDefines.MAX_CHASE_DELAY, speed)));
+			} else if (message.addressEquals(OscAddresses.SCENE_NEXT)) {
+				if (pressed(message))
+					session.nextScene();
+			} else if (message.addressEquals(OscAddresses.SCENE_PREV)) {
+				if (pressed(message))
+					session.lastScene();
+			} else if (message.addressEquals(OscAddresses.SCENE_RECALL)) {
+				session.recallScene(message.getInt(0));
+			} else if (message.addressEquals(OscAddresses.CHASE_START)) {
+				if (pressed(message))
+					session.startChase(message.getType(0) == 'i' ? message.getInt(0) : 100);
+			} else if (message.addressEquals(OscAddresses.CHASE_STOP)) {
+				if (pressed(message))
+					session.stopChase();
+			} else if (message.addressEquals(OscAddresses.CHASE_TAP)) {
+				if (pressed(message))
+					session.tap();
+			} else if (message.addressEquals(OscAddresses.SELECT)) {
+				int[] indices = new int[Math.min(message.getArgCount(), OscReader.MAX_ARGS)];
+				for (int i = 0; i < indices.length; i++)
+					indices[i] = message.getInt(i);
+				session.select(indices);
+			} else {
+				ignored++;
+			}
+		} catch (IllegalArgumentException ex) {
+			// out of range fixture, scene, or value
+			ignored++;
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Buttons send a non-zero value when pressed and zero when released; a
+	 * message without arguments is a press.
+	 */
+	private static boolean pressed(OscReader message) {
+		return message.getArgCount() == 0 || message.getFloat(0) != 0;
+	}
+
+	/**
+	 * Stop the chase and release the OSC selection.
+	 */
+	public void close() {
+		session.close();
+	}
+
+	/**
+	 * Describe the OSC intake: messages handled and ignored.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		return "osc messages " + messages + ", ignored " + ignored;
+	}
+}
@@ -0,0 +1,388 @@
+package chuck.osc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the messages of an OSC packet in place, bundles included, without
+ * allocating. One reader is reused for every packet: reset() it onto a packet,
+ * then call next() for each message and read the address and arguments of the
+ * current one. <br />
+ * Nested bundles are walked depth first, up to MAX_DEPTH deep; time tags are
+ * ignored (everything is handled on arrival). Malformed messages are skipped, a
+ * malformed bundle ends the packet.
+ */
+public class OscReader {
+
+	/**
+	 * Deepest bundle nesting read
+	 */
+	public static final int MAX_DEPTH = 4;
+
+	/**
+	 * Arguments per message that can be read; further ones are counted but not
+	 * readable
+	 */
+	public static final int MAX_ARGS = 8;
+
+	private static final byte[] BUNDLE = { '#', 'b', 'u', 'n', 'd', 'l', 'e', 0 };
+	private static final int BUNDLE_HEADER = 16;
+
+	private ByteBuffer packet;
+	private boolean bundle;
+
+	/**
+	 * Ends of the enclosing elements while inside a bundle
+	 */
+	private final int[] ends = new int[MAX_DEPTH + 1];
+	private int depth;
+	private int next;
+	private int end;
+
+	// current message
+	private int messageStart;
+	private int messageEnd;
+	private int addressStart;
+	private int addressEnd;
+	private int typesStart;
+	private int argCount;
+	private final int[] argOffsets = new int[MAX_ARGS];
+
+	/**
+	 * Start reading a packet.
+	 *
+	 * @param packet
+	 *            buffer holding the packet from 0 to its limit (not modified)
+	 * @return true if the packet looks like OSC (a message or a bundle)
+	 */
+	public boolean reset(ByteBuffer packet) {
+		this.packet = packet;
+		depth = 0;
+		next = 0;
+		end = packet.limit();
+		argCount = 0;
+		bundle = isBundle(0, end);
+		return bundle || (end >= 4 && packet.get(0) == '/');
+	}
+
+	/**
+	 * Advance to the next message.
+	 *
+	 * @return true if positioned on a message, false at the end of the packet
+	 */
+	public boolean next() {
+		while (true) {
+			int start;
+			int stop;
+			if (depth == 0) {
+				if (next >= end)
+					return false;
+				// the packet itself is the only top level element
+				start = next;
+				stop = end;
+				next = end;
+			} else {
+				if (next + 4 > end) {
+					// done with this bundle, back to the enclosing one
+					next = end;
+					end = ends[--depth];
+					continue;
+				}
+				int size = readInt(next);
+				start = next + 4;
+				// compared without adding, a size near Integer.MAX_VALUE would wrap
+				if (size < 0 || (size & 3) != 0 || size > end - start)
+					return false;
+				stop = start + size;
+				next = stop;
+			}
+
+			if (isBundle(start, stop)) {
+				if (depth == MAX_DEPTH || stop - start < BUNDLE_HEADER)
+					return false;
+				ends[depth++] = end;
+				end = stop;
+				next = start + BUNDLE_HEADER;
+				continue;
+			}
+			if (parseMessage(start, stop))
+				return true;
+		}
+	}
+
+	private boolean isBundle(int start, int stop) {
+		if (stop - start < BUNDLE.length)
+			return false;
+		for (int i = 0; i < BUNDLE.length; i++) {
+			if (packet.get(start + i) != BUNDLE[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the address, type tags, and argument offsets of the message in
+	 * [start:stop).
+	 */
+	private boolean parseMessage(int start, int stop) {
+		if (stop - start < 4 || packet.get(start) != '/')
+			return false;
+		int nul = find0(start, stop);
+		if (nul < 0)
+			return false;
+		messageStart = start;
+		messageEnd = stop;
+		addressStart = start;
+		addressEnd = nul;
+		argCount = 0;
+
+		typesStart = pad(start, nul + 1);
+		if (typesStart >= stop || packet.get(typesStart) != ',') {
+			// no type tag string, read as no arguments
+			typesStart = -1;
+			return true;
+		}
+		int typesEnd = find0(typesStart, stop);
+		if (typesEnd < 0)
+			return false;
+
+		int offset = pad(start, typesEnd + 1);
+		for (int tag = typesStart + 1; tag < typesEnd; tag++) {
+			if (argCount < MAX_ARGS)
+				argOffsets[argCount] = offset;
+			switch (packet.get(tag)) {
+			case 'i':
+			case 'f':
+			case 'c':
+			case 'r':
+			case 'm':
+				offset += 4;
+				break;
+			case 'h':
+			case 'd':
+			case 't':
+				offset += 8;
+				break;
+			case 's':
+			case 'S':
+				int nulAt = find0(offset, stop);
+				if (nulAt < 0)
+					return false;
+				offset = pad(start, nulAt + 1);
+				break;
+			case 'b':
+				if (offset + 4 > stop)
+					return false;
+				int blobSize = readInt(offset);
+				if (blobSize < 0 || blobSize > stop - offset - 4)
+					return false;
+				offset = pad(start, offset + 4 + blobSize);
+				break;
+			case 'T':
+			case 'F':
+			case 'N':
+			case 'I':
+				break;
+			default:
+				// unknown type, the rest can't be located
+				return false;
+			}
+			if (offset > stop)
+				return false;
+			argCount++;
+		}
+		return true;
+	}
+
+	private int find0(int from, int stop) {
+		for (int i = from; i < stop; i++) {
+			if (packet.get(i) == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Round an offset up to the next multiple of four from the message start.
+	 */
+	private static int pad(int start, int offset) {
+		return start + ((offset - start + 3) & ~3);
+	}
+
+	private int readInt(int offset) {
+		return (packet.get(offset) & 0xff) << 24 | (packet.get(offset + 1) & 0xff) << 16
+				| (packet.get(offset + 2) & 0xff) << 8 | (packet.get(offset + 3) & 0xff);
+	}
+
+	/**
+	 * Whether the packet is a bundle (rather than a single message).
+	 *
+	 * @return true for a bundle
+	 */
+	public boolean isBundle() {
+		return bundle;
+	}
+
+	/**
+	 * Check the current message's address.
+	 *
+	 * @param address
+	 *            ASCII address
+	 * @return true if it is exactly the address
+	 */
+	public boolean addressEquals(byte[] address) {
+		return addressEnd - addressStart == address.length && addressStartsWith(address);
+	}
+
+	/**
+	 * Check the start of the current message's address.
+	 *
+	 * @param prefix
+	 *            ASCII address prefix
+	 * @return true if the address starts with prefix
+	 */
+	public boolean addressStartsWith(byte[] prefix) {
+		if (addressEnd - addressStart < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (packet.get(addressStart + i) != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the number ending the current message's address (e.g. 12 in
+	 * /chuck/channel/12).
+	 *
+	 * @param from
+	 *            number of address characters before the number
+	 * @return the number, or -1 if the rest of the address is not a number
+	 */
+	public int addressNumber(int from) {
+		int start = addressStart + from;
+		if (start >= addressEnd || addressEnd - start > 9)
+			return -1;
+		int number = 0;
+		for (int i = start; i < addressEnd; i++) {
+			byte digit = packet.get(i);
+			if (digit < '0' || digit > '9')
+				return -1;
+			number = number * 10 + digit - '0';
+		}
+		return number;
+	}
+
+	/**
+	 * Compare the current message's address with the stored address of another.
+	 *
+	 * @param address
+	 *            array holding an address
+	 * @param length
+	 *            address length
+	 * @return true if they are the same address
+	 */
+	public boolean addressEquals(byte[] address, int length) {
+		if (addressEnd - addressStart != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (packet.get(addressStart + i) != address[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the current message's address out.
+	 *
+	 * @param address
+	 *            array receiving the address
+	 * @return address length, or -1 if it does not fit
+	 */
+	public int copyAddress(byte[] address) {
+		int length = addressEnd - addressStart;
+		if (length > address.length)
+			return -1;
+		for (int i = 0; i < length; i++)
+			address[i] = packet.get(addressStart + i);
+		return length;
+	}
+
+	/**
+	 * Number of bytes the current message takes in the packet.
+	 *
+	 * @return message length
+	 */
+	public int getMessageLength() {
+		return messageEnd - messageStart;
+	}
+
+	public int getArgCount() {
+		return argCount;
+	}
+
+	/**
+	 * Type tag of an argument.
+	 *
+	 * @param index
+	 *            argument index
+	 * @return type tag ('i', 'f', 's', ...), or 0 if there is no such argument
+	 */
+	public char getType(int index) {
+		if (index < 0 || index >= argCount || typesStart < 0)
+			return 0;
+		return (char) packet.get(typesStart + 1 + index);
+	}
+
+	/**
+	 * Read a numeric argument as a float. Ints are converted, true and false
+	 * read as 1 and 0.
+	 *
+	 * @param index
+	 *            argument index
+	 * @return argument value, or 0 if it is missing or not numeric
+	 */
+	public float getFloat(int index) {
+		if (index >= MAX_ARGS)
+			return 0;
+		switch (getType(index)) {
+		case 'f':
+			return Float.intBitsToFloat(readInt(argOffsets[index]));
+		case 'i':
+			return readInt(argOffsets[index]);
+		case 'd':
+			return (float) Double.longBitsToDouble(
+					(long) readInt(argOffsets[index]) << 32 | (readInt(argOffsets[index] + 4) & 0xffffffffL));
+		case 'T':
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Read a numeric argument as an int. Floats are rounded.
+	 *
+	 * @param index
+	 *            argument index
+	 * @return argument value, or 0 if it is missing or not numeric
+	 */
+	public int getInt(int index) {
+		if (index < MAX_ARGS && getType(index) == 'i')
+			return readInt(argOffsets[index]);
+		return Math.round(getFloat(index));
+	}
+
+	/**
+	 * Read a level argument as a dmx value: floats are taken as within [0:1]
+	 * (fader style), ints as within [0:255]. Clamped either way.
+	 *
+	 * @param index
+	 *            argument index
+	 * @return value within [0:255]
+	 */
+	public int getLevel(int index) {
+		if (getType(index) == 'i')
+			return Math.max(0, Math.min(255, getInt(index)));
+		return Math.round(Math.max(0f, Math.min(1f, getFloat(index))) * 255);
+	}
+}
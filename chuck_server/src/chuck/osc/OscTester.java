@@ -0,0 +1,123 @@
+package chuck.osc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Feeds OscReader well formed and malformed packets and checks what it reads:
+ * messages and nested bundles are walked in order, and packets with sizes that
+ * run past their end (including sizes near Integer.MAX_VALUE, which would wrap
+ * if added to an offset) are skipped without throwing.
+ */
+public class OscTester {
+
+	private static final OscReader reader = new OscReader();
+
+	public static void main(String[] args) {
+		boolean pass = true;
+
+		byte[] fader = message("/chuck/fader/3", ",f", floatArg(0.5f));
+		pass &= check("message", ByteBuffer.wrap(fader), "/chuck/fader/3");
+
+		byte[] blob = message("/x", ",bs", blobArg(new byte[] { 1, 2, 3 }), stringArg("hi"));
+		pass &= check("blob and string", ByteBuffer.wrap(blob), "/x");
+
+		byte[] inner = bundle(fader);
+		pass &= check("nested bundle", ByteBuffer.wrap(bundle(blob, inner)), "/x", "/chuck/fader/3");
+
+		// blob claiming almost 2 GB
+		byte[] hugeBlob = message("/x", ",bs", intArg(0x7ffffffc), stringArg("hi"));
+		pass &= check("blob size near Integer.MAX_VALUE", ByteBuffer.wrap(hugeBlob));
+
+		// bundle element claiming almost 2 GB, followed by nothing
+		ByteBuffer hugeElement = ByteBuffer.wrap(bundle(fader));
+		hugeElement.putInt(16, 0x7ffffffc);
+		pass &= check("bundle element size near Integer.MAX_VALUE", hugeElement);
+
+		ByteBuffer negative = ByteBuffer.wrap(bundle(fader));
+		negative.putInt(16, -4);
+		pass &= check("negative bundle element size", negative);
+
+		byte[] cut = new byte[fader.length - 4];
+		System.arraycopy(fader, 0, cut, 0, cut.length);
+		pass &= check("truncated message", ByteBuffer.wrap(cut));
+
+		System.out.println(pass ? "PASS" : "FAIL");
+		System.exit(pass ? 0 : 1);
+	}
+
+	/**
+	 * Read a packet and compare the addresses of the messages read with those
+	 * expected.
+	 */
+	private static boolean check(String what, ByteBuffer packet, String... expected) {
+		StringBuilder read = new StringBuilder();
+		boolean ok = true;
+		try {
+			reader.reset(packet);
+			int count = 0;
+			byte[] address = new byte[64];
+			while (reader.next()) {
+				int length = reader.copyAddress(address);
+				String found = new String(address, 0, Math.max(length, 0), StandardCharsets.US_ASCII);
+				read.append(found).append(' ');
+				if (count >= expected.length || !found.equals(expected[count]))
+					ok = false;
+				count++;
+			}
+			if (count != expected.length)
+				ok = false;
+		} catch (RuntimeException e) {
+			read.append(e);
+			ok = false;
+		}
+		System.out.println((ok ? "ok   " : "FAIL ") + what + ": " + read.toString().trim());
+		return ok;
+	}
+
+	private static byte[] message(String address, String types, byte[]... arguments) {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		buffer.put(stringArg(address));
+		buffer.put(stringArg(types));
+		for (byte[] argument : arguments)
+			buffer.put(argument);
+		return copy(buffer);
+	}
+
+	private static byte[] bundle(byte[]... elements) {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		buffer.put("#bundle".getBytes(StandardCharsets.US_ASCII)).put((byte) 0);
+		buffer.putLong(1);
+		for (byte[] element : elements)
+			buffer.putInt(element.length).put(element);
+		return copy(buffer);
+	}
+
+	private static byte[] stringArg(String value) {
+		byte[] text = value.getBytes(StandardCharsets.US_ASCII);
+		byte[] padded = new byte[(text.length + 4) & ~3];
+		System.arraycopy(text, 0, padded, 0, text.length);
+		return padded;
+	}
+
+	private static byte[] blobArg(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + ((data.length + 3) & ~3));
+		buffer.putInt(data.length).put(data);
+		return buffer.array();
+	}
+
+	private static byte[] intArg(int value) {
+		return ByteBuffer.allocate(4).putInt(value).array();
+	}
+
+	private static byte[] floatArg(float value) {
+		return ByteBuffer.allocate(4).putFloat(value).array();
+	}
+
+	private static byte[] copy(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,795 @@
+package chuck.replication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import chuck.defines.Connection;
+import chuck.dmx.DMXDriver;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.SceneManager;
+import chuck.lighting.SceneRuns;
+import chuck.log.EventLog;
+
+/**
+ * Hot-standby replication between Chuck servers. <br />
+ * The active node sends its peers the DMX universe every
+ * REPLICATION_INTERVAL: only the 32 channel blocks that changed, with a frame
+ * sequence number, and a full snapshot every REPLICATION_SNAPSHOT_INTERVAL.
+ * Changes to the scene list are streamed as they happen, one packet each (the
+ * operation, index, and the scene's runs, with the list version after it); the
+ * whole list is only sent (in chunks) when a standby asks for it or the
+ * changes it is missing are no longer kept. The fixture set is sent whole
+ * when it changes. Standbys write the frames to their own driver as they
+ * arrive, so their output already matches when they take over; a standby that
+ * misses a frame or a scene change, or holds an old scene list or set, asks
+ * for a snapshot and the lists. <br />
+ * Frame packets double as the active node's heartbeat. A standby that hears
+ * nothing for REPLICATION_FAILOVER_TIMEOUT (plus REPLICATION_FAILOVER_STAGGER
+ * per rank, so rank 0 goes first and the others see it take over) promotes
+ * itself with the next epoch; ranks 0 and 1 take over within one DMX frame. A
+ * node that hears an active node with a later epoch (or the same epoch and a
+ * lower rank) steps down, so a partitioned or paused server rejoins as a
+ * standby.
+ * <p>
+ * Peers are unicast addresses, or a multicast group every node joins. All
+ * nodes must use the same port when multicasting.
+ */
+public class ReplicationNode extends Thread {
+
+	/**
+	 * Told when the node becomes active or steps down, so the server can be
+	 * started or stopped. Called from the replication thread.
+	 */
+	public interface RoleListener {
+		public void roleChanged(ReplicationNode node, boolean active);
+	}
+
+	private static final byte[] MAGIC = { 'C', 'K', 'R', 'P' };
+	private static final byte FRAME = 1;
+	private static final byte SNAPSHOT = 2;
+	private static final byte BLOB = 3;
+	private static final byte REQUEST = 4;
+	private static final byte SCENE_CHANGE = 5;
+
+	private static final int SCENES = 0;
+	private static final int PATCH = 1;
+
+	private static final int REQUEST_SNAPSHOT = 1;
+	private static final int REQUEST_SCENES = 2;
+	private static final int REQUEST_PATCH = 4;
+
+	/**
+	 * Magic, type, rank, two spare bytes, epoch
+	 */
+	private static final int HEADER_SIZE = 12;
+	private static final int BLOCK_SIZE = 32;
+	private static final int BLOCKS = 512 / BLOCK_SIZE;
+	private static final int MAX_PACKET_SIZE = HEADER_SIZE + 16 + Math.max(512, Connection.REPLICATION_CHUNK_SIZE);
+	private static final long NANOS_PER_MS = 1000000L;
+
+	/**
+	 * Chunked scene list or fixture set being received.
+	 */
+	private static class Blob {
+		private int epoch = -1;
+		private int version = -1;
+		private byte[] data;
+		private boolean[] have;
+		private int missing;
+
+		/**
+		 * Identity of the last complete blob applied
+		 */
+		private int appliedEpoch = -1;
+		private int appliedVersion = -1;
+
+		private boolean isApplied(int epoch, int version) {
+			return appliedEpoch == epoch && appliedVersion == version;
+		}
+	}
+
+	private final int rank;
+	private final List<InetSocketAddress> peers;
+	private final DatagramChannel channel;
+	private Selector selector;
+
+	private DMXDriver dmx;
+	private FixtureManager profiles;
+	private SceneManager sceneManager;
+	private RoleListener listener = null;
+
+	private volatile boolean running = false;
+	private volatile boolean active;
+	private volatile int epoch;
+	private volatile int activeRank;
+
+	private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+	private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+	// active side
+	private int[] sent = new int[513];
+	private long frameSeq = 0;
+	private long nextTick;
+	private long nextSnapshot;
+	private int requested = 0;
+	private int sentSceneVersion = -1;
+	private int sentPatchVersion = -1;
+
+	// standby side
+	private long lastHeard;
+	private long expectedSeq = -1;
+	private long lastRequest = 0;
+	private final Blob[] blobs = { new Blob(), new Blob() };
+	private boolean scenesChanged = false;
+
+	private volatile long framesSent = 0;
+	private volatile long framesApplied = 0;
+	private volatile long bytesSent = 0;
+	private volatile long snapshotsApplied = 0;
+	private volatile long sceneChangesSent = 0;
+	private volatile long sceneListsSent = 0;
+	private volatile long sceneChangesApplied = 0;
+	private volatile long sceneListsApplied = 0;
+	private volatile long gaps = 0;
+	private volatile long promotions = 0;
+	private volatile long lastFailoverNanos = -1;
+
+	/**
+	 * Constructor. Binds the replication port right away, so a port in use is
+	 * reported before anything starts.
+	 *
+	 * @param port
+	 *            UDP port to receive on
+	 * @param peers
+	 *            other nodes (or one multicast group) to send to
+	 * @param rank
+	 *            unique node number within [0:254]; lower ranks take over first
+	 * @param standby
+	 *            true to start as a standby, false to start as the active node
+	 * @param dmx
+	 *            dmx driver (read while active, written while standby)
+	 * @param profiles
+	 *            fixture set to send or replace
+	 * @param sceneManager
+	 *            scene list to send or replace
+	 * @throws IOException
+	 *             if unable to bind the port or join a multicast group
+	 */
+	public ReplicationNode(int port, List<InetSocketAddress> peers, int rank, boolean standby, DMXDriver dmx,
+			FixtureManager profiles, SceneManager sceneManager) throws IOException {
+		if (rank < 0 || rank > 254)
+			throw new IllegalArgumentException("rank must be within [0:254]");
+		this.rank = rank;
+		this.peers = new ArrayList<InetSocketAddress>(peers);
+		this.dmx = dmx;
+		this.profiles = profiles;
+		this.sceneManager = sceneManager;
+		active = !standby;
+		epoch = standby ? 0 : 1;
+		activeRank = standby ? -1 : rank;
+
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.bind(new InetSocketAddress(port));
+		for (InetSocketAddress peer : peers) {
+			if (peer.getAddress().isMulticastAddress())
+				joinGroup(peer);
+		}
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Join a multicast group on every interface that can.
+	 */
+	private void joinGroup(InetSocketAddress group) throws IOException {
+		boolean joined = false;
+		for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (!ni.isUp() || !ni.supportsMulticast())
+				continue;
+			try {
+				channel.join(group.getAddress(), ni);
+				joined = true;
+			} catch (IOException ex) {
+				// no IPv4 on this interface
+			}
+		}
+		if (!joined)
+			throw new IOException("unable to join " + group);
+	}
+
+	public void setRoleListener(RoleListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * While active, send frames, snapshots, and lists on schedule; while
+	 * standby, apply what the active node sends and take over when it goes
+	 * quiet. Stops when redrum is called.
+	 *
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		running = true;
+		long now = System.nanoTime();
+		lastHeard = now;
+		if (active)
+			becomeActive(now);
+
+		while (running) {
+			now = System.nanoTime();
+			if (active && now - nextTick >= 0) {
+				tick(now);
+				nextTick += Connection.REPLICATION_INTERVAL * NANOS_PER_MS;
+				if (now - nextTick >= 0)
+					// fell behind, don't send a burst to catch up
+					nextTick = now + Connection.REPLICATION_INTERVAL * NANOS_PER_MS;
+			}
+
+			long wait = active ? nextTick - now : lastHeard + failoverTimeout() - now;
+			try {
+				if (!active && wait <= 0) {
+					// this node may have been busy (e.g. syncing scenes) rather than
+					// the active node silent, read what has arrived before taking over
+					long heard = lastHeard;
+					receiveAll();
+					if (lastHeard == heard && !active)
+						promote(now);
+					continue;
+				}
+
+				selector.select(Math.max(1, (wait + NANOS_PER_MS - 1) / NANOS_PER_MS));
+				selector.selectedKeys().clear();
+				receiveAll();
+				if (scenesChanged) {
+					// keep them if this node restarts
+					scenesChanged = false;
+					sceneManager.updateSceneFile();
+				}
+			} catch (IOException ex) {
+				// TODO Auto-generated catch block
+				ex.printStackTrace();
+			}
+		}
+
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	private void receiveAll() throws IOException {
+		SocketAddress from;
+		while (running && (from = channel.receive(receiveBuffer())) != null)
+			receive(from);
+	}
+
+	private long failoverTimeout() {
+		return (Connection.REPLICATION_FAILOVER_TIMEOUT + (long) rank * Connection.REPLICATION_FAILOVER_STAGGER)
+				* NANOS_PER_MS;
+	}
+
+	private ByteBuffer receiveBuffer() {
+		in.clear();
+		return in;
+	}
+
+	/*
+	 * active side
+	 */
+
+	/**
+	 * Start sending from the current state of the driver, with a snapshot and
+	 * both lists first.
+	 */
+	private void becomeActive(long now) {
+		sent = dmx.getDmx();
+		nextTick = now;
+		nextSnapshot = now;
+		requested = REQUEST_SCENES | REQUEST_PATCH;
+	}
+
+	/**
+	 * Take over from a silent active node.
+	 */
+	private void promote(long now) {
+		lastFailoverNanos = now - lastHeard;
+		epoch++;
+		active = true;
+		activeRank = rank;
+		promotions++;
+		becomeActive(now);
+		EventLog.log(EventLog.REPLICATION_ACTIVE, null, epoch, lastFailoverNanos / 1000);
+		if (listener != null)
+			listener.roleChanged(this, true);
+	}
+
+	/**
+	 * Send the changed blocks (or an empty frame as a heartbeat), the scene
+	 * changes and fixture set if changed, then a snapshot if due. The snapshot
+	 * names the list versions sent, so it never makes a standby ask for a list
+	 * that is on its way.
+	 */
+	private void tick(long now) {
+		int[] frame = dmx.getDmx();
+
+		header(FRAME);
+		out.putLong(frameSeq++);
+		int maskPosition = out.position();
+		out.putShort((short) 0);
+		int mask = 0;
+		for (int block = 0; block < BLOCKS; block++) {
+			int first = 1 + block * BLOCK_SIZE;
+			boolean changed = false;
+			for (int address = first; address < first + BLOCK_SIZE && !changed; address++)
+				changed = frame[address] != sent[address];
+			if (!changed)
+				continue;
+			mask |= 1 << block;
+			for (int address = first; address < first + BLOCK_SIZE; address++)
+				out.put((byte) frame[address]);
+		}
+		out.putShort(maskPosition, (short) mask);
+		send();
+		sent = frame;
+		framesSent++;
+
+		if ((requested & REQUEST_SCENES) != 0 || !sendSceneChanges())
+			sendScenes();
+		int patchVersion = profiles.getVersion();
+		if (patchVersion != sentPatchVersion || (requested & REQUEST_PATCH) != 0) {
+			sendBlob(PATCH, patchVersion, encodePatch());
+			sentPatchVersion = patchVersion;
+		}
+
+		if (now - nextSnapshot >= 0 || (requested & REQUEST_SNAPSHOT) != 0) {
+			header(SNAPSHOT);
+			out.putLong(frameSeq);
+			out.putInt(sentSceneVersion);
+			out.putInt(sentPatchVersion);
+			for (int address = 1; address <= 512; address++)
+				out.put((byte) sent[address]);
+			send();
+			nextSnapshot = now + Connection.REPLICATION_SNAPSHOT_INTERVAL * NANOS_PER_MS;
+		}
+		requested = 0;
+	}
+
+	/**
+	 * Send the scene list changes made since the last ones sent, one packet
+	 * each.
+	 *
+	 * @return false if some are no longer kept, and the whole list must be sent
+	 */
+	private boolean sendSceneChanges() {
+		if (sentSceneVersion < 0)
+			return false;
+		List<SceneManager.Change> changes = sceneManager.getChangesSince(sentSceneVersion);
+		if (changes == null)
+			return false;
+		for (SceneManager.Change change : changes) {
+			header(SCENE_CHANGE);
+			out.putInt(change.getVersion());
+			out.put(change.getOp());
+			out.put((byte) 0);
+			out.putShort((short) 0);
+			out.putInt(change.getIndex());
+			SceneRuns runs = change.getRuns();
+			if (runs != null)
+				runs.write(out);
+			send();
+			sentSceneVersion = change.getVersion();
+			sceneChangesSent++;
+		}
+		return true;
+	}
+
+	/**
+	 * Send the whole scene list, as each scene's runs.
+	 */
+	private void sendScenes() {
+		ArrayList<SceneRuns> scenes = new ArrayList<SceneRuns>();
+		int version = sceneManager.getSceneRuns(scenes);
+		int size = 4;
+		for (SceneRuns scene : scenes)
+			size += scene.getEncodedSize();
+		ByteBuffer data = ByteBuffer.allocate(size);
+		data.putInt(scenes.size());
+		for (SceneRuns scene : scenes)
+			scene.write(data);
+		sendBlob(SCENES, version, data.array());
+		sentSceneVersion = version;
+		sceneListsSent++;
+	}
+
+	private byte[] encodePatch() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			profiles.writeSet(bytes);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Send a scene list or fixture set in chunks.
+	 */
+	private void sendBlob(int kind, int version, byte[] data) {
+		int chunks = Math.max(1, (data.length + Connection.REPLICATION_CHUNK_SIZE - 1) / Connection.REPLICATION_CHUNK_SIZE);
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int offset = chunk * Connection.REPLICATION_CHUNK_SIZE;
+			int length = Math.min(Connection.REPLICATION_CHUNK_SIZE, data.length - offset);
+			header(BLOB);
+			out.put((byte) kind);
+			out.put((byte) 0);
+			out.putShort((short) chunks);
+			out.putInt(version);
+			out.putInt(data.length);
+			out.putShort((short) chunk);
+			out.putShort((short) 0);
+			out.put(data, offset, length);
+			send();
+		}
+	}
+
+	private void header(byte type) {
+		out.clear();
+		out.put(MAGIC);
+		out.put(type);
+		out.put((byte) rank);
+		out.putShort((short) 0);
+		out.putInt(epoch);
+	}
+
+	/**
+	 * Send the packet in the output buffer to every peer.
+	 */
+	private void send() {
+		out.flip();
+		for (InetSocketAddress peer : peers) {
+			try {
+				bytesSent += channel.send(out, peer);
+			} catch (IOException ex) {
+				// peer down (port unreachable), keep sending to the others
+			}
+			out.rewind();
+		}
+	}
+
+	/*
+	 * receiving
+	 */
+
+	private void receive(SocketAddress from) {
+		in.flip();
+		if (in.remaining() < HEADER_SIZE)
+			return;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (in.get(i) != MAGIC[i])
+				return;
+		}
+		byte type = in.get(4);
+		int senderRank = in.get(5) & 0xff;
+		int senderEpoch = in.getInt(8);
+		in.position(HEADER_SIZE);
+		if (senderRank == rank)
+			// our own multicast
+			return;
+
+		if (type == REQUEST) {
+			if (active)
+				requested |= in.getInt();
+			return;
+		}
+
+		if (senderEpoch < epoch || (senderEpoch == epoch && activeRank >= 0 && senderRank > activeRank))
+			// an old active node that has not stepped down yet
+			return;
+		long now = System.nanoTime();
+		if (active) {
+			// someone took over from us
+			active = false;
+			EventLog.log(EventLog.REPLICATION_STANDBY, ((InetSocketAddress) from).getAddress(), senderEpoch,
+					senderRank);
+			if (listener != null)
+				listener.roleChanged(this, false);
+		}
+		if (senderEpoch != epoch || senderRank != activeRank) {
+			// new active node, resynchronize
+			epoch = senderEpoch;
+			activeRank = senderRank;
+			expectedSeq = -1;
+		}
+		lastHeard = now;
+
+		int missing = 0;
+		switch (type) {
+		case FRAME:
+			long seq = in.getLong();
+			if (expectedSeq >= 0 && seq != expectedSeq) {
+				gaps++;
+				missing |= REQUEST_SNAPSHOT;
+			} else if (expectedSeq < 0) {
+				// just joined (or a new active node), ask for everything
+				missing |= REQUEST_SNAPSHOT | REQUEST_SCENES | REQUEST_PATCH;
+			}
+			expectedSeq = seq + 1;
+			applyFrame(in.getShort() & 0xffff);
+			framesApplied++;
+			break;
+		case SNAPSHOT:
+			expectedSeq = in.getLong();
+			int sceneVersion = in.getInt();
+			int patchVersion = in.getInt();
+			applyFrame(0xffff);
+			snapshotsApplied++;
+			if (!blobs[SCENES].isApplied(epoch, sceneVersion))
+				missing |= REQUEST_SCENES;
+			if (!blobs[PATCH].isApplied(epoch, patchVersion))
+				missing |= REQUEST_PATCH;
+			break;
+		case BLOB:
+			receiveChunk();
+			break;
+		case SCENE_CHANGE:
+			if (!receiveSceneChange())
+				missing |= REQUEST_SCENES;
+			break;
+		default:
+			break;
+		}
+
+		if (missing != 0)
+			request(from, missing, now);
+	}
+
+	/**
+	 * Ask the active node for what we are missing, at most once per snapshot
+	 * interval (the next snapshot tells us if it is still missing).
+	 */
+	private void request(SocketAddress activeNode, int missing, long now) {
+		if (now - lastRequest < Connection.REPLICATION_SNAPSHOT_INTERVAL * NANOS_PER_MS && lastRequest != 0)
+			return;
+		lastRequest = now;
+		header(REQUEST);
+		out.putInt(missing);
+		out.flip();
+		try {
+			channel.send(out, activeNode);
+		} catch (IOException ex) {
+			// it will be asked again
+		}
+	}
+
+	/**
+	 * Write the blocks in the mask from the input buffer to the driver, four
+	 * channels at a time, skipping the ones that already match.
+	 */
+	private void applyFrame(int mask) {
+		int[] vals = new int[4];
+		for (int block = 0; block < BLOCKS; block++) {
+			if ((mask & (1 << block)) == 0)
+				continue;
+			if (in.remaining() < BLOCK_SIZE)
+				return;
+			int first = 1 + block * BLOCK_SIZE;
+			for (int address = first; address < first + BLOCK_SIZE; address += 4) {
+				boolean changed = false;
+				for (int i = 0; i < 4; i++) {
+					vals[i] = in.get() & 0xff;
+					changed |= vals[i] != dmx.getDMX(address + i);
+				}
+				if (!changed)
+					continue;
+				try {
+					dmx.setDMX(address, vals);
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply a scene list change, if it is the next one after the list this
+	 * node holds.
+	 *
+	 * @return false if a change was missed (or this node has no list from the
+	 *         active node yet), so the whole list is needed
+	 */
+	private boolean receiveSceneChange() {
+		if (in.remaining() < 12)
+			return true;
+		int version = in.getInt();
+		byte op = in.get();
+		in.get();
+		in.getShort();
+		int index = in.getInt();
+
+		Blob blob = blobs[SCENES];
+		if (blob.appliedEpoch != epoch)
+			return false;
+		if (version - blob.appliedVersion <= 0)
+			// already have it
+			return true;
+		if (version != blob.appliedVersion + 1) {
+			gaps++;
+			return false;
+		}
+
+		SceneRuns runs = null;
+		if (op == SceneManager.Change.ADD || op == SceneManager.Change.INSERT || op == SceneManager.Change.REPLACE) {
+			runs = SceneRuns.read(in);
+			if (runs == null)
+				return false;
+		}
+		switch (op) {
+		case SceneManager.Change.ADD:
+			sceneManager.addScene(runs.toFrame());
+			break;
+		case SceneManager.Change.INSERT:
+			sceneManager.insertScene(index, runs.toFrame());
+			break;
+		case SceneManager.Change.REPLACE:
+			sceneManager.replaceScene(index, runs.toFrame());
+			break;
+		case SceneManager.Change.DELETE:
+			sceneManager.deleteScene(index);
+			break;
+		case SceneManager.Change.CLEAR:
+			sceneManager.replaceScenes(Collections.<int[]> emptyList());
+			break;
+		default:
+			return false;
+		}
+		blob.appliedVersion = version;
+		scenesChanged = true;
+		sceneChangesApplied++;
+		return true;
+	}
+
+	private void receiveChunk() {
+		int kind = in.get();
+		in.get();
+		int chunks = in.getShort() & 0xffff;
+		int version = in.getInt();
+		int total = in.getInt();
+		int chunk = in.getShort() & 0xffff;
+		in.getShort();
+		if ((kind != SCENES && kind != PATCH) || chunk >= chunks || total < 0)
+			return;
+
+		Blob blob = blobs[kind];
+		if (blob.isApplied(epoch, version))
+			return;
+		if (blob.epoch != epoch || blob.version != version || blob.data == null || blob.data.length != total
+				|| blob.have.length != chunks) {
+			blob.epoch = epoch;
+			blob.version = version;
+			blob.data = new byte[total];
+			blob.have = new boolean[chunks];
+			blob.missing = chunks;
+		}
+		if (blob.have[chunk])
+			return;
+		int offset = chunk * Connection.REPLICATION_CHUNK_SIZE;
+		int length = Math.min(in.remaining(), total - offset);
+		if (length < 0)
+			return;
+		in.get(blob.data, offset, length);
+		blob.have[chunk] = true;
+		if (--blob.missing > 0)
+			return;
+
+		try {
+			if (kind == SCENES)
+				applyScenes(blob.data);
+			else
+				profiles.replaceSet(FixtureManager.readSet(new ByteArrayInputStream(blob.data), dmx));
+			blob.appliedEpoch = epoch;
+			blob.appliedVersion = version;
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		blob.data = null;
+	}
+
+	private void applyScenes(byte[] data) throws IOException {
+		ByteBuffer scenes = ByteBuffer.wrap(data);
+		if (scenes.remaining() < 4)
+			throw new IOException("truncated scene list");
+		int count = scenes.getInt();
+		if (count < 0 || count > scenes.remaining() / 2)
+			throw new IOException("bad scene count " + count);
+		List<int[]> list = new ArrayList<int[]>(count);
+		for (int i = 0; i < count; i++) {
+			SceneRuns scene = SceneRuns.read(scenes);
+			if (scene == null)
+				throw new IOException("bad scene " + i + " of " + count);
+			list.add(scene.toFrame());
+		}
+		sceneManager.replaceScenes(list);
+		sceneListsApplied++;
+		scenesChanged = true;
+	}
+
+	/**
+	 * Stop replicating (a node that stops sending is taken over from).
+	 */
+	public void redrum() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public int getRank() {
+		return rank;
+	}
+
+	public int getEpoch() {
+		return epoch;
+	}
+
+	public long getPromotions() {
+		return promotions;
+	}
+
+	/**
+	 * Scene list changes applied one by one while standby (rather than by
+	 * receiving the whole list).
+	 *
+	 * @return changes applied
+	 */
+	public long getSceneChangesApplied() {
+		return sceneChangesApplied;
+	}
+
+	/**
+	 * Silence from the old active node before the last takeover.
+	 *
+	 * @return nanoseconds, or -1 if this node never took over
+	 */
+	public long getLastFailoverNanos() {
+		return lastFailoverNanos;
+	}
+
+	/**
+	 * Describe the node: role, epoch, and traffic.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		if (active)
+			return String.format(
+					"replication: rank %d active, epoch %d, %d frames sent (%d bytes) to %d peers, %d scene changes and %d scene lists sent",
+					rank, epoch, framesSent, bytesSent, peers.size(), sceneChangesSent, sceneListsSent);
+		return String.format(
+				"replication: rank %d standby for rank %d, epoch %d, %d frames and %d snapshots applied, %d scene changes and %d scene lists applied, %d gaps",
+				rank, activeRank, epoch, framesApplied, snapshotsApplied, sceneChangesApplied, sceneListsApplied, gaps);
+	}
+}
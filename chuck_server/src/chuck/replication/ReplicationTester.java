@@ -0,0 +1,206 @@
+package chuck.replication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import chuck.dmx.MemoryDMX;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.FixtureProfile;
+import chuck.lighting.SceneManager;
+
+/**
+ * Runs an active server and standbys on loopback, each with its own in-memory
+ * driver, fixture set, and scene file, and checks that: the standbys follow the
+ * active node's frames, scenes, and fixtures, with scene changes streamed one
+ * by one rather than as the whole list; the first standby takes over
+ * within a DMX frame of the active node going silent, with the output
+ * unchanged; the remaining standbys follow the new active node; and the old
+ * active node catches up when it rejoins as a standby. <br />
+ * Options: -standbys n (default 2), -seconds s of changes per phase (default
+ * 2), -port first port (default 6470).
+ */
+public class ReplicationTester {
+
+	/**
+	 * Time to send one full DMX frame (break, mark, start code, 512 slots)
+	 */
+	private static final double DMX_FRAME_MS = 22.7;
+
+	private static class Server {
+		private final int port;
+		private final int rank;
+		private final MemoryDMX dmx = new MemoryDMX();
+		private final FixtureManager profiles;
+		private final SceneManager scenes;
+		private ReplicationNode node;
+
+		private Server(int port, int rank, Path sceneFile) throws IOException {
+			this.port = port;
+			this.rank = rank;
+			profiles = new FixtureManager();
+			scenes = new SceneManager(dmx.getDmx(), sceneFile);
+		}
+
+		private void start(List<Server> all, boolean standby) throws IOException {
+			List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+			for (Server other : all) {
+				if (other != this)
+					peers.add(new InetSocketAddress("127.0.0.1", other.port));
+			}
+			node = new ReplicationNode(port, peers, rank, standby, dmx, profiles, scenes);
+			node.start();
+		}
+
+		private void stop() throws InterruptedException {
+			node.redrum();
+			node.join();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int standbys = 2;
+		double seconds = 2;
+		int port = 6470;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-standbys"))
+				standbys = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-seconds"))
+				seconds = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-port"))
+				port = Integer.parseInt(args[++i]);
+		}
+
+		Path dir = Files.createTempDirectory("replication");
+		List<Server> servers = new ArrayList<Server>();
+		// standbys take ranks 0.., the active server the last rank
+		for (int rank = 0; rank <= standbys; rank++)
+			servers.add(new Server(port + rank, rank, dir.resolve("scenes" + rank)));
+		Server first = servers.get(standbys);
+		for (Server server : servers)
+			server.start(servers, server != first);
+		System.out.println("active rank " + first.rank + ", " + standbys + " standbys on ports " + port + "-"
+				+ (port + standbys));
+
+		Random random = new Random(1);
+		boolean pass = true;
+
+		// phase 1: changes on the first active server
+		drive(first, random, seconds);
+		pass &= check("following rank " + first.rank, first, servers);
+		boolean streamed = true;
+		for (Server server : servers) {
+			if (server != first)
+				streamed &= server.node.getSceneChangesApplied() > 0;
+		}
+		pass &= report(streamed, "scene changes streamed to every standby");
+
+		// phase 2: the active server goes silent
+		int[] frame = first.dmx.getDmx();
+		long silent = System.nanoTime();
+		first.stop();
+		Server next = null;
+		while (next == null && System.nanoTime() - silent < 2000000000L) {
+			for (Server server : servers) {
+				if (server != first && server.node.isActive())
+					next = server;
+			}
+			Thread.sleep(0, 100000);
+		}
+		if (next == null) {
+			System.out.println("FAIL no standby took over");
+			System.exit(1);
+		}
+		double failover = next.node.getLastFailoverNanos() / 1e6;
+		System.out.printf("rank %d took over after %.1f ms of silence (DMX frame %.1f ms)\n", next.rank, failover,
+				DMX_FRAME_MS);
+		pass &= report(next.rank == 0, "lowest rank standby took over");
+		pass &= report(failover < DMX_FRAME_MS, "failover within one DMX frame");
+		pass &= report(Arrays.equals(frame, next.dmx.getDmx()), "output unchanged by the takeover");
+
+		// phase 3: changes on the new active server
+		drive(next, random, seconds / 2);
+		List<Server> live = new ArrayList<Server>(servers);
+		live.remove(first);
+		pass &= check("following rank " + next.rank, next, live);
+
+		// phase 4: the old active server comes back as a standby
+		first.start(servers, true);
+		drive(next, random, seconds / 2);
+		pass &= check("rejoined rank " + first.rank, next, servers);
+		pass &= report(!first.node.isActive(), "rejoined server stays standby");
+
+		for (Server server : servers) {
+			if (server != first || server.node.isAlive())
+				server.stop();
+		}
+		System.out.println(pass ? "PASS" : "FAIL");
+		System.exit(pass ? 0 : 1);
+	}
+
+	/**
+	 * Change the active server's output about every DMX frame, with the scene
+	 * list changed every half second (mostly saves, sometimes a replace, insert,
+	 * or delete) and a fixture added halfway.
+	 */
+	private static void drive(Server active, Random random, double seconds) throws Exception {
+		long end = System.nanoTime() + (long) (seconds * 1e9);
+		long nextScene = System.nanoTime() + 500000000L;
+		boolean patched = false;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 8; i++)
+				active.dmx.setDMX(1 + random.nextInt(512), random.nextInt(256));
+			if (System.nanoTime() > nextScene) {
+				int count = active.scenes.getSceneCount();
+				int op = count < 2 ? 0 : random.nextInt(6);
+				if (op == 3)
+					active.scenes.replaceScene(random.nextInt(count), active.dmx.getDmx());
+				else if (op == 4)
+					active.scenes.insertScene(random.nextInt(count), active.dmx.getDmx());
+				else if (op == 5)
+					active.scenes.deleteScene(random.nextInt(count));
+				else
+					active.scenes.addScene(active.dmx.getDmx());
+				nextScene += 500000000L;
+			}
+			if (!patched && System.nanoTime() > end - (long) (seconds * 0.5e9)) {
+				int address = 1 + 4 * active.profiles.getLightCount();
+				active.profiles.addFixture(new FixtureProfile(active.dmx, "par" + address, address,
+						new String[] { "red", "green", "blue", "dimmer" }));
+				patched = true;
+			}
+			Thread.sleep(23);
+		}
+		// a few snapshot intervals for everything to settle
+		Thread.sleep(600);
+	}
+
+	private static boolean check(String phase, Server active, List<Server> servers) {
+		boolean pass = true;
+		for (Server server : servers) {
+			if (server == active)
+				continue;
+			boolean frame = Arrays.equals(active.dmx.getDmx(), server.dmx.getDmx());
+			boolean scenes = server.scenes.getSceneCount() == active.scenes.getSceneCount();
+			for (int i = 0; scenes && i < active.scenes.getSceneCount(); i++)
+				scenes = Arrays.equals(active.scenes.getSceneArray().get(i).getDmxVals(),
+						server.scenes.getSceneArray().get(i).getDmxVals());
+			boolean patch = server.profiles.toString().equals(active.profiles.toString());
+			System.out.printf("%s: rank %d frame %s, %d scenes %s, %d fixtures %s (%s)\n", phase, server.rank,
+					frame ? "ok" : "DIFFERS", server.scenes.getSceneCount(), scenes ? "ok" : "DIFFER",
+					server.profiles.getLightCount(), patch ? "ok" : "DIFFER", server.node.getInfo());
+			pass &= frame && scenes && patch;
+		}
+		return pass;
+	}
+
+	private static boolean report(boolean ok, String what) {
+		System.out.println((ok ? "ok   " : "FAIL ") + what);
+		return ok;
+	}
+}
@@ -0,0 +1,466 @@
+package chuck.sim;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import chuck.defines.Connection;
+import chuck.defines.Modes;
+import chuck.defines.WirelessCommand;
+import chuck.defines.WirelessPackets;
+import chuck.dmx.MemoryDMX;
+import chuck.dmx.TimedDMX;
+import chuck.lighting.FixtureManager;
+import chuck.threads.LatencyTracker;
+import chuck.threads.ServerAppThread;
+
+/**
+ * Load generator speaking the wireless controller protocol, for benchmarking
+ * the server without the remote. <br />
+ * Simulates any number of controllers, each sending a mix of button presses,
+ * joystick and gyro streams at set rates, or running a script. Against a
+ * loopback server each controller sends from its own 127.0.0.x address, so the
+ * server gives each one a session. Before and after the run the server is asked
+ * for its counters (a poll with Connection.STATS_QUERY_MODE), and the rate sent
+ * is reported next to the rate the server processed. <br />
+ * With -local the server runs in this process on a MemoryDMX, with a
+ * LatencyTracker on it, and the hand-off latency (a packet's receive time to
+ * the event loop taking it up) is reported per packet type at the 50th and
+ * 99th percentiles, for benchmarking the receive path on loopback. <br />
+ * Script lines (blank lines and # comments are skipped), run by every
+ * controller:
+ * <ul>
+ * <li>button &lt;name&gt; - one press: up, down, left, right, b1, b2, b12, ps2,
+ * ps2_long, konami, rev_konami, undo, redo</li>
+ * <li>wait &lt;ms&gt;</li>
+ * <li>stream &lt;ms&gt; [buttons=&lt;pps&gt;] [joystick=&lt;hz&gt;]
+ * [gyro=&lt;hz&gt;] - mixed streams for a while</li>
+ * </ul>
+ */
+public class ControllerSimulator {
+
+	private static final Map<String, Byte> ACTIONS = new HashMap<String, Byte>();
+	static {
+		ACTIONS.put("up", Connection.UP);
+		ACTIONS.put("down", Connection.DOWN);
+		ACTIONS.put("left", Connection.LEFT);
+		ACTIONS.put("right", Connection.RIGHT);
+		ACTIONS.put("b1", Connection.B1);
+		ACTIONS.put("b2", Connection.B2);
+		ACTIONS.put("b12", Connection.B12);
+		ACTIONS.put("ps2", Connection.PS2);
+		ACTIONS.put("ps2_long", Connection.PS2_LONG);
+		ACTIONS.put("konami", Connection.KONAMI);
+		ACTIONS.put("rev_konami", Connection.REV_KONAMI);
+		ACTIONS.put("undo", Connection.UNDO);
+		ACTIONS.put("redo", Connection.REDO);
+	}
+
+	private static final int STATS_TIMEOUT = 1000;
+
+	/**
+	 * Time given to the server to work through what is queued before asking for
+	 * its counters again, in milliseconds
+	 */
+	private static final int DRAIN_TIME = 300;
+
+	/**
+	 * Time given to a local server to open its sockets, in milliseconds
+	 */
+	private static final int LOCAL_START_TIME = 5000;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String host = "127.0.0.1";
+		int port = Connection.DMX_PORT;
+		int controllers = 1;
+		int seconds = 10;
+		double buttons = 0, joystick = 0, gyro = 0;
+		byte[] storm = { Connection.UP, Connection.DOWN, Connection.LEFT, Connection.RIGHT };
+		List<String[]> script = null;
+		boolean local = false;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-host":
+					host = args[++i];
+					break;
+				case "-port":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "-controllers":
+					controllers = Integer.parseInt(args[++i]);
+					break;
+				case "-seconds":
+					seconds = Integer.parseInt(args[++i]);
+					break;
+				case "-buttons":
+					buttons = Double.parseDouble(args[++i]);
+					break;
+				case "-joystick":
+					joystick = Double.parseDouble(args[++i]);
+					break;
+				case "-gyro":
+					gyro = Double.parseDouble(args[++i]);
+					break;
+				case "-actions":
+					String[] names = args[++i].split(",");
+					storm = new byte[names.length];
+					for (int j = 0; j < names.length; j++)
+						storm[j] = action(names[j]);
+					break;
+				case "-script":
+					script = parseScript(Files.readAllLines(Paths.get(args[++i])));
+					break;
+				case "-local":
+					local = true;
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+		} catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(-1);
+		}
+		if (script == null && buttons == 0 && joystick == 0 && gyro == 0)
+			joystick = 200;
+
+		LatencyTracker latency = null;
+		ServerAppThread server = null;
+		if (local) {
+			latency = new LatencyTracker();
+			server = startLocal(latency);
+			host = "127.0.0.1";
+			port = Connection.DMX_PORT;
+		}
+
+		InetSocketAddress target = new InetSocketAddress(InetAddress.getByName(host), port);
+		Map<String, Long> before = queryStats(target);
+		if (before == null)
+			System.out.println("server did not answer the stats query, reporting the send side only");
+
+		Controller[] sims = new Controller[controllers];
+		for (int i = 0; i < controllers; i++) {
+			sims[i] = new Controller(i, target, storm, script, seconds * 1000L, buttons, joystick, gyro);
+		}
+		if (!target.getAddress().isLoopbackAddress() && controllers > 1)
+			System.out.println("not on loopback: all controllers share one address, so the server sees one session");
+
+		System.out.printf("%d controller(s) -> %s for %s\n", controllers, target,
+				script != null ? "the script" : seconds + " s (buttons " + buttons + " pps, joystick " + joystick
+						+ " Hz, gyro " + gyro + " Hz each)");
+		long start = System.nanoTime();
+		for (Controller sim : sims)
+			sim.start();
+		for (Controller sim : sims)
+			sim.join();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		Thread.sleep(DRAIN_TIME);
+		Map<String, Long> after = before != null ? queryStats(target) : null;
+
+		long sentButtons = 0, sentJoystick = 0, sentGyro = 0;
+		for (Controller sim : sims) {
+			sentButtons += sim.buttons;
+			sentJoystick += sim.joysticks;
+			sentGyro += sim.gyros;
+		}
+		long sent = sentButtons + sentJoystick + sentGyro;
+		System.out.printf("sent %d packets in %.2f s: %.0f pps (buttons %d, joystick %d, gyro %d)\n", sent, elapsed,
+				sent / elapsed, sentButtons, sentJoystick, sentGyro);
+		if (after != null) {
+			long processed = delta(before, after, "processed");
+			System.out.printf("server processed %d: %.0f pps (%.1f%% of sent), dropped %d, conflated %d, sessions %d\n",
+					processed, processed / elapsed, sent == 0 ? 0 : 100.0 * processed / sent,
+					delta(before, after, "dropped"), delta(before, after, "conflated"),
+					after.containsKey("sessions") ? after.get("sessions") : 0);
+			System.out.println("(conflated joystick/gyro samples were superseded by newer ones, not lost)");
+		}
+
+		if (server != null) {
+			for (int type = LatencyTracker.BUTTON; type <= LatencyTracker.OTHER; type++) {
+				LatencyTracker.Histogram handoff = latency.getHistogram(type, LatencyTracker.DEQUEUE);
+				if (handoff.getCount() > 0)
+					System.out.printf("hand-off %-8s n=%-8d p50 %6d us  p99 %6d us  max %6d us\n", LatencyTracker.getTypeName(type),
+							handoff.getCount(), handoff.getPercentile(0.5), handoff.getPercentile(0.99),
+							handoff.getMax());
+			}
+			server.stopServer();
+			server.join();
+		}
+	}
+
+	/**
+	 * Start a server in this process on a MemoryDMX with no fixtures, and wait
+	 * for it to take packets.
+	 *
+	 * @param latency
+	 *            tracker for the server's packet latencies
+	 * @return the running server
+	 */
+	private static ServerAppThread startLocal(LatencyTracker latency) throws IOException, InterruptedException {
+		ServerAppThread server = new ServerAppThread(new TimedDMX(new MemoryDMX(), latency), new FixtureManager(),
+				latency);
+		server.start();
+		long deadline = System.currentTimeMillis() + LOCAL_START_TIME;
+		while (!server.isServerRunning()) {
+			if (!server.isAlive() || System.currentTimeMillis() > deadline)
+				throw new IOException("local server did not start");
+			Thread.sleep(10);
+		}
+		return server;
+	}
+
+	private static void printUsage() {
+		System.out.println("usage: java chuck.sim.ControllerSimulator [-host h] [-port p] [-controllers n] [-seconds s]");
+		System.out.println("       [-buttons pps] [-joystick hz] [-gyro hz] [-actions up,down,...] [-script file] [-local]");
+		System.out.println("rates are per controller; with no rates or script, streams the joystick at 200 Hz");
+		System.out.println("-local runs the server in this process and reports its hand-off latency");
+	}
+
+	private static byte action(String name) {
+		Byte action = ACTIONS.get(name.trim().toLowerCase());
+		if (action == null)
+			throw new IllegalArgumentException("unknown button " + name);
+		return action;
+	}
+
+	/**
+	 * Check each script line and split it into words.
+	 */
+	private static List<String[]> parseScript(List<String> lines) {
+		List<String[]> steps = new ArrayList<String[]>();
+		for (String line : lines) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] words = line.split("\\s+");
+			switch (words[0]) {
+			case "button":
+				action(words[1]);
+				break;
+			case "wait":
+				Long.parseLong(words[1]);
+				break;
+			case "stream":
+				Long.parseLong(words[1]);
+				for (int i = 2; i < words.length; i++) {
+					String[] rate = words[i].split("=");
+					if (!rate[0].equals("buttons") && !rate[0].equals("joystick") && !rate[0].equals("gyro"))
+						throw new IllegalArgumentException("unknown stream " + rate[0] + " in: " + line);
+					Double.parseDouble(rate[1]);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("unknown script command: " + line);
+			}
+			steps.add(words);
+		}
+		return steps;
+	}
+
+	/**
+	 * Ask the server for its counters.
+	 *
+	 * @return counters by name, or null if the server did not answer
+	 */
+	private static Map<String, Long> queryStats(InetSocketAddress target) throws IOException {
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(STATS_TIMEOUT);
+			ByteBuffer query = WirelessPackets.poll(ByteBuffer.allocate(WirelessPackets.DATA_PACKET_SIZE),
+					Connection.STATS_QUERY_MODE);
+			socket.send(new DatagramPacket(query.array(), query.limit(), target));
+
+			byte[] reply = new byte[WirelessCommand.MAX_PACKET_SIZE];
+			DatagramPacket packet = new DatagramPacket(reply, reply.length);
+			socket.receive(packet);
+			WirelessCommand command = new WirelessCommand(Arrays.copyOf(reply, packet.getLength()),
+					packet.getAddress());
+			if (!command.parse() || command.getPacketType() != Connection.POLL_REPLY_PACKET_ID)
+				return null;
+
+			Map<String, Long> stats = new HashMap<String, Long>();
+			for (String field : command.getMessage().split(" ")) {
+				String[] pair = field.split("=");
+				if (pair.length == 2)
+					stats.put(pair[0], Long.parseLong(pair[1]));
+			}
+			return stats;
+		} catch (SocketTimeoutException ex) {
+			return null;
+		}
+	}
+
+	private static long delta(Map<String, Long> before, Map<String, Long> after, String name) {
+		Long from = before.get(name);
+		Long to = after.get(name);
+		return from == null || to == null ? 0 : to - from;
+	}
+
+	/**
+	 * One simulated controller.
+	 */
+	private static class Controller extends Thread {
+		private final int id;
+		private final InetSocketAddress target;
+		private final byte[] storm;
+		private final List<String[]> script;
+		private final long duration;
+		private final double buttonRate, joystickRate, gyroRate;
+
+		private final ByteBuffer packet = ByteBuffer.allocateDirect(WirelessPackets.DATA_PACKET_SIZE);
+		private final SplittableRandom random;
+		private DatagramChannel channel;
+
+		private volatile long buttons = 0, joysticks = 0, gyros = 0;
+
+		private Controller(int id, InetSocketAddress target, byte[] storm, List<String[]> script, long duration,
+				double buttonRate, double joystickRate, double gyroRate) throws IOException {
+			this.id = id;
+			this.target = target;
+			this.storm = storm;
+			this.script = script;
+			this.duration = duration;
+			this.buttonRate = buttonRate;
+			this.joystickRate = joystickRate;
+			this.gyroRate = gyroRate;
+			this.random = new SplittableRandom(id);
+
+			channel = DatagramChannel.open();
+			if (target.getAddress().isLoopbackAddress())
+				// 127.0.0.2 and up, so each controller has its own address
+				channel.bind(new InetSocketAddress(InetAddress.getByAddress(
+						new byte[] { 127, (byte) ((id + 2) >> 16), (byte) ((id + 2) >> 8), (byte) (id + 2) }), 0));
+			channel.connect(target);
+			setName("controller " + id);
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (script == null) {
+					stream(duration, buttonRate, joystickRate, gyroRate);
+				} else {
+					for (String[] step : script)
+						run(step);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// done anyway
+				}
+			}
+		}
+
+		private void run(String[] step) throws IOException {
+			switch (step[0]) {
+			case "button":
+				send(WirelessPackets.userAction(packet, Modes.IDLE, action(step[1])));
+				buttons++;
+				break;
+			case "wait":
+				LockSupport.parkNanos(Long.parseLong(step[1]) * 1000000L);
+				break;
+			case "stream":
+				double b = 0, j = 0, g = 0;
+				for (int i = 2; i < step.length; i++) {
+					String[] rate = step[i].split("=");
+					double value = Double.parseDouble(rate[1]);
+					if (rate[0].equals("buttons"))
+						b = value;
+					else if (rate[0].equals("joystick"))
+						j = value;
+					else
+						g = value;
+				}
+				stream(Long.parseLong(step[1]), b, j, g);
+				break;
+			}
+		}
+
+		/**
+		 * Send button presses, joystick, and gyro packets at their rates (0 for
+		 * none) for a while. A stream that falls behind skips ahead rather than
+		 * bursting to catch up.
+		 */
+		private void stream(long millis, double buttonRate, double joystickRate, double gyroRate) throws IOException {
+			long now = System.nanoTime();
+			long end = now + millis * 1000000L;
+			long buttonInterval = interval(buttonRate), joystickInterval = interval(joystickRate),
+					gyroInterval = interval(gyroRate);
+			long nextButton = now, nextJoystick = now, nextGyro = now;
+
+			while ((now = System.nanoTime()) < end) {
+				if (buttonInterval > 0 && now >= nextButton) {
+					send(WirelessPackets.userAction(packet, Modes.IDLE, storm[random.nextInt(storm.length)]));
+					buttons++;
+					nextButton = schedule(nextButton, buttonInterval, now);
+				}
+				if (joystickInterval > 0 && now >= nextJoystick) {
+					// circle around the center once every two seconds
+					double angle = 2 * Math.PI * ((now / 1000000L) % 2000) / 2000.0;
+					int x = 2048 + (int) (1500 * Math.cos(angle));
+					int y = 2048 + (int) (1500 * Math.sin(angle));
+					send(WirelessPackets.joystick(packet, Modes.COLOR_WHEEL, x, y));
+					joysticks++;
+					nextJoystick = schedule(nextJoystick, joystickInterval, now);
+				}
+				if (gyroInterval > 0 && now >= nextGyro) {
+					// swinging between rest and a hard shake once a second
+					int value = (int) (1000 + 1000 * Math.sin(2 * Math.PI * ((now / 1000000L) % 1000) / 1000.0));
+					send(WirelessPackets.gyro(packet, Modes.PARTY, value));
+					gyros++;
+					nextGyro = schedule(nextGyro, gyroInterval, now);
+				}
+
+				long next = end;
+				if (buttonInterval > 0)
+					next = Math.min(next, nextButton);
+				if (joystickInterval > 0)
+					next = Math.min(next, nextJoystick);
+				if (gyroInterval > 0)
+					next = Math.min(next, nextGyro);
+				long wait = next - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+			}
+		}
+
+		private static long schedule(long next, long interval, long now) {
+			next += interval;
+			return next > now ? next : now + interval;
+		}
+
+		private static long interval(double rate) {
+			return rate > 0 ? (long) (1e9 / rate) : 0;
+		}
+
+		private void send(ByteBuffer data) throws IOException {
+			try {
+				channel.write(data);
+			} catch (PortUnreachableException ex) {
+				// nothing listening (yet); keep sending like the remote would
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package chuck.threads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import chuck.audio.AudioAnalyzer;
+import chuck.audio.PcmReader;
+import chuck.defines.LightingDefines;
+
+/**
+ * Reads PCM audio from stdin, a WAV file, or a named pipe and feeds it to an
+ * audio analyzer. Regular files are paced to real time so effects see the audio
+ * as it would be heard; streams are read as fast as they deliver.
+ */
+public class AudioThread extends Thread {
+
+	private static final int READ_SIZE = 256;
+
+	private String source;
+	private PcmReader reader;
+	private AudioAnalyzer analyzer;
+	private boolean paced;
+	private volatile boolean running = false;
+
+	/**
+	 * Constructor. Open the audio source.
+	 *
+	 * @param source
+	 *            "-" for stdin, otherwise the path of a WAV file or a pipe carrying
+	 *            WAV or raw 16 bit PCM (LightingDefines.AUDIO_RAW_SAMPLE_RATE and
+	 *            AUDIO_RAW_CHANNELS)
+	 * @throws IOException
+	 *             if unable to open the source or read its header
+	 */
+	public AudioThread(String source) throws IOException {
+		this.source = source;
+
+		InputStream in;
+		if (source.equals("-")) {
+			in = System.in;
+			paced = false;
+		} else {
+			Path path = Paths.get(source);
+			in = Files.newInputStream(path);
+			paced = Files.isRegularFile(path);
+		}
+
+		reader = new PcmReader(in, LightingDefines.AUDIO_RAW_SAMPLE_RATE, LightingDefines.AUDIO_RAW_CHANNELS);
+		analyzer = new AudioAnalyzer(reader.getSampleRate());
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		float[] samples = new float[READ_SIZE];
+		long start = System.nanoTime();
+		running = true;
+
+		while (running) {
+			int count;
+			try {
+				count = reader.read(samples, 0, samples.length);
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			if (count < 0) {
+				System.out.println("End of audio from " + source);
+				break;
+			}
+
+			analyzer.process(samples, 0, count);
+
+			if (paced) {
+				// don't get ahead of the audio's own clock
+				long ahead = (long) (analyzer.getStreamTime() * 1e9) - (System.nanoTime() - start);
+				if (ahead > 1000000) {
+					try {
+						Thread.sleep(ahead / 1000000);
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+			}
+		}
+
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// nothing to be done
+		}
+	}
+
+	/**
+	 * Get the analyzer holding the results for this source.
+	 *
+	 * @return audio analyzer
+	 */
+	public AudioAnalyzer getAnalyzer() {
+		return analyzer;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public void redrum() {
+		running = false;
+		this.interrupt();
+	}
+}
@@ -0,0 +1,92 @@
+package chuck.threads;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import chuck.audio.AudioAnalyzer;
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.FixtureProfile;
+
+/**
+ * Audio-reactive party effect. Every fixture's dimmer follows the bass level,
+ * and each detected beat steps the fixtures to the next preset color (offset per
+ * fixture so neighbours differ). All fixtures are rendered into one frame commit
+ * per tick.
+ */
+public class AudioVisualEffect extends Tickable {
+
+	private FixtureManager profiles;
+	private AudioAnalyzer analyzer;
+	private DMXFrame frame;
+	private int[] colors;
+	private long lastBeat;
+	private int colorIndex = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param profiles
+	 *            fixtures to drive
+	 * @param analyzer
+	 *            analysis of the live audio
+	 * @param dmx
+	 *            driver to commit each frame to
+	 */
+	public AudioVisualEffect(FixtureManager profiles, AudioAnalyzer analyzer, DMXDriver dmx) {
+		this.profiles = profiles;
+		this.analyzer = analyzer;
+		this.frame = new DMXFrame(dmx);
+
+		// preset colors other than black, packed as 0xRRGGBB
+		int count = 0;
+		colors = new int[LightingDefines.PRESETS.length];
+		for (int i = 0; i < LightingDefines.PRESETS.length; i++) {
+			int rgb = LightingDefines.PRESETS[i].getRGB() & 0xffffff;
+			if (rgb != 0)
+				colors[count++] = rgb;
+		}
+		colors = Arrays.copyOf(colors, count);
+		lastBeat = analyzer.getBeatCount();
+	}
+
+	@Override
+	protected long tick(long now) {
+		long beats = analyzer.getBeatCount();
+		if (beats != lastBeat) {
+			lastBeat = beats;
+			if (++colorIndex >= colors.length)
+				colorIndex = 0;
+		}
+
+		// keep a little light on so the rig never goes fully dark between hits
+		int dimmer = LightingDefines.AUDIO_DIMMER_FLOOR
+				+ (int) (analyzer.getBass() * (255 - LightingDefines.AUDIO_DIMMER_FLOOR));
+
+		int index = colorIndex;
+		for (int i = 0; i < profiles.getLightCount(); i++) {
+			FixtureProfile light = profiles.getLight(i);
+			if (light.hasRGB())
+				light.renderColor(frame, colors[index]);
+			if (light.hasDimmer())
+				light.renderDimmer(frame, Math.min(255, dimmer));
+			if (++index >= colors.length)
+				index = 0;
+		}
+
+		try {
+			frame.commit();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		return now + LightingDefines.AUDIO_VISUAL_DELAY * 1000000L;
+	}
+
+	public void redrum() {
+		cancel();
+	}
+}
@@ -0,0 +1,150 @@
+package chuck.threads;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.Scene;
+import chuck.lighting.TempoClock;
+import chuck.log.EventLog;
+
+/**
+ * Steps through the scene list. The current scene is computed from the clock
+ * on each tick (from the tempo clock when a tempo is tapped, otherwise from the
+ * scene delay), so late ticks never accumulate into drift, and the next tick
+ * is due exactly when the scene changes. Fixtures claimed by other sessions
+ * keep their live values.
+ */
+public class ChaseEffect extends Tickable {
+	private static final long NANOS_PER_MS = 1000000L;
+
+	private int sceneDelay;
+	private double beatsPerStep = 1;
+	private ArrayList<Scene> scenes;
+	private DMXDriver dmx;
+	private FixtureManager profiles;
+	private Object owner;
+	private TempoClock tempo;
+	private DMXFrame frame;
+	private int[] vals = new int[513];
+
+	/**
+	 * Free running steps are counted from start, beginning at stepBase
+	 */
+	private long start = Long.MIN_VALUE;
+	private long stepBase = 0;
+	private int delay;
+	private boolean synced = false;
+	private long lastStep = Long.MIN_VALUE;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneDelay
+	 *            ms each scene is held for while no tempo is set
+	 * @param scenes
+	 *            scenes to step through
+	 * @param dmx
+	 *            dmx driver to write to
+	 * @param profiles
+	 *            fixture set, for the fixtures other sessions hold
+	 * @param owner
+	 *            session running the chase
+	 * @param tempo
+	 *            tempo clock to follow once a tempo is set
+	 */
+	public ChaseEffect(int sceneDelay, ArrayList<Scene> scenes, DMXDriver dmx, FixtureManager profiles, Object owner,
+			TempoClock tempo) {
+		this.sceneDelay = sceneDelay;
+		this.delay = sceneDelay;
+		this.scenes = scenes;
+		this.dmx = dmx;
+		this.profiles = profiles;
+		this.owner = owner;
+		this.tempo = tempo;
+		this.frame = new DMXFrame(dmx);
+	}
+
+	@Override
+	protected long tick(long now) {
+		if(scenes.size() <= 1){
+			EventLog.log(EventLog.CHASE_TOO_FEW_SCENES, null, scenes.size());
+			return STOP;
+		}
+		if (start == Long.MIN_VALUE)
+			start = now;
+
+		long step;
+		long wait;
+		if (tempo.isRunning()) {
+			synced = true;
+			step = tempo.step(now, beatsPerStep);
+			wait = tempo.nanosUntilStep(now, beatsPerStep);
+		} else {
+			if (delay != sceneDelay || synced) {
+				// restart the count from the current scene at the new speed
+				delay = sceneDelay;
+				synced = false;
+				start = now;
+				stepBase = lastStep == Long.MIN_VALUE ? 0 : lastStep;
+			}
+			long delayNanos = delay * NANOS_PER_MS;
+			step = stepBase + (now - start) / delayNanos;
+			wait = delayNanos - (now - start) % delayNanos;
+		}
+
+		if (step != lastStep) {
+			lastStep = step;
+			try {
+				// write only what differs from the scene before
+				scenes.get((int) Math.floorMod(step, (long) scenes.size())).getRuns().writeTo(vals);
+				int[] live = dmx.getDmx();
+				if (profiles.hasClaimsOtherThan(owner))
+					profiles.keepClaimed(vals, live, owner);
+				frame.load(live);
+				frame.setAll(vals);
+				frame.commit();
+			} catch (IOException e1) {
+				// TODO Auto-generated catch block
+				e1.printStackTrace();
+			}
+		}
+
+		return now + wait;
+	}
+
+	public void redrum()
+	{
+		cancel();
+	}
+
+	public void setSceneDelay(int sceneDelay){
+		this.sceneDelay = sceneDelay;
+		// tick now to pick up the new delay
+		wake();
+	}
+
+	/**
+	 * Recompute the chase position now (call after the tempo changes).
+	 */
+	public void tempoChanged(){
+		wake();
+	}
+
+	/**
+	 * Set how many beats of the tempo clock each scene is held for (e.g., 0.5 for
+	 * two scenes per beat). Only used while a tempo is set.
+	 *
+	 * @param beatsPerStep
+	 *            length of each scene in beats, must be positive
+	 */
+	public void setBeatsPerStep(double beatsPerStep){
+		if (beatsPerStep <= 0)
+			throw new IllegalArgumentException("beats per step must be positive");
+		this.beatsPerStep = beatsPerStep;
+		wake();
+	}
+
+}
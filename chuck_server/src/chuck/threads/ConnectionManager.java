@@ -0,0 +1,366 @@
+package chuck.threads;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import chuck.defines.Connection;
+import chuck.defines.Modes;
+import chuck.defines.WirelessCommand;
+import chuck.log.EventLog;
+
+/**
+ * Tracks the wireless controllers from their packets and their replies to
+ * heartbeat polls. <br />
+ * Each known controller is polled by unicast. The time from a poll to its reply
+ * gives the round trip time, a poll with no reply counts as lost, and the reply
+ * carries the controller's battery level and error state. The poll interval
+ * follows liveness: normal while replies come back, short after a miss so a
+ * dead link is noticed quickly, and long once the controller is considered
+ * disconnected.
+ */
+public class ConnectionManager {
+
+	/**
+	 * Weight of a new round trip sample in the smoothed round trip time
+	 */
+	private static final double RTT_GAIN = 0.125;
+
+	/**
+	 * Connection state and metrics of one controller.
+	 */
+	public static class Peer {
+		private final InetAddress ip;
+		private final InetSocketAddress address;
+		private volatile byte state = Modes.IDLE;
+		private volatile long lastSeen;
+		private volatile boolean connected = true;
+
+		// guarded by this
+		private long lastPollSent;
+		private boolean pushed = false;
+		private long lastPush;
+		private long nextPoll;
+		private boolean awaitingReply = false;
+		private boolean ambiguous = false;
+		private int misses = 0;
+		private long polls = 0;
+		private long lost = 0;
+		private long replies = 0;
+		private long lastRtt = -1;
+		private double smoothedRtt = -1;
+		private float battery = Float.NaN;
+		private byte errorCode = 0;
+		private String message = "";
+
+		private Peer(InetAddress ip, long now) {
+			this.ip = ip;
+			this.address = new InetSocketAddress(ip, Connection.DMX_PORT);
+			this.lastSeen = now;
+			// poll right away to learn the round trip time and battery
+			this.nextPoll = now;
+		}
+
+		/**
+		 * Record a poll sent to this controller and schedule the next one.
+		 */
+		private synchronized void pollSent(long now) {
+			if (awaitingReply) {
+				if (now - lastPollSent >= Connection.HEARTBEAT_REPLY_TIMEOUT * 1000000L) {
+					// the last poll timed out, so a reply to this one is unambiguous
+					lost++;
+					ambiguous = false;
+					if (++misses >= Connection.HEARTBEAT_MAX_MISSES && connected) {
+						connected = false;
+						EventLog.log(EventLog.DISCONNECTED, ip);
+					}
+				} else {
+					// still waiting on the last poll; a reply can't be matched to either
+					ambiguous = true;
+				}
+			}
+			awaitingReply = true;
+			lastPollSent = now;
+			polls++;
+
+			long interval;
+			if (!connected)
+				interval = Connection.HEARTBEAT_LOST_INTERVAL;
+			else if (misses > 0)
+				interval = Connection.HEARTBEAT_RETRY_INTERVAL;
+			else
+				interval = Connection.HEARTBEAT_INTERVAL;
+			nextPoll = now + interval * 1000000L;
+		}
+
+		private synchronized void pollReply(WirelessCommand reply) {
+			if (awaitingReply && !ambiguous) {
+				lastRtt = reply.getReceiveTime() - lastPollSent;
+				smoothedRtt = smoothedRtt < 0 ? lastRtt : smoothedRtt + RTT_GAIN * (lastRtt - smoothedRtt);
+			}
+			awaitingReply = false;
+			ambiguous = false;
+			replies++;
+			battery = reply.getBatteryLevel();
+			if (reply.getErrorCode() != errorCode)
+				EventLog.log(EventLog.ERROR_CODE, ip, reply.getErrorCode());
+			errorCode = reply.getErrorCode();
+			message = reply.getMessage();
+			alive();
+		}
+
+		private void seen(long now) {
+			lastSeen = now;
+			if (!connected || misses > 0) {
+				synchronized (this) {
+					alive();
+				}
+			}
+		}
+
+		/**
+		 * Any packet from the controller shows the link works. Guarded by this.
+		 */
+		private void alive() {
+			misses = 0;
+			if (!connected) {
+				connected = true;
+				EventLog.log(EventLog.RECONNECTED, ip);
+				// back to the normal interval now rather than after the long one
+				nextPoll = Math.min(nextPoll, System.nanoTime());
+			}
+		}
+
+		public InetAddress getIp() {
+			return ip;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		/**
+		 * State sent to the controller in its heartbeats.
+		 *
+		 * @return Modes value
+		 */
+		public byte getState() {
+			return state;
+		}
+
+		public boolean isConnected() {
+			return connected;
+		}
+
+		/**
+		 * Time of the last packet from this controller.
+		 *
+		 * @return System.nanoTime() at receipt
+		 */
+		public long getLastSeen() {
+			return lastSeen;
+		}
+
+		public synchronized long getNextPoll() {
+			return nextPoll;
+		}
+
+		/**
+		 * Round trip time of the last matched poll.
+		 *
+		 * @return nanoseconds, or -1 if no poll has been answered
+		 */
+		public synchronized long getRtt() {
+			return lastRtt;
+		}
+
+		/**
+		 * Smoothed round trip time.
+		 *
+		 * @return nanoseconds, or -1 if no poll has been answered
+		 */
+		public synchronized long getSmoothedRtt() {
+			return (long) smoothedRtt;
+		}
+
+		/**
+		 * Fraction of polls that went unanswered.
+		 *
+		 * @return loss within [0:1]
+		 */
+		public synchronized double getLoss() {
+			return polls == 0 ? 0 : (double) lost / polls;
+		}
+
+		public synchronized long getPolls() {
+			return polls;
+		}
+
+		public synchronized long getReplies() {
+			return replies;
+		}
+
+		/**
+		 * Battery level from the last poll reply.
+		 *
+		 * @return battery level, or NaN if the controller has not replied
+		 */
+		public synchronized float getBatteryLevel() {
+			return battery;
+		}
+
+		public synchronized byte getErrorCode() {
+			return errorCode;
+		}
+
+		public synchronized String getMessage() {
+			return message;
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder(ip.getHostAddress());
+			sb.append(connected ? " connected" : " disconnected");
+			if (lastRtt >= 0)
+				sb.append(String.format(", rtt %.2f ms (avg %.2f ms)", lastRtt / 1e6, smoothedRtt / 1e6));
+			sb.append(String.format(", loss %.1f%% (%d/%d)", 100 * getLoss(), lost, polls));
+			if (!Float.isNaN(battery))
+				sb.append(String.format(", battery %.2f", battery));
+			if (errorCode != 0)
+				sb.append(", error ").append(errorCode);
+			if (!message.isEmpty())
+				sb.append(", \"").append(message).append('"');
+			return sb.toString();
+		}
+	}
+
+	private ConcurrentHashMap<InetAddress, Peer> peers = new ConcurrentHashMap<InetAddress, Peer>();
+
+	/**
+	 * Get a controller, adding it if it is new.
+	 *
+	 * @param ip
+	 *            address of the controller
+	 * @return the controller's connection
+	 */
+	public Peer track(InetAddress ip) {
+		Peer peer = peers.get(ip);
+		if (peer == null) {
+			Peer created = new Peer(ip, System.nanoTime());
+			peer = peers.putIfAbsent(ip, created);
+			if (peer == null)
+				peer = created;
+		}
+		return peer;
+	}
+
+	/**
+	 * Get a controller without adding it.
+	 *
+	 * @param ip
+	 *            address of the controller
+	 * @return the controller's connection, or null if unknown
+	 */
+	public Peer get(InetAddress ip) {
+		return peers.get(ip);
+	}
+
+	/**
+	 * Forget a controller.
+	 *
+	 * @param ip
+	 *            address of the controller
+	 */
+	public void remove(InetAddress ip) {
+		peers.remove(ip);
+	}
+
+	/**
+	 * Set the state sent to a controller in its heartbeats, and decide whether to
+	 * send it right away. A controller streaming joystick or gyro data in the
+	 * wrong mode asks for its state with every packet; repeating an unchanged
+	 * state more than once per HEARTBEAT_RETRY_INTERVAL only floods the link.
+	 *
+	 * @param ip
+	 *            address of the controller
+	 * @param state
+	 *            Modes value
+	 * @param now
+	 *            System.nanoTime()
+	 * @return the controller's connection, or null if the state should not be
+	 *         sent now
+	 */
+	public Peer pushState(InetAddress ip, byte state, long now) {
+		Peer peer = track(ip);
+		synchronized (peer) {
+			if (peer.state == state && peer.pushed
+					&& now - peer.lastPush < Connection.HEARTBEAT_RETRY_INTERVAL * 1000000L)
+				return null;
+			peer.state = state;
+			peer.pushed = true;
+			peer.lastPush = now;
+		}
+		return peer;
+	}
+
+	/**
+	 * Note a packet from a controller (shows the controller is alive).
+	 *
+	 * @param command
+	 *            parsed packet from a controller
+	 */
+	public void seen(WirelessCommand command) {
+		track(command.getSender_ip()).seen(command.getReceiveTime());
+	}
+
+	/**
+	 * Take the round trip time, battery level, and error state from a poll reply.
+	 *
+	 * @param reply
+	 *            parsed POLL_REPLY packet
+	 */
+	public void pollReply(WirelessCommand reply) {
+		track(reply.getSender_ip()).pollReply(reply);
+	}
+
+	/**
+	 * Record a poll sent to a controller and schedule its next one.
+	 *
+	 * @param peer
+	 *            controller polled
+	 * @param now
+	 *            System.nanoTime() of the send
+	 */
+	public void pollSent(Peer peer, long now) {
+		peer.pollSent(now);
+	}
+
+	/**
+	 * Whether any controller is currently answering.
+	 *
+	 * @return true if some controller is connected
+	 */
+	public boolean anyConnected() {
+		for (Peer peer : peers.values()) {
+			if (peer.connected)
+				return true;
+		}
+		return false;
+	}
+
+	public Collection<Peer> getPeers() {
+		return peers.values();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Peer peer : peers.values()) {
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(peer);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,1078 @@
+package chuck.threads;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import chuck.defines.Connection;
+import chuck.defines.LightingDefines;
+import chuck.defines.Modes;
+import chuck.defines.WirelessCommand;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.lighting.CueStack;
+import chuck.lighting.DMXHistory;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.FixtureProfile;
+import chuck.lighting.GyroEffect;
+import chuck.lighting.Palette;
+import chuck.lighting.PaletteManager;
+import chuck.lighting.PixelGenerator;
+import chuck.lighting.PixelGenerators;
+import chuck.lighting.Scene;
+import chuck.lighting.SceneManager;
+import chuck.lighting.TempoClock;
+import chuck.lighting.XYConverter;
+import chuck.log.EventLog;
+
+/**
+ * One wireless controller's session: its mode, its fixture selection, and the
+ * effects it has running. <br />
+ * Commands and the effects' ticks are only ever handled on the event loop, so a
+ * session is single threaded and takes no locks. What a command does is up to
+ * the handler of the current mode, looked up by mode in a table. Sessions share
+ * the DMX driver, fixture set, and scene list; the fixtures a controller
+ * selects are claimed in the fixture manager, so other controllers skip them
+ * and scene recalls leave them alone.
+ */
+public class ControllerSession {
+
+	private final InetAddress address;
+	
+	private ServerAppThread server;
+	private DMXDriver dmx;
+	private FixtureManager profiles;
+	private SceneManager sceneManager;
+	private XYConverter colorConverter;
+	private HeartBeat heartbeat;
+	private EventLoop loop;
+	private DMXHistory history;
+	private PaletteManager palettes;
+	
+	/**
+	 * Handler for a command in a mode, returning whether the controller should be sent its state
+	 */
+	private interface ModeHandler {
+		boolean handle(WirelessCommand command);
+	}
+	
+	/**
+	 * Handler of each mode, indexed by Modes value
+	 */
+	private final ModeHandler[] handlers = new ModeHandler[Modes.COUNT];
+	
+	private ArrayList<FixtureProfile> selectedLights;
+	private byte currentState;
+	private int chaseSceneDelay = 100;
+	private int chaseDivision = LightingDefines.CHASE_DEFAULT_DIVISION;
+	private TempoClock tempo = new TempoClock();
+	
+	private ChaseEffect chase = null;
+	private HighlightEffect highlight = null;
+	private PresetVisualEffect presetVisual = null;
+	private RainbowEffect rainbowVisual = null;
+	private DMXVisualEffect dmxVisual = null;
+	private CueEffect cue = null;
+	private AudioVisualEffect audioVisual = null;
+	private PixelMapEffect pixelMap = null;
+	
+	/**
+	 * Current party effect: 0 is the gyro party, 1 the audio party, and from 2
+	 * on the pixel map generators in PixelGenerators.ALL
+	 */
+	private int partyEffect = 0;
+	
+	private GyroEffect partyGyro;
+	private GyroEffect scaryGyro;
+	
+	private int currentLightIndex = 0;
+	private int currentPresetIndex = 0;
+	private int currentControlIndex = 0;
+	private int currentChannelIndex = 0;
+	
+	private int min = Integer.MAX_VALUE;
+	private int max = Integer.MIN_VALUE;
+	
+	private boolean canChangeDMX = false;
+	
+	/**
+	 * Scratch frame and values for writing scenes out
+	 */
+	private DMXFrame recallFrame;
+	private int[] recallVals = new int[513];
+
+	/**
+	 * Constructor. Start a controller in IDLE.
+	 * 
+	 * @param address
+	 *            address of the controller
+	 * @param server
+	 *            server application (for the shared audio input)
+	 * @param dmx
+	 *            shared dmx driver
+	 * @param profiles
+	 *            shared fixture set
+	 * @param sceneManager
+	 *            shared scene list
+	 * @param colorConverter
+	 *            shared joystick to color table
+	 * @param heartbeat
+	 *            heartbeat, told this controller's state
+	 * @param loop
+	 *            event loop the session's commands and effects run on
+	 * @param history
+	 *            shared undo history, told the addresses this session writes and
+	 *            committed after each button in idle mode
+	 * @param palettes
+	 *            shared palettes, applied to the selection in preset mode
+	 */
+	public ControllerSession(InetAddress address, ServerAppThread server, DMXDriver dmx, FixtureManager profiles,
+			SceneManager sceneManager, XYConverter colorConverter, HeartBeat heartbeat, EventLoop loop,
+			DMXHistory history, PaletteManager palettes) {
+		this.address = address;
+		this.server = server;
+		this.dmx = dmx;
+		this.profiles = profiles;
+		this.sceneManager = sceneManager;
+		this.colorConverter = colorConverter;
+		this.heartbeat = heartbeat;
+		this.loop = loop;
+		this.history = history;
+		this.palettes = palettes;
+		this.recallFrame = new DMXFrame(dmx);
+		
+		currentState = Modes.IDLE;
+		
+		handlers[Modes.CHASE] = this::handleChase;
+		handlers[Modes.IDLE] = this::handleIdle;
+		handlers[Modes.LIGHT_SELECTION] = this::handleLightSelection;
+		handlers[Modes.CONTROL_SELECTION] = this::handleControlSelection;
+		handlers[Modes.COLOR_WHEEL] = this::handleColorWheel;
+		handlers[Modes.DMX] = this::handleDmx;
+		handlers[Modes.PRESET] = this::handlePreset;
+		handlers[Modes.PARTY] = this::handleParty;
+		handlers[Modes.SCARY] = this::handleScary;
+		handlers[Modes.CUE] = this::handleCue;
+		
+		partyGyro = new GyroEffect(profiles, dmx, LightingDefines.PARTY_GYRO_IN, LightingDefines.PARTY_GYRO_OUT,
+				GyroEffect.RANDOM_COLOR, LightingDefines.GYRO_ATTACK, LightingDefines.GYRO_RELEASE);
+		scaryGyro = new GyroEffect(profiles, dmx, LightingDefines.SCARY_GYRO_IN, LightingDefines.SCARY_GYRO_OUT,
+				Color.WHITE.getRGB() & 0xffffff, LightingDefines.GYRO_ATTACK, LightingDefines.GYRO_RELEASE);
+	}
+	
+	/**
+	 * Interpret a command from this controller: change state based on the current
+	 * state and the type of command, and send the controller a heartbeat when its
+	 * state changes. The current state's handler is looked up in the mode table.
+	 * Only called from the event loop.
+	 * 
+	 * @param currCommand
+	 *            parsed command from this controller
+	 */
+	public void handle(WirelessCommand currCommand) {
+		boolean sendHeartbeat = false;
+		
+		switch (currCommand.getPacketType()) {
+		case Connection.DATA_PACKET_ID:
+		/* ---------- Main State Machine ------------------- */
+			/*for debug purposes*/
+			if(currCommand.getDataType() == Connection.USER_ACTION_DATA)
+				EventLog.log(EventLog.BUTTON, address, currCommand.getUserActionData());
+			if(currCommand.getUserActionData() == Connection.KONAMI){
+				currentState = Modes.PARTY;
+				sendHeartbeat = true;
+			}
+			
+			ModeHandler handler = currentState >= 0 && currentState < handlers.length ? handlers[currentState] : null;
+			if(handler == null)
+				EventLog.log(EventLog.STATE_OUT_OF_BOUNDS, address, currentState);
+			else if(handler.handle(currCommand))
+				sendHeartbeat = true;
+			
+			// a button that leaves the rig in idle is one step of the undo history
+			if(currentState == Modes.IDLE && currCommand.getDataType() == Connection.USER_ACTION_DATA)
+				history.commit();
+			break;
+		case Connection.POLL_REPLY_PACKET_ID:
+			// taken by the connection manager, never passed on to a session
+			break;
+		case Connection.POLL_PACKET_ID:
+			//Do mode matching maybe?
+			EventLog.log(EventLog.POLL, address);
+			break;
+		default:
+			EventLog.log(EventLog.UNKNOWN_PACKET, address, currCommand.getPacketType());
+		break;
+		}
+		
+		if(sendHeartbeat)
+			heartbeat.sendHeartbeat(address, currentState);
+	}
+	
+	private boolean handleChase(WirelessCommand currCommand) {
+		if(currCommand.getDataType() != Connection.USER_ACTION_DATA)
+			return true;
+		switch(currCommand.getUserActionData()){
+		case Connection.UP:
+			if(tempo.isRunning()) {
+				// fewer scenes per beat
+				if(chaseDivision > 0)
+					chase.setBeatsPerStep(LightingDefines.CHASE_BEAT_DIVISIONS[--chaseDivision]);
+			} else if(chaseSceneDelay < LightingDefines.MAX_CHASE_DELAY){
+				chase.setSceneDelay(chaseSceneDelay+=LightingDefines.CHASE_STEP);
+			}
+			break;
+		case Connection.DOWN:
+			if(tempo.isRunning()) {
+				// more scenes per beat
+				if(chaseDivision < LightingDefines.CHASE_BEAT_DIVISIONS.length - 1)
+					chase.setBeatsPerStep(LightingDefines.CHASE_BEAT_DIVISIONS[++chaseDivision]);
+			} else if(chaseSceneDelay > LightingDefines.MIN_CHASE_DELAY){
+				chase.setSceneDelay(chaseSceneDelay-=LightingDefines.CHASE_STEP);
+			}
+			break;
+		case Connection.B1:
+			// tap tempo
+			tempo.tap(System.nanoTime());
+			chase.tempoChanged();
+			break;
+		case Connection.B12:
+			// back to the fixed scene delay
+			tempo.clear();
+			chase.tempoChanged();
+			break;
+		case Connection.PS2:
+			// switch from the chase to cue playback of the scene list
+			currentState = Modes.CUE;
+
+			redrumChase();
+
+			startCue();
+
+			return true;
+		case Connection.B2:
+			currentState = Modes.IDLE;
+
+			redrumChase();
+			
+			revertScene();
+			
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean handleCue(WirelessCommand currCommand) {
+		if(currCommand.getDataType() != Connection.USER_ACTION_DATA)
+			return true;
+		switch(currCommand.getUserActionData()){
+		case Connection.PS2:
+			cue.go();
+			break;
+		case Connection.LEFT:
+			cue.back();
+			break;
+		case Connection.B2:
+			currentState = Modes.IDLE;
+
+			redrumCue();
+
+			revertScene();
+
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean handleIdle(WirelessCommand currCommand) {
+		if(currCommand.getDataType() != Connection.USER_ACTION_DATA)
+			return true;
+		switch(currCommand.getUserActionData()){
+		case Connection.LEFT:
+			applyScene(sceneManager.getLastScene());
+			EventLog.log(EventLog.SCENE, address, sceneManager.getCurrentIndex());
+			break;
+		case Connection.RIGHT:
+			applyScene(sceneManager.getNextScene());
+			EventLog.log(EventLog.SCENE, address, sceneManager.getCurrentIndex());
+			break;
+		case Connection.DOWN:
+			applyScene(sceneManager.getCurrentScene());
+			sceneManager.setCurrentScene(sceneManager.getCurrentScene().getDmxVals());
+			EventLog.log(EventLog.SCENE, address, sceneManager.getCurrentIndex());
+			break;
+		case Connection.B1:
+			currentState = Modes.LIGHT_SELECTION;
+			sceneManager.setCurrentScene(dmx.getDmx());
+			startHighlight();
+			return true;
+		case Connection.B2:
+			if(sceneManager.getSceneCount() > 1){
+				currentState = Modes.CHASE;
+				startChase();
+				return true;
+			} else {
+				EventLog.log(EventLog.CHASE_TOO_FEW_SCENES, address, sceneManager.getSceneCount());
+			}
+			break;
+		case Connection.PS2:
+			//adds scene to list
+			if(sceneManager.getCurrentIndex() == -1)
+			{
+				int[] vals = dmx.getDmx();
+				sceneManager.addScene(vals);
+				history.sceneAdded(sceneManager.getSceneCount() - 1, vals);
+			}
+
+			break;
+		case Connection.PS2_LONG:
+			if(sceneManager.getCurrentIndex() != -1)
+			{
+				int index = sceneManager.getCurrentIndex();
+				history.sceneDeleted(index, sceneManager.getSceneArray().get(index).getDmxVals());
+				sceneManager.deleteScene();
+				
+				revertScene();
+			} else {
+				
+				int last = sceneManager.getSceneCount() - 1;
+				if(last >= 0)
+					history.sceneDeleted(last, sceneManager.getSceneArray().get(last).getDmxVals());
+				sceneManager.deleteScene(last);
+				clearScene();
+			}
+			break;
+		case Connection.UNDO:
+			undo();
+			break;
+		case Connection.REDO:
+			redo();
+			break;
+		case Connection.KONAMI:
+			currentState = Modes.PARTY;
+			return true;
+		case Connection.REV_KONAMI:
+			currentState = Modes.SCARY;
+			return true;
+		}
+		return false;
+	}
+	
+	private void undo() {
+		try {
+			boolean undone = history.undo(this);
+			EventLog.log(EventLog.UNDO, address, history.getUndoCount(), undone ? 1 : 0);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+	
+	private void redo() {
+		try {
+			boolean redone = history.redo(this);
+			EventLog.log(EventLog.REDO, address, history.getRedoCount(), redone ? 1 : 0);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+	
+	private boolean handleLightSelection(WirelessCommand currCommand) {
+		if(currCommand.getDataType() != Connection.USER_ACTION_DATA)
+			return true;
+		switch(currCommand.getUserActionData()){
+		case Connection.LEFT:
+			moveCursor(-1);
+			break;
+		case Connection.RIGHT:
+			moveCursor(1);
+			break;
+		case Connection.PS2:
+			if(!profiles.isClaimedBy(currentLightIndex, this)) {
+				// another controller is working on every fixture
+				break;
+			}
+			if(profiles.getLight(currentLightIndex).isSelected()) {
+				profiles.getLight(currentLightIndex).setSelected(false);
+			} else {
+				profiles.getLight(currentLightIndex).setSelected(true);
+			}
+			break;
+		case Connection.PS2_LONG:
+				clearSelected();
+				if(profiles.isClaimedBy(currentLightIndex, this))
+					highlight.addLight(currentLightIndex);
+			break;
+		case Connection.B1:
+			selectedLights = redrumHighlight();
+			if(selectedLights.isEmpty()) {
+				// nothing left that other controllers aren't holding
+				startHighlight();
+				break;
+			}
+			
+			currentState = Modes.CONTROL_SELECTION;
+			
+			int temp = selectedLights.get(0).getNumChannels();
+			for (FixtureProfile light : selectedLights) {
+				if(temp != light.getNumChannels())
+				{
+					
+					canChangeDMX = false;
+					break;
+				}
+
+				canChangeDMX = true;
+				temp = light.getNumChannels();
+
+			}
+			
+			clearSelected();
+			revertScene();
+			
+			currentControlIndex = 1;
+			startPresetVisual();
+			return true;
+		case Connection.B2:
+			redrumHighlight();
+			
+			clearSelected();
+			profiles.releaseAll(this);
+			
+			revertScene();
+			
+			currentState = Modes.IDLE;
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean handleControlSelection(WirelessCommand currCommand) {
+		if(currCommand.getDataType() != Connection.USER_ACTION_DATA)
+			return true;
+		switch(currCommand.getUserActionData()){
+		case Connection.LEFT:
+			switch(currentControlIndex)
+			{
+			case -1:
+				redrumDMXVisual();
+				currentControlIndex = 1;
+				revertScene();
+				startPresetVisual();
+				break;
+			case 0:
+				redrumRainbow();
+				if(canChangeDMX) {
+					currentControlIndex = -1;
+					revertScene();
+					startDMXVisual();
+				}
+				else {
+					currentControlIndex = 1;
+					startPresetVisual();
+				}
+				break;
+			case 1:
+				redrumPresetVisual();
+				currentControlIndex = 0;
+				revertScene();
+				startRainbow();
+				break;
+			}
+			break;
+		case Connection.RIGHT:
+			switch(currentControlIndex)
+			{
+			case -1:
+				redrumDMXVisual();
+				currentControlIndex = 0;
+				revertScene();
+				startRainbow();
+				break;
+			case 0:
+				redrumRainbow();
+				currentControlIndex = 1;
+				revertScene();
+				startPresetVisual();
+				break;
+			case 1:
+				redrumPresetVisual();
+				if(canChangeDMX) {
+					currentControlIndex = -1;
+					revertScene();
+					startDMXVisual();
+				}
+				else {
+					currentControlIndex = 0;
+					startRainbow();
+				}
+				break;
+			}
+			break;
+		case Connection.B1:
+			switch(currentControlIndex)
+			{
+			case -1:
+				redrumDMXVisual();
+				revertScene();
+				currentChannelIndex = 0;
+				currentState = Modes.DMX;
+				break;
+			case 0:
+				redrumRainbow();
+				currentState = Modes.COLOR_WHEEL;
+
+				break;
+			case 1:
+				redrumPresetVisual();
+				currentState = Modes.PRESET;
+
+				break;
+			}
+			
+			return true;
+		case Connection.B2:
+			currentState = Modes.LIGHT_SELECTION;
+			switch(currentControlIndex)
+			{
+			case -1:
+				redrumDMXVisual();
+				break;
+			case 0:
+				redrumRainbow();
+				break;
+			case 1:
+				redrumPresetVisual();
+				break;
+			}
+			revertScene();
+			
+			startHighlight();
+
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean handleColorWheel(WirelessCommand currCommand) {
+		if(currCommand.getDataType() == Connection.USER_ACTION_DATA){
+			switch(currCommand.getUserActionData()){
+			case Connection.B1:
+				sceneManager.setCurrentScene(dmx.getDmx());
+				
+				currentState = Modes.LIGHT_SELECTION;
+				
+				startHighlight();
+				return true;
+			case Connection.B2:
+				currentState = Modes.CONTROL_SELECTION;
+				
+				startRainbow();
+				
+				return true;
+			}
+		}
+		else if(currCommand.getDataType() == Connection.JOYSTIC_DATA)
+		{
+			int xVal = currCommand.getJoystickX();
+			int yVal = currCommand.getJoystickY();
+			EventLog.log(EventLog.JOYSTICK, address, xVal, yVal);
+			
+			for (FixtureProfile light : selectedLights) {
+				history.touch(light);
+				try {
+					light.setColor(colorConverter.getColor(xVal, yVal));
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+			}
+		}
+		else
+		{
+			EventLog.log(EventLog.UNEXPECTED_DATA, address, currCommand.getDataType(), currentState);
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean handleDmx(WirelessCommand currCommand) {
+		int currentChannelVal = 0;
+		if(currCommand.getDataType() != Connection.USER_ACTION_DATA)
+			return true;
+		switch(currCommand.getUserActionData()){
+		case Connection.LEFT:
+			if(--currentChannelIndex < 0)
+				currentChannelIndex = selectedLights.get(0).getNumChannels() - 1;
+			
+			break;
+		case Connection.RIGHT:
+			if(++currentChannelIndex >= selectedLights.get(0).getNumChannels())
+				currentChannelIndex = 0;
+			
+			break;
+		case Connection.UP:
+			for (FixtureProfile light : selectedLights) {
+				
+				currentChannelVal = light.getDMXVals()[currentChannelIndex];
+				currentChannelVal += LightingDefines.DMX_STEP;
+				if(currentChannelVal > 255)
+					continue;
+				history.touch(light);
+				try {
+					light.setChannelManual(currentChannelIndex, currentChannelVal);
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+				
+			}
+			break;
+		case Connection.DOWN:
+			for (FixtureProfile light : selectedLights) {
+				
+				currentChannelVal = light.getDMXVals()[currentChannelIndex];
+				currentChannelVal -= LightingDefines.DMX_STEP;
+				if(currentChannelVal < 0)
+					continue;
+				history.touch(light);
+				try {
+					light.setChannelManual(currentChannelIndex, currentChannelVal);
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+				
+			}
+			break;
+		case Connection.B1:
+			sceneManager.setCurrentScene(dmx.getDmx());
+			
+			currentState = Modes.LIGHT_SELECTION;
+			
+			startHighlight();
+			return true;
+		case Connection.B2:
+			currentState = Modes.CONTROL_SELECTION;
+			
+			revertScene();
+			
+			startDMXVisual();
+			
+			return true;
+			
+		case Connection.PS2:
+			for (FixtureProfile light : selectedLights) {
+				history.touch(light);
+				try {
+					light.clearLight();
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+			}
+	
+		}
+		return false;
+	}
+	
+	private boolean handlePreset(WirelessCommand currCommand) {
+		switch(currCommand.getUserActionData()){
+		case Connection.LEFT:
+			if(palettes.getPaletteCount() == 0)
+				break;
+			if(--currentPresetIndex < 0){
+				currentPresetIndex = palettes.getPaletteCount() - 1;
+			}
+			applyPalette();
+			break;
+		case Connection.RIGHT:
+			if(palettes.getPaletteCount() == 0)
+				break;
+			if(++currentPresetIndex >= palettes.getPaletteCount()){
+				currentPresetIndex = 0;
+			}
+			applyPalette();
+			break;
+		case Connection.UP:
+			//records the selection's look as a new palette
+			Palette palette = Palette.record("palette " + (palettes.getPaletteCount() + 1), selectedLights,
+					dmx.getDmx());
+			currentPresetIndex = palettes.addPalette(palette);
+			EventLog.log(EventLog.PALETTE_RECORDED, address, currentPresetIndex, palette.getTypeCount());
+			break;
+		case Connection.B1:
+			//saves scene
+			sceneManager.setCurrentScene(dmx.getDmx());
+			
+			currentState = Modes.LIGHT_SELECTION;
+			
+			startHighlight();
+			
+			return true;
+		case Connection.B2:
+			currentState = Modes.CONTROL_SELECTION;
+			
+			startPresetVisual();
+			
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean handleParty(WirelessCommand currCommand) {
+		if(currCommand.getDataType() == Connection.USER_ACTION_DATA){
+			switch(currCommand.getUserActionData()){
+			case Connection.LEFT:
+				changePartyEffect(-1);
+				break;
+			case Connection.RIGHT:
+				changePartyEffect(1);
+				break;
+			case Connection.PS2_LONG:
+				EventLog.log(EventLog.GYRO_RANGE, address, min, max);
+				redrumPartyEffect();
+				partyEffect = 0;
+				currentState = Modes.IDLE;
+				return true;
+			}
+		}
+		else if(currCommand.getDataType() == Connection.GYRO_DATA)
+		{
+			if(partyEffect != 0)
+				// audio or a pixel map is driving the lights
+				return false;
+
+			try {
+				partyGyro.update(currCommand.getGyroData());
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+		}
+		else
+		{
+			
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean handleScary(WirelessCommand currCommand) {
+		if(currCommand.getDataType() == Connection.USER_ACTION_DATA){
+			switch(currCommand.getUserActionData()){
+			case Connection.PS2_LONG:
+				currentState = Modes.IDLE;
+				return true;
+			}
+		}
+		else if(currCommand.getDataType() == Connection.GYRO_DATA)
+		{
+			try {
+				scaryGyro.update(currCommand.getGyroData());
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+		}
+		else
+		{
+			EventLog.log(EventLog.UNEXPECTED_DATA, address, currCommand.getDataType(), currentState);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Black out every fixture not held by another controller, through the
+	 * history so the clear can be undone.
+	 */
+	private void clearScene() {
+		int[] live = dmx.getDmx();
+		Arrays.fill(recallVals, 0);
+		if(profiles.hasClaimsOtherThan(this))
+			profiles.keepClaimed(recallVals, live, this);
+		
+		try {
+			recallFrame.load(live);
+			recallFrame.setAll(recallVals);
+			history.touch(recallFrame);
+			recallFrame.commit();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+	
+	private void revertScene() {
+		applyScene(sceneManager.getCurrentScene());
+		if(selectedLights != null) {
+			for (FixtureProfile light : selectedLights) {
+				light.syncLight();
+			}
+		}
+
+	}
+	
+	/**
+	 * Write a scene out, keeping the live values of fixtures other controllers are working on.
+	 * Only the channels that differ from the live values are written.
+	 * 
+	 * @param scene
+	 * 			scene to write
+	 */
+	private void applyScene(Scene scene) {
+		int[] live = dmx.getDmx();
+		scene.getRuns().writeTo(recallVals);
+		if(profiles.hasClaimsOtherThan(this))
+			profiles.keepClaimed(recallVals, live, this);
+		
+		try {
+			recallFrame.load(live);
+			recallFrame.setAll(recallVals);
+			history.touch(recallFrame);
+			sceneManager.recalled(recallFrame.commit());
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Apply the current palette to the selected lights, all of them in one commit.
+	 */
+	private void applyPalette() {
+		try {
+			for (FixtureProfile light : selectedLights)
+				history.touch(light);
+			recallFrame.load(dmx.getDmx());
+			int writes = palettes.apply(currentPresetIndex, selectedLights, recallFrame);
+			EventLog.log(EventLog.PALETTE, address, currentPresetIndex, writes);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Claim the fixture under the cursor, moving the cursor on past fixtures other controllers hold.
+	 * 
+	 * @param step
+	 * 			direction to move the cursor in, 1 or -1
+	 * @return true if the cursor is on a fixture this controller holds, false if every fixture is held by others
+	 */
+	private boolean claimCursor(int step) {
+		int count = profiles.getLightCount();
+		if(currentLightIndex >= count)
+			currentLightIndex = 0;
+		for (int i = 0; i < count; i++) {
+			if(profiles.claim(currentLightIndex, this))
+				return true;
+			currentLightIndex = Math.floorMod(currentLightIndex + step, count);
+		}
+		return false;
+	}
+	
+	/**
+	 * Move the selection cursor to the next fixture this controller can take, restoring the one it leaves unless
+	 * that one is selected.
+	 * 
+	 * @param step
+	 * 			1 for the next fixture, -1 for the previous one
+	 */
+	private void moveCursor(int step) {
+		if(profiles.isClaimedBy(currentLightIndex, this) && !profiles.getLight(currentLightIndex).isSelected()) {
+			highlight.removeLight(currentLightIndex);
+			profiles.release(currentLightIndex, this);
+			revertScene();
+			highlight.updateDefaultColor();
+		}
+		
+		currentLightIndex = Math.floorMod(currentLightIndex + step, profiles.getLightCount());
+		
+		if(claimCursor(step) && !profiles.getLight(currentLightIndex).isSelected())
+			highlight.addLight(currentLightIndex);
+	}
+	
+	private void clearSelected() {
+		for (int i = 0; i < profiles.getLightCount(); i++) {
+			if(profiles.isClaimedBy(i, this))
+				profiles.getLight(i).setSelected(false);
+		}
+	}
+	
+	private void startRainbow() {
+		rainbowVisual = new RainbowEffect(selectedLights, dmx, tempo);
+		rainbowVisual.start(loop);
+	}
+	
+	private void redrumRainbow() {
+		rainbowVisual.redrum();
+		rainbowVisual = null;
+	}
+	
+	private void startDMXVisual() {
+		dmxVisual = new DMXVisualEffect(selectedLights);
+		dmxVisual.start(loop);
+	}
+	
+	private void redrumDMXVisual() {
+		dmxVisual.redrum();
+		dmxVisual = null;
+	}
+	
+	private void startChase() {
+		chase = new ChaseEffect(chaseSceneDelay, sceneManager.getSceneArray(), dmx, profiles, this, tempo);
+		chase.setBeatsPerStep(LightingDefines.CHASE_BEAT_DIVISIONS[chaseDivision]);
+		chase.start(loop);
+	}
+	
+	private void redrumChase() {
+		chase.redrum();
+		chase = null;
+	}
+	
+	private void startAudioVisual() {
+		audioVisual = new AudioVisualEffect(profiles, server.getAudioAnalyzer(), dmx);
+		audioVisual.start(loop);
+	}
+	
+	private void redrumAudioVisual() {
+		audioVisual.redrum();
+		audioVisual = null;
+	}
+	
+	private void startPixelMap(PixelGenerator generator) {
+		pixelMap = new PixelMapEffect(profiles, generator, dmx);
+		pixelMap.start(loop);
+	}
+	
+	private void redrumPixelMap() {
+		pixelMap.redrum();
+		pixelMap = null;
+	}
+	
+	/**
+	 * Stop whichever party effect is driving the lights (the gyro party needs no stopping).
+	 */
+	private void redrumPartyEffect() {
+		if(audioVisual != null)
+			redrumAudioVisual();
+		if(pixelMap != null)
+			redrumPixelMap();
+	}
+	
+	/**
+	 * Step through the party effects: gyro, audio (if there is an audio input), then each pixel map generator.
+	 * 
+	 * @param step
+	 * 			1 for the next effect, -1 for the previous one
+	 */
+	private void changePartyEffect(int step) {
+		int count = 2 + PixelGenerators.ALL.length;
+		int next = Math.floorMod(partyEffect + step, count);
+		if(next == 1 && server.getAudioAnalyzer() == null)
+			next = Math.floorMod(next + step, count);
+		
+		if(next >= 2 && pixelMap != null) {
+			// keep the effect, just swap what it draws
+			pixelMap.setGenerator(PixelGenerators.ALL[next - 2]);
+		} else {
+			redrumPartyEffect();
+			if(next == 1)
+				startAudioVisual();
+			else if(next >= 2)
+				startPixelMap(PixelGenerators.ALL[next - 2]);
+		}
+		partyEffect = next;
+		
+		EventLog.log(EventLog.PARTY_EFFECT, address, next);
+	}
+	
+	private void startCue() {
+		cue = new CueEffect(CueStack.fromScenes(sceneManager.getSceneArray()), dmx);
+		cue.start(loop);
+	}
+	
+	private void redrumCue() {
+		cue.redrum();
+		cue = null;
+	}
+	
+	private void startHighlight() {
+		// starting a new selection, let go of the fixtures worked on before
+		profiles.releaseAll(this);
+		highlight = new HighlightEffect(profiles);
+		if(claimCursor(1))
+			highlight.addLight(currentLightIndex);
+		highlight.start(loop);
+	}
+	
+	private ArrayList<FixtureProfile> redrumHighlight() {
+		ArrayList<FixtureProfile> temp;
+		temp = highlight.redrum();
+		highlight = null;
+		return temp;
+	}
+	
+	private void startPresetVisual() {
+		presetVisual = new PresetVisualEffect(selectedLights);
+		presetVisual.start(loop);
+	}
+	
+	private void redrumPresetVisual() {
+		presetVisual.redrum();
+		presetVisual = null;
+	}
+	
+	/**
+	 * Stop this controller's effects and release its fixtures. Only called from
+	 * the event loop.
+	 */
+	public void close() {
+		if(highlight != null){
+			redrumHighlight();
+		}
+		
+		if(presetVisual != null){
+			redrumPresetVisual();
+		}
+		
+		if(rainbowVisual != null) {
+			redrumRainbow();
+		}
+		
+		if(dmxVisual != null) {
+			redrumDMXVisual();
+		}
+		
+		if(chase != null) {
+			redrumChase();
+		}
+		
+		if(cue != null) {
+			redrumCue();
+		}
+		
+		redrumPartyEffect();
+		
+		profiles.releaseAll(this);
+		heartbeat.removeTarget(address);
+	}
+	
+	public InetAddress getAddress() {
+		return address;
+	}
+	
+	public byte getCurrentState() {
+		return currentState;
+	}
+	
+	@Override
+	public String toString() {
+		return address.getHostAddress() + " (state " + currentState + ")";
+	}
+}
@@ -0,0 +1,67 @@
+package chuck.threads;
+
+import java.io.IOException;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.lighting.CueStack;
+
+/**
+ * Plays back a cue stack. Renders every running fade once per output frame and
+ * commits the frame to the driver. GO and BACK come from the controller's
+ * session on the same loop, so they start their fade right away and the frame
+ * is drawn at once rather than on the next tick.
+ */
+public class CueEffect extends Tickable {
+
+	private CueStack stack;
+	private DMXFrame frame;
+
+	/**
+	 * Constructor. Prepare to play the stack from the top.
+	 *
+	 * @param stack
+	 *            cue stack to play back
+	 * @param dmx
+	 *            driver to commit each frame to
+	 */
+	public CueEffect(CueStack stack, DMXDriver dmx) {
+		this.stack = stack;
+		this.frame = new DMXFrame(dmx);
+	}
+
+	@Override
+	protected long tick(long now) {
+		stack.render(now / 1000000, frame);
+
+		try {
+			frame.commit();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		return now + LightingDefines.CUE_FRAME_DELAY * 1000000L;
+	}
+
+	/**
+	 * Advance to the next cue.
+	 */
+	public void go() {
+		stack.go(System.nanoTime() / 1000000, frame);
+		wake();
+	}
+
+	/**
+	 * Return to the previous cue.
+	 */
+	public void back() {
+		stack.back(System.nanoTime() / 1000000, frame);
+		wake();
+	}
+
+	public void redrum() {
+		cancel();
+	}
+}
@@ -0,0 +1,46 @@
+package chuck.threads;
+
+import java.io.*;
+import java.util.ArrayList;
+import chuck.lighting.FixtureProfile;
+import chuck.defines.*;
+
+public class DMXVisualEffect extends Tickable {
+	private ArrayList<FixtureProfile> lights;
+	private int direction = -1 * LightingDefines.HIGHLIGHT_DIMMER_STEP;
+	private int dimmerValue = 255;
+	
+	public DMXVisualEffect(ArrayList<FixtureProfile> lights) {
+		this.lights = lights;
+	}
+
+
+	@Override
+	protected long tick(long now) {
+		for (FixtureProfile light: lights) {
+			try {
+				light.setWhite(255);
+
+				light.setDimmerValue(dimmerValue +=(direction));
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+		}
+		
+		if(direction == -1 * LightingDefines.HIGHLIGHT_DIMMER_STEP && dimmerValue < LightingDefines.HIGHLIGHT_DIMMER_LOW_VAL){
+			direction = LightingDefines.HIGHLIGHT_DIMMER_STEP;
+		} else if (direction == LightingDefines.HIGHLIGHT_DIMMER_STEP && dimmerValue >= LightingDefines.HIGHLIGHT_DIMMER_HIGH_VAL){
+			direction = -1 * LightingDefines.HIGHLIGHT_DIMMER_STEP;
+		}
+		
+		return now + LightingDefines.DMX_VISUAL_DELAY * 1000000L;
+	}
+
+	public void redrum()
+	{
+		cancel();
+	}
+
+
+}
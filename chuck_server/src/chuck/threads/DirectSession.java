@@ -0,0 +1,322 @@
+package chuck.threads;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.FixtureProfile;
+import chuck.lighting.Scene;
+import chuck.lighting.SceneManager;
+import chuck.lighting.TempoClock;
+
+/**
+ * Session of a control surface that works on fixtures and channels directly
+ * rather than through the controller state machine (the web page, an OSC
+ * tablet). <br />
+ * Like a controller session it is a claim owner: it only selects fixtures no
+ * controller holds, and its writes leave fixtures held by someone else alone.
+ * Like everything that writes the rig, it lives on the event loop: a surface
+ * running on another thread (the web server) calls it through EventLoop.call.
+ */
+public class DirectSession {
+
+	private final String name;
+	private DMXDriver dmx;
+	private FixtureManager profiles;
+	private SceneManager sceneManager;
+
+	private ArrayList<Integer> selected = new ArrayList<Integer>();
+	private TempoClock tempo = new TempoClock();
+	private EventLoop loop;
+	private ChaseEffect chase = null;
+	private int chaseSceneDelay = 100;
+
+	/**
+	 * Scratch frame and values for writing scenes out
+	 */
+	private DMXFrame recallFrame;
+	private int[] recallVals = new int[513];
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *            name of the surface, shown as the owner of its claims
+	 * @param dmx
+	 *            shared dmx driver
+	 * @param profiles
+	 *            shared fixture set (and its claims)
+	 * @param sceneManager
+	 *            shared scene list
+	 * @param loop
+	 *            event loop the session (and its chase) runs on
+	 */
+	public DirectSession(String name, DMXDriver dmx, FixtureManager profiles, SceneManager sceneManager,
+			EventLoop loop) {
+		this.name = name;
+		this.loop = loop;
+		this.dmx = dmx;
+		this.profiles = profiles;
+		this.sceneManager = sceneManager;
+		this.recallFrame = new DMXFrame(dmx);
+	}
+
+	/**
+	 * Write a saved scene, leaving fixtures held by others as they are.
+	 *
+	 * @param index
+	 *            index into the scene list, or -1 for the current scene
+	 * @throws IOException
+	 *             if unable to access dmx driver
+	 * @throws IllegalArgumentException
+	 *             if there is no such scene
+	 */
+	public void recallScene(int index) throws IOException {
+		ArrayList<Scene> scenes = sceneManager.getSceneArray();
+		if (index == -1)
+			applyScene(sceneManager.getCurrentScene());
+		else if (index >= 0 && index < scenes.size())
+			applyScene(scenes.get(index));
+		else
+			throw new IllegalArgumentException("no scene " + index);
+	}
+
+	/**
+	 * Step to the next scene in the list, as UP does in scene mode.
+	 *
+	 * @throws IOException
+	 *             if unable to access dmx driver
+	 */
+	public void nextScene() throws IOException {
+		applyScene(sceneManager.getNextScene());
+	}
+
+	/**
+	 * Step to the previous scene in the list, as DOWN does in scene mode.
+	 *
+	 * @throws IOException
+	 *             if unable to access dmx driver
+	 */
+	public void lastScene() throws IOException {
+		applyScene(sceneManager.getLastScene());
+	}
+
+	private void applyScene(Scene scene) throws IOException {
+		int[] live = dmx.getDmx();
+		scene.getRuns().writeTo(recallVals);
+		if (profiles.hasClaimsOtherThan(this))
+			profiles.keepClaimed(recallVals, live, this);
+		recallFrame.load(live);
+		recallFrame.setAll(recallVals);
+		sceneManager.recalled(recallFrame.commit());
+	}
+
+	/**
+	 * Replace the selection. Fixtures held by someone else are skipped.
+	 *
+	 * @param indices
+	 *            zero-based fixture indices (empty to release the selection)
+	 * @return indices that could not be selected because they are held elsewhere
+	 * @throws IllegalArgumentException
+	 *             if an index is not a fixture
+	 */
+	public ArrayList<Integer> select(int... indices) {
+		for (int index : indices) {
+			if (index < 0 || index >= profiles.getLightCount())
+				throw new IllegalArgumentException("no fixture " + index);
+		}
+
+		profiles.releaseAll(this);
+		selected.clear();
+		ArrayList<Integer> refused = new ArrayList<Integer>();
+		for (int index : indices) {
+			if (profiles.claim(index, this))
+				selected.add(index);
+			else
+				refused.add(index);
+		}
+		return refused;
+	}
+
+	/**
+	 * Write one dmx address, unless it belongs to a fixture held by someone
+	 * else.
+	 *
+	 * @param address
+	 *            dmx address within [1:512]
+	 * @param value
+	 *            value within [0:255]
+	 * @return null if written, otherwise the owner of the fixture at address
+	 * @throws IOException
+	 *             if unable to access dmx driver
+	 */
+	public Object setChannel(int address, int value) throws IOException {
+		if (address < 1 || address > 512 || value < 0 || value > 255)
+			throw new IllegalArgumentException("address within [1:512], value within [0:255]");
+		Object owner = profiles.getClaimOwner(address);
+		if (owner != null && owner != this)
+			return owner;
+		dmx.setDMX(address, value);
+		return null;
+	}
+
+	/**
+	 * Write a relative channel of every selected fixture that has it.
+	 *
+	 * @param channel
+	 *            channel within each fixture, 0 for its first
+	 * @param value
+	 *            value within [0:255]
+	 * @return number of fixtures written
+	 * @throws IOException
+	 *             if unable to access dmx driver
+	 */
+	public int setSelectedChannel(int channel, int value) throws IOException {
+		int written = 0;
+		for (int index : selected) {
+			FixtureProfile light = profiles.getLight(index);
+			if (channel < 0 || channel >= light.getNumChannels())
+				continue;
+			light.setChannelManual(channel, value);
+			written++;
+		}
+		return written;
+	}
+
+	/**
+	 * Set the color of every selected fixture with rgb channels.
+	 *
+	 * @param rgb
+	 *            packed color, red in bits 16-23, green in 8-15, blue in 0-7
+	 * @return number of fixtures written
+	 * @throws IOException
+	 *             if unable to access dmx driver
+	 */
+	public int setSelectedColor(int rgb) throws IOException {
+		Color color = new Color(rgb);
+		int written = 0;
+		for (int index : selected) {
+			FixtureProfile light = profiles.getLight(index);
+			if (!light.hasRGB())
+				continue;
+			light.setColor(color);
+			written++;
+		}
+		return written;
+	}
+
+	/**
+	 * Set the dimmer of every selected fixture with a dimmer channel.
+	 *
+	 * @param value
+	 *            dimmer value within [0:255]
+	 * @return number of fixtures written
+	 * @throws IOException
+	 *             if unable to access dmx driver
+	 */
+	public int setSelectedDimmer(int value) throws IOException {
+		int written = 0;
+		for (int index : selected) {
+			FixtureProfile light = profiles.getLight(index);
+			if (!light.hasDimmer())
+				continue;
+			light.setDimmerValue(value);
+			written++;
+		}
+		return written;
+	}
+
+	/**
+	 * Start (or restart) a chase through the scene list.
+	 *
+	 * @param sceneDelay
+	 *            ms per scene, clamped to the chase limits
+	 * @return the delay used
+	 */
+	public int startChase(int sceneDelay) {
+		stopChase();
+		chaseSceneDelay = clampDelay(sceneDelay);
+		chase = new ChaseEffect(chaseSceneDelay, sceneManager.getSceneArray(), dmx, profiles, this, tempo);
+		chase.setBeatsPerStep(LightingDefines.CHASE_BEAT_DIVISIONS[LightingDefines.CHASE_DEFAULT_DIVISION]);
+		chase.start(loop);
+		return chaseSceneDelay;
+	}
+
+	/**
+	 * Change the chase speed, taking effect right away if a chase is running.
+	 *
+	 * @param sceneDelay
+	 *            ms per scene, clamped to the chase limits
+	 */
+	public void setChaseDelay(int sceneDelay) {
+		chaseSceneDelay = clampDelay(sceneDelay);
+		if (chase != null)
+			chase.setSceneDelay(chaseSceneDelay);
+	}
+
+	private static int clampDelay(int sceneDelay) {
+		return Math.max(LightingDefines.MIN_CHASE_DELAY, Math.min(LightingDefines.MAX_CHASE_DELAY, sceneDelay));
+	}
+
+	public void stopChase() {
+		if (chase == null)
+			return;
+		chase.redrum();
+		chase = null;
+	}
+
+	/**
+	 * Tap the chase tempo.
+	 *
+	 * @return tempo in beats per minute
+	 */
+	public double tap() {
+		tempo.tap(System.nanoTime());
+		if (chase != null)
+			chase.tempoChanged();
+		return tempo.getBpm();
+	}
+
+	/**
+	 * Stop the chase and release the selection.
+	 */
+	public void close() {
+		stopChase();
+		profiles.releaseAll(this);
+		selected.clear();
+	}
+
+	/**
+	 * Get the selected fixtures.
+	 *
+	 * @return copy of the selected fixture indices
+	 */
+	public ArrayList<Integer> getSelected() {
+		return new ArrayList<Integer>(selected);
+	}
+
+	/**
+	 * Describe the session: selection and chase.
+	 *
+	 * @return multi-line summary
+	 */
+	public String getStatus() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("scene ").append(sceneManager.getCurrentIndex()).append(" of ").append(sceneManager.getSceneCount())
+				.append('\n');
+		sb.append("selected ").append(selected).append('\n');
+		sb.append("chase ").append(chase != null ? "running every " + chaseSceneDelay + " ms" : "stopped");
+		if (tempo.isRunning())
+			sb.append(String.format(" at %.1f bpm", tempo.getBpm()));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,332 @@
+package chuck.threads;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Single threaded reactor the server runs on. One selector multiplexes the
+ * sockets, and its timeout is the time until the earliest tickable (effect
+ * frame, heartbeat) is due, so every wake-up either has packets to read, a
+ * tick to run, or a task handed over from another thread. <br />
+ * Packets, ticks, and tasks all run on the loop's thread, so the controller
+ * sessions, effects, and every DMX write they make happen one at a time with
+ * no locks. Other threads (the web server, the command line) get onto the loop
+ * with execute or call; that queue is the only thing shared.
+ */
+public class EventLoop {
+
+	private final Selector selector;
+	private volatile Thread thread = null;
+	private volatile boolean running = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Work handed over from other threads
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Binary heap of scheduled tickables, earliest due first
+	 */
+	private Tickable[] timers = new Tickable[16];
+	private int timerCount = 0;
+
+	private volatile long wakeups = 0;
+	private volatile long idleWakeups = 0;
+	private volatile long events = 0;
+	private volatile long ticks = 0;
+	private volatile long tasksRun = 0;
+
+	/**
+	 * Constructor. Opens the selector.
+	 *
+	 * @throws IOException
+	 *             if unable to open a selector
+	 */
+	public EventLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * Call a handler whenever a channel has something to read. The channel is
+	 * switched to non-blocking mode; the handler should read until the channel
+	 * is empty (or it has done a fair share), the key stays ready until then.
+	 * Call before run, or from the loop.
+	 *
+	 * @param channel
+	 *            channel to watch
+	 * @param onReadable
+	 *            handler run on the loop
+	 * @throws IOException
+	 *             if the channel is closed or can't be made non-blocking
+	 */
+	public void register(SelectableChannel channel, Runnable onReadable) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, onReadable);
+	}
+
+	/**
+	 * Run until redrum is called: wait for the sockets, the next tick, or a
+	 * task, then handle whichever are ready. Tasks still queued when the loop
+	 * stops are cancelled.
+	 */
+	public void run() {
+		thread = Thread.currentThread();
+		running = true;
+
+		while (running) {
+			int ready;
+			try {
+				if (!tasks.isEmpty()) {
+					ready = selector.selectNow();
+				} else if (timerCount > 0) {
+					long wait = timers[0].due - System.nanoTime();
+					// rounded up, waking before the tick is due would be a wasted wake-up
+					ready = wait <= 0 ? selector.selectNow() : selector.select((wait + 999999) / 1000000);
+				} else {
+					ready = selector.select();
+				}
+			} catch (IOException ex) {
+				// treat ioexception as fatal for now;
+				ex.printStackTrace();
+				break;
+			}
+			wakeups++;
+			boolean worked = false;
+
+			if (ready > 0) {
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid())
+						continue;
+					try {
+						((Runnable) key.attachment()).run();
+					} catch (RuntimeException ex) {
+						// one bad packet must not take the server down
+						ex.printStackTrace();
+					}
+					events++;
+				}
+				selector.selectedKeys().clear();
+				worked = true;
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException ex) {
+					ex.printStackTrace();
+				}
+				tasksRun++;
+				worked = true;
+			}
+
+			long now = System.nanoTime();
+			while (timerCount > 0 && timers[0].due - now <= 0) {
+				Tickable timer = timers[0];
+				removeAt(0);
+				long next;
+				try {
+					next = timer.tick(now);
+				} catch (RuntimeException ex) {
+					// drop the effect, keep the loop
+					ex.printStackTrace();
+					next = Tickable.STOP;
+				}
+				if (next != Tickable.STOP)
+					schedule(timer, next);
+				ticks++;
+				worked = true;
+			}
+
+			if (!worked)
+				idleWakeups++;
+		}
+
+		closed = true;
+		cancelTasks();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop the loop after the current pass. Safe from any thread.
+	 */
+	public void redrum() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the loop as soon as it is free. Safe from any thread; a
+	 * task queued once the loop has stopped is cancelled (if it is a Future) or
+	 * dropped.
+	 *
+	 * @param task
+	 *            work to run on the loop
+	 */
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		if (closed)
+			cancelTasks();
+		else
+			selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the loop and wait for its result. Runs it directly if
+	 * called from the loop.
+	 *
+	 * @param task
+	 *            work to run on the loop
+	 * @return what the task returned
+	 * @throws IOException
+	 *             if the task threw one, or the loop stopped before running it
+	 */
+	public <T> T call(Callable<T> task) throws IOException {
+		if (Thread.currentThread() == thread) {
+			try {
+				return task.call();
+			} catch (IOException | RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IOException(ex);
+			}
+		}
+
+		FutureTask<T> future = new FutureTask<T>(task);
+		execute(future);
+		try {
+			return future.get();
+		} catch (CancellationException ex) {
+			throw new IOException("server stopped");
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private void cancelTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			if (task instanceof Future)
+				((Future<?>) task).cancel(false);
+		}
+	}
+
+	/**
+	 * Schedule (or move) a tickable's next tick. Only called on the loop.
+	 */
+	void schedule(Tickable timer, long due) {
+		if (timer.slot >= 0) {
+			timer.due = due;
+			siftDown(siftUp(timer.slot));
+			return;
+		}
+		if (timerCount == timers.length)
+			timers = Arrays.copyOf(timers, timers.length * 2);
+		timer.due = due;
+		timers[timerCount] = timer;
+		timer.slot = timerCount;
+		siftUp(timerCount++);
+	}
+
+	/**
+	 * Unschedule a tickable. Only called on the loop.
+	 */
+	void cancel(Tickable timer) {
+		if (timer.slot >= 0)
+			removeAt(timer.slot);
+	}
+
+	private void removeAt(int slot) {
+		Tickable removed = timers[slot];
+		removed.slot = -1;
+		Tickable last = timers[--timerCount];
+		timers[timerCount] = null;
+		if (slot == timerCount)
+			return;
+		timers[slot] = last;
+		last.slot = slot;
+		siftDown(siftUp(slot));
+	}
+
+	private int siftUp(int slot) {
+		Tickable timer = timers[slot];
+		while (slot > 0) {
+			int parent = (slot - 1) >>> 1;
+			if (timers[parent].due - timer.due <= 0)
+				break;
+			place(timers[parent], slot);
+			slot = parent;
+		}
+		place(timer, slot);
+		return slot;
+	}
+
+	private void siftDown(int slot) {
+		Tickable timer = timers[slot];
+		int half = timerCount >>> 1;
+		while (slot < half) {
+			int child = 2 * slot + 1;
+			if (child + 1 < timerCount && timers[child + 1].due - timers[child].due < 0)
+				child++;
+			if (timer.due - timers[child].due <= 0)
+				break;
+			place(timers[child], slot);
+			slot = child;
+		}
+		place(timer, slot);
+	}
+
+	private void place(Tickable timer, int slot) {
+		timers[slot] = timer;
+		timer.slot = slot;
+	}
+
+	/**
+	 * Whether the calling thread is the loop's.
+	 *
+	 * @return true on the loop
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Describe the loop: wake-ups (and how many found nothing to do), socket
+	 * events, ticks, and tasks.
+	 *
+	 * @return one line summary
+	 */
+	public String getInfo() {
+		return "event loop: " + wakeups + " wake-ups (" + idleWakeups + " idle), " + events + " socket events, "
+				+ ticks + " ticks, " + tasksRun + " tasks, " + timerCount + " scheduled";
+	}
+}
@@ -0,0 +1,166 @@
+package chuck.threads;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import chuck.defines.*;
+import chuck.log.EventLog;
+
+/**
+ * Heartbeats to the controllers, ticked on the event loop: each tick polls the
+ * controllers that are due and is scheduled again for the next one due.
+ */
+public class HeartBeat extends Tickable {
+	private DatagramChannel server;
+	private byte currentState;
+	private ByteBuffer data;
+	private InetSocketAddress address;
+	private ConnectionManager connections;
+	private long nextBroadcast;
+	private boolean running = false;
+
+	/**
+	 * Constructor. Set UDP channel for sending heartbeat packets.
+	 *
+	 * @param server	Shared UDP server channel for sending to controller (must allow broadcast).
+	 * @param currentState	state broadcast while no controller is connected
+	 * @param connections	known controllers, polled by unicast on their own schedule
+	 */
+	public HeartBeat(DatagramChannel server, byte currentState, ConnectionManager connections) {
+		this.server = server;
+		this.currentState = currentState;
+		this.connections = connections;
+
+		data = ByteBuffer.allocateDirect(10);
+		data.put(Connection.ID);
+		data.put(Connection.POLL_PACKET_ID);
+	}
+
+	/**
+	 * Start polling on the loop.
+	 *
+	 * @see chuck.threads.Tickable#start(chuck.threads.EventLoop)
+	 */
+	@Override
+	public void start(EventLoop loop) {
+		try {
+			address = new InetSocketAddress(InetAddress.getByName("255.255.255.255"), Connection.DMX_PORT);
+		} catch (UnknownHostException ex) {
+			// sending to broadcast, so unknown host is fatal error
+			ex.printStackTrace();
+			System.exit(-1);
+		}
+		nextBroadcast = System.nanoTime();
+		running = true;
+		super.start(loop);
+	}
+
+	/**
+	 * Poll each known controller by unicast when its connection manager schedule says so (HEARTBEAT_INTERVAL while it
+	 * answers, sooner after a miss, rarely once it is disconnected). While no controller is connected, also broadcast
+	 * the default state every HEARTBEAT_INTERVAL so controllers can find the server.
+	 *
+	 * @see chuck.threads.Tickable#tick(long)
+	 */
+	@Override
+	protected long tick(long now) {
+		long wake = now + Connection.HEARTBEAT_INTERVAL * 1000000L;
+
+		for (ConnectionManager.Peer peer : connections.getPeers()) {
+			if (now - peer.getNextPoll() >= 0) {
+				send(peer.getState(), peer.getAddress());
+				connections.pollSent(peer, now);
+			}
+			if (peer.getNextPoll() - wake < 0)
+				wake = peer.getNextPoll();
+		}
+
+		if (!connections.anyConnected()) {
+			if (now - nextBroadcast >= 0) {
+				sendHeartbeat();
+				nextBroadcast = now + Connection.HEARTBEAT_INTERVAL * 1000000L;
+			}
+			if (nextBroadcast - wake < 0)
+				wake = nextBroadcast;
+		}
+
+		return wake;
+	}
+
+	/**
+	 * Broadcast the default state now.
+	 */
+	public void sendHeartbeat(){
+		send(currentState, address);
+	}
+
+	/**
+	 * Send a controller its state now (as a poll), and keep sending it on every heartbeat. Repeats of an unchanged
+	 * state are rate limited.
+	 *
+	 * @param target	address of the controller
+	 * @param state		state of that controller's session
+	 */
+	public void sendHeartbeat(InetAddress target, byte state){
+		long now = System.nanoTime();
+		ConnectionManager.Peer peer = connections.pushState(target, state, now);
+		if (peer == null)
+			// same state sent moments ago
+			return;
+		send(state, peer.getAddress());
+		connections.pollSent(peer, now);
+	}
+
+	/**
+	 * Stop sending heartbeats to a controller (broadcasting resumes once no controllers are connected).
+	 *
+	 * @param target	address of the controller
+	 */
+	public void removeTarget(InetAddress target){
+		connections.remove(target);
+	}
+
+	private void send(byte state, InetSocketAddress to){
+
+		if(running){
+			data.put(9, state);
+			data.clear();
+
+			try {
+				// non-blocking; a heartbeat the socket has no room for is sent again on the next poll
+				server.send(data, to);
+			} catch (IOException e) {
+				// io exception treated as fatal error
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		else
+		{
+			EventLog.log(EventLog.HEARTBEAT_STOPPED, to.getAddress());
+		}
+	}
+
+	public void redrum()
+	{
+		running = false;
+		cancel();
+	}
+
+	public void setAddress(InetAddress address)
+	{
+		this.address = new InetSocketAddress(address, Connection.DMX_PORT);
+	}
+
+	public boolean getConnected()
+	{
+		return connections.anyConnected();
+	}
+
+	public void setCurrentState(byte currentState)
+	{
+		this.currentState = currentState;
+	}
+}
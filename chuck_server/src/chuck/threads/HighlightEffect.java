@@ -0,0 +1,153 @@
+package chuck.threads;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import chuck.defines.*;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.FixtureProfile;
+
+/**
+ * Pulses the dimmers of the highlighted fixtures while lights are being
+ * selected. <br />
+ * Controller input and the pulse both run on the event loop, so adding and
+ * removing fixtures changes the highlighted list directly, and a removed
+ * fixture gets its saved values back right away.
+ */
+public class HighlightEffect extends Tickable {
+	private FixtureManager profiles;
+
+	/**
+	 * Fixture indices, in the order they were highlighted
+	 */
+	private ArrayList<Integer> indices = new ArrayList<Integer>();
+
+	/**
+	 * Values to restore, parallel to indices
+	 */
+	private ArrayList<int[]> saved = new ArrayList<int[]>();
+
+	private boolean updateDefaultColor = false;
+	private int direction = -1 * LightingDefines.HIGHLIGHT_DIMMER_STEP;
+	private int dimmerValue = 255;
+
+	public HighlightEffect(FixtureManager profiles) {
+		this.profiles = profiles;
+	}
+
+	@Override
+	protected long tick(long now) {
+		boolean syncColor = updateDefaultColor;
+		updateDefaultColor = false;
+
+		for (int index : indices) {
+			if(index >= profiles.getLightCount())
+				continue;
+			FixtureProfile light = profiles.getLight(index);
+
+			if(syncColor) {
+				light.syncLight();
+				if(!light.hasColor()) {
+					try {
+						light.setChannelManual(light.getDefaultColorOffest(), 255);
+					} catch (IOException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+						System.exit(-1);
+					}
+				}
+			}
+
+			if(direction == -1 * LightingDefines.HIGHLIGHT_DIMMER_STEP && dimmerValue < LightingDefines.HIGHLIGHT_DIMMER_LOW_VAL){
+				direction = LightingDefines.HIGHLIGHT_DIMMER_STEP;
+			} else if (direction == LightingDefines.HIGHLIGHT_DIMMER_STEP && dimmerValue >= LightingDefines.HIGHLIGHT_DIMMER_HIGH_VAL){
+				direction = -1 * LightingDefines.HIGHLIGHT_DIMMER_STEP;
+			}
+
+			try {
+				light.setDimmerValue(dimmerValue +=(direction));
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+
+		}
+
+		return now + LightingDefines.HIGHLIGHT_VISUAL_DELAY * 1000000L;
+	}
+
+	/**
+	 * Write a fixture's saved values back.
+	 */
+	private void restore(int index, int[] values) {
+		if(index >= profiles.getLightCount())
+			return;
+		try {
+			profiles.getLight(index).setDMXVals(values);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Start highlighting a fixture, saving its current values to restore later.
+	 *
+	 * @param index
+	 *            zero-based index of the fixture in the fixture manager
+	 */
+	public void addLight(int index){
+		if(indices.contains(index))
+			return;
+		indices.add(index);
+		saved.add(profiles.getLight(index).getDMXVals());
+		updateDefaultColor = true;
+	}
+
+	public void updateDefaultColor() {
+		updateDefaultColor = true;
+	}
+
+	/**
+	 * Stop highlighting a fixture and restore its saved values.
+	 *
+	 * @param index
+	 *            zero-based index of the fixture in the fixture manager
+	 */
+	public void removeLight(int index){
+		int position = indices.indexOf(index);
+		if(position < 0)
+			return;
+		indices.remove(position);
+		restore(index, saved.remove(position));
+	}
+
+	/**
+	 * Stop pulsing and restore every highlighted fixture.
+	 *
+	 * @return the fixtures that were highlighted, in the order they were added
+	 */
+	public ArrayList<FixtureProfile> redrum()
+	{
+		cancel();
+
+		ArrayList<FixtureProfile> temp = new ArrayList<FixtureProfile>();
+		for (int i = 0; i < indices.size(); i++) {
+			int index = indices.get(i);
+			if(index < profiles.getLightCount())
+				temp.add(profiles.getLight(index));
+			restore(index, saved.get(i));
+		}
+		clearHighlighted();
+		return temp;
+	}
+
+	public void clearHighlighted()
+	{
+		indices.clear();
+		saved.clear();
+	}
+
+
+}
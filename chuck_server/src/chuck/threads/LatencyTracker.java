@@ -0,0 +1,338 @@
+package chuck.threads;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import chuck.defines.Connection;
+import chuck.defines.WirelessCommand;
+
+/**
+ * Latency from a controller packet arriving to the DMX writes it causes. <br />
+ * Every stage is measured from the packet's receive time on the event loop:
+ * DEQUEUE when the loop takes the packet up (after sensor conflation), DISPATCH
+ * when it is handed to the session's state machine, FIRST_WRITE when the first
+ * resulting DMX write is issued, and WRITE when the last one leaves the driver.
+ * Building a frame before its commit is included in FIRST_WRITE, not timed apart.
+ * Latencies go into a lock-free histogram per packet type and stage. <br />
+ * Driver writes are attributed through a per-thread context the loop opens
+ * around the state machine, so only writes made while handling the packet
+ * count; effect frames ticking on the loop between packets are not tracked.
+ */
+public class LatencyTracker {
+
+	public static final int DEQUEUE = 0;
+	public static final int DISPATCH = 1;
+	public static final int FIRST_WRITE = 2;
+	public static final int WRITE = 3;
+	private static final String[] STAGES = { "dequeue", "dispatch", "first_write", "write" };
+
+	public static final int BUTTON = 0;
+	public static final int JOYSTICK = 1;
+	public static final int GYRO = 2;
+	public static final int OTHER = 3;
+	private static final String[] TYPES = { "button", "joystick", "gyro", "other" };
+
+	/**
+	 * Histogram of latencies in microseconds: exact below 16 us, then eight
+	 * buckets per power of two (within 12.5%) up to about 35 minutes.
+	 */
+	public static class Histogram {
+		private static final int LINEAR = 16;
+		private static final int SUB_BITS = 3;
+		private static final int BUCKETS = LINEAR + (31 - 4) * (1 << SUB_BITS);
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Add a latency.
+		 *
+		 * @param nanos
+		 *            latency in nanoseconds (negative values count as 0)
+		 */
+		public void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			counts.incrementAndGet(bucket(micros));
+			count.incrementAndGet();
+			sum.addAndGet(micros);
+			long current;
+			while (micros > (current = max.get()) && !max.compareAndSet(current, micros))
+				;
+		}
+
+		private static int bucket(long micros) {
+			if (micros < LINEAR)
+				return (int) micros;
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			int index = LINEAR + ((exponent - 4) << SUB_BITS) + (int) ((micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1));
+			return Math.min(index, BUCKETS - 1);
+		}
+
+		/**
+		 * Upper bound of the values in a bucket.
+		 */
+		private static long bucketLimit(int index) {
+			if (index < LINEAR)
+				return index;
+			int exponent = ((index - LINEAR) >> SUB_BITS) + 4;
+			long sub = (index - LINEAR) & ((1 << SUB_BITS) - 1);
+			return ((1L << SUB_BITS) + sub + 1) << (exponent - SUB_BITS);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * Mean latency.
+		 *
+		 * @return microseconds, 0 if empty
+		 */
+		public double getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : (double) sum.get() / n;
+		}
+
+		/**
+		 * Largest latency.
+		 *
+		 * @return microseconds
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * Latency below which a fraction of the samples fall (rounded up to the
+		 * bucket's limit, never above the max).
+		 *
+		 * @param fraction
+		 *            within [0:1], e.g. 0.99 for the 99th percentile
+		 * @return microseconds, 0 if empty
+		 */
+		public long getPercentile(double fraction) {
+			long n = count.get();
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(fraction * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts.get(i);
+				if (seen >= rank && seen > 0)
+					return Math.min(bucketLimit(i), max.get());
+			}
+			return max.get();
+		}
+
+		private void reset() {
+			for (int i = 0; i < BUCKETS; i++)
+				counts.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+
+	/**
+	 * Packet being handled on a thread, and the driver writes made for it.
+	 */
+	public static class Context {
+		private boolean active = false;
+		private int type;
+		private long receiveTime;
+		private long firstWrite;
+		private long lastWrite;
+
+		/**
+		 * Note a driver write starting (call before writing).
+		 */
+		public void writeStarted() {
+			if (active && firstWrite == 0)
+				firstWrite = System.nanoTime();
+		}
+
+		/**
+		 * Note a driver write completing (call after writing).
+		 */
+		public void writeFinished() {
+			if (active)
+				lastWrite = System.nanoTime();
+		}
+	}
+
+	private final Histogram[][] histograms = new Histogram[TYPES.length][STAGES.length];
+
+	private final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+		@Override
+		protected Context initialValue() {
+			return new Context();
+		}
+	};
+
+	public LatencyTracker() {
+		for (int type = 0; type < TYPES.length; type++)
+			for (int stage = 0; stage < STAGES.length; stage++)
+				histograms[type][stage] = new Histogram();
+	}
+
+	/**
+	 * Packet type a command is tracked under.
+	 *
+	 * @param command
+	 *            parsed command
+	 * @return BUTTON, JOYSTICK, GYRO, or OTHER
+	 */
+	public static int typeOf(WirelessCommand command) {
+		if (command.isOsc())
+			return OTHER;
+		switch (command.getDataType()) {
+		case Connection.USER_ACTION_DATA:
+			return BUTTON;
+		case Connection.JOYSTIC_DATA:
+			return JOYSTICK;
+		case Connection.GYRO_DATA:
+			return GYRO;
+		default:
+			return OTHER;
+		}
+	}
+
+	/**
+	 * Record a stage reached now by a command.
+	 *
+	 * @param command
+	 *            parsed command, with its receive time
+	 * @param stage
+	 *            DEQUEUE, DISPATCH, FIRST_WRITE, or WRITE
+	 */
+	public void record(WirelessCommand command, int stage) {
+		if (command.getReceiveTime() == 0)
+			return;
+		histograms[typeOf(command)][stage].record(System.nanoTime() - command.getReceiveTime());
+	}
+
+	/**
+	 * Start handling a command on this thread: records DISPATCH and attributes
+	 * driver writes to the command until end() is called.
+	 *
+	 * @param command
+	 *            parsed command about to go to the state machine
+	 */
+	public void begin(WirelessCommand command) {
+		Context context = contexts.get();
+		context.active = command.getReceiveTime() != 0;
+		if (!context.active)
+			return;
+		context.type = typeOf(command);
+		context.receiveTime = command.getReceiveTime();
+		context.firstWrite = 0;
+		context.lastWrite = 0;
+		histograms[context.type][DISPATCH].record(System.nanoTime() - context.receiveTime);
+	}
+
+	/**
+	 * Finish handling the command started with begin(): records FIRST_WRITE and WRITE
+	 * if the command caused any driver writes.
+	 */
+	public void end() {
+		Context context = contexts.get();
+		if (!context.active)
+			return;
+		context.active = false;
+		if (context.firstWrite != 0) {
+			histograms[context.type][FIRST_WRITE].record(context.firstWrite - context.receiveTime);
+			histograms[context.type][WRITE].record(context.lastWrite - context.receiveTime);
+		}
+	}
+
+	/**
+	 * Name of a packet type, as in the CSV.
+	 *
+	 * @param type
+	 *            BUTTON, JOYSTICK, GYRO, or OTHER
+	 * @return lower case name
+	 */
+	public static String getTypeName(int type) {
+		return TYPES[type];
+	}
+
+	/**
+	 * Get this thread's context, for a driver to report its writes.
+	 *
+	 * @return context of the calling thread
+	 */
+	public Context context() {
+		return contexts.get();
+	}
+
+	/**
+	 * Get one histogram.
+	 *
+	 * @param type
+	 *            BUTTON, JOYSTICK, GYRO, or OTHER
+	 * @param stage
+	 *            DEQUEUE, DISPATCH, FIRST_WRITE, or WRITE
+	 * @return histogram of that packet type and stage
+	 */
+	public Histogram getHistogram(int type, int stage) {
+		return histograms[type][stage];
+	}
+
+	/**
+	 * Clear every histogram.
+	 */
+	public void reset() {
+		for (Histogram[] stages : histograms)
+			for (Histogram histogram : stages)
+				histogram.reset();
+	}
+
+	/**
+	 * Write every non-empty histogram's summary as CSV.
+	 *
+	 * @param file
+	 *            file to create or replace
+	 * @throws IOException
+	 *             if unable to write the file
+	 */
+	public void exportCsv(Path file) throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+			writer.write("type,stage,count,mean_us,p50_us,p90_us,p99_us,p999_us,max_us\n");
+			for (int type = 0; type < TYPES.length; type++) {
+				for (int stage = 0; stage < STAGES.length; stage++) {
+					Histogram h = histograms[type][stage];
+					if (h.getCount() == 0)
+						continue;
+					writer.write(String.format("%s,%s,%d,%.1f,%d,%d,%d,%d,%d\n", TYPES[type], STAGES[stage],
+							h.getCount(), h.getMean(), h.getPercentile(0.5), h.getPercentile(0.9),
+							h.getPercentile(0.99), h.getPercentile(0.999), h.getMax()));
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("latency from receive (us):");
+		for (int type = 0; type < TYPES.length; type++) {
+			for (int stage = 0; stage < STAGES.length; stage++) {
+				Histogram h = histograms[type][stage];
+				if (h.getCount() == 0)
+					continue;
+				sb.append(String.format("\n%-8s %-11s n=%-8d mean %8.1f  p50 %6d  p99 %6d  p99.9 %6d  max %6d",
+						TYPES[type], STAGES[stage], h.getCount(), h.getMean(), h.getPercentile(0.5),
+						h.getPercentile(0.99), h.getPercentile(0.999), h.getMax()));
+			}
+		}
+		if (sb.indexOf("\n") < 0)
+			sb.append("\nno packets yet");
+		return sb.toString();
+	}
+}
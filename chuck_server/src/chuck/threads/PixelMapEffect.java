@@ -0,0 +1,75 @@
+package chuck.threads;
+
+import java.io.IOException;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.lighting.FixtureManager;
+import chuck.lighting.PixelGenerator;
+import chuck.lighting.PixelMapper;
+
+/**
+ * Plays a procedural effect across the rig. Each tick the current generator is
+ * sampled at every RGB fixture's position and the result is committed as one
+ * frame.
+ */
+public class PixelMapEffect extends Tickable {
+
+	private PixelMapper mapper;
+	private DMXFrame frame;
+	private PixelGenerator generator;
+	private long start = Long.MIN_VALUE;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param profiles
+	 *            fixtures to map
+	 * @param generator
+	 *            effect to play
+	 * @param dmx
+	 *            driver to commit each frame to
+	 */
+	public PixelMapEffect(FixtureManager profiles, PixelGenerator generator, DMXDriver dmx) {
+		this.mapper = new PixelMapper(profiles);
+		this.frame = new DMXFrame(dmx);
+		this.generator = generator;
+	}
+
+	@Override
+	protected long tick(long now) {
+		if (start == Long.MIN_VALUE)
+			start = now;
+		float time = (now - start) / 1e9f;
+		mapper.render(generator, time);
+		mapper.write(frame);
+
+		try {
+			frame.commit();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		return now + LightingDefines.PIXEL_FRAME_DELAY * 1000000L;
+	}
+
+	/**
+	 * Switch to a different effect without restarting the clock.
+	 *
+	 * @param generator
+	 *            effect to play from the next tick
+	 */
+	public void setGenerator(PixelGenerator generator) {
+		this.generator = generator;
+	}
+
+	public PixelGenerator getGenerator() {
+		return generator;
+	}
+
+	public void redrum() {
+		cancel();
+	}
+}
@@ -0,0 +1,43 @@
+package chuck.threads;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import chuck.defines.*;
+import chuck.lighting.FixtureProfile;
+
+public class PresetVisualEffect extends Tickable {
+	private ArrayList<FixtureProfile> lights;
+	private int i = 0;
+	
+	public PresetVisualEffect(ArrayList<FixtureProfile> lights) {
+		this.lights = lights;
+	}
+
+
+	@Override
+	protected long tick(long now) {
+		for (FixtureProfile light: lights) {
+			try {
+				light.setColor(LightingDefines.PRESETS[i]);
+				light.setDimmerValue(255);
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+		}
+
+		if(++i >= LightingDefines.PRESETS.length){
+			i = 0;
+		}
+
+		return now + LightingDefines.PRESET_VISUAL_DELAY * 1000000L;
+	}
+
+	public void redrum()
+	{
+		cancel();
+	}
+
+
+}
@@ -0,0 +1,146 @@
+package chuck.threads;
+
+import java.io.IOException;
+import java.util.List;
+
+import chuck.defines.LightingDefines;
+import chuck.dmx.DMXDriver;
+import chuck.dmx.DMXFrame;
+import chuck.lighting.FixtureProfile;
+import chuck.lighting.TempoClock;
+
+/**
+ * Effect that takes a list of fixtures and rotates their colors through a
+ * rainbow to indicate the color selection mode. Each fixture is offset from the
+ * previous one by a configurable number of palette steps, so the rainbow travels
+ * across the selection. While a tempo is tapped, the rainbow completes one
+ * cycle every RAINBOW_BEATS beats.
+ *
+ * @author Joseph Eichenhofer
+ *
+ */
+public class RainbowEffect extends Tickable {
+
+	private static final int RAINBOW_RESOLUTION = 50;
+
+	/**
+	 * Rainbow colors packed as 0xRRGGBB. Shared by all rainbow threads; built once.
+	 */
+	private static final int[] RAINBOW = createRainbow();
+
+	private List<FixtureProfile> fixtures;
+	private DMXFrame frame;
+	private TempoClock tempo;
+	private int phaseSpread;
+	private int position = 0;
+
+	/**
+	 * Constructor. Prepares for rotating colors on the fixtures, using the default
+	 * phase spread.
+	 *
+	 * @param fixtures
+	 *            fixtures to highlight
+	 * @param dmx
+	 *            driver to commit each frame to
+	 * @param tempo
+	 *            beat clock to follow when a tempo is set
+	 */
+	public RainbowEffect(List<FixtureProfile> fixtures, DMXDriver dmx, TempoClock tempo) {
+		this(fixtures, dmx, tempo, LightingDefines.RAINBOW_PHASE_SPREAD);
+	}
+
+	/**
+	 * Constructor. Prepares for rotating colors on the fixtures.
+	 *
+	 * @param fixtures
+	 *            fixtures to highlight
+	 * @param dmx
+	 *            driver to commit each frame to
+	 * @param tempo
+	 *            beat clock to follow when a tempo is set
+	 * @param phaseSpread
+	 *            number of palette steps between adjacent fixtures (0 gives every
+	 *            fixture the same color)
+	 */
+	public RainbowEffect(List<FixtureProfile> fixtures, DMXDriver dmx, TempoClock tempo, int phaseSpread) {
+		this.fixtures = fixtures;
+		this.frame = new DMXFrame(dmx);
+		this.tempo = tempo;
+		// keep the spread within one cycle of the palette
+		this.phaseSpread = Math.floorMod(phaseSpread, RAINBOW.length);
+	}
+
+	/**
+	 * Creates rainbow based on logic found https://stackoverflow.com/a/22973823
+	 *
+	 * @return packed rgb palette
+	 */
+	private static int[] createRainbow() {
+		int[] rainbow = new int[6 * RAINBOW_RESOLUTION + 1];
+		int i = 0;
+		for (int r = 0; r < RAINBOW_RESOLUTION; r++)
+			rainbow[i++] = pack(r * 255 / RAINBOW_RESOLUTION, 255, 0);
+		for (int g = RAINBOW_RESOLUTION; g > 0; g--)
+			rainbow[i++] = pack(255, g * 255 / RAINBOW_RESOLUTION, 0);
+		for (int b = 0; b < RAINBOW_RESOLUTION; b++)
+			rainbow[i++] = pack(255, 0, b * 255 / RAINBOW_RESOLUTION);
+		for (int r = RAINBOW_RESOLUTION; r > 0; r--)
+			rainbow[i++] = pack(r * 255 / RAINBOW_RESOLUTION, 0, 255);
+		for (int g = 0; g < RAINBOW_RESOLUTION; g++)
+			rainbow[i++] = pack(0, g * 255 / RAINBOW_RESOLUTION, 255);
+		for (int b = RAINBOW_RESOLUTION; b > 0; b--)
+			rainbow[i++] = pack(0, 255, b * 255 / RAINBOW_RESOLUTION);
+		rainbow[i] = pack(0, 255, 0);
+		return rainbow;
+	}
+
+	private static int pack(int red, int green, int blue) {
+		return (red << 16) | (green << 8) | blue;
+	}
+
+	/**
+	 * Rotate the colors one step. Every tick renders all fixtures into the frame
+	 * and commits it once.
+	 */
+	@Override
+	protected long tick(long now) {
+		if (tempo.isRunning()) {
+			// position within the current cycle of RAINBOW_BEATS beats
+			double cycles = tempo.beats(now) / LightingDefines.RAINBOW_BEATS;
+			position = (int) ((cycles - Math.floor(cycles)) * RAINBOW.length);
+		}
+
+		// offset of the current fixture into the palette
+		int index = position;
+		for (int i = 0; i < fixtures.size(); i++) {
+			FixtureProfile fixture = fixtures.get(i);
+			if (fixture.hasRGB())
+				fixture.renderColor(frame, RAINBOW[index]);
+			if (fixture.hasDimmer())
+				fixture.renderDimmer(frame, 255);
+
+			index += phaseSpread;
+			if (index >= RAINBOW.length)
+				index -= RAINBOW.length;
+		}
+
+		try {
+			frame.commit();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		if (++position >= RAINBOW.length)
+			position = 0;
+
+		return now + LightingDefines.RAINBOW_VISUAL_DELAY * 1000000L;
+	}
+
+	/**
+	 * Stop rotating the colors.
+	 */
+	public void redrum() {
+		cancel();
+	}
+}
@@ -0,0 +1,172 @@
+package chuck.threads;
+
+import java.net.InetAddress;
+
+import chuck.defines.Connection;
+import chuck.defines.WirelessCommand;
+
+/**
+ * Keeps only the newest joystick and gyro sample per sender, so continuous
+ * sensor streams can't keep the event loop busy on stale samples. <br />
+ * While the loop drains the socket, each sensor packet is written into its
+ * sender/data type entry and marked pending; the pending entries are collected
+ * and handled before the next packet that isn't a sensor sample (and at the
+ * end of the batch), so the session acts on where the stick is now, and button
+ * events keep their order relative to the sensor data. <br />
+ * Only used on the event loop.
+ */
+public class SensorConflator {
+
+	/**
+	 * Bytes of a sensor packet kept per entry (header through gyro)
+	 */
+	private static final int SAMPLE_SIZE = 24;
+
+	private static class Entry {
+		private InetAddress sender;
+		private byte dataType;
+		private int senderPort;
+
+		private final byte[] sample = new byte[SAMPLE_SIZE];
+		private int length;
+		private long receiveTime;
+
+		/**
+		 * Whether the entry holds a sample not yet handled
+		 */
+		private boolean pending = false;
+	}
+
+	private final Entry[] entries;
+	private int used = 0;
+
+	private volatile long samples = 0;
+	private volatile long conflated = 0;
+	private volatile long unmatched = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxEntries
+	 *            number of sender/data type pairs to track; sensor packets
+	 *            beyond that are passed through unconflated
+	 */
+	public SensorConflator(int maxEntries) {
+		entries = new Entry[maxEntries];
+		for (int i = 0; i < maxEntries; i++)
+			entries[i] = new Entry();
+	}
+
+	/**
+	 * Whether a parsed command is a continuous sensor sample.
+	 *
+	 * @param command
+	 *            parsed command
+	 * @return true for joystick and gyro data packets
+	 */
+	public static boolean isSensor(WirelessCommand command) {
+		byte dataType = command.getDataType();
+		return dataType == Connection.JOYSTIC_DATA || dataType == Connection.GYRO_DATA;
+	}
+
+	/**
+	 * Store a sensor sample as the newest for its sender and data type.
+	 *
+	 * @param command
+	 *            parsed sensor command
+	 * @return entry index, or -1 if the table is full (pass the packet through)
+	 */
+	public int update(WirelessCommand command) {
+		int index = find(command.getSender_ip(), command.getDataType());
+		if (index < 0) {
+			unmatched++;
+			return -1;
+		}
+
+		Entry entry = entries[index];
+		entry.length = command.copyTo(entry.sample);
+		entry.receiveTime = command.getReceiveTime();
+		entry.senderPort = command.getSender_port();
+
+		samples++;
+		return index;
+	}
+
+	/**
+	 * Mark an entry as holding a sample to handle.
+	 *
+	 * @param index
+	 *            entry returned by update
+	 * @return true if the entry should be collected later, false if it was
+	 *         pending already (the older sample was conflated)
+	 */
+	public boolean markPending(int index) {
+		Entry entry = entries[index];
+		if (entry.pending) {
+			conflated++;
+			return false;
+		}
+		entry.pending = true;
+		return true;
+	}
+
+	/**
+	 * Load the newest sample of a pending entry into a command, and clear the
+	 * entry's pending mark.
+	 *
+	 * @param index
+	 *            entry marked pending
+	 * @param command
+	 *            command to load the sample into (parsed afterwards)
+	 */
+	public void collect(int index, WirelessCommand command) {
+		Entry entry = entries[index];
+		entry.pending = false;
+		command.receiveBuffer().put(entry.sample, 0, entry.length);
+		command.received(entry.sender, entry.senderPort, entry.receiveTime);
+		command.parse();
+	}
+
+	/**
+	 * Find or claim the entry for a sender and data type.
+	 */
+	private int find(InetAddress sender, byte dataType) {
+		for (int i = 0; i < used; i++) {
+			if (entries[i].dataType == dataType && entries[i].sender.equals(sender))
+				return i;
+		}
+		if (used == entries.length || sender == null)
+			return -1;
+
+		entries[used].sender = sender;
+		entries[used].dataType = dataType;
+		return used++;
+	}
+
+	/**
+	 * Number of sensor samples stored.
+	 *
+	 * @return sample count
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Number of sensor samples replaced by a newer one before being processed.
+	 *
+	 * @return conflated sample count
+	 */
+	public long getConflated() {
+		return conflated;
+	}
+
+	/**
+	 * Number of sensor samples passed through because the table was full.
+	 *
+	 * @return unconflated sample count
+	 */
+	public long getUnmatched() {
+		return unmatched;
+	}
+}
@@ -1,29 +1,41 @@
 package chuck.threads;
 
-import java.awt.Color;
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
 
+import chuck.audio.AudioAnalyzer;
 import chuck.defines.Connection;
-import chuck.defines.LightingDefines;
+import chuck.defines.Filepaths;
 import chuck.defines.Modes;
 import chuck.lighting.XYConverter;
 import chuck.defines.WirelessCommand;
+import chuck.defines.WirelessPackets;
 import chuck.dmx.DMXDriver;
+import chuck.http.ControlServer;
+import chuck.lighting.DMXHistory;
 import chuck.lighting.FixtureManager;
-import chuck.lighting.FixtureProfile;
+import chuck.lighting.PaletteManager;
+import chuck.lighting.Persister;
 import chuck.lighting.SceneManager;
+import chuck.log.EventLog;
+import chuck.osc.OscConflator;
+import chuck.osc.OscHandler;
 
 /**
- * Chuck Light server application. Starts heartbeat thread and udp listener
- * thread, then waits for commands from the udp listener thread via the shared
- * queue.
+ * Chuck Light server application. Runs the server on one event loop: the
+ * controller and OSC sockets, the heartbeat, and the effects are multiplexed on
+ * this thread, so the sessions and everything they write to the DMX driver run
+ * one at a time, without locks. Each controller gets its own session (state
+ * machine and fixture selection). The web server has its own thread and hands
+ * its requests over to the loop.
  * 
  * @author Joseph Eichenhofer and Christian Krueger
  */
@@ -32,91 +44,155 @@ public class ServerAppThread extends Thread {
 	private DMXDriver dmx;
 	private FixtureManager profiles;
 	private SceneManager sceneManager;
-	private ArrayList<FixtureProfile> selectedLights;
-	private byte currentState;
-	private boolean serverRunning = false;
-	private DatagramSocket serverSocket;
-	private int chaseSceneDelay = 100;
+	private volatile boolean serverRunning = false;
+	private DatagramChannel serverChannel;
+	private DatagramChannel oscChannel;
 	
 	private XYConverter colorConverter = null;
+	private DMXHistory history = null;
+	private Persister persister = null;
+	private PaletteManager palettes = null;
 	
-	private HeartBeatThread heartbeat = null;
-	private UDPServerThread udpListen = null;
-	private ChaseThread chase = null;
-	private HighlightThread highlight = null;
-	private PresetVisualThread presetVisual = null;
-	private RainbowThread rainbowVisual = null;
-	private DMXVisualThread dmxVisual = null;
+	private volatile EventLoop loop = null;
+	private HeartBeat heartbeat = null;
+	private ControlServer web = null;
+	private OscHandler osc = null;
 	
-	private int currentLightIndex;
-	private int currentPresetIndex;
-	private int currentControlIndex;
-	private int currentChannelIndex;
+	private volatile AudioAnalyzer audio = null;
+
+	/**
+	 * Packet being read, reused for every packet (and pending samples are loaded into collected).
+	 */
+	private WirelessCommand received = new WirelessCommand();
+	private WirelessCommand collected = new WirelessCommand();
 	
-	private int min = Integer.MAX_VALUE;
-	private int max = Integer.MIN_VALUE;
+	/**
+	 * Newest joystick/gyro sample per controller, standing in for the stale ones.
+	 */
+	private SensorConflator sensors;
+	private int[] pendingSensors = new int[Connection.SENSOR_CONFLATION_ENTRIES];
+	private int pendingSensorCount = 0;
+	
+	/**
+	 * Newest message per OSC fader address, standing in for the stale ones.
+	 */
+	private OscConflator oscFaders;
+	private int[] pendingFaders = new int[Connection.OSC_FADER_ENTRIES];
+	private int pendingFaderCount = 0;
+	
+	/**
+	 * Liveness, round trip time, and battery of each controller, from its poll replies.
+	 */
+	private ConnectionManager connections = new ConnectionManager();
 	
-	private boolean canChangeDMX;
-
 	/**
-	 * Shared synchronous queue of commands to process. Producer is UDPServerThread, consumer is main execution.
+	 * Session of each controller, keyed by address (only touched on the loop).
 	 */
-	private BlockingQueue<WirelessCommand> commandQ;
+	private HashMap<InetAddress, ControllerSession> sessions = new HashMap<InetAddress, ControllerSession>();
+	
+	private volatile long processedCommands = 0;
+	private ByteBuffer statsReply = ByteBuffer.allocateDirect(WirelessCommand.MAX_PACKET_SIZE);
+	
+	/**
+	 * Time from packet receipt through the state machine to the driver writes.
+	 */
+	private LatencyTracker latency;
 
-	public ServerAppThread(DMXDriver driver, FixtureManager profManager) {
+	/**
+	 * Constructor.
+	 * 
+	 * @param driver
+	 *            dmx driver (wrapped in a TimedDMX reporting to latency, for the write stages to be measured)
+	 * @param profManager
+	 *            fixture set
+	 * @param latency
+	 *            tracker for the packet latencies, exported to Filepaths.LATENCY_FILE when the server stops
+	 */
+	public ServerAppThread(DMXDriver driver, FixtureManager profManager, LatencyTracker latency) {
 		super();
 		dmx = driver;
 		profiles = profManager;
+		this.latency = latency;
+	}
+
+	/**
+	 * Constructor for a server sharing its scene list (a replicated server: the
+	 * replication node keeps the same scene manager in sync while standing by).
+	 * 
+	 * @param driver
+	 *            dmx driver (wrapped in a TimedDMX reporting to latency, for the write stages to be measured)
+	 * @param profManager
+	 *            fixture set
+	 * @param scenes
+	 *            scene list, or null to load it when the server starts
+	 * @param latency
+	 *            tracker for the packet latencies, exported to Filepaths.LATENCY_FILE when the server stops
+	 */
+	public ServerAppThread(DMXDriver driver, FixtureManager profManager, SceneManager scenes, LatencyTracker latency) {
+		this(driver, profManager, latency);
+		sceneManager = scenes;
 	}
 	
 	/**
-	 * Instantiate the DMX driver, datagram socket, and two threads. Then wait for
-	 * commands from the wireless controller (via udp thread). Parses the command
-	 * bytes, then interprets the change of state based on current state and the
-	 * type of command.
+	 * Open the sockets and register them, the heartbeat, and the web server's
+	 * hand-over queue with the event loop, then run the loop until stopServer is
+	 * called. Commands from the wireless controllers are parsed as they are read
+	 * and handled by the session of the controller that sent them. Everything
+	 * the loop ran is closed on this thread once it ends.
 	 */
 	public void run() {
 		
-		currentState = Modes.IDLE;
-		currentLightIndex = 0;
-		currentPresetIndex = 0;
-		currentControlIndex = 0;
-		currentChannelIndex = 0;
-		canChangeDMX = false;
-		boolean sendHeartbeat = false;
-		
-		int xVal = 0, yVal = 0;
-		int currentChannelVal = 0;
+		try {
+			loop = new EventLoop();
+		} catch (IOException ex) {
+			// fatal error if unable to open a selector
+			ex.printStackTrace();
+			System.exit(-1);
+		}
 		
 		try {
-			// instantiate server socket
-			serverSocket = new DatagramSocket(Connection.DMX_PORT);
+			// instantiate server channel (broadcast needed for heartbeats)
+			serverChannel = DatagramChannel.open();
+			serverChannel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			serverChannel.bind(new InetSocketAddress(Connection.DMX_PORT));
+			loop.register(serverChannel, this::readControllers);
 			System.out.println("Server Socket Initialized");
-		} catch (SocketException ex) {
+		} catch (IOException ex) {
 			// fatal error if unable to instantiate server socket
 			ex.printStackTrace();
 			System.exit(-1);
 		}
 		
-		//create new command queue
-		commandQ = new LinkedBlockingQueue<WirelessCommand>();
-
-		// start heartbeat thread
-		heartbeat = new HeartBeatThread(serverSocket, currentState);
-		heartbeat.setPriority(Thread.NORM_PRIORITY);
-		heartbeat.start();
+		try {
+			// OSC from tablets and show software, received alongside the controllers
+			oscChannel = DatagramChannel.open();
+			oscChannel.bind(new InetSocketAddress(Connection.OSC_PORT));
+			loop.register(oscChannel, this::readOsc);
+			System.out.println("OSC Socket Initialized on port " + Connection.OSC_PORT);
+		} catch (IOException ex) {
+			// the controllers work without it
+			System.out.println("OSC not started: " + ex.getMessage());
+			try {
+				oscChannel.close();
+			} catch (IOException e) {
+				// not open anyway
+			}
+			oscChannel = null;
+		}
 		
-		System.out.println("Heartbeat Thread Started");
-		// start udp listener thread
-		udpListen = new UDPServerThread(serverSocket, commandQ);
-		udpListen.setPriority(Thread.MAX_PRIORITY);
-		udpListen.start();
-		System.out.println("UDP Thread Started");
+		sensors = new SensorConflator(Connection.SENSOR_CONFLATION_ENTRIES);
+		oscFaders = new OscConflator(Connection.OSC_FADER_ENTRIES);
+
+		// heartbeat ticks on the loop, sending on the controller channel
+		heartbeat = new HeartBeat(serverChannel, Modes.IDLE, connections);
+		heartbeat.start(loop);
+		System.out.println("Heartbeat Started");
 		
 		//load scenes
 		//sceneManager = new SceneManager(dmx.getDmx());
 		try {
-			sceneManager = new SceneManager(dmx.getDmx());
+			if (sceneManager == null)
+				sceneManager = new SceneManager(dmx.getDmx());
 		} catch (IOException e2) {
 			// TODO Auto-generated catch block
 			e2.printStackTrace();
@@ -132,869 +208,272 @@ public class ServerAppThread extends Thread {
 		}
 		
 		colorConverter = new XYConverter();
-				
-		WirelessCommand currCommand = null;
+		history = new DMXHistory(dmx, profiles, sceneManager);
+		
+		try {
+			palettes = new PaletteManager();
+		} catch (IOException e2) {
+			// TODO Auto-generated catch block
+			e2.printStackTrace();
+			System.exit(-1);
+		}
+		
+		// scene, patch, and palette changes are written behind the loop
+		persister = new Persister(sceneManager, profiles, palettes);
+		persister.start();
+		
+		// web control runs beside the controllers, the server is fine without it
+		web = new ControlServer(dmx, profiles, sceneManager, loop);
+		try {
+			web.start(Connection.HTTP_PORT);
+			System.out.println("HTTP Control Started on port " + Connection.HTTP_PORT);
+		} catch (IOException e) {
+			System.out.println("HTTP Control not started: " + e.getMessage());
+			web = null;
+		}
+		
+		if (oscChannel != null)
+			osc = new OscHandler(new DirectSession("osc", dmx, profiles, sceneManager, loop), latency);
+		
+		// latencies of this run only
+		latency.reset();
+		
 		serverRunning = true;
-				
-		while (serverRunning) {
-			// take element from queue, blocking until something is there
-			try {
-				currCommand = commandQ.poll(1, TimeUnit.SECONDS);
-				
-				if (currCommand == null)
-					continue;
-				
-//				if(!heartbeat.getConnected())
-//				{
-//					heartbeat.setAddress(currCommand.getSender_ip());
-//				}
-			} catch (InterruptedException ex) {
-				// for now, treat interruptedexception as fatal error
-				ex.printStackTrace();
-				System.exit(-1);
-			}
-
-			if (!currCommand.parse()) {
+		System.out.println("Event Loop Started");
+		loop.run();
+		
+		shutdown();
+	}
+	
+	/**
+	 * Read the controller socket until it is empty, or READ_BATCH packets have
+	 * been read so the rest of the loop gets a turn. Sensor samples are
+	 * conflated while reading; the newest of each is handled before the next
+	 * other packet, so a button never overtakes the joystick moves before it.
+	 */
+	private void readControllers() {
+		for (int i = 0; i < Connection.READ_BATCH; i++) {
+			if (!receive(serverChannel, false))
+				break;
+			
+			if (!received.parse()) {
 				// if unable to parse the command, ignore it
-				System.out.println("Received invalid packet");
+				EventLog.log(EventLog.INVALID_PACKET, received.getSender_ip());
+				continue;
+			}
+			if (received.getPacketType() == Connection.POLL_PACKET_ID
+					&& received.getMode() == Connection.STATS_QUERY_MODE) {
+				// load generators asking how far the server keeps up
+				replyStats(received);
 				continue;
 			}
-
-			sendHeartbeat = false;
 			
-			switch (currCommand.getPacketType()) {
-			case Connection.DATA_PACKET_ID:
-			/* ---------- Main State Machine ------------------- */
-				/*for debug purposes*/
-				switch(currCommand.getUserActionData()){
-				case Connection.UP:
-					System.out.println("up");
-					break;
-				case Connection.DOWN:
-					System.out.println("down");
-					break;
-				case Connection.LEFT:
-					System.out.println("left");
-					break;
-				case Connection.RIGHT:
-					System.out.println("right");
-					break;
-				case Connection.B1:
-					System.out.println("b1");
-					break;
-				case Connection.B2:
-					System.out.println("b2");
-					break;
-				case Connection.PS2:
-					System.out.println("ps2");
-					break;
-				case Connection.PS2_LONG:
-					System.out.println("ps2 long");
-					break;
-				case Connection.B12:
-					System.out.println("b12");
-					break;
-				case Connection.KONAMI:
-					System.out.println("ko");
-					currentState = Modes.PARTY;
-					sendHeartbeat = true;
-					break;
-				case Connection.REV_KONAMI:
-					System.out.println("rko");
-					break;
-				}
-				
-				switch(currentState)
-				{
-					case Modes.CHASE:
-						if(currCommand.getDataType() != Connection.USER_ACTION_DATA){
-							sendHeartbeat = true;
-							break;
-						}
-						switch(currCommand.getUserActionData()){
-						case Connection.UP:
-							if(chaseSceneDelay < LightingDefines.MAX_CHASE_DELAY){
-								chase.setSceneDelay(chaseSceneDelay+=LightingDefines.CHASE_STEP);
-							}
-							break;
-						case Connection.DOWN:
-							if(chaseSceneDelay > LightingDefines.MIN_CHASE_DELAY){
-								chase.setSceneDelay(chaseSceneDelay-=LightingDefines.CHASE_STEP);
-							}
-							break;
-						case Connection.B2:
-							currentState = Modes.IDLE;
-
-							redrumChase();
-							
-							revertScene();
-							
-							sendHeartbeat = true;
-							break;
-						}
-					break;
-					case Modes.IDLE:
-						if(currCommand.getDataType() != Connection.USER_ACTION_DATA){
-							sendHeartbeat = true;
-							break;
-						}
-						switch(currCommand.getUserActionData()){
-						case Connection.LEFT:
-							try {
-								dmx.setDMX(sceneManager.getLastScene().getDmxVals());
-							} catch (IOException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-							System.out.println(sceneManager.getCurrentIndex());
-							break;
-						case Connection.RIGHT:
-							try {
-								dmx.setDMX(sceneManager.getNextScene().getDmxVals());
-							} catch (IOException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-							System.out.println(sceneManager.getCurrentIndex());
-							break;
-						case Connection.DOWN:
-							try {
-								dmx.setDMX(sceneManager.getCurrentScene().getDmxVals());
-								sceneManager.setCurrentScene(sceneManager.getCurrentScene().getDmxVals());
-							} catch (IOException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-							System.out.println(sceneManager.getCurrentIndex());
-							break;
-						case Connection.B1:
-							currentState = Modes.LIGHT_SELECTION;
-							sceneManager.setCurrentScene(dmx.getDmx());
-							startHighlight();
-							sendHeartbeat = true;
-							break;
-						case Connection.B2:
-							if(sceneManager.getSceneCount() > 1){
-								currentState = Modes.CHASE;
-								startChase();
-								sendHeartbeat = true;
-							} else {
-								System.out.println("Can't play chase with less than 2 Scenes");
-							}
-							break;
-						case Connection.PS2:
-							//adds scene to list
-							if(sceneManager.getCurrentIndex() == -1)
-							{
-								sceneManager.addScene(dmx.getDmx());
-								try {
-									sceneManager.updateSceneFile();
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-									System.exit(-1);
-								}
-							}
-
-							break;
-						case Connection.PS2_LONG:
-							if(sceneManager.getCurrentIndex() != -1)
-							{
-								sceneManager.deleteScene();
-
-								try {
-									sceneManager.updateSceneFile();
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-									System.exit(-1);
-								}
-								
-								revertScene();
-							} else {
-								
-								sceneManager.deleteScene(sceneManager.getSceneCount()-1);
-								try {
-									dmx.clearDMX();
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-
-							}
-							break;
-						case Connection.KONAMI:
-							currentState = Modes.PARTY;
-							sendHeartbeat = true;
-							break;
-						case Connection.REV_KONAMI:
-							currentState = Modes.SCARY;
-							sendHeartbeat = true;
-							break;
-						}
-					break;
-					case Modes.LIGHT_SELECTION:
-						if(currCommand.getDataType() != Connection.USER_ACTION_DATA){
-							sendHeartbeat = true;
-							break;
-						}
-						switch(currCommand.getUserActionData()){
-						case Connection.LEFT:
-							if(!profiles.getLight(currentLightIndex).isSelected()) {
-								highlight.removeLight(profiles.getLight(currentLightIndex));
-								revertScene();
-								highlight.updateDefaultColor();
-							}
-							
-							if(--currentLightIndex < 0)
-								currentLightIndex = profiles.getLightCount() - 1;
-							
-							if(!profiles.getLight(currentLightIndex).isSelected())
-								highlight.addLight(profiles.getLight(currentLightIndex));
-							break;
-						case Connection.RIGHT:
-							if(!profiles.getLight(currentLightIndex).isSelected()) {
-								highlight.removeLight(profiles.getLight(currentLightIndex));
-								revertScene();
-								highlight.updateDefaultColor();
-							}
-							
-							if(--currentLightIndex < 0)
-								currentLightIndex = profiles.getLightCount() - 1;
-							
-							if(!profiles.getLight(currentLightIndex).isSelected())
-								highlight.addLight(profiles.getLight(currentLightIndex));
-							break;
-						case Connection.PS2:
-							if(profiles.getLight(currentLightIndex).isSelected()) {
-								profiles.getLight(currentLightIndex).setSelected(false);
-							} else {
-								profiles.getLight(currentLightIndex).setSelected(true);
-							}
-							break;
-						case Connection.PS2_LONG:
-								clearSelected();
-								highlight.addLight(profiles.getLight(currentLightIndex));
-							break;
-						case Connection.B1:
-							currentState = Modes.CONTROL_SELECTION;
-							
-							selectedLights = redrumHighlight();
-							
-							int temp = selectedLights.get(0).getNumChannels();
-							for (FixtureProfile light : selectedLights) {
-								if(temp != light.getNumChannels())
-								{
-									
-									canChangeDMX = false;
-									break;
-								}
-
-								canChangeDMX = true;
-								temp = light.getNumChannels();
-
-							}
-							
-							clearSelected();
-							revertScene();
-							
-							currentControlIndex = 1;
-							startPresetVisual();
-							sendHeartbeat = true;
-							break;
-						case Connection.B2:
-							redrumHighlight();
-							
-							clearSelected();
-							
-							revertScene();
-							
-							currentState = Modes.IDLE;
-							sendHeartbeat = true;
-							break;
-						}
-					break;
-					case Modes.CONTROL_SELECTION:
-						if(currCommand.getDataType() != Connection.USER_ACTION_DATA){
-							sendHeartbeat = true;
-							break;
-						}
-						switch(currCommand.getUserActionData()){
-						case Connection.LEFT:
-							switch(currentControlIndex)
-							{
-							case -1:
-								redrumDMXVisual();
-								currentControlIndex = 1;
-								revertScene();
-								startPresetVisual();
-								break;
-							case 0:
-								redrumRainbow();
-								if(canChangeDMX) {
-									currentControlIndex = -1;
-									revertScene();
-									startDMXVisual();
-								}
-								else {
-									currentControlIndex = 1;
-									startPresetVisual();
-								}
-								break;
-							case 1:
-								redrumPresetVisual();
-								currentControlIndex = 0;
-								revertScene();
-								startRainbow();
-								break;
-							}
-							break;
-						case Connection.RIGHT:
-							switch(currentControlIndex)
-							{
-							case -1:
-								redrumDMXVisual();
-								currentControlIndex = 0;
-								revertScene();
-								startRainbow();
-								break;
-							case 0:
-								redrumRainbow();
-								currentControlIndex = 1;
-								revertScene();
-								startPresetVisual();
-								break;
-							case 1:
-								redrumPresetVisual();
-								if(canChangeDMX) {
-									currentControlIndex = -1;
-									revertScene();
-									startDMXVisual();
-								}
-								else {
-									currentControlIndex = 0;
-									startRainbow();
-								}
-								break;
-							}
-							break;
-						case Connection.B1:
-							switch(currentControlIndex)
-							{
-							case -1:
-								redrumDMXVisual();
-								revertScene();
-								currentChannelIndex = 0;
-								currentState = Modes.DMX;
-								break;
-							case 0:
-								redrumRainbow();
-								currentState = Modes.COLOR_WHEEL;
-
-								break;
-							case 1:
-								redrumPresetVisual();
-								currentState = Modes.PRESET;
-
-								break;
-							}
-							
-							sendHeartbeat = true;
-							break;
-						case Connection.B2:
-							currentState = Modes.LIGHT_SELECTION;
-							switch(currentControlIndex)
-							{
-							case -1:
-								redrumDMXVisual();
-								break;
-							case 0:
-								redrumRainbow();
-								break;
-							case 1:
-								redrumPresetVisual();
-								break;
-							}
-							revertScene();
-							
-							startHighlight();
-
-							sendHeartbeat = true;
-
-							break;
-						}	
-					break;
-					case Modes.COLOR_WHEEL: 
-						if(currCommand.getDataType() == Connection.USER_ACTION_DATA){
-							switch(currCommand.getUserActionData()){
-							case Connection.B1:
-								sceneManager.setCurrentScene(dmx.getDmx());
-								
-								currentState = Modes.LIGHT_SELECTION;
-								
-								startHighlight();
-								sendHeartbeat = true;
-								break;
-							case Connection.B2:
-								currentState = Modes.CONTROL_SELECTION;
-								
-								startRainbow();
-								
-								sendHeartbeat = true;
-								break;
-							}
-						}
-						else if(currCommand.getDataType() == Connection.JOYSTIC_DATA)
-						{
-							System.out.println(Arrays.toString(currCommand.getJoystickData()));
-							xVal = currCommand.getJoystickData()[0];
-							yVal = currCommand.getJoystickData()[1];
-							
-							for (FixtureProfile light : selectedLights) {
-								try {
-									light.setColor(colorConverter.getColor(xVal, yVal));
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-							}
-						}
-						else
-						{
-							System.out.println("Panic");
-							sendHeartbeat = true;
-							break;
-						}
-					break;
-					case Modes.DMX:
-						if(currCommand.getDataType() != Connection.USER_ACTION_DATA){
-							sendHeartbeat = true;
-							break;
-						}
-						switch(currCommand.getUserActionData()){
-						case Connection.LEFT:
-							if(--currentChannelIndex < 0)
-								currentChannelIndex = selectedLights.get(0).getNumChannels() - 1;
-							
-							break;
-						case Connection.RIGHT:
-							if(++currentChannelIndex >= selectedLights.get(0).getNumChannels())
-								currentChannelIndex = 0;
-							
-							break;
-						case Connection.UP:
-							for (FixtureProfile light : selectedLights) {
-								
-								currentChannelVal = light.getDMXVals()[currentChannelIndex];
-								currentChannelVal += LightingDefines.DMX_STEP;
-								if(currentChannelVal > 255)
-									continue;
-								try {
-									light.setChannelManual(currentChannelIndex, currentChannelVal);
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-								
-							}
-							break;
-						case Connection.DOWN:
-							for (FixtureProfile light : selectedLights) {
-								
-								currentChannelVal = light.getDMXVals()[currentChannelIndex];
-								currentChannelVal -= LightingDefines.DMX_STEP;
-								if(currentChannelVal < 0)
-									continue;
-								try {
-									light.setChannelManual(currentChannelIndex, currentChannelVal);
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-								
-							}
-							break;
-						case Connection.B1:
-							sceneManager.setCurrentScene(dmx.getDmx());
-							
-							currentState = Modes.LIGHT_SELECTION;
-							
-							startHighlight();
-							sendHeartbeat = true;
-							break;
-						case Connection.B2:
-							currentState = Modes.CONTROL_SELECTION;
-							
-							revertScene();
-							
-							startDMXVisual();
-							
-							sendHeartbeat = true;
-							break;
-							
-						case Connection.PS2:
-							for (FixtureProfile light : selectedLights) {
-								try {
-									light.clearLight();
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-							}
-					
-						}
-					break;
-					case Modes.PRESET:
-						switch(currCommand.getUserActionData()){
-						case Connection.LEFT:
-							if(--currentPresetIndex < 0){
-								currentPresetIndex = LightingDefines.PRESETS.length - 1;
-							}
-							for (FixtureProfile light : selectedLights) {
-								try {
-									light.setColor(LightingDefines.PRESETS[currentPresetIndex]);
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-									System.exit(-1);
-								}
-							}
-							break;
-						case Connection.RIGHT:
-							if(++currentPresetIndex >= LightingDefines.PRESETS.length){
-								currentPresetIndex = 0;
-							}
-							for (FixtureProfile light : selectedLights) {
-								try {
-									light.setColor(LightingDefines.PRESETS[currentPresetIndex]);
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-									System.exit(-1);
-								}
-							}
-							break;
-						case Connection.B1:
-							//saves scene
-							sceneManager.setCurrentScene(dmx.getDmx());
-							
-							currentState = Modes.LIGHT_SELECTION;
-							
-							startHighlight();
-							
-							sendHeartbeat = true;
-							break;
-						case Connection.B2:
-							currentState = Modes.CONTROL_SELECTION;
-							
-							startPresetVisual();
-							
-							sendHeartbeat = true;
-							break;
-						}
-					break;
-					case Modes.PARTY:
-						if(currCommand.getDataType() == Connection.USER_ACTION_DATA){
-							switch(currCommand.getUserActionData()){
-							case Connection.PS2_LONG:
-								System.out.println(min + " " + max );
-								currentState = Modes.IDLE;
-								sendHeartbeat = true;
-								break;
-							}
-						}
-						else if(currCommand.getDataType() == Connection.GYRO_DATA)
-						{
-							int gyroData = currCommand.getGyroData();
-							int dv = 0;
-							int rR;
-							int rG;
-							int rB;
-							
-							if(gyroData > 300)
-								dv = 10;
-							if(gyroData > 350)
-								dv = 30;
-							if(gyroData > 400)
-								dv = 45;
-							if(gyroData > 600)
-								dv = 90;
-							if(gyroData > 670)
-								dv = 100;
-							if(gyroData > 900)
-								dv = 120;
-							if(gyroData > 950)
-								dv = 175;
-							if(gyroData > 1000)
-								dv = 200;
-							if(gyroData > 1100)
-								dv = 225;
-							if(gyroData > 1400)
-								dv = 240;
-							if(gyroData > 1700)
-								dv = 250;
-							if(gyroData > 2000)
-								dv = 255;
-
-							
-							System.out.println(dv);
-							System.out.println(gyroData);
-							
-							for (int i = 0; i < profiles.getLightCount(); i++) {
-								try {
-									rR = (int) (Math.random()*256);
-									rG = (int) (Math.random()*256);
-									rB = (int) (Math.random()*256);
-									profiles.getLight(i).setDimmerValue(dv);
-									profiles.getLight(i).setColor(new Color(rR, rG, rB));
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-							}
-							
-						}
-						else
-						{
-							
-							sendHeartbeat = true;
-							break;
-						}
-					break;
-					case Modes.SCARY:
-						if(currCommand.getDataType() == Connection.USER_ACTION_DATA){
-							switch(currCommand.getUserActionData()){
-							case Connection.PS2_LONG:
-								currentState = Modes.IDLE;
-								sendHeartbeat = true;
-								break;
-							}
-						}
-						else if(currCommand.getDataType() == Connection.GYRO_DATA)
-						{
-							int gyroData = currCommand.getGyroData();
-							int dv = 247;
-							
-							if(gyroData > 300)
-								dv = 230;
-							if(gyroData > 320)
-								dv = 220;
-							if(gyroData > 340)
-								dv = 200;
-							if(gyroData > 360)
-								dv = 170;
-							if(gyroData > 370)
-								dv = 130;
-							if(gyroData > 390)
-								dv = 110;
-							if(gyroData > 410)
-								dv = 100;
-							if(gyroData > 420)
-								dv = 70;
-							if(gyroData > 450)
-								dv = 50;
-							if(gyroData > 460)
-								dv = 33;
-							if(gyroData > 465)
-								dv = 20;
-							if(gyroData > 477)
-								dv = 3;
-
-							
-							System.out.println(dv);
-							System.out.println(gyroData);
-							
-							for (int i = 0; i < profiles.getLightCount(); i++) {
-								try {
-
-									profiles.getLight(i).setDimmerValue(dv);
-									profiles.getLight(i).setColor(Color.WHITE);
-								} catch (IOException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-							}
-						}
-						else
-						{
-							System.out.println("Panic");
-							sendHeartbeat = true;
-							break;
-						}
-					break;
-					default:
-						System.out.println("State out of bounds!");
-					break;
+			if (SensorConflator.isSensor(received)) {
+				int entry = sensors.update(received);
+				if (entry >= 0) {
+					if (sensors.markPending(entry))
+						pendingSensors[pendingSensorCount++] = entry;
+					continue;
 				}
-				break;
-			case Connection.POLL_REPLY_PACKET_ID:
-				//Do mode matching maybe?
-				System.out.println("Poll Reply");
-				break;
-			case Connection.POLL_PACKET_ID:
-				//Do mode matching maybe?
-				System.out.println("Poll");
-				break;
-			default:
-				System.out.println("Unkown Packet Type");
-			break;
 			}
 			
-			if(sendHeartbeat)
-			{
-				heartbeat.setCurrentState(currentState);
-				heartbeat.sendHeartbeat();
-			}
+			collectSensors();
+			dispatch(received);
 		}
+		collectSensors();
 	}
 	
-	private void revertScene() {
-		try {
-			dmx.setDMX(sceneManager.getCurrentScene().getDmxVals());
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		if(selectedLights != null) {
-			for (FixtureProfile light : selectedLights) {
-				light.syncLight();
-			}
+	/**
+	 * Handle the newest sample of each pending sensor entry.
+	 */
+	private void collectSensors() {
+		for (int i = 0; i < pendingSensorCount; i++) {
+			sensors.collect(pendingSensors[i], collected);
+			dispatch(collected);
 		}
-
+		pendingSensorCount = 0;
 	}
 	
-	private void clearSelected() {
-		for (int i = 0; i < profiles.getLightCount(); i++) {
-			profiles.getLight(i).setSelected(false);
+	/**
+	 * Hand a parsed command to the session of the controller that sent it,
+	 * starting a session for a new controller.
+	 */
+	private void dispatch(WirelessCommand command) {
+		processedCommands++;
+		latency.record(command, LatencyTracker.DEQUEUE);
+		
+		ControllerSession session = sessions.get(command.getSender_ip());
+		if (session == null) {
+			// polls come from servers (including our own heartbeat), only controllers get sessions
+			if (command.getPacketType() == Connection.POLL_PACKET_ID)
+				return;
+			session = new ControllerSession(command.getSender_ip(), this, dmx, profiles, sceneManager,
+					colorConverter, heartbeat, loop, history, palettes);
+			sessions.put(session.getAddress(), session);
+			EventLog.log(EventLog.NEW_SESSION, session.getAddress());
 		}
-	}
-	
-	private void startRainbow() {
-		rainbowVisual = new RainbowThread(selectedLights);
-		rainbowVisual.start();
-	}
-	
-	private void redrumRainbow() {
-		try {
-			rainbowVisual.redrum();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			// e.printStackTrace();
-			// gonna die anyway
+		
+		connections.seen(command);
+		if (command.getPacketType() == Connection.POLL_REPLY_PACKET_ID) {
+			// metrics only, nothing for the state machine
+			connections.pollReply(command);
+			return;
 		}
-		rainbowVisual = null;
+		
+		latency.begin(command);
+		session.handle(command);
+		latency.end();
 	}
 	
-	private void startDMXVisual() {
-		dmxVisual = new DMXVisualThread(selectedLights);
-		dmxVisual.start();
+	/**
+	 * Read the OSC socket until it is empty, or READ_BATCH packets have been
+	 * read. Fader messages are conflated like the sensor samples.
+	 */
+	private void readOsc() {
+		for (int i = 0; i < Connection.READ_BATCH; i++) {
+			if (!receive(oscChannel, true))
+				break;
+			
+			int entry = oscFaders.update(received);
+			if (entry >= 0) {
+				if (oscFaders.markPending(entry))
+					pendingFaders[pendingFaderCount++] = entry;
+				continue;
+			}
+			
+			collectFaders();
+			handleOsc(received);
+		}
+		collectFaders();
 	}
 	
-	private void redrumDMXVisual() {
-		try {
-			dmxVisual.redrum();
-		} catch (InterruptedException e) {
-			// gonna die anyway
+	/**
+	 * Handle the newest message of each pending fader entry.
+	 */
+	private void collectFaders() {
+		for (int i = 0; i < pendingFaderCount; i++) {
+			oscFaders.collect(pendingFaders[i], collected);
+			handleOsc(collected);
 		}
-		
-		dmxVisual = null;
+		pendingFaderCount = 0;
 	}
 	
-	private void startChase() {
-		chase = new ChaseThread(chaseSceneDelay, sceneManager.getSceneArray(), dmx);
-		chase.start();
+	private void handleOsc(WirelessCommand command) {
+		processedCommands++;
+		latency.record(command, LatencyTracker.DEQUEUE);
+		osc.handle(command);
 	}
 	
-	private void redrumChase() {
-		chase.redrum();
+	/**
+	 * Receive one packet into the reused command.
+	 * 
+	 * @return true if a packet was received, false if the channel is empty (or closed)
+	 */
+	private boolean receive(DatagramChannel channel, boolean isOsc) {
+		SocketAddress sender;
 		try {
-			chase.join();
-		} catch (InterruptedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			sender = channel.receive(received.receiveBuffer());
+		} catch (ClosedChannelException ex) {
+			// closed while stopping
+			return false;
+		} catch (IOException ex) {
+			// treat ioexception as fatal for now;
+			ex.printStackTrace();
 			System.exit(-1);
+			return false;
 		}
-		chase = null;
-	}
-	
-	private void startHighlight() {
-		highlight = new HighlightThread();
-		highlight.addLight(profiles.getLight(currentLightIndex));
-		highlight.start();
+		if (sender == null)
+			return false;
+		
+		InetSocketAddress from = (InetSocketAddress) sender;
+		long receiveTime = System.nanoTime();
+		if (isOsc)
+			received.receivedOsc(from.getAddress(), from.getPort(), receiveTime);
+		else
+			received.received(from.getAddress(), from.getPort(), receiveTime);
+		return true;
 	}
 	
-	private ArrayList<FixtureProfile> redrumHighlight() {
-		ArrayList<FixtureProfile> temp;
-		temp = highlight.redrum();
-		highlight.interrupt();
+	/**
+	 * Answer a stats query with a poll reply to the sending port. The message
+	 * carries the counters as "processed=N dropped=N conflated=N sessions=N".
+	 * Nothing waits in a queue inside the server, so dropped is always 0 here;
+	 * packets the loop can't keep up with are dropped by the socket.
+	 * 
+	 * @param query
+	 *            parsed poll with mode Connection.STATS_QUERY_MODE
+	 */
+	private void replyStats(WirelessCommand query) {
+		String stats = "processed=" + processedCommands + " dropped=0 conflated=" + sensors.getConflated()
+				+ " sessions=" + sessions.size();
+		
+		WirelessPackets.pollReply(statsReply, Modes.IDLE, 0f, (byte) 0, stats);
 		try {
-			highlight.join();
-		} catch (InterruptedException e1) {
+			serverChannel.send(statsReply, new InetSocketAddress(query.getSender_ip(), query.getSender_port()));
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			e.printStackTrace();
 		}
-		highlight = null;
-		return temp;
 	}
 	
-	private void startPresetVisual() {
-		presetVisual = new PresetVisualThread(selectedLights);
-		presetVisual.start();
-	}
-	
-	private void redrumPresetVisual() {
-		presetVisual.redrum();
-		presetVisual.interrupt();
-		try {
-			presetVisual.join();
-		} catch (InterruptedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-		presetVisual = null;
+	/**
+	 * Stop the event loop. The sessions, effects, and sockets are closed (and
+	 * pending scene and patch changes written) on the server thread as the loop
+	 * ends, so join it before relying on that.
+	 */
+	public void stopServer(){
+		serverRunning = false;
+		
+		EventLoop running = loop;
+		if(running != null)
+			running.redrum();
 	}
 	
-	public void stopServer(){
-		if(highlight != null){
-			redrumHighlight();
-		}
+	/**
+	 * Close everything the loop ran. Called on the server thread once the loop
+	 * has ended.
+	 */
+	private void shutdown() {
+		serverRunning = false;
 		
-		if(presetVisual != null){
-			redrumPresetVisual();
-		}
+		for (ControllerSession session : sessions.values())
+			session.close();
+		sessions.clear();
 		
-		if(rainbowVisual != null) {
-			redrumRainbow();
-		}
+		if(osc != null)
+			osc.close();
 		
-		if(dmxVisual != null) {
-			redrumDMXVisual();
-		}
+		if(web != null)
+			web.stop();
+		
+		if(heartbeat != null)
+			heartbeat.redrum();
 		
-		if(udpListen != null)
+		// nothing changes the scenes or patch once the loop is done, write the rest
+		if(persister != null)
+			persister.redrum();
+		
+		if(serverChannel != null)
 			try {
-				udpListen.redrum();
-				udpListen.interrupt();
-				udpListen.join();
-			} catch (InterruptedException e) {
+				serverChannel.close();
+			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-		
-		if(heartbeat != null)
+		if(oscChannel != null)
 			try {
-				heartbeat.redrum();
-				heartbeat.interrupt();
-				heartbeat.join();
-			} catch (InterruptedException e) {
+				oscChannel.close();
+			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		
-		if(serverSocket != null)
-			serverSocket.close();
-
-
+		try {
+			latency.exportCsv(Paths.get(Filepaths.LATENCY_FILE));
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
 		
 		/*try {
 			dmx.clearDMX();
@@ -1002,8 +481,106 @@ public class ServerAppThread extends Thread {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}*/
-		
-		serverRunning = false;
+	}
+	
+	/**
+	 * Set the analyzer for the live audio input used by the audio party effect.
+	 * 
+	 * @param analyzer
+	 *            analyzer of the audio input, or null if there is none
+	 */
+	public void setAudioAnalyzer(AudioAnalyzer analyzer){
+		audio = analyzer;
+	}
+	
+	/**
+	 * Get the analyzer for the live audio input.
+	 * 
+	 * @return analyzer of the audio input, or null if there is none
+	 */
+	public AudioAnalyzer getAudioAnalyzer(){
+		return audio;
+	}
+	
+	/**
+	 * Describe the packet intake: packets handled, how many stale sensor
+	 * samples were conflated away, the event loop's wake-ups, and the
+	 * controllers with their round trip time, poll loss, and battery level.
+	 * Built on the loop, between packets.
+	 * 
+	 * @return multi-line summary, or a note if the server has not started
+	 */
+	public String getNetworkInfo(){
+		EventLoop running = loop;
+		if(!serverRunning || running == null)
+			return "Server not started";
+		try {
+			return running.call(this::describe);
+		} catch (IOException e) {
+			return "Server not started";
+		}
+	}
+	
+	private String describe() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("commands processed: ").append(processedCommands).append('\n');
+		sb.append("sensor samples:     ").append(sensors.getSamples()).append('\n');
+		sb.append("sensor conflated:   ").append(sensors.getConflated()).append('\n');
+		sb.append("sensor unconflated: ").append(sensors.getUnmatched()).append('\n');
+		sb.append(loop.getInfo()).append('\n');
+		sb.append(history.getInfo()).append('\n');
+		sb.append(palettes.getInfo()).append('\n');
+		sb.append(persister.getInfo()).append('\n');
+		sb.append(sceneManager.getSceneInfo()).append('\n');
+		sb.append(sceneManager.getJournalInfo()).append('\n');
+		sb.append(sceneManager.getStoreInfo());
+		if (osc != null)
+			sb.append('\n').append(osc.getInfo()).append(", faders conflated ").append(oscFaders.getConflated());
+		if (web != null)
+			sb.append('\n').append(web.getInfo());
+		sb.append('\n').append("controllers:        ").append(sessions.size());
+		for (ControllerSession session : sessions.values()) {
+			sb.append('\n').append("  ").append(session);
+			ConnectionManager.Peer peer = connections.get(session.getAddress());
+			if (peer != null)
+				sb.append('\n').append("    ").append(peer);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Undo the last step of the DMX and scene history, on the loop. Fixtures
+	 * held by a controller are left alone.
+	 * 
+	 * @return summary of the history afterwards
+	 * @throws IOException
+	 *             if the server is not running, or unable to write the dmx
+	 *             driver or scene file
+	 */
+	public String undo() throws IOException {
+		return historyCall(true);
+	}
+	
+	/**
+	 * Redo the last undone step, on the loop.
+	 * 
+	 * @return summary of the history afterwards
+	 * @throws IOException
+	 *             if the server is not running, or unable to write the dmx
+	 *             driver or scene file
+	 */
+	public String redo() throws IOException {
+		return historyCall(false);
+	}
+	
+	private String historyCall(boolean undo) throws IOException {
+		EventLoop running = loop;
+		if(!serverRunning || running == null)
+			throw new IOException("server not running");
+		return running.call(() -> {
+			boolean done = undo ? history.undo(null) : history.redo(null);
+			return (done ? "" : "nothing to " + (undo ? "undo" : "redo") + ", ") + history.getInfo();
+		});
 	}
 	
 	public FixtureManager getProfileManager(){
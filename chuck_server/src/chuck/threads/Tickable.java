@@ -0,0 +1,75 @@
+package chuck.threads;
+
+/**
+ * Work the event loop runs on a schedule rather than in answer to a packet: the
+ * effects drawing their frames, the heartbeat. Each tick returns when the next
+ * one is due, so the loop sleeps exactly until some tick has work to do. <br />
+ * Like everything else on the loop, a tickable is only touched from the loop's
+ * thread, so it needs no locks or volatile fields.
+ */
+public abstract class Tickable {
+
+	/**
+	 * Returned by tick to stop being scheduled
+	 */
+	public static final long STOP = Long.MIN_VALUE;
+
+	/**
+	 * When the next tick is due (System.nanoTime), while scheduled
+	 */
+	long due;
+
+	/**
+	 * Position in the loop's timer heap, -1 while not scheduled
+	 */
+	int slot = -1;
+
+	private EventLoop loop = null;
+
+	/**
+	 * Schedule the first tick right away.
+	 *
+	 * @param loop
+	 *            loop to run on (this must be its thread, or it must not be
+	 *            running yet)
+	 */
+	public void start(EventLoop loop) {
+		this.loop = loop;
+		loop.schedule(this, System.nanoTime());
+	}
+
+	/**
+	 * Bring the next tick forward to now (e.g., after a setting changed), if
+	 * still scheduled.
+	 */
+	protected void wake() {
+		if (loop != null && slot >= 0)
+			loop.schedule(this, System.nanoTime());
+	}
+
+	/**
+	 * Stop ticking. A tick already running still finishes.
+	 */
+	protected void cancel() {
+		if (loop != null)
+			loop.cancel(this);
+	}
+
+	/**
+	 * Whether a tick is scheduled.
+	 *
+	 * @return true until cancelled or tick returns STOP
+	 */
+	public boolean isScheduled() {
+		return slot >= 0;
+	}
+
+	/**
+	 * Do one tick's work.
+	 *
+	 * @param now
+	 *            System.nanoTime of this pass of the loop
+	 * @return System.nanoTime the next tick is due at, or STOP
+	 */
+	protected abstract long tick(long now);
+}
@@ -7,6 +7,8 @@
 uint8_t konami_state = 0;
 uint8_t reverse_konami_state = 0;
 uint32_t konami_tick_count = 0;
+uint8_t history_state = 0;
+uint32_t history_tick_count = 0;
 
 void clear_konami()
 {
@@ -17,6 +19,12 @@ void clear_konami()
 
 void konami_tick()
 {
+  if(history_tick_count && history_tick_count++ > KONAMI_TIMEOUT)
+  {
+    history_state = 0;
+    history_tick_count = 0;
+  }
+
   if(!konami_tick_count)
     return;
 
@@ -167,3 +175,29 @@ uint8_t check_konami(uint8_t direction, uint8_t button)
   clear_konami();
   return 0; //should never get here
 }
+
+//B1 + B2 then LEFT is undo, B1 + B2 then RIGHT is redo
+uint8_t check_history(uint8_t direction, uint8_t button)
+{
+  // if no event return
+  if(!direction && !button)
+    return 0;
+
+  if(button == B12)
+  {
+    history_state = 1;
+    history_tick_count = 1;
+    return KONAMI_SEMICOMPLETE;
+  }
+
+  uint8_t armed = history_state;
+  history_state = 0;
+  history_tick_count = 0;
+
+  if(armed && direction == LEFT)
+    return UNDO_COMPLETE;
+  else if(armed && direction == RIGHT)
+    return REDO_COMPLETE;
+
+  return 0;
+}
@@ -14,9 +14,12 @@
 #define KONAMI_COMPLETE 0x31
 #define REV_KONAMI_COMPLETE 0x32
 #define KONAMI_SEMICOMPLETE 0x33
+#define UNDO_COMPLETE 0x34
+#define REDO_COMPLETE 0x35
 
 void clear_konami(void);
 void konami_tick(void);
 uint8_t check_konami(uint8_t direction, uint8_t button);
+uint8_t check_history(uint8_t direction, uint8_t button);
 
 #endif
@@ -156,6 +156,23 @@ void app_main()
         break;
         case IDLE_MODE:
           continuous_read_enable = 0;
+          switch(check_history(direction_event, button_event))
+          {
+            case 0:
+              //do nothing
+            break;
+            case KONAMI_SEMICOMPLETE:
+              goto SKIP_USER_INPUT;
+            break;
+            case UNDO_COMPLETE:
+              ESP_LOGI(TAG, "B1 + B2, LEFT -> Undo");
+              direction_event = UNDO_COMPLETE;
+            break;
+            case REDO_COMPLETE:
+              ESP_LOGI(TAG, "B1 + B2, RIGHT -> Redo");
+              direction_event = REDO_COMPLETE;
+            break;
+          }
           switch(check_konami(direction_event, button_event))
           {
             case 0: